@@ -19,22 +19,44 @@ import com.android.ddmlib.Log;
 import com.android.tradefed.command.FatalHostError;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Collection;
+import java.io.Writer;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A helper class that maintains a local filesystem LRU cache of downloaded files.
+ * <p/>
+ * Concurrent requests for the same remote file share a single download, and requests for
+ * different files only contend briefly on the cache index. Old files are evicted in the
+ * background once the cache grows past its maximum size.
+ * <p/>
+ * The contents of the cache are recorded in a journal file, so the cache can be restored on
+ * startup without scanning the cache directory. Downloads are recorded before they start, so
+ * files left incomplete by a crash are deleted on the next startup.
  */
 public class FileDownloadCache {
 
@@ -42,25 +64,118 @@ public class FileDownloadCache {
 
     private static final char REL_PATH_SEPARATOR = '/';
 
+    /** the name of the journal file, stored in the cache root */
+    static final String JOURNAL_FILE_NAME = ".tf_cache_journal";
+
+    /**
+     * journal record for a file about to be downloaded, followed by the remote path. A file
+     * without a later record was left incomplete and is deleted on startup
+     */
+    private static final char JOURNAL_DOWNLOAD = 'D';
+    /** journal record for a downloaded file, followed by its size and remote path */
+    private static final char JOURNAL_ADD = 'A';
+    /** journal record for a cache hit, followed by the remote path */
+    private static final char JOURNAL_USE = 'U';
+    /** journal record for a removed file, followed by the remote path */
+    private static final char JOURNAL_REMOVE = 'R';
+
+    /** the number of obsolete journal records allowed before the journal is compacted */
+    private static final int MAX_OBSOLETE_JOURNAL_RECORDS = 1000;
+
     /** fixed location of download cache. */
     private final File mCacheRoot;
 
     /**
-     * The map of remote file paths to local files, stored in least-recently-used order.
+     * The map of remote file paths to cache entries, stored in least-recently-used order.
      * <p/>
      * Used for performance reasons. Functionally speaking, this data structure is not needed,
      * since all info could be obtained from inspecting the filesystem.
      */
-    private final Map<String, File> mCacheMap = new LinkedHashMap<String, File>();
+    private final Map<String, CacheEntry> mCacheMap = new LinkedHashMap<String, CacheEntry>();
 
-    /** the lock for <var>mCacheMap</var> */
+    /** the lock for <var>mCacheMap</var> and all the cache state, except metrics */
     private final ReentrantLock mCacheMapLock = new ReentrantLock();
 
+    /** the remote paths of evicted files that are being deleted */
+    private final Set<String> mEvictingPaths = new HashSet<String>();
+
+    /** signalled when evicted files have been deleted */
+    private final Condition mEvictionDone = mCacheMapLock.newCondition();
+
     private long mCurrentCacheSize = 0;
 
     /** The approximate maximum allowed size of the local file cache. Default to 2 gig */
     private long mMaxFileCacheSize = 2L * 1024L * 1024L * 1024L;
 
+    private Writer mJournal = null;
+    private int mNumJournalRecords = 0;
+
+    private final ExecutorService mEvictionExecutor;
+    private final AtomicBoolean mEvictionScheduled = new AtomicBoolean(false);
+    private boolean mSynchronousMode = false;
+
+    private final AtomicLong mNumHits = new AtomicLong(0);
+    private final AtomicLong mNumMisses = new AtomicLong(0);
+    private final AtomicLong mDownloadedBytes = new AtomicLong(0);
+    private final AtomicLong mEvictedBytes = new AtomicLong(0);
+
+    /**
+     * A cached file, and the state of its download.
+     */
+    private static class CacheEntry {
+        final File mFile;
+        private final CountDownLatch mDownloadLatch;
+        private BuildRetrievalError mDownloadError = null;
+        /** the size of the file, once downloaded */
+        long mSize = 0;
+        /** the number of requests currently using the file. Guarded by mCacheMapLock */
+        int mNumUsers = 0;
+
+        CacheEntry(File file) {
+            mFile = file;
+            mDownloadLatch = new CountDownLatch(1);
+        }
+
+        CacheEntry(File file, long size) {
+            this(file);
+            mSize = size;
+            mDownloadLatch.countDown();
+        }
+
+        /**
+         * Mark the download of this entry as complete.
+         *
+         * @param error the download failure, or <code>null</code> if successful
+         */
+        void downloadFinished(BuildRetrievalError error) {
+            mDownloadError = error;
+            mDownloadLatch.countDown();
+        }
+
+        boolean isDownloaded() {
+            return mDownloadLatch.getCount() == 0 && mDownloadError == null;
+        }
+
+        /**
+         * Wait for the download of this entry, performed by another request, to complete.
+         *
+         * @throws BuildRetrievalError if the download failed
+         */
+        void waitForDownload(String remotePath) throws BuildRetrievalError {
+            try {
+                mDownloadLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BuildRetrievalError(String.format(
+                        "Interrupted while waiting for download of %s", remotePath), e);
+            }
+            if (mDownloadError != null) {
+                throw new BuildRetrievalError(String.format("Failed to download %s",
+                        remotePath), mDownloadError);
+            }
+        }
+    }
+
     /**
      * Struct for a {@link File} and its remote relative path
      */
@@ -87,7 +202,7 @@ public class FileDownloadCache {
     }
 
     /**
-     * Create a {@link FileDownloadCache}, deleting any previous cache contents from disk.
+     * Create a {@link FileDownloadCache}, restoring any previous cache contents from disk.
      * <p/>
      * Assumes that the current process has exclusive access to the <var>cacheRoot</var> directory.
      * <p/>
@@ -95,6 +210,16 @@ public class FileDownloadCache {
      */
     FileDownloadCache(File cacheRoot) {
         mCacheRoot = cacheRoot;
+        mEvictionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("FileDownloadCache eviction %s",
+                        mCacheRoot.getName()));
+                // eviction shouldn't hold the JVM open
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         if (!mCacheRoot.exists()) {
             Log.d(LOG_TAG, String.format("Creating file cache at %s",
                     mCacheRoot.getAbsolutePath()));
@@ -102,7 +227,7 @@ public class FileDownloadCache {
                 throw new FatalHostError(String.format("Could not create cache directory at %s",
                         mCacheRoot.getAbsolutePath()));
             }
-        } else {
+        } else if (!loadJournal()) {
             Log.d(LOG_TAG, String.format("Building file cache from contents at %s",
                     mCacheRoot.getAbsolutePath()));
             // create an unsorted list of all the files in mCacheRoot. Need to create list first
@@ -113,14 +238,21 @@ public class FileDownloadCache {
             Collections.sort(cacheEntryList, new FileTimeComparator());
             // now insert them into the map
             for (FilePair cacheEntry : cacheEntryList) {
-                mCacheMap.put(cacheEntry.mRelPath, cacheEntry.mFile);
-                mCurrentCacheSize += cacheEntry.mFile.length();
-            }
-            // this would be an unusual situation, but check if current cache is already too big
-            if (mCurrentCacheSize > getMaxFileCacheSize()) {
-                incrementAndAdjustCache(0);
+                long size = cacheEntry.mFile.length();
+                mCacheMap.put(cacheEntry.mRelPath, new CacheEntry(cacheEntry.mFile, size));
+                mCurrentCacheSize += size;
             }
         }
+        mCacheMapLock.lock();
+        try {
+            rewriteJournal();
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        // this would be an unusual situation, but check if current cache is already too big
+        if (mCurrentCacheSize > getMaxFileCacheSize()) {
+            evictFiles();
+        }
     }
 
     /**
@@ -146,6 +278,10 @@ public class FileDownloadCache {
                 relPathSegments.push(childFile.getName());
                 addFiles(childFile, relPathSegments, cacheEntryList);
                 relPathSegments.pop();
+            } else if (relPathSegments.isEmpty() &&
+                    childFile.getName().startsWith(JOURNAL_FILE_NAME)) {
+                // skip journal files
+                continue;
             } else if (childFile.isFile()) {
                 StringBuffer relPath = new StringBuffer();
                 for (String pathSeg : relPathSegments) {
@@ -161,6 +297,170 @@ public class FileDownloadCache {
         }
     }
 
+    /**
+     * Restore the cache contents from the journal.
+     *
+     * @return <code>true</code> if the cache was restored, <code>false</code> if there is no
+     *         valid journal and the cache directory must be scanned instead
+     */
+    private boolean loadJournal() {
+        File journalFile = getJournalFile();
+        if (!journalFile.isFile()) {
+            return false;
+        }
+        Log.d(LOG_TAG, String.format("Restoring file cache from journal %s",
+                journalFile.getAbsolutePath()));
+        // replay records in order, to get the entries in LRU order
+        LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>();
+        Set<String> incompletePaths = new HashSet<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journalFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 3 || line.charAt(1) != ' ') {
+                    CLog.w("Invalid record '%s' in cache journal", line);
+                    return false;
+                }
+                String data = line.substring(2);
+                switch (line.charAt(0)) {
+                    case JOURNAL_ADD:
+                        int sizeEnd = data.indexOf(' ');
+                        if (sizeEnd < 0) {
+                            CLog.w("Invalid record '%s' in cache journal", line);
+                            return false;
+                        }
+                        String remotePath = data.substring(sizeEnd + 1);
+                        incompletePaths.remove(remotePath);
+                        entries.remove(remotePath);
+                        entries.put(remotePath, Long.parseLong(data.substring(0, sizeEnd)));
+                        break;
+                    case JOURNAL_USE:
+                        Long size = entries.remove(data);
+                        if (size != null) {
+                            entries.put(data, size);
+                        }
+                        break;
+                    case JOURNAL_DOWNLOAD:
+                        entries.remove(data);
+                        incompletePaths.add(data);
+                        break;
+                    case JOURNAL_REMOVE:
+                        incompletePaths.remove(data);
+                        entries.remove(data);
+                        break;
+                    default:
+                        CLog.w("Invalid record '%s' in cache journal", line);
+                        return false;
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to read cache journal: %s", e);
+            return false;
+        } catch (NumberFormatException e) {
+            CLog.w("Invalid size in cache journal: %s", e);
+            return false;
+        } finally {
+            StreamUtil.close(reader);
+        }
+        for (String remotePath : incompletePaths) {
+            File incompleteFile = new File(mCacheRoot, convertPath(remotePath));
+            if (incompleteFile.exists()) {
+                CLog.w("Deleting incomplete download %s", incompleteFile.getAbsolutePath());
+                incompleteFile.delete();
+            }
+        }
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            File cachedFile = new File(mCacheRoot, convertPath(entry.getKey()));
+            // skip files that have been deleted behind our back
+            if (cachedFile.isFile()) {
+                mCacheMap.put(entry.getKey(), new CacheEntry(cachedFile, entry.getValue()));
+                mCurrentCacheSize += entry.getValue();
+            }
+        }
+        return true;
+    }
+
+    private File getJournalFile() {
+        return new File(mCacheRoot, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Replace the journal with a compact one, containing one record per current cache entry.
+     * <p/>
+     * Must be called with <var>mCacheMapLock</var> held.
+     */
+    private void rewriteJournal() {
+        StreamUtil.close(mJournal);
+        mJournal = null;
+        File journalFile = getJournalFile();
+        File tmpJournalFile = new File(mCacheRoot, JOURNAL_FILE_NAME + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmpJournalFile));
+            for (Map.Entry<String, CacheEntry> entry : mCacheMap.entrySet()) {
+                if (entry.getValue().isDownloaded()) {
+                    writeJournalRecord(writer, JOURNAL_ADD, entry.getKey(),
+                            entry.getValue().mSize);
+                } else {
+                    writeJournalRecord(writer, JOURNAL_DOWNLOAD, entry.getKey(), 0);
+                }
+            }
+            writer.close();
+            if (!tmpJournalFile.renameTo(journalFile)) {
+                throw new IOException(String.format("Failed to rename %s to %s",
+                        tmpJournalFile, journalFile));
+            }
+            mJournal = new BufferedWriter(new FileWriter(journalFile, true));
+            mNumJournalRecords = mCacheMap.size();
+        } catch (IOException e) {
+            // cache will be rebuilt by scanning the cache directory on next startup
+            CLog.e("Failed to write cache journal: %s", e);
+            StreamUtil.close(writer);
+            tmpJournalFile.delete();
+            journalFile.delete();
+        }
+    }
+
+    /**
+     * Append a record to the journal.
+     * <p/>
+     * Must be called with <var>mCacheMapLock</var> held.
+     */
+    private void appendJournal(char type, String remotePath, long size) {
+        if (mJournal == null) {
+            return;
+        }
+        if (mNumJournalRecords > mCacheMap.size() + MAX_OBSOLETE_JOURNAL_RECORDS) {
+            // map has already been updated, so no need to record this change
+            rewriteJournal();
+            return;
+        }
+        try {
+            writeJournalRecord(mJournal, type, remotePath, size);
+            mJournal.flush();
+            mNumJournalRecords++;
+        } catch (IOException e) {
+            // cache will be rebuilt by scanning the cache directory on next startup
+            CLog.e("Failed to write cache journal: %s", e);
+            StreamUtil.close(mJournal);
+            mJournal = null;
+            getJournalFile().delete();
+        }
+    }
+
+    private static void writeJournalRecord(Writer writer, char type, String remotePath,
+            long size) throws IOException {
+        writer.write(type);
+        writer.write(' ');
+        if (type == JOURNAL_ADD) {
+            writer.write(Long.toString(size));
+            writer.write(' ');
+        }
+        writer.write(remotePath);
+        writer.write('\n');
+    }
+
     /**
      * Set the maximum size of the local file cache.
      * <p/>
@@ -175,11 +475,21 @@ public class FileDownloadCache {
         mCacheMapLock.unlock();
     }
 
+    /**
+     * Evict files on the calling thread, rather than in the background.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void setSynchronousMode(boolean syncMode) {
+        mSynchronousMode = syncMode;
+    }
+
     /**
      * Returns a local file corresponding to the given <var>remotePath</var>
      * <p/>
      * The local {@link File} will be copied from the cache if it exists, otherwise will be
-     * downloaded via the given {@link IFileDownloader}.
+     * downloaded via the given {@link IFileDownloader}. If the file is already being downloaded
+     * by another request, waits for that download to complete.
      *
      * @param downloader the {@link IFileDownloader}
      * @param remotePath the remote file.
@@ -189,56 +499,111 @@ public class FileDownloadCache {
     public File fetchRemoteFile(IFileDownloader downloader, String remotePath)
             throws BuildRetrievalError {
         boolean download = false;
+        CacheEntry entry;
         // remove and then add previous cache entry to maintain LRU order
         mCacheMapLock.lock();
-        File cachedFile = mCacheMap.remove(remotePath);
-        if (cachedFile == null) {
-            // create a local File that maps to remotePath
-            // convert remotePath to a local path if necessary
-            String localRelativePath = convertPath(remotePath);
-            cachedFile = new File(mCacheRoot, localRelativePath);
-            cachedFile.getParentFile().mkdirs();
-            download = true;
+        try {
+            // wait for the eviction of a previous copy of the file to complete, so it doesn't
+            // delete the new copy
+            while ((entry = mCacheMap.remove(remotePath)) == null &&
+                    mEvictingPaths.contains(remotePath)) {
+                mEvictionDone.awaitUninterruptibly();
+            }
+            if (entry == null) {
+                // create a local File that maps to remotePath
+                // convert remotePath to a local path if necessary
+                String localRelativePath = convertPath(remotePath);
+                entry = new CacheEntry(new File(mCacheRoot, localRelativePath));
+                download = true;
+                mNumMisses.incrementAndGet();
+            } else {
+                mNumHits.incrementAndGet();
+                appendJournal(JOURNAL_USE, remotePath, 0);
+            }
+            mCacheMap.put(remotePath, entry);
+            if (download) {
+                // record the download before it starts, so an incomplete file is not leaked if
+                // the process dies
+                appendJournal(JOURNAL_DOWNLOAD, remotePath, 0);
+            }
+            // prevent the file from being evicted while in use
+            entry.mNumUsers++;
+        } finally {
+            mCacheMapLock.unlock();
         }
-        // lock on the file, so no other thread attempts to delete it or access it before its
-        // downloaded
-        File copyFile = null;
+        // only the request that created the entry downloads the file, other requests for the
+        // same file wait for it. No locks are held at this point.
+        boolean fetched = false;
         try {
-            synchronized (cachedFile) {
-                mCacheMap.put(remotePath, cachedFile);
-                mCacheMapLock.unlock();
-                if (download) {
-                    downloadFile(downloader, remotePath, cachedFile);
-                } else {
-                    Log.d(LOG_TAG, String.format("Retrieved remote file %s from cached file %s",
-                            remotePath, cachedFile.getAbsolutePath()));
-                }
-                copyFile = copyFile(remotePath, cachedFile);
-
+            if (download) {
+                downloadFile(downloader, remotePath, entry);
+            } else {
+                entry.waitForDownload(remotePath);
+                Log.d(LOG_TAG, String.format("Retrieved remote file %s from cached file %s",
+                        remotePath, entry.mFile.getAbsolutePath()));
+            }
+            File localFile = copyFile(remotePath, entry.mFile);
+            fetched = true;
+            return localFile;
+        } finally {
+            if (!fetched) {
+                // don't let later requests reuse a failed download
+                removeEntry(remotePath, entry);
             }
-        } catch (BuildRetrievalError e) {
-            // remove entry from cache outside of cachedFile lock, to prevent deadlock
             mCacheMapLock.lock();
-            mCacheMap.remove(remotePath);
+            entry.mNumUsers--;
             mCacheMapLock.unlock();
-            throw e;
-        }
-        if (download) {
-           incrementAndAdjustCache(cachedFile.length());
         }
-        return copyFile;
     }
 
-    private void downloadFile(IFileDownloader downloader, String remotePath, File cachedFile)
+    private void downloadFile(IFileDownloader downloader, String remotePath, CacheEntry entry)
             throws BuildRetrievalError {
+        File cachedFile = entry.mFile;
         try {
             Log.d(LOG_TAG, String.format("Downloading %s to cache", remotePath));
+            cachedFile.getParentFile().mkdirs();
             downloader.downloadFile(remotePath, cachedFile);
         } catch (BuildRetrievalError e) {
             // cached file is likely incomplete, delete it
             cachedFile.delete();
+            entry.downloadFinished(e);
+            throw e;
+        } catch (RuntimeException e) {
+            cachedFile.delete();
+            entry.downloadFinished(new BuildRetrievalError(String.format(
+                    "Failed to download %s", remotePath), e));
             throw e;
         }
+        entry.mSize = cachedFile.length();
+        mDownloadedBytes.addAndGet(entry.mSize);
+        mCacheMapLock.lock();
+        try {
+            entry.downloadFinished(null);
+            mCurrentCacheSize += entry.mSize;
+            appendJournal(JOURNAL_ADD, remotePath, entry.mSize);
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        scheduleEviction();
+    }
+
+    /**
+     * Remove given entry from the cache, if still present.
+     */
+    private void removeEntry(String remotePath, CacheEntry entry) {
+        mCacheMapLock.lock();
+        try {
+            if (mCacheMap.get(remotePath) == entry) {
+                mCacheMap.remove(remotePath);
+                if (entry.isDownloaded()) {
+                    mCurrentCacheSize -= entry.mSize;
+                }
+                // also closes the download record of a failed download
+                appendJournal(JOURNAL_REMOVE, remotePath, 0);
+            }
+        } finally {
+            mCacheMapLock.unlock();
+        }
     }
 
     private File copyFile(String remotePath, File cachedFile) throws BuildRetrievalError {
@@ -275,25 +640,44 @@ public class FileDownloadCache {
     }
 
     /**
-     * Adjust file cache size to mMaxFileCacheSize if necessary by deleting old files
+     * Evict old files in the background, if the cache is larger than its maximum size.
+     */
+    private void scheduleEviction() {
+        if (mSynchronousMode) {
+            evictFiles();
+        } else if (mEvictionScheduled.compareAndSet(false, true)) {
+            mEvictionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mEvictionScheduled.set(false);
+                    evictFiles();
+                }
+            });
+        }
+    }
+
+    /**
+     * Adjust file cache size to mMaxFileCacheSize if necessary by deleting old files.
+     * <p/>
+     * Files currently in use are never evicted. Files are deleted without holding the cache lock.
      */
-    private void incrementAndAdjustCache(long length) {
+    private void evictFiles() {
+        Map<String, CacheEntry> evictedEntries = new LinkedHashMap<String, CacheEntry>();
         mCacheMapLock.lock();
         try {
-            mCurrentCacheSize += length;
-            Iterator<Map.Entry<String, File>> mapIterator = mCacheMap.entrySet().iterator();
-            // map cannot be modified while iterating, so store entries to be deleted in another list
-            Collection<String> keysToDelete = new LinkedList<String>();
+            Iterator<Map.Entry<String, CacheEntry>> mapIterator =
+                    mCacheMap.entrySet().iterator();
             while (mCurrentCacheSize > getMaxFileCacheSize() && mapIterator.hasNext()) {
-                Map.Entry<String, File> currentEntry = mapIterator.next();
-                keysToDelete.add(currentEntry.getKey());
-                mCurrentCacheSize -= currentEntry.getValue().length();
-            }
-            for (String deleteKey : keysToDelete) {
-                File deleteFile = mCacheMap.remove(deleteKey);
-                synchronized (deleteFile) {
-                    deleteFile.delete();
+                Map.Entry<String, CacheEntry> currentEntry = mapIterator.next();
+                CacheEntry entry = currentEntry.getValue();
+                if (entry.mNumUsers > 0 || !entry.isDownloaded()) {
+                    continue;
                 }
+                mapIterator.remove();
+                mCurrentCacheSize -= entry.mSize;
+                mEvictingPaths.add(currentEntry.getKey());
+                evictedEntries.put(currentEntry.getKey(), entry);
+                appendJournal(JOURNAL_REMOVE, currentEntry.getKey(), 0);
             }
             // audit cache size
             if (mCurrentCacheSize < 0) {
@@ -304,6 +688,58 @@ public class FileDownloadCache {
         } finally {
             mCacheMapLock.unlock();
         }
+        if (evictedEntries.isEmpty()) {
+            return;
+        }
+        for (CacheEntry entry : evictedEntries.values()) {
+            entry.mFile.delete();
+            mEvictedBytes.addAndGet(entry.mSize);
+        }
+        mCacheMapLock.lock();
+        try {
+            mEvictingPaths.removeAll(evictedEntries.keySet());
+            mEvictionDone.signalAll();
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        CLog.d("Evicted %d files from cache. %s", evictedEntries.size(), getMetrics());
+    }
+
+    /**
+     * @return the number of requests served from a previously downloaded file
+     */
+    public long getHitCount() {
+        return mNumHits.get();
+    }
+
+    /**
+     * @return the number of requests that required a download
+     */
+    public long getMissCount() {
+        return mNumMisses.get();
+    }
+
+    /**
+     * @return the total number of bytes downloaded into the cache
+     */
+    public long getDownloadedBytes() {
+        return mDownloadedBytes.get();
+    }
+
+    /**
+     * @return the total number of bytes evicted from the cache
+     */
+    public long getEvictedBytes() {
+        return mEvictedBytes.get();
+    }
+
+    /**
+     * @return a summary of the cache metrics, for logging
+     */
+    public String getMetrics() {
+        return String.format("hits=%d misses=%d downloaded=%s evicted=%s", getHitCount(),
+                getMissCount(), FileUtil.convertToReadableSize(getDownloadedBytes()),
+                FileUtil.convertToReadableSize(getEvictedBytes()));
     }
 
     /**
@@ -317,7 +753,8 @@ public class FileDownloadCache {
      File getCachedFile(String remoteFilePath) {
         mCacheMapLock.lock();
         try {
-            return mCacheMap.get(remoteFilePath);
+            CacheEntry entry = mCacheMap.get(remoteFilePath);
+            return entry == null ? null : entry.mFile;
         } finally {
             mCacheMapLock.unlock();
         }
@@ -330,9 +767,9 @@ public class FileDownloadCache {
      */
      void empty() {
         long currentMax = getMaxFileCacheSize();
-        // reuse incrementAndAdjustCache to clear cache, by setting cache cap to 0
+        // reuse evictFiles to clear cache, by setting cache cap to 0
         setMaxCacheSize(0L);
-        incrementAndAdjustCache(0);
+        evictFiles();
         setMaxCacheSize(currentMax);
     }
 
@@ -33,6 +33,17 @@ public class FileDownloadCacheWrapper implements IFileDownloader {
         mDelegateDownloader = delegateDownloader;
     }
 
+    /**
+     * Creates a {@link FileDownloadCacheWrapper} that downloads files missing from the cache with
+     * a {@link HttpFileDownloader}, over parallel connections when the server supports it.
+     *
+     * @param cacheDir the local filesystem directory to use as a cache
+     * @param baseUrl the url that remote paths are relative to
+     */
+    public FileDownloadCacheWrapper(File cacheDir, String baseUrl) {
+        this(cacheDir, new HttpFileDownloader(baseUrl));
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.net.HttpHelper;
+import com.android.tradefed.util.net.IHttpHelper;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A {@link IFileDownloader} that downloads files from a http server.
+ * <p/>
+ * Remote paths are resolved relative to a base url. Large files are fetched over several
+ * parallel connections, see {@link IHttpHelper#doGetToFile(String, File)}.
+ */
+public class HttpFileDownloader implements IFileDownloader {
+
+    private final String mBaseUrl;
+    private final IHttpHelper mHttpHelper;
+
+    /**
+     * Creates a {@link HttpFileDownloader}.
+     *
+     * @param baseUrl the url that remote paths are relative to
+     */
+    public HttpFileDownloader(String baseUrl) {
+        this(baseUrl, new HttpHelper());
+    }
+
+    /**
+     * Creates a {@link HttpFileDownloader} that uses given {@link IHttpHelper}. Exposed for unit
+     * testing.
+     */
+    HttpFileDownloader(String baseUrl, IHttpHelper httpHelper) {
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        mHttpHelper = httpHelper;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File downloadFile(String remoteFilePath) throws BuildRetrievalError {
+        File destFile = null;
+        try {
+            destFile = FileUtil.createTempFileForRemote(remoteFilePath, null);
+        } catch (IOException e) {
+            throw new BuildRetrievalError(String.format(
+                    "Failed to create local file for %s", remoteFilePath), e);
+        }
+        try {
+            downloadFile(remoteFilePath, destFile);
+            return destFile;
+        } catch (BuildRetrievalError e) {
+            FileUtil.deleteFile(destFile);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void downloadFile(String relativeRemotePath, File destFile)
+            throws BuildRetrievalError {
+        String url = getUrl(relativeRemotePath);
+        try {
+            mHttpHelper.doGetToFile(url, destFile);
+        } catch (IOException e) {
+            throw new BuildRetrievalError(String.format("Failed to download %s", url), e);
+        }
+    }
+
+    /**
+     * Get the url of given remote path.
+     */
+    String getUrl(String relativeRemotePath) {
+        while (relativeRemotePath.startsWith("/")) {
+            relativeRemotePath = relativeRemotePath.substring(1);
+        }
+        return mBaseUrl + relativeRemotePath;
+    }
+}
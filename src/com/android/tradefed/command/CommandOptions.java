@@ -59,6 +59,11 @@ public class CommandOptions implements ICommandOptions {
             "fork this command to run on all connected devices.")
     private boolean mAllDevices = false;
 
+    @Option(name = "stream-shard-results", description =
+            "report the results of a sharded invocation as they are produced, instead of when " +
+            "each shard completes.")
+    private boolean mStreamShardResults = false;
+
     /**
      * Set the help mode for the config.
      * <p/>
@@ -160,4 +165,12 @@ public class CommandOptions implements ICommandOptions {
     public boolean runOnAllDevices() {
         return mAllDevices;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean streamShardResults() {
+        return mStreamShardResults;
+    }
 }
@@ -27,15 +27,19 @@ import com.android.tradefed.device.DeviceManager;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceUnresponsiveException;
 import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.IDeviceManager.IDeviceAvailableListener;
 import com.android.tradefed.device.IDeviceManager.FreeDeviceState;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IRescheduler;
+import com.android.tradefed.invoker.IScheduledInvocationListener;
 import com.android.tradefed.invoker.ITestInvocation;
 import com.android.tradefed.invoker.TestInvocation;
 import com.android.tradefed.log.LogRegistry;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.util.ArrayUtil;
-import com.android.tradefed.util.ConditionPriorityBlockingQueue;
+import com.android.tradefed.util.IndexedConditionPriorityBlockingQueue;
+import com.android.tradefed.util.IndexedConditionPriorityBlockingQueue.IBucketKey;
 import com.android.tradefed.util.TableFormatter;
 
 import java.io.IOException;
@@ -65,7 +69,7 @@ import java.util.concurrent.TimeUnit;
 public class CommandScheduler extends Thread implements ICommandScheduler {
 
     /** the queue of commands ready to be executed. */
-    private ConditionPriorityBlockingQueue<ExecutableCommand> mCommandQueue;
+    private IndexedConditionPriorityBlockingQueue<ExecutableCommand> mCommandQueue;
 
     /**
      * The thread-safe list of all active executable commands.
@@ -84,10 +88,25 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     /** latch used to notify other threads that this thread is running */
     private final CountDownLatch mRunLatch;
 
+    /** lock used to wake up the scheduler thread when a dispatch pass may be able to progress */
+    private final Object mDispatchLock = new Object();
+
+    /** flag set when an event occurred since the last dispatch pass started */
+    private boolean mDispatchPending = false;
+
     /**
-     * Delay time in ms for adding a command back to the queue if it failed to allocate a device.
+     * Incremented each time the waiting commands are cleared, so a dispatch pass does not return
+     * removed commands to the queue.
      */
-    private static final int NO_DEVICE_DELAY_TIME = 20;
+    private int mQueueGeneration = 0;
+
+    /** listener that triggers a dispatch pass when a device becomes available */
+    private final IDeviceAvailableListener mDeviceListener = new IDeviceAvailableListener() {
+        @Override
+        public void deviceAvailable(String serial) {
+            requestDispatch();
+        }
+    };
 
     /** used to assign unique ids to each CommandTracker created */
     private int mCurrentCommandId = 0;
@@ -194,7 +213,11 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
 
         public void commandFinished(long elapsedTime) {
             getCommandTracker().incrementExecTime(elapsedTime);
+            // other instances of this command may still be queued
+            mCommandQueue.reprioritize(this);
             mAllCommands.remove(this);
+            // scheduler may be waiting for all commands to complete
+            requestDispatch();
         }
 
         public boolean isRescheduled() {
@@ -248,7 +271,12 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
             // a new command and added back to queue
             config.getCommandOptions().setLoopMode(false);
             ExecutableCommand rescheduledCmd = createExecutableCommand(mCmdTracker, config, true);
-            return addExecCommandToQueue(rescheduledCmd, 0);
+            if (!addExecCommandToQueue(rescheduledCmd, 0)) {
+                // the caller is told the config won't run, don't wait for it
+                mAllCommands.remove(rescheduledCmd);
+                return false;
+            }
+            return true;
         }
 
         /**
@@ -291,6 +319,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         }
     }
 
+    /**
+     * Groups {@link ExecutableCommand}s in the command queue by {@link CommandTracker}, since all
+     * instances of a command share the same priority.
+     */
+    private static class CommandTrackerBucketKey implements IBucketKey<ExecutableCommand> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object getKey(ExecutableCommand cmd) {
+            return cmd.getCommandTracker();
+        }
+    }
+
     /**
      * Comparator for {@link CommandTracker}.
      * <p/>
@@ -409,8 +452,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
 
         initDeviceManager();
 
-        mCommandQueue = new ConditionPriorityBlockingQueue<ExecutableCommand>(
-                new ExecutableCommandComparator());
+        mCommandQueue = new IndexedConditionPriorityBlockingQueue<ExecutableCommand>(
+                new ExecutableCommandComparator(), new CommandTrackerBucketKey());
         mAllCommands = Collections.synchronizedList(new LinkedList<ExecutableCommand>());
         mInvocationThreads = new HashSet<InvocationThread>();
         // use a ScheduledThreadPoolExecutorTimer as a single-threaded timer. This class
@@ -459,31 +502,16 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     @Override
     public void run() {
         try {
+            IDeviceManager manager = getDeviceManager();
+            manager.addDeviceAvailableListener(mDeviceListener);
+
             // Notify other threads that we're running.
             mRunLatch.countDown();
-
-            IDeviceManager manager = getDeviceManager();
             while (!isShutdown()) {
-                ExecutableCommand cmd = dequeueConfigCommand();
-                if (cmd != null) {
-                    ITestDevice device = manager.allocateDevice(0, cmd.getConfiguration()
-                            .getDeviceRequirements());
-                    if (device != null) {
-                        // Spawn off a thread to perform the invocation
-                        InvocationThread invThread = startInvocation(manager, device, cmd);
-                        addInvocationThread(invThread);
-                        if (cmd.isLoopMode()) {
-                            addNewExecCommandToQueue(cmd.getCommandTracker());
-                        }
-                    } else {
-                        // no device available for command, put back in queue
-                        // increment exec time to ensure fair scheduling among commands when devices
-                        // are scarce
-                        cmd.getCommandTracker().incrementExecTime(1);
-                        addExecCommandToQueue(cmd, NO_DEVICE_DELAY_TIME);
-                    }
-                }
+                waitForDispatchEvent();
+                dispatchCommands(manager);
             }
+            manager.removeDeviceAvailableListener(mDeviceListener);
             mCommandTimer.shutdown();
             CLog.i("Waiting for invocation threads to complete");
             List<InvocationThread> threadListCopy;
@@ -642,22 +670,82 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     }
 
     /**
-     * Dequeue the highest priority command from the queue.
+     * Wake up the scheduler thread to perform a dispatch pass. Multiple requests made while a pass
+     * is in progress are coalesced into a single subsequent pass.
+     */
+    private void requestDispatch() {
+        synchronized (mDispatchLock) {
+            mDispatchPending = true;
+            mDispatchLock.notifyAll();
+        }
+    }
+
+    /**
+     * Block until a dispatch pass is requested, or the poll time elapses.
+     */
+    private void waitForDispatchEvent() {
+        synchronized (mDispatchLock) {
+            if (!mDispatchPending) {
+                try {
+                    // wait with a timeout, rather than block indefinitely, to handle shutdown case
+                    // and device requirements that change without an event, eg battery level
+                    mDispatchLock.wait(getCommandPollTimeMs());
+                } catch (InterruptedException e) {
+                    CLog.i("Waiting for dispatch event interrupted");
+                }
+            }
+            mDispatchPending = false;
+        }
+    }
+
+    /**
+     * Pair all waiting commands with available devices, in command priority order.
+     * <p/>
+     * Each queued command gets one allocation attempt per pass. Commands that cannot be matched to
+     * a device are returned to the queue without a delay, to be retried on the next pass.
      *
-     * @return the {@link ExecutableCommand} or <code>null</code>
+     * @param manager the {@link IDeviceManager} to allocate devices from
      */
-    private ExecutableCommand dequeueConfigCommand() {
-        try {
-            // poll for a command, rather than block indefinitely, to handle shutdown case
-            return mCommandQueue.poll(getCommandPollTimeMs(), TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            CLog.i("Waiting for command interrupted");
+    private void dispatchCommands(IDeviceManager manager) {
+        int generation = getQueueGeneration();
+        List<ExecutableCommand> unmatchedCmds = new LinkedList<ExecutableCommand>();
+        ExecutableCommand cmd;
+        while (!isShutdown() && (cmd = mCommandQueue.poll()) != null) {
+            ITestDevice device = manager.allocateDevice(0, cmd.getConfiguration()
+                    .getDeviceRequirements());
+            if (device != null) {
+                // Spawn off a thread to perform the invocation
+                InvocationThread invThread = startInvocation(manager, device, cmd);
+                addInvocationThread(invThread);
+                if (cmd.isLoopMode()) {
+                    addNewExecCommandToQueue(cmd.getCommandTracker());
+                }
+            } else {
+                unmatchedCmds.add(cmd);
+            }
         }
-        return null;
+        requeueCommands(unmatchedCmds, generation);
+    }
+
+    private synchronized int getQueueGeneration() {
+        return mQueueGeneration;
     }
 
     /**
-     * Get the poll time to wait to retrieve a command to execute.
+     * Return commands that could not be dispatched to the queue, unless the waiting commands have
+     * been cleared since they were removed.
+     */
+    private synchronized void requeueCommands(List<ExecutableCommand> cmds, int generation) {
+        if (isShutdown() || generation != mQueueGeneration) {
+            return;
+        }
+        for (ExecutableCommand cmd : cmds) {
+            mCommandQueue.add(cmd);
+        }
+    }
+
+    /**
+     * Get the maximum time to wait between dispatch passes when no event occurs.
      * <p/>
      * Exposed so unit tests can mock.
      */
@@ -703,11 +791,13 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
                         cmd.setWaitState();
                         mCommandQueue.add(cmd);
                     }
+                    requestDispatch();
                 }
             };
             mCommandTimer.schedule(delayCommand, delayTime, TimeUnit.MILLISECONDS);
         } else {
             mCommandQueue.add(cmd);
+            requestDispatch();
         }
         return true;
     }
@@ -767,6 +857,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
             if (mCommandTimer != null) {
                 mCommandTimer.shutdownNow();
             }
+            requestDispatch();
         }
     }
 
@@ -777,6 +868,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     public synchronized void shutdownOnEmpty() {
         if (!isShutdown()) {
             mShutdownOnEmpty = true;
+            requestDispatch();
         }
     }
 
@@ -797,16 +889,37 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
      * Clears all {@link ExecutableCommand} not currently executing.
      */
     private void clearWaitingCommands() {
+        mQueueGeneration++;
         mCommandQueue.clear();
+        List<ExecutableCommand> discardedCmds = new ArrayList<ExecutableCommand>();
         synchronized (mAllCommands) {
             ListIterator<ExecutableCommand> cmdIter = mAllCommands.listIterator();
             while (cmdIter.hasNext()) {
                 ExecutableCommand cmd = cmdIter.next();
                 if (!cmd.getState().equals(CommandState.EXECUTING)) {
                     cmdIter.remove();
+                    discardedCmds.add(cmd);
                 }
             }
         }
+        for (ExecutableCommand cmd : discardedCmds) {
+            notifyDiscarded(cmd);
+        }
+    }
+
+    /**
+     * Inform the listeners of a rescheduled config that it will not be run.
+     */
+    private void notifyDiscarded(ExecutableCommand cmd) {
+        if (!cmd.isRescheduled()) {
+            return;
+        }
+        for (ITestInvocationListener listener :
+                cmd.getConfiguration().getTestInvocationListeners()) {
+            if (listener instanceof IScheduledInvocationListener) {
+                ((IScheduledInvocationListener)listener).invocationDiscarded();
+            }
+        }
     }
 
     /**
@@ -821,21 +934,30 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
         try {
             mRemoteClient = RemoteClient.connect(handoverPort);
             CLog.d("connected to remote manager at %d", handoverPort);
+            if (!mRemoteClient.enableFramedProtocol()) {
+                CLog.d("remote manager does not support framed protocol, using text protocol");
+            }
             // inform remote manager of the devices we are still using
-            for (String deviceInUse : getDeviceManager().getAllocatedDevices()) {
-                if (!mRemoteClient.sendFilterDevice(deviceInUse)) {
+            List<String> devicesInUse = new ArrayList<String>(
+                    getDeviceManager().getAllocatedDevices());
+            boolean[] filterResults = mRemoteClient.sendFilterDevices(devicesInUse);
+            for (int i = 0; i < filterResults.length; i++) {
+                if (!filterResults[i]) {
                     CLog.e("Failed to send command to remote manager");
                     return false;
                 }
-                CLog.d("Sent filter device %s command", deviceInUse);
+                CLog.d("Sent filter device %s command", devicesInUse.get(i));
             }
             // now send command info
             List<CommandTracker> cmdCopy = getCommandTrackers();
             // sort so high priority commands are sent first
             Collections.sort(cmdCopy, new CommandTrackerTimeComparator());
+            List<RemoteClient.Command> commands = new ArrayList<RemoteClient.Command>(
+                    cmdCopy.size());
             for (CommandTracker cmd : cmdCopy) {
-                mRemoteClient.sendAddCommand(cmd.getTotalExecTime(), cmd.mArgs);
+                commands.add(new RemoteClient.Command(cmd.getTotalExecTime(), cmd.mArgs));
             }
+            mRemoteClient.sendAddCommands(commands);
             shutdown();
             return true;
 
@@ -893,6 +1015,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler {
     void initLogging() {
         DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
         Log.setLogOutput(LogRegistry.getLogRegistry());
+        CLog.setLogRegistry(LogRegistry.getLogRegistry());
     }
 
     /**
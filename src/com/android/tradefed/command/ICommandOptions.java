@@ -70,4 +70,10 @@ public interface ICommandOptions {
      */
     public boolean runOnAllDevices();
 
+    /**
+     * Return true if the results of a sharded invocation should be reported as they are
+     * produced, instead of when each shard completes.
+     */
+    public boolean streamShardResults();
+
 }
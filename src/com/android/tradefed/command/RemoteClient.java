@@ -17,22 +17,54 @@ package com.android.tradefed.command;
 
 import com.android.tradefed.util.ArrayUtil;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Class for sending remote commands to another TF process via sockets.
+ * <p/>
+ * Uses the text protocol of {@link RemoteManager} by default, which all versions of it support.
+ * {@link #enableFramedProtocol()} switches to the framed protocol if the remote manager supports
+ * it. With either protocol, the commands of a batch are sent without waiting for the result of
+ * the previous ones.
  */
 public class RemoteClient {
 
+    /**
+     * A command to add to the remote scheduler.
+     */
+    public static class Command {
+        private final long mTotalTime;
+        private final String[] mArgs;
+
+        /**
+         * @param totalTime the total time the command has been executing, in ms
+         * @param args the command arguments
+         */
+        public Command(long totalTime, String... args) {
+            mTotalTime = totalTime;
+            mArgs = args;
+        }
+    }
+
+    /** max number of commands sent before reading their results */
+    private static final int MAX_PIPELINED_COMMANDS = 256;
+
     private final Socket mSocket;
-    private final PrintWriter mWriter;
-    private final BufferedReader mReader;
+    private final DataOutputStream mOutput;
+    private final DataInputStream mInput;
+    private boolean mFramed = false;
+    private int mNextRequestId = 0;
 
     /**
      * @param port
@@ -42,19 +74,102 @@ public class RemoteClient {
     RemoteClient(int port) throws UnknownHostException, IOException {
         String hostName = InetAddress.getLocalHost().getHostName();
         mSocket = new Socket(hostName, port);
-        mWriter = new PrintWriter(mSocket.getOutputStream(), true);
-        mReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+        mOutput = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream()));
+        mInput = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+    }
+
+    public static RemoteClient connect(int port) throws UnknownHostException, IOException {
+        return new RemoteClient(port);
+    }
+
+    /**
+     * Switch to the framed protocol, if the remote manager supports it.
+     *
+     * @return <code>true</code> if the framed protocol is used from now on, <code>false</code>
+     *         if the remote manager only supports the text protocol
+     * @throws IOException
+     */
+    public synchronized boolean enableFramedProtocol() throws IOException {
+        if (!mFramed) {
+            sendLine(RemoteManager.PROTOCOL, RemoteManager.FRAMED);
+            mOutput.flush();
+            mFramed = readAck();
+        }
+        return mFramed;
+    }
+
+    /**
+     * Send a command with a single set of arguments.
+     */
+    private boolean sendCommand(String cmdType, String... args) throws IOException {
+        return sendCommands(cmdType, Collections.singletonList(args))[0];
     }
 
-    private synchronized boolean sendCommand(String... cmd) throws IOException {
+    /**
+     * Send a batch of commands of the same type.
+     *
+     * @param cmdType the command type
+     * @param batch the arguments of each command
+     * @return the result of each command
+     */
+    private synchronized boolean[] sendCommands(String cmdType, List<String[]> batch)
+            throws IOException {
         // TODO: use a more standard data protocol - such as Json
-        mWriter.println(ArrayUtil.join(RemoteManager.DELIM, (Object[])cmd));
-        String response = mReader.readLine();
+        boolean[] results = new boolean[batch.size()];
+        for (int start = 0; start < batch.size(); start += MAX_PIPELINED_COMMANDS) {
+            List<String[]> chunk = batch.subList(start,
+                    Math.min(batch.size(), start + MAX_PIPELINED_COMMANDS));
+            if (mFramed) {
+                int requestId = mNextRequestId++;
+                mOutput.write(RemoteManager.encodeRequest(requestId, cmdType, chunk));
+                mOutput.flush();
+                readResponse(requestId, results, start, chunk.size());
+            } else {
+                for (String[] args : chunk) {
+                    sendLine(ArrayUtil.buildArray(new String[] {cmdType}, args));
+                }
+                mOutput.flush();
+                for (int i = 0; i < chunk.size(); i++) {
+                    results[start + i] = readAck();
+                }
+            }
+        }
+        return results;
+    }
+
+    private void sendLine(String... cmd) throws IOException {
+        mOutput.write(String.format("%s\n", ArrayUtil.join(RemoteManager.DELIM,
+                (Object[])cmd)).getBytes("UTF-8"));
+    }
+
+    /**
+     * Read a text protocol ack.
+     */
+    @SuppressWarnings("deprecation")
+    private boolean readAck() throws IOException {
+        String response = mInput.readLine();
         return response != null && Boolean.parseBoolean(response);
     }
 
-    public static RemoteClient connect(int port) throws UnknownHostException, IOException {
-        return new RemoteClient(port);
+    /**
+     * Read a framed protocol response.
+     */
+    private void readResponse(int requestId, boolean[] results, int offset, int count)
+            throws IOException {
+        int length = mInput.readInt();
+        if (length < 0 || length > RemoteManager.MAX_FRAME_SIZE) {
+            throw new IOException(String.format("Invalid frame length %d", length));
+        }
+        int responseId = mInput.readInt();
+        int resultCount = mInput.readInt();
+        if (responseId != requestId || resultCount != count) {
+            throw new IOException(String.format(
+                    "Unexpected response %d with %d results to request %d with %d commands",
+                    responseId, resultCount, requestId, count));
+        }
+        for (int i = 0; i < count; i++) {
+            results[offset + i] = mInput.readBoolean();
+        }
     }
 
     /**
@@ -66,6 +181,21 @@ public class RemoteClient {
         return sendCommand(RemoteManager.FILTER, serial);
     }
 
+    /**
+     * Send a batch of 'add this device to global ignore filter' commands
+     *
+     * @param serials
+     * @return the result for each device
+     * @throws IOException
+     */
+    public boolean[] sendFilterDevices(List<String> serials) throws IOException {
+        List<String[]> batch = new ArrayList<String[]>(serials.size());
+        for (String serial : serials) {
+            batch.add(new String[] {serial});
+        }
+        return sendCommands(RemoteManager.FILTER, batch);
+    }
+
     /**
      * Send a 'remove this device from global ignore filter' command
      * @param serial
@@ -81,9 +211,23 @@ public class RemoteClient {
      * @param commandArgs
      */
     public boolean sendAddCommand(long totalTime, String... commandArgs) throws IOException {
-        String[] fullList = ArrayUtil.buildArray(new String[] {RemoteManager.ADD_COMMAND,
-                Long.toString(totalTime)}, commandArgs);
-        return sendCommand(fullList);
+        return sendAddCommands(Arrays.asList(new Command(totalTime, commandArgs)))[0];
+    }
+
+    /**
+     * Send a batch of 'add command' commands.
+     *
+     * @param commands
+     * @return the result for each command
+     * @throws IOException
+     */
+    public boolean[] sendAddCommands(List<Command> commands) throws IOException {
+        List<String[]> batch = new ArrayList<String[]>(commands.size());
+        for (Command command : commands) {
+            batch.add(ArrayUtil.buildArray(new String[] {Long.toString(command.mTotalTime)},
+                    command.mArgs));
+        }
+        return sendCommands(RemoteManager.ADD_COMMAND, batch);
     }
 
     /**
@@ -106,9 +250,5 @@ public class RemoteClient {
                 // ignore
             }
         }
-        if (mWriter != null) {
-            mWriter.close();
-        }
     }
 }
-
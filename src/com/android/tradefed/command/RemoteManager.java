@@ -23,21 +23,41 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 
 /**
  * Class that receives remote commands to add and remove devices from use via a socket.
  * <p/>
- * Currently accepts only one remote connection at one time, and processes incoming commands
- * serially.
+ * Accepts any number of remote connections at once, and handles them all from its own thread
+ * using non-blocking I/O. Commands are processed in the order they are received on each
+ * connection.
+ * <p/>
+ * Connections start with a text protocol, where each command is a line of {@link #DELIM}
+ * separated segments, acknowledged by a "true" or "false" line. A client can switch its
+ * connection to a framed protocol by sending a {@link #PROTOCOL} {@link #FRAMED} command.
+ * Afterwards, each request and response is a frame made of its length as a 4 byte int, then of
+ * its content. A request contains a request id, the command type, then a batch of one or more
+ * sets of command arguments. The response contains the request id, then the result for each set
+ * of arguments. Clients can send requests without waiting for the response to the previous
+ * ones.
  * <p/>
  * Usage:
  * <pre>
@@ -56,9 +76,18 @@ public class RemoteManager extends Thread {
     static final String ALL_DEVICES = "*";
     static final String CLOSE = "close";
     static final String ADD_COMMAND = "add_command";
+    static final String PROTOCOL = "protocol";
+    static final String FRAMED = "framed";
+    /** max size of a frame, or of a line in the text protocol */
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    /** max time to wait for acks to be sent to clients when closing */
+    private static final long CLOSE_FLUSH_TIMEOUT_MS = 5 * 1000;
 
-    private ServerSocket mServerSocket = null;
-    private boolean mCancel = false;
+    private ServerSocketChannel mServerChannel = null;
+    private Selector mSelector = null;
+    private volatile boolean mCancel = false;
     private final IDeviceManager mDeviceManager;
     private final ICommandScheduler mScheduler;
     private Map<String, ITestDevice> mFilteredDeviceMap = new Hashtable<String, ITestDevice>();
@@ -83,9 +112,14 @@ public class RemoteManager extends Thread {
     public void run() {
         synchronized (this) {
             try {
-                mServerSocket = new ServerSocket(0);
+                mSelector = Selector.open();
+                mServerChannel = ServerSocketChannel.open();
+                mServerChannel.socket().bind(new InetSocketAddress(0));
+                mServerChannel.configureBlocking(false);
+                mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
             } catch (IOException e) {
                 CLog.e("Failed to open server socket: %s", e);
+                closeChannels();
                 return;
             } finally {
                 // notify any listeners that the socket has been created
@@ -93,10 +127,10 @@ public class RemoteManager extends Thread {
             }
         }
         try {
-            processClientConnections(mServerSocket);
+            processClientConnections();
         } finally {
             freeAllDevices();
-            closeSocket(mServerSocket);
+            closeChannels();
         }
     }
 
@@ -108,57 +142,114 @@ public class RemoteManager extends Thread {
      * @return
      */
     public synchronized int getPort() {
-        if (mServerSocket == null) {
+        if (mServerChannel == null) {
             try {
                 wait(10*1000);
             } catch (InterruptedException e) {
                 // ignore
             }
         }
-        if (mServerSocket == null) {
+        if (mServerChannel == null) {
             return -1;
         }
-        return mServerSocket.getLocalPort();
+        return mServerChannel.socket().getLocalPort();
     }
 
-    private void processClientConnections(ServerSocket serverSocket) {
+    private void processClientConnections() {
         while (!mCancel) {
-            Socket clientSocket = null;
-            BufferedReader in = null;
-            PrintWriter out = null;
             try {
-                clientSocket = serverSocket.accept();
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                processClientCommands(in, out);
+                mSelector.select();
             } catch (IOException e) {
-                CLog.e("Failed to accept connection: %s", e);
-            } finally {
-                closeReader(in);
-                closeWriter(out);
-                closeSocket(clientSocket);
+                CLog.e("Failed to wait for client connections: %s", e);
+                return;
+            }
+            Iterator<SelectionKey> keyIter = mSelector.selectedKeys().iterator();
+            while (keyIter.hasNext()) {
+                SelectionKey key = keyIter.next();
+                keyIter.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    acceptConnection();
+                    continue;
+                }
+                ClientConnection connection = (ClientConnection)key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch (IOException e) {
+                    CLog.e("Failed to communicate with remote client: %s", e);
+                    connection.close();
+                }
             }
         }
+        flushConnections();
     }
 
-    private void processClientCommands(BufferedReader in, PrintWriter out) throws IOException {
-        String line = null;
-        while ((line = in.readLine()) != null && !mCancel) {
-            boolean result = false;
-            String[] commandSegments = line.split(DELIM);
-            String cmdType = commandSegments[0];
-            if (FILTER.equals(cmdType)) {
-                result = processFilterCommand(commandSegments);
-            } else if (UNFILTER.equals(cmdType)) {
-                result = processUnfilterCommand(commandSegments);
-            } else if (CLOSE.equals(cmdType)) {
-                cancel();
-                result = true;
-            } else if (ADD_COMMAND.equals(cmdType)) {
-                result = processAddCommand(commandSegments);
+    private void acceptConnection() {
+        try {
+            SocketChannel clientChannel = mServerChannel.accept();
+            if (clientChannel == null) {
+                return;
             }
-            sendAck(result, out);
+            clientChannel.configureBlocking(false);
+            SelectionKey key = clientChannel.register(mSelector, SelectionKey.OP_READ);
+            key.attach(new ClientConnection(clientChannel, key));
+        } catch (IOException e) {
+            CLog.e("Failed to accept connection: %s", e);
+        }
+    }
+
+    /**
+     * Send the pending acks of all connections, waiting for a short time at most.
+     */
+    private void flushConnections() {
+        List<ClientConnection> connections = new ArrayList<ClientConnection>();
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.attachment() instanceof ClientConnection) {
+                connections.add((ClientConnection)key.attachment());
+            }
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_FLUSH_TIMEOUT_MS;
+        for (ClientConnection connection : connections) {
+            try {
+                while (connection.write() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            } catch (IOException e) {
+                // ignore, connection is closed anyway
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * Process a command.
+     *
+     * @param commandSegments the command type, followed by its arguments
+     * @return the result of the command
+     */
+    private boolean processCommand(String[] commandSegments) {
+        String cmdType = commandSegments[0];
+        if (FILTER.equals(cmdType)) {
+            return processFilterCommand(commandSegments);
+        } else if (UNFILTER.equals(cmdType)) {
+            return processUnfilterCommand(commandSegments);
+        } else if (CLOSE.equals(cmdType)) {
+            cancel();
+            return true;
+        } else if (ADD_COMMAND.equals(cmdType)) {
+            return processAddCommand(commandSegments);
         }
+        CLog.e("Unknown command received: %s", ArrayUtil.join(" ", (Object[])commandSegments));
+        return false;
     }
 
     private boolean processFilterCommand(final String[] commandSegments) {
@@ -210,7 +301,13 @@ public class RemoteManager extends Thread {
             CLog.e("Invalid command received: %s", ArrayUtil.join(" ", (Object[])commandSegments));
             return false;
         }
-        long totalTime = Long.parseLong(commandSegments[1]);
+        long totalTime;
+        try {
+            totalTime = Long.parseLong(commandSegments[1]);
+        } catch (NumberFormatException e) {
+            CLog.e("Invalid command received: %s", ArrayUtil.join(" ", (Object[])commandSegments));
+            return false;
+        }
         String[] cmdArgs = Arrays.copyOfRange(commandSegments, 2, commandSegments.length);
         Log.logAndDisplay(LogLevel.INFO, "RemoteManager",
                 String.format("Adding command '%s'", ArrayUtil.join(" ", (Object[])cmdArgs)));
@@ -228,10 +325,6 @@ public class RemoteManager extends Thread {
         mFilteredDeviceMap.clear();
     }
 
-    private void sendAck(boolean result, PrintWriter out) {
-        out.println(result);
-    }
-
     /**
      * Cancel the remote manager.
      */
@@ -239,50 +332,242 @@ public class RemoteManager extends Thread {
         if (!mCancel) {
             mCancel  = true;
             Log.logAndDisplay(LogLevel.INFO, "RemoteManager", "Closing remote manager");
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
         }
     }
 
-    private void closeSocket(ServerSocket serverSocket) {
-        if (serverSocket != null) {
+    private synchronized void closeChannels() {
+        if (mServerChannel != null) {
             try {
-                serverSocket.close();
+                mServerChannel.close();
             } catch (IOException e) {
                 // ignore
             }
         }
-    }
-
-    private void closeSocket(Socket clientSocket) {
-        if (clientSocket != null) {
+        if (mSelector != null) {
             try {
-                clientSocket.close();
+                mSelector.close();
             } catch (IOException e) {
                 // ignore
-                e.printStackTrace();
             }
         }
     }
 
-    private void closeReader(BufferedReader in) {
-        if (in != null) {
-            try {
-                in.close();
-            } catch (IOException e) {
-                // ignore
+    /**
+     * @return <code>true</code> if a cancel has been requested
+     */
+    public boolean isCanceled() {
+        return mCancel;
+    }
+
+    /**
+     * Encode a framed protocol request.
+     *
+     * @param requestId the id of the request, sent back in its response
+     * @param cmdType the command type
+     * @param batch the arguments of each command of the request
+     * @return the request frame
+     */
+    static byte[] encodeRequest(int requestId, String cmdType, List<String[]> batch)
+            throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(0);
+        out.writeInt(requestId);
+        out.writeUTF(cmdType);
+        out.writeInt(batch.size());
+        for (String[] args : batch) {
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
             }
         }
+        return setFrameLength(frame.toByteArray());
     }
 
-    private void closeWriter(PrintWriter out) {
-        if (out != null) {
-            out.close();
+    /**
+     * Encode a framed protocol response.
+     */
+    static byte[] encodeResponse(int requestId, boolean[] results) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(0);
+        out.writeInt(requestId);
+        out.writeInt(results.length);
+        for (boolean result : results) {
+            out.writeBoolean(result);
         }
+        return setFrameLength(frame.toByteArray());
+    }
+
+    private static byte[] setFrameLength(byte[] frame) {
+        ByteBuffer.wrap(frame).putInt(frame.length - 4);
+        return frame;
     }
 
     /**
-     * @return <code>true</code> if a cancel has been requested
+     * A client connection, and its buffered input and output.
      */
-    public boolean isCanceled() {
-        return mCancel;
+    private class ClientConnection {
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> mWriteQueue = new LinkedList<ByteBuffer>();
+        private boolean mFramed = false;
+
+        ClientConnection(SocketChannel channel, SelectionKey key) {
+            mChannel = channel;
+            mKey = key;
+        }
+
+        /**
+         * Read the available input, and process the complete commands received.
+         */
+        void read() throws IOException {
+            if (!mReadBuffer.hasRemaining()) {
+                ByteBuffer biggerBuffer = ByteBuffer.allocate(mReadBuffer.capacity() * 2);
+                mReadBuffer.flip();
+                biggerBuffer.put(mReadBuffer);
+                mReadBuffer = biggerBuffer;
+            }
+            int read = mChannel.read(mReadBuffer);
+            mReadBuffer.flip();
+            try {
+                processInput();
+            } finally {
+                mReadBuffer.compact();
+            }
+            if (read < 0) {
+                // client closed its side. Send the last acks before closing
+                if (!write()) {
+                    close();
+                } else {
+                    mKey.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void processInput() throws IOException {
+            while (!mCancel) {
+                if (mFramed) {
+                    if (mReadBuffer.remaining() < 4) {
+                        return;
+                    }
+                    int length = mReadBuffer.getInt(mReadBuffer.position());
+                    if (length < 0 || length > MAX_FRAME_SIZE) {
+                        throw new IOException(String.format("Invalid frame length %d", length));
+                    }
+                    if (mReadBuffer.remaining() < 4 + length) {
+                        return;
+                    }
+                    mReadBuffer.getInt();
+                    byte[] frame = new byte[length];
+                    mReadBuffer.get(frame);
+                    processFrame(frame);
+                } else {
+                    int lineEnd = -1;
+                    for (int i = mReadBuffer.position(); i < mReadBuffer.limit(); i++) {
+                        if (mReadBuffer.get(i) == '\n') {
+                            lineEnd = i;
+                            break;
+                        }
+                    }
+                    if (lineEnd < 0) {
+                        if (mReadBuffer.remaining() > MAX_FRAME_SIZE) {
+                            throw new IOException("Command line too long");
+                        }
+                        return;
+                    }
+                    byte[] line = new byte[lineEnd - mReadBuffer.position()];
+                    mReadBuffer.get(line);
+                    mReadBuffer.get();
+                    processLine(new String(line, "UTF-8").replace("\r", ""));
+                }
+            }
+        }
+
+        private void processLine(String line) throws IOException {
+            String[] commandSegments = line.split(DELIM);
+            boolean result;
+            if (PROTOCOL.equals(commandSegments[0])) {
+                result = commandSegments.length > 1 && FRAMED.equals(commandSegments[1]);
+                send(String.format("%s\n", result).getBytes("UTF-8"));
+                // following commands are framed
+                mFramed = result;
+                return;
+            }
+            result = processCommand(commandSegments);
+            send(String.format("%s\n", result).getBytes("UTF-8"));
+        }
+
+        private void processFrame(byte[] frame) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+            int requestId = in.readInt();
+            String cmdType = in.readUTF();
+            int batchSize = in.readInt();
+            if (batchSize < 0 || batchSize > frame.length) {
+                throw new IOException(String.format("Invalid batch size %d", batchSize));
+            }
+            boolean[] results = new boolean[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                int argCount = in.readInt();
+                if (argCount < 0 || argCount > frame.length) {
+                    throw new IOException(String.format("Invalid argument count %d", argCount));
+                }
+                String[] commandSegments = new String[argCount + 1];
+                commandSegments[0] = cmdType;
+                for (int j = 0; j < argCount; j++) {
+                    commandSegments[j + 1] = in.readUTF();
+                }
+                results[i] = processCommand(commandSegments);
+            }
+            send(encodeResponse(requestId, results));
+        }
+
+        /**
+         * Queue data to send to the client, and try to send it right away.
+         */
+        private void send(byte[] data) throws IOException {
+            mWriteQueue.add(ByteBuffer.wrap(data));
+            if (write()) {
+                mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Write as much queued data as possible without blocking.
+         *
+         * @return <code>true</code> if some data is still queued
+         */
+        boolean write() throws IOException {
+            while (!mWriteQueue.isEmpty()) {
+                ByteBuffer data = mWriteQueue.peek();
+                mChannel.write(data);
+                if (data.hasRemaining()) {
+                    return true;
+                }
+                mWriteQueue.poll();
+            }
+            if (mKey.isValid() && (mKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                if ((mKey.interestOps() & SelectionKey.OP_READ) == 0) {
+                    // the client closed its side, and all acks were sent
+                    close();
+                } else {
+                    mKey.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            return false;
+        }
+
+        void close() {
+            mKey.cancel();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
     }
 }
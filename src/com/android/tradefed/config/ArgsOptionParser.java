@@ -175,7 +175,18 @@ public class ArgsOptionParser extends OptionSetter {
      * @throws ConfigurationException if error occurred parsing the arguments.
      */
     public List<String> parse(List<String> args) throws ConfigurationException {
-        return parseOptions(args.listIterator());
+        // the same arguments are often parsed again for new option sources of the same classes,
+        // e.g. each time a looping command is rescheduled. Set the values they resolved to
+        // directly in that case
+        BindingPlan plan = getBindingPlan(args);
+        if (plan != null) {
+            applyBindingPlan(plan);
+            return new ArrayList<String>(plan.getLeftovers());
+        }
+        startBindingPlan();
+        List<String> leftovers = parseOptions(args.listIterator());
+        saveBindingPlan(args, leftovers);
+        return leftovers;
     }
 
     /**
@@ -28,11 +28,14 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Populates {@link Option} fields.
@@ -51,6 +54,11 @@ import java.util.Map;
  * All fields will be processed, including public, protected, default (package) access, private and
  * inherited fields.
  * <p/>
+ * The {@link Option} fields of each class, and the option names of each list of option source
+ * classes, are only gathered once, since configurations with the same objects are created over and
+ * over. The values set by a list of arguments are also recorded as a {@link BindingPlan}, so they
+ * can be set again on new option sources without parsing the arguments.
+ * <p/>
  *
  * ported from dalvik.runner.OptionParser
  * @see {@link ArgsOptionParser}
@@ -140,8 +148,203 @@ public class OptionSetter {
                 type));
     }
 
-    private final Collection<Object> mOptionSources;
-    private final Map<String, OptionFieldsForName> mOptionMap;
+    /** max number of lists of option source classes whose option map is cached */
+    private static final int MAX_CACHED_OPTION_MAPS = 256;
+    /** max number of argument lists whose binding plan is cached, per option map */
+    private static final int MAX_CACHED_BINDING_PLANS = 64;
+
+    /** the option metadata of each option source class */
+    private static final Map<Class<?>, ClassOptions> sClassOptions =
+            new ConcurrentHashMap<Class<?>, ClassOptions>();
+
+    /** the option maps of each list of option source classes, in least recently used order */
+    private static final Map<List<Class<?>>, OptionMap> sOptionMaps =
+            new LinkedHashMap<List<Class<?>>, OptionMap>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Class<?>>, OptionMap> eldest) {
+                    return size() > MAX_CACHED_OPTION_MAPS;
+                }
+            };
+
+    private final List<Object> mOptionSources;
+    private final OptionMap mOptionMap;
+
+    /** the values set since {@link #startBindingPlan()}, or <code>null</code> if not recording */
+    private List<Binding> mRecordedBindings = null;
+
+    /**
+     * The {@link Option} metadata of a class, gathered once per class.
+     */
+    private static class ClassOptions {
+        private final Class<?> mClass;
+        /** all option fields, both declared and inherited */
+        private final List<Field> mFields;
+        /** the {@link Handler} of each field, <code>null</code> if the type is unsupported */
+        private final List<Handler> mHandlers = new ArrayList<Handler>();
+        /** the error found for each field, thrown before the field is added to an option map */
+        private final List<String> mErrors = new ArrayList<String>();
+        /** the error getting the {@link Handler} of each field */
+        private final List<String> mHandlerErrors = new ArrayList<String>();
+        /** the names of each field, for each index of the class among the option sources */
+        private final Map<Integer, List<List<String>>> mNames =
+                new ConcurrentHashMap<Integer, List<List<String>>>();
+
+        ClassOptions(Class<?> optionClass) {
+            mClass = optionClass;
+            List<Field> fields = new ArrayList<Field>();
+            buildOptionFieldsForClass(optionClass, fields);
+            for (Field field : fields) {
+                field.setAccessible(true);
+                Handler handler = null;
+                String handlerError = null;
+                try {
+                    handler = getHandler(field.getGenericType());
+                } catch (ConfigurationException e) {
+                    handlerError = e.getMessage();
+                }
+                mHandlers.add(handler);
+                mErrors.add(validateField(field));
+                mHandlerErrors.add(handlerError);
+            }
+            mFields = Collections.unmodifiableList(fields);
+        }
+
+        private String validateField(Field field) {
+            final Option option = field.getAnnotation(Option.class);
+            if (option.name().indexOf(NAMESPACE_SEPARATOR) != -1) {
+                return String.format("Option name '%s' in class '%s' is invalid. " +
+                        "Option names cannot contain the namespace separator character '%c'",
+                        option.name(), mClass.getName(), NAMESPACE_SEPARATOR);
+            }
+
+            // Make sure the source doesn't use GREATEST or LEAST for a non-Comparable field.
+            final Type type = field.getGenericType();
+            if ((type instanceof Class) && !(type instanceof ParameterizedType)) {
+                // Not a parameterized type
+                if ((option.updateRule() == OptionUpdateRule.GREATEST) ||
+                        (option.updateRule() == OptionUpdateRule.LEAST)) {
+                    Class cType = (Class) type;
+                    if (!(Comparable.class.isAssignableFrom(cType))) {
+                        return String.format(
+                                "Option '%s' in class '%s' attempts to use updateRule %s with " +
+                                "non-Comparable type '%s'.", option.name(), mClass.getName(),
+                                option.updateRule(), field.getGenericType());
+                    }
+                }
+
+                // don't allow 'final' for non-Collections
+                if ((field.getModifiers() & Modifier.FINAL) != 0) {
+                    return String.format("Option '%s' in class '%s' is final and cannot be set",
+                            option.name(), mClass.getName());
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Get the names of each field, for the given index of the class among the option sources.
+         * Names are in the order they are added to an option map.
+         */
+        List<List<String>> getNames(int index) {
+            List<List<String>> names = mNames.get(index);
+            if (names == null) {
+                names = new ArrayList<List<String>>(mFields.size());
+                for (int i = 0; i < mFields.size(); i++) {
+                    names.add(buildNames(mFields.get(i), mHandlers.get(i), index));
+                }
+                mNames.put(index, names);
+            }
+            return names;
+        }
+
+        private List<String> buildNames(Field field, Handler handler, int index) {
+            final Option option = field.getAnnotation(Option.class);
+            // Allow classes to opt out of the global Option namespace
+            boolean addToGlobalNamespace = true;
+            if (mClass.isAnnotationPresent(OptionClass.class)) {
+                final OptionClass classAnnotation = mClass.getAnnotation(OptionClass.class);
+                addToGlobalNamespace = classAnnotation.global_namespace();
+            }
+
+            List<String> names = new ArrayList<String>();
+            if (addToGlobalNamespace) {
+                names.add(option.name());
+            }
+            addNamespacedNames(names, option.name(), index);
+            if (option.shortName() != Option.NO_SHORT_NAME) {
+                if (addToGlobalNamespace) {
+                    names.add(String.valueOf(option.shortName()));
+                }
+                addNamespacedNames(names, String.valueOf(option.shortName()), index);
+            }
+            if (handler != null && handler.isBoolean()) {
+                // add the corresponding "no" option to make boolean false
+                if (addToGlobalNamespace) {
+                    names.add(BOOL_FALSE_PREFIX + option.name());
+                }
+                addNamespacedNames(names, BOOL_FALSE_PREFIX + option.name(), index);
+            }
+            return names;
+        }
+
+        /**
+         * Adds the namespaced versions of the option name
+         *
+         * @see {@link #makeOptionMap()} for details on the enumeration scheme
+         */
+        private void addNamespacedNames(List<String> names, String name, int index) {
+            final String className = mClass.getName();
+
+            if (mClass.isAnnotationPresent(OptionClass.class)) {
+                final OptionClass classAnnotation = mClass.getAnnotation(OptionClass.class);
+                names.add(String.format("%s%c%s", classAnnotation.alias(), NAMESPACE_SEPARATOR,
+                        name));
+
+                // Allows use of an enumerated namespace, to enable options to map to specific
+                // instances of a class alias, rather than just to all instances of that
+                // particular alias.
+                // Example option name: alias:2:option-name
+                names.add(String.format("%s%c%d%c%s", classAnnotation.alias(),
+                        NAMESPACE_SEPARATOR, index, NAMESPACE_SEPARATOR, name));
+            }
+
+            // Allows use of a className-delimited namespace.
+            // Example option name: com.fully.qualified.ClassName:option-name
+            names.add(String.format("%s%c%s", className, NAMESPACE_SEPARATOR, name));
+
+            // Allows use of an enumerated namespace, to enable options to map to specific
+            // instances of a className, rather than just to all instances of that particular
+            // className.
+            // Example option name: com.fully.qualified.ClassName:2:option-name
+            names.add(String.format("%s%c%d%c%s", className, NAMESPACE_SEPARATOR, index,
+                    NAMESPACE_SEPARATOR, name));
+        }
+    }
+
+    /**
+     * The option fields of a list of option source classes, by option name.
+     * <p/>
+     * Fields refer to option sources by their index, so the map can be shared by all
+     * {@link OptionSetter}s whose option sources have the same classes, in the same order.
+     */
+    private static class OptionMap {
+        private final Map<String, OptionFieldsForName> mFieldsForName =
+                new HashMap<String, OptionFieldsForName>();
+
+        /** the binding plans of argument lists, in least recently used order */
+        private final Map<List<String>, BindingPlan> mBindingPlans =
+                new LinkedHashMap<List<String>, BindingPlan>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<List<String>, BindingPlan> eldest) {
+                        return size() > MAX_CACHED_BINDING_PLANS;
+                    }
+                };
+    }
 
     /**
      * Container for the list of option fields with given name.
@@ -149,31 +352,52 @@ public class OptionSetter {
      * Used to enforce constraint that fields with same name can exist in different option sources,
      * but not the same option source
      */
-    private class OptionFieldsForName implements Iterable<Map.Entry<Object, Field>> {
+    private static class OptionFieldsForName {
 
-        private Map<Object, Field> mSourceFieldMap = new HashMap<Object, Field>();
+        private final List<Integer> mSourceIndexes = new ArrayList<Integer>(1);
+        private final List<Field> mFields = new ArrayList<Field>(1);
+        private Class<?> mFirstSourceClass = null;
+        private Handler mHandler = null;
 
-        void addField(String name, Object source, Field field) throws ConfigurationException {
+        void addField(String name, int sourceIndex, Class<?> sourceClass, Field field,
+                Handler handler) throws ConfigurationException {
             if (size() > 0) {
-                Handler existingFieldHandler = getHandler(getFirstField().getGenericType());
-                Handler newFieldHandler = getHandler(field.getGenericType());
-                if (!existingFieldHandler.equals(newFieldHandler)) {
+                if (!mHandler.equals(handler)) {
                     throw new ConfigurationException(String.format(
                             "@Option field with name '%s' in class '%s' is defined with a " +
                             "different type than same option in class '%s'",
-                            name, source.getClass().getName(),
-                            getFirstObject().getClass().getName()));
+                            name, sourceClass.getName(), mFirstSourceClass.getName()));
                 }
+                if (mSourceIndexes.contains(sourceIndex)) {
+                    throw new ConfigurationException(String.format(
+                            "@Option field with name '%s' is defined more than once in class '%s'",
+                            name, sourceClass.getName()));
+                }
+            } else {
+                mFirstSourceClass = sourceClass;
+                mHandler = handler;
             }
-            if (mSourceFieldMap.put(source, field) != null) {
-                throw new ConfigurationException(String.format(
-                        "@Option field with name '%s' is defined more than once in class '%s'",
-                        name, source.getClass().getName()));
-            }
+            mSourceIndexes.add(sourceIndex);
+            mFields.add(field);
         }
 
         public int size() {
-            return mSourceFieldMap.size();
+            return mFields.size();
+        }
+
+        int getSourceIndex(int i) {
+            return mSourceIndexes.get(i);
+        }
+
+        Field getField(int i) {
+            return mFields.get(i);
+        }
+
+        /**
+         * @return the {@link Handler} shared by all fields with this name
+         */
+        Handler getHandler() {
+            return mHandler;
         }
 
         public Field getFirstField() throws ConfigurationException {
@@ -181,20 +405,48 @@ public class OptionSetter {
                 // should never happen
                 throw new ConfigurationException("no option fields found");
             }
-            return mSourceFieldMap.values().iterator().next();
+            return mFields.get(0);
         }
+    }
 
-        public Object getFirstObject() throws ConfigurationException {
-            if (size() <= 0) {
-                // should never happen
-                throw new ConfigurationException("no option fields found");
-            }
-            return mSourceFieldMap.keySet().iterator().next();
+    /**
+     * A value set on an option field, recorded so it can be set again on other option sources of
+     * the same classes.
+     */
+    private static class Binding {
+        final int mSourceIndex;
+        final Field mField;
+        final String mOptionName;
+        /** the translated value, a {@link MapEntry} for map options */
+        final Object mValue;
+
+        Binding(int sourceIndex, Field field, String optionName, Object value) {
+            mSourceIndex = sourceIndex;
+            mField = field;
+            mOptionName = optionName;
+            mValue = value;
         }
+    }
 
-        @Override
-        public Iterator<Map.Entry<Object, Field>> iterator() {
-            return mSourceFieldMap.entrySet().iterator();
+    /**
+     * The values set by processing a list of arguments, with option names already resolved to
+     * fields and values already translated, so the same arguments can be applied again without
+     * being parsed.
+     */
+    static class BindingPlan {
+        private final List<Binding> mBindings;
+        private final List<String> mLeftovers;
+
+        BindingPlan(List<Binding> bindings, List<String> leftovers) {
+            mBindings = bindings;
+            mLeftovers = leftovers;
+        }
+
+        /**
+         * @return the arguments left over after processing all options
+         */
+        List<String> getLeftovers() {
+            return mLeftovers;
         }
     }
 
@@ -211,12 +463,12 @@ public class OptionSetter {
      * @throws ConfigurationException
      */
     public OptionSetter(Collection<Object> optionSources) throws ConfigurationException {
-        mOptionSources = optionSources;
-        mOptionMap = makeOptionMap();
+        mOptionSources = new ArrayList<Object>(optionSources);
+        mOptionMap = getOptionMap();
     }
 
     private OptionFieldsForName fieldsForArg(String name) throws ConfigurationException {
-        OptionFieldsForName fields = mOptionMap.get(name);
+        OptionFieldsForName fields = mOptionMap.mFieldsForName.get(name);
         if (fields == null || fields.size() == 0) {
             throw new ConfigurationException(String.format("Could not find option with name %s",
                     name));
@@ -243,11 +495,11 @@ public class OptionSetter {
      */
     public void setOptionValue(String optionName, String valueText) throws ConfigurationException {
         OptionFieldsForName optionFields = fieldsForArg(optionName);
-        for (Map.Entry<Object, Field> fieldEntry : optionFields) {
+        Handler handler = optionFields.getHandler();
+        for (int i = 0; i < optionFields.size(); i++) {
 
-            Object optionSource = fieldEntry.getKey();
-            Field field = fieldEntry.getValue();
-            Handler handler = getHandler(field.getGenericType());
+            Object optionSource = mOptionSources.get(optionFields.getSourceIndex(i));
+            Field field = optionFields.getField(i);
             Object value = handler.translate(valueText);
             if (value == null) {
                 final String type = field.getType().getSimpleName();
@@ -256,6 +508,7 @@ public class OptionSetter {
                                 type, optionName));
             }
             setFieldValue(optionName, optionSource, field, value);
+            recordBinding(optionFields.getSourceIndex(i), field, optionName, value);
         }
     }
 
@@ -336,11 +589,11 @@ public class OptionSetter {
             throws ConfigurationException {
         // FIXME: try to unify code paths with setOptionValue
         OptionFieldsForName optionFields = fieldsForArg(optionName);
-        for (Map.Entry<Object, Field> fieldEntry : optionFields) {
+        Handler handler = optionFields.getHandler();
+        for (int i = 0; i < optionFields.size(); i++) {
 
-            Object optionSource = fieldEntry.getKey();
-            Field field = fieldEntry.getValue();
-            Handler handler = getHandler(field.getGenericType());
+            Object optionSource = mOptionSources.get(optionFields.getSourceIndex(i));
+            Field field = optionFields.getField(i);
             if (handler == null || !(handler instanceof MapHandler)) {
                 throw new ConfigurationException("Not a map!");
             }
@@ -375,39 +628,98 @@ public class OptionSetter {
                 }
                 throw new ConfigurationException(message);
             }
-            try {
-                field.setAccessible(true);
-                if (!Map.class.isAssignableFrom(field.getType())) {
-                    throw new ConfigurationException(String.format(
-                            "internal error: not a map field!"));
-                }
-                Map map = (Map)field.get(optionSource);
-                if (map == null) {
-                    throw new ConfigurationException(String.format(
-                            "internal error: no storage allocated for field '%s' (used for " +
-                            "option '%s') in class '%s'",
-                            field.getName(), optionName, optionSource.getClass().getName()));
-                }
-                map.put(pair.mKey, pair.mValue);
-            } catch (IllegalAccessException e) {
+            putMapEntry(optionName, optionSource, field, pair);
+            recordBinding(optionFields.getSourceIndex(i), field, optionName, pair);
+        }
+    }
+
+    /**
+     * Puts a key and value in the given {@link Option} map field.
+     */
+    @SuppressWarnings("unchecked")
+    private static void putMapEntry(String optionName, Object optionSource, Field field,
+            MapEntry pair) throws ConfigurationException {
+        try {
+            field.setAccessible(true);
+            if (!Map.class.isAssignableFrom(field.getType())) {
+                throw new ConfigurationException(String.format(
+                        "internal error: not a map field!"));
+            }
+            Map map = (Map)field.get(optionSource);
+            if (map == null) {
                 throw new ConfigurationException(String.format(
-                        "internal error when setting option '%s'", optionName), e);
+                        "internal error: no storage allocated for field '%s' (used for " +
+                        "option '%s') in class '%s'",
+                        field.getName(), optionName, optionSource.getClass().getName()));
             }
+            map.put(pair.mKey, pair.mValue);
+        } catch (IllegalAccessException e) {
+            throw new ConfigurationException(String.format(
+                    "internal error when setting option '%s'", optionName), e);
         }
     }
 
     /**
-     * Cache the available options and report any problems with the options themselves right away.
+     * Gets the option map of the option sources, and report any problems with the options
+     * themselves right away.
+     * <p/>
+     * The option map only depends on the classes of the option sources, so it is built once for
+     * each list of classes.
      *
-     * @return a {@link Map} of {@link Option} field name to {@link OptionField}s
+     * @return the {@link OptionMap}
      * @throws ConfigurationException if any {@link Option} are incorrectly specified
      */
-    private Map<String, OptionFieldsForName> makeOptionMap() throws ConfigurationException {
-        final Map<String, Integer> freqMap = new HashMap<String, Integer>(mOptionSources.size());
-        final Map<String, OptionFieldsForName> optionMap =
-                new HashMap<String, OptionFieldsForName>();
+    private OptionMap getOptionMap() throws ConfigurationException {
+        List<Class<?>> classes = new ArrayList<Class<?>>(mOptionSources.size());
         for (Object objectSource : mOptionSources) {
-            final String className = objectSource.getClass().getName();
+            classes.add(objectSource.getClass());
+        }
+        OptionMap optionMap;
+        synchronized (sOptionMaps) {
+            optionMap = sOptionMaps.get(classes);
+        }
+        if (optionMap == null) {
+            optionMap = makeOptionMap(classes);
+            synchronized (sOptionMaps) {
+                sOptionMaps.put(classes, optionMap);
+            }
+        }
+        checkDuplicateSources();
+        return optionMap;
+    }
+
+    /**
+     * Make sure the same option source is not given more than once, since the shared option map
+     * cannot detect it.
+     */
+    private void checkDuplicateSources() throws ConfigurationException {
+        Collection<Object> sources = new HashSet<Object>(mOptionSources.size());
+        for (Object objectSource : mOptionSources) {
+            if (sources.add(objectSource)) {
+                continue;
+            }
+            ClassOptions classOptions = getClassOptions(objectSource.getClass());
+            if (!classOptions.mFields.isEmpty()) {
+                // the first name of an option is never enumerated, so it is the same for both
+                throw new ConfigurationException(String.format(
+                        "@Option field with name '%s' is defined more than once in class '%s'",
+                        classOptions.getNames(1).get(0).get(0), objectSource.getClass().getName()));
+            }
+        }
+    }
+
+    /**
+     * Builds the option map of a list of option source classes.
+     *
+     * @return the {@link OptionMap}
+     * @throws ConfigurationException if any {@link Option} are incorrectly specified
+     */
+    private static OptionMap makeOptionMap(List<Class<?>> classes)
+            throws ConfigurationException {
+        final Map<String, Integer> freqMap = new HashMap<String, Integer>(classes.size());
+        final OptionMap optionMap = new OptionMap();
+        for (int sourceIndex = 0; sourceIndex < classes.size(); sourceIndex++) {
+            final String className = classes.get(sourceIndex).getName();
 
             // Keep track of how many times we've seen this className.  This assumes that we
             // maintain the optionSources in a universally-knowable order internally (which we do --
@@ -418,85 +730,115 @@ public class OptionSetter {
             index = index == null ? 1 : index + 1;
             freqMap.put(className, index);
 
-            addOptionsForObject(objectSource, optionMap, index);
+            addOptionsForClass(optionMap, sourceIndex,
+                    getClassOptions(classes.get(sourceIndex)), index);
         }
         return optionMap;
     }
 
     /**
-     * Adds all option fields (both declared and inherited) to the <var>optionMap</var> for
-     * provided <var>optionClass</var>.
+     * Adds all option fields (both declared and inherited) of an option source to the
+     * <var>optionMap</var>.
      *
-     * @param optionSource
      * @param optionMap
+     * @param sourceIndex the index of the option source
+     * @param classOptions the {@link ClassOptions} of the option source
      * @param index The unique index of this instance of the optionSource class.  Should equal the
      *              number of instances of this class that we've already seen, plus 1.
      * @throws ConfigurationException
      */
-    private void addOptionsForObject(Object optionSource,
-            Map<String, OptionFieldsForName> optionMap, Integer index)
-            throws ConfigurationException {
-        Collection<Field> optionFields = getOptionFieldsForClass(optionSource.getClass());
-        for (Field field : optionFields) {
-            final Option option = field.getAnnotation(Option.class);
-            if (option.name().indexOf(NAMESPACE_SEPARATOR) != -1) {
-                throw new ConfigurationException(String.format(
-                        "Option name '%s' in class '%s' is invalid. " +
-                        "Option names cannot contain the namespace separator character '%c'",
-                        option.name(), optionSource.getClass().getName(), NAMESPACE_SEPARATOR));
+    private static void addOptionsForClass(OptionMap optionMap, int sourceIndex,
+            ClassOptions classOptions, int index) throws ConfigurationException {
+        List<List<String>> names = classOptions.getNames(index);
+        for (int i = 0; i < classOptions.mFields.size(); i++) {
+            if (classOptions.mErrors.get(i) != null) {
+                throw new ConfigurationException(classOptions.mErrors.get(i));
+            }
+            for (String name : names.get(i)) {
+                addNameToMap(optionMap, sourceIndex, classOptions, i, name);
             }
+        }
+    }
 
-            // Make sure the source doesn't use GREATEST or LEAST for a non-Comparable field.
-            final Type type = field.getGenericType();
-            if ((type instanceof Class) && !(type instanceof ParameterizedType)) {
-                // Not a parameterized type
-                if ((option.updateRule() == OptionUpdateRule.GREATEST) ||
-                        (option.updateRule() == OptionUpdateRule.LEAST)) {
-                    Class cType = (Class) type;
-                    if (!(Comparable.class.isAssignableFrom(cType))) {
-                        throw new ConfigurationException(String.format(
-                                "Option '%s' in class '%s' attempts to use updateRule %s with " +
-                                "non-Comparable type '%s'.", option.name(),
-                                optionSource.getClass().getName(), option.updateRule(),
-                                field.getGenericType()));
-                    }
-                }
+    private static void addNameToMap(OptionMap optionMap, int sourceIndex,
+            ClassOptions classOptions, int fieldIndex, String name)
+            throws ConfigurationException {
+        if (classOptions.mHandlerErrors.get(fieldIndex) != null) {
+            throw new ConfigurationException(classOptions.mHandlerErrors.get(fieldIndex));
+        }
+        OptionFieldsForName fields = optionMap.mFieldsForName.get(name);
+        if (fields == null) {
+            fields = new OptionFieldsForName();
+            optionMap.mFieldsForName.put(name, fields);
+        }
 
-                // don't allow 'final' for non-Collections
-                if ((field.getModifiers() & Modifier.FINAL) != 0) {
-                    throw new ConfigurationException(String.format(
-                            "Option '%s' in class '%s' is final and cannot be set", option.name(),
-                            optionSource.getClass().getName()));
-                }
-            }
+        Field field = classOptions.mFields.get(fieldIndex);
+        Handler handler = classOptions.mHandlers.get(fieldIndex);
+        fields.addField(name, sourceIndex, classOptions.mClass, field, handler);
+        if (handler == null) {
+            throw new ConfigurationException(String.format(
+                    "Option name '%s' in class '%s' is invalid. Unsupported @Option field type '%s'",
+                    name, classOptions.mClass.getName(), field.getType()));
+        }
+    }
 
-            // Allow classes to opt out of the global Option namespace
-            boolean addToGlobalNamespace = true;
-            if (optionSource.getClass().isAnnotationPresent(OptionClass.class)) {
-                final OptionClass classAnnotation = optionSource.getClass().getAnnotation(
-                        OptionClass.class);
-                addToGlobalNamespace = classAnnotation.global_namespace();
-            }
+    /**
+     * Starts recording the values set, to build the {@link BindingPlan} of a list of arguments.
+     */
+    void startBindingPlan() {
+        mRecordedBindings = new ArrayList<Binding>();
+    }
 
-            if (addToGlobalNamespace) {
-                addNameToMap(optionMap, optionSource, option.name(), field);
-            }
-            addNamespacedOptionToMap(optionMap, optionSource, option.name(), field, index);
-            if (option.shortName() != Option.NO_SHORT_NAME) {
-                if (addToGlobalNamespace) {
-                    addNameToMap(optionMap, optionSource, String.valueOf(option.shortName()),
-                            field);
-                }
-                addNamespacedOptionToMap(optionMap, optionSource,
-                        String.valueOf(option.shortName()), field, index);
-            }
-            if (isBooleanField(field)) {
-                // add the corresponding "no" option to make boolean false
-                if (addToGlobalNamespace) {
-                    addNameToMap(optionMap, optionSource, BOOL_FALSE_PREFIX + option.name(), field);
-                }
-                addNamespacedOptionToMap(optionMap, optionSource, BOOL_FALSE_PREFIX + option.name(),
-                        field, index);
+    private void recordBinding(int sourceIndex, Field field, String optionName, Object value) {
+        if (mRecordedBindings != null) {
+            mRecordedBindings.add(new Binding(sourceIndex, field, optionName, value));
+        }
+    }
+
+    /**
+     * Stops recording, and caches the values set since {@link #startBindingPlan()} as the
+     * {@link BindingPlan} of the given arguments, for all option sources of the same classes.
+     *
+     * @param args the arguments that were processed
+     * @param leftovers the arguments left over after processing all options
+     */
+    void saveBindingPlan(List<String> args, List<String> leftovers) {
+        if (mRecordedBindings == null) {
+            return;
+        }
+        BindingPlan plan = new BindingPlan(mRecordedBindings,
+                Collections.unmodifiableList(new ArrayList<String>(leftovers)));
+        mRecordedBindings = null;
+        synchronized (mOptionMap.mBindingPlans) {
+            mOptionMap.mBindingPlans.put(new ArrayList<String>(args), plan);
+        }
+    }
+
+    /**
+     * Gets the cached {@link BindingPlan} of the given arguments.
+     *
+     * @return the {@link BindingPlan}, or <code>null</code> if the arguments were not processed
+     *         before for option sources of the same classes
+     */
+    BindingPlan getBindingPlan(List<String> args) {
+        synchronized (mOptionMap.mBindingPlans) {
+            return mOptionMap.mBindingPlans.get(args);
+        }
+    }
+
+    /**
+     * Sets the values of a {@link BindingPlan} on the option sources.
+     *
+     * @throws ConfigurationException if a value cannot be set
+     */
+    void applyBindingPlan(BindingPlan plan) throws ConfigurationException {
+        for (Binding binding : plan.mBindings) {
+            Object optionSource = mOptionSources.get(binding.mSourceIndex);
+            if (binding.mValue instanceof MapEntry) {
+                putMapEntry(binding.mOptionName, optionSource, binding.mField,
+                        (MapEntry)binding.mValue);
+            } else {
+                setFieldValue(binding.mOptionName, optionSource, binding.mField, binding.mValue);
             }
         }
     }
@@ -511,7 +853,8 @@ public class OptionSetter {
      */
     protected Collection<String> getUnsetMandatoryOptions() throws ConfigurationException {
         Collection<String> unsetOptions = new HashSet<String>();
-        for (Map.Entry<String, OptionFieldsForName> optionPair : mOptionMap.entrySet()) {
+        for (Map.Entry<String, OptionFieldsForName> optionPair :
+                mOptionMap.mFieldsForName.entrySet()) {
             final String optName = optionPair.getKey();
             final OptionFieldsForName optionFields = optionPair.getValue();
             if (optName.indexOf(NAMESPACE_SEPARATOR) >= 0) {
@@ -519,9 +862,9 @@ public class OptionSetter {
                 continue;
             }
 
-            for (Map.Entry<Object, Field> fieldEntry : optionFields) {
-                final Object obj = fieldEntry.getKey();
-                final Field field = fieldEntry.getValue();
+            for (int i = 0; i < optionFields.size(); i++) {
+                final Object obj = mOptionSources.get(optionFields.getSourceIndex(i));
+                final Field field = optionFields.getField(i);
                 final Option option = field.getAnnotation(Option.class);
                 if (option == null) {
                     continue;
@@ -562,12 +905,23 @@ public class OptionSetter {
      * Gets a list of all {@link Option} fields (both declared and inherited) for given class.
      *
      * @param optionClass the {@link Class} to search
-     * @return a {@link Collection} of fields annotated with {@link Option}
+     * @return an unmodifiable {@link Collection} of fields annotated with {@link Option}
      */
     static Collection<Field> getOptionFieldsForClass(final Class<?> optionClass) {
-        Collection<Field> fieldList = new ArrayList<Field>();
-        buildOptionFieldsForClass(optionClass, fieldList);
-        return fieldList;
+        return getClassOptions(optionClass).mFields;
+    }
+
+    /**
+     * Gets the {@link ClassOptions} of given class, gathering them on first use.
+     */
+    private static ClassOptions getClassOptions(Class<?> optionClass) {
+        ClassOptions classOptions = sClassOptions.get(optionClass);
+        if (classOptions == null) {
+            // two threads may gather the same class, but the results are the same
+            classOptions = new ClassOptions(optionClass);
+            sClassOptions.put(optionClass, classOptions);
+        }
+        return classOptions;
     }
 
     /**
@@ -659,8 +1013,7 @@ public class OptionSetter {
     }
 
     public boolean isBooleanOption(String name) throws ConfigurationException {
-        Field field = fieldsForArg(name).getFirstField();
-        return isBooleanField(field);
+        return fieldsForArg(name).getHandler().isBoolean();
     }
 
     static boolean isBooleanField(Field field) throws ConfigurationException {
@@ -668,66 +1021,13 @@ public class OptionSetter {
     }
 
     public boolean isMapOption(String name) throws ConfigurationException {
-        Field field = fieldsForArg(name).getFirstField();
-        return isMapField(field);
+        return fieldsForArg(name).getHandler().isMap();
     }
 
     static boolean isMapField(Field field) throws ConfigurationException {
         return getHandler(field.getGenericType()).isMap();
     }
 
-    private void addNameToMap(Map<String, OptionFieldsForName> optionMap, Object optionSource,
-            String name, Field field) throws ConfigurationException {
-        OptionFieldsForName fields = optionMap.get(name);
-        if (fields == null) {
-            fields = new OptionFieldsForName();
-            optionMap.put(name, fields);
-        }
-
-        fields.addField(name, optionSource, field);
-        if (getHandler(field.getGenericType()) == null) {
-            throw new ConfigurationException(String.format(
-                    "Option name '%s' in class '%s' is invalid. Unsupported @Option field type '%s'",
-                    name, optionSource.getClass().getName(), field.getType()));
-        }
-    }
-
-    /**
-     * Adds the namespaced versions of the option to the map
-     *
-     * @see {@link #makeOptionMap()} for details on the enumeration scheme
-     */
-    private void addNamespacedOptionToMap(Map<String, OptionFieldsForName> optionMap,
-            Object optionSource, String name, Field field, int index)
-            throws ConfigurationException {
-        final String className = optionSource.getClass().getName();
-
-        if (optionSource.getClass().isAnnotationPresent(OptionClass.class)) {
-            final OptionClass classAnnotation = optionSource.getClass().getAnnotation(
-                    OptionClass.class);
-            addNameToMap(optionMap, optionSource, String.format("%s%c%s", classAnnotation.alias(),
-                    NAMESPACE_SEPARATOR, name), field);
-
-            // Allows use of an enumerated namespace, to enable options to map to specific instances
-            // of a class alias, rather than just to all instances of that particular alias.
-            // Example option name: alias:2:option-name
-            addNameToMap(optionMap, optionSource, String.format("%s%c%d%c%s",
-                    classAnnotation.alias(), NAMESPACE_SEPARATOR, index, NAMESPACE_SEPARATOR, name),
-                    field);
-        }
-
-        // Allows use of a className-delimited namespace.
-        // Example option name: com.fully.qualified.ClassName:option-name
-        addNameToMap(optionMap, optionSource, String.format("%s%c%s",
-                className, NAMESPACE_SEPARATOR, name), field);
-
-        // Allows use of an enumerated namespace, to enable options to map to specific instances of
-        // a className, rather than just to all instances of that particular className.
-        // Example option name: com.fully.qualified.ClassName:2:option-name
-        addNameToMap(optionMap, optionSource, String.format("%s%c%d%c%s",
-                className, NAMESPACE_SEPARATOR, index, NAMESPACE_SEPARATOR, name), field);
-    }
-
     private abstract static class Handler {
         // Only BooleanHandler should ever override this.
         boolean isBoolean() {
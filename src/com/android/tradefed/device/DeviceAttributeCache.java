@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds a {@link DeviceAttributeSnapshot} for each device, and refreshes them in the background.
+ * <p/>
+ * Retrieving a snapshot never blocks on device I/O: a missing or stale snapshot triggers an
+ * asynchronous refresh, and the caller gets the previous value in the meantime.
+ */
+class DeviceAttributeCache {
+
+    /**
+     * A listener for completed snapshot refreshes.
+     */
+    static interface IRefreshListener {
+        /**
+         * Callback when the attributes of given device have been refreshed.
+         */
+        public void attributesRefreshed(IDevice device);
+    }
+
+    /** default maximum age of a snapshot before it is refreshed */
+    static final long DEFAULT_MAX_AGE_MS = 60 * 1000;
+    /** max number of devices refreshed at the same time */
+    private static final int MAX_REFRESH_THREADS = 4;
+    private static final long REFRESH_THREAD_KEEP_ALIVE_SECS = 60;
+
+    private final Map<String, DeviceAttributeSnapshot> mSnapshots =
+            new ConcurrentHashMap<String, DeviceAttributeSnapshot>();
+    /** serials of devices with a refresh in progress */
+    private final Set<String> mRefreshing = Collections.synchronizedSet(new HashSet<String>());
+    /** the names of device properties that should be included in snapshots */
+    private final Set<String> mTrackedProperties = new CopyOnWriteArraySet<String>();
+    private final IRefreshListener mListener;
+    private volatile long mMaxAgeMs = DEFAULT_MAX_AGE_MS;
+    private boolean mSynchronousMode = false;
+    /**
+     * the executor running refreshes. Its queue holds at most one refresh per device, since
+     * overlapping refreshes of a device are dropped
+     */
+    private final ThreadPoolExecutor mRefreshExecutor;
+
+    /**
+     * Creates a {@link DeviceAttributeCache}.
+     *
+     * @param listener the {@link IRefreshListener} to inform of refreshed snapshots
+     */
+    DeviceAttributeCache(IRefreshListener listener) {
+        mListener = listener;
+        mRefreshExecutor = createRefreshExecutor();
+    }
+
+    /**
+     * Create the executor running refreshes, whose idle threads time out.
+     */
+    private static ThreadPoolExecutor createRefreshExecutor() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mThreadNumber = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Refresh attributes-" +
+                        mThreadNumber.incrementAndGet());
+                // refresh threads shouldn't hold the JVM open
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_REFRESH_THREADS,
+                MAX_REFRESH_THREADS, REFRESH_THREAD_KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Set the maximum age of a snapshot before it is refreshed.
+     */
+    void setMaxAge(long maxAgeMs) {
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Refresh snapshots on the calling thread. Exposed for unit testing.
+     */
+    void setSynchronousMode(boolean syncMode) {
+        mSynchronousMode = syncMode;
+    }
+
+    /**
+     * Include given device properties in subsequent snapshots. Existing snapshots that lack them
+     * are considered stale.
+     */
+    void trackProperties(Collection<String> propertyNames) {
+        mTrackedProperties.addAll(propertyNames);
+    }
+
+    /**
+     * Get the latest snapshot of given device, triggering a refresh if it is missing or stale.
+     *
+     * @return the {@link DeviceAttributeSnapshot} or <code>null</code> if the device attributes
+     *         have not been retrieved yet
+     */
+    DeviceAttributeSnapshot getSnapshot(IDevice device) {
+        DeviceAttributeSnapshot snapshot = mSnapshots.get(device.getSerialNumber());
+        if (snapshot == null || isStale(snapshot)) {
+            refresh(device);
+        }
+        return snapshot;
+    }
+
+    private boolean isStale(DeviceAttributeSnapshot snapshot) {
+        return System.currentTimeMillis() - snapshot.getTimestamp() > mMaxAgeMs ||
+                !snapshot.hasProperties(mTrackedProperties);
+    }
+
+    /**
+     * Asynchronously retrieve the attributes of given device. Has no effect if a refresh of the
+     * device is already queued or in progress, or for placeholder devices.
+     * <p/>
+     * At most {@link #MAX_REFRESH_THREADS} devices are refreshed at the same time.
+     */
+    void refresh(final IDevice device) {
+        if (device instanceof StubDevice) {
+            // placeholder devices have no attributes to query
+            return;
+        }
+        final String serial = device.getSerialNumber();
+        if (!mRefreshing.add(serial)) {
+            return;
+        }
+        Runnable refreshRunnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mSnapshots.put(serial, fetchSnapshot(device,
+                            new ArrayList<String>(mTrackedProperties)));
+                } finally {
+                    mRefreshing.remove(serial);
+                }
+                CLog.v("Refreshed attributes of device %s", serial);
+                mListener.attributesRefreshed(device);
+            }
+        };
+        if (mSynchronousMode) {
+            refreshRunnable.run();
+        } else {
+            mRefreshExecutor.execute(refreshRunnable);
+        }
+    }
+
+    /**
+     * Discard the snapshot of given device.
+     */
+    void remove(String serial) {
+        mSnapshots.remove(serial);
+    }
+
+    /**
+     * Query the device for its attributes.
+     * <p/>
+     * Exposed so unit tests can mock.
+     */
+    DeviceAttributeSnapshot fetchSnapshot(IDevice device, Collection<String> propertyNames) {
+        return DeviceAttributeSnapshot.fetch(device, propertyNames);
+    }
+}
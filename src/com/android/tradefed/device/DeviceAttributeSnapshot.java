@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the {@link IDevice} attributes used for device selection.
+ * <p/>
+ * Allows an {@link IDeviceSelection} to be matched against a device without performing any adb
+ * queries.
+ */
+public class DeviceAttributeSnapshot {
+
+    private final String mProductType;
+    private final String mProductVariant;
+    private final Integer mBatteryLevel;
+    private final Map<String, String> mProperties;
+    private final long mTimestamp;
+
+    /**
+     * Creates a {@link DeviceAttributeSnapshot}.
+     *
+     * @param productType the device product type, or <code>null</code> if unknown
+     * @param productVariant the device product variant, or <code>null</code> if unknown
+     * @param batteryLevel the device battery level, or <code>null</code> if unknown
+     * @param properties the values of the device properties included in this snapshot. A
+     *            <code>null</code> value indicates the property was queried but is not set.
+     * @param timestamp the time in ms when the attributes were retrieved
+     */
+    public DeviceAttributeSnapshot(String productType, String productVariant,
+            Integer batteryLevel, Map<String, String> properties, long timestamp) {
+        mProductType = productType;
+        mProductVariant = productVariant;
+        mBatteryLevel = batteryLevel;
+        mProperties = Collections.unmodifiableMap(new HashMap<String, String>(properties));
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * Queries the given device for its current attributes.
+     * <p/>
+     * Note this may block on device I/O, and should not be called while holding any lock needed
+     * for device allocation.
+     *
+     * @param device the {@link IDevice} to query
+     * @param propertyNames the names of the device properties to include in the snapshot
+     * @return the {@link DeviceAttributeSnapshot}
+     */
+    public static DeviceAttributeSnapshot fetch(IDevice device,
+            Collection<String> propertyNames) {
+        DeviceSelectionOptions selector = new DeviceSelectionOptions();
+        Map<String, String> properties = new HashMap<String, String>(propertyNames.size());
+        for (String propertyName : propertyNames) {
+            properties.put(propertyName, selector.getDeviceProperty(device, propertyName));
+        }
+        return new DeviceAttributeSnapshot(selector.getDeviceProductType(device),
+                selector.getDeviceProductVariant(device), selector.getBatteryLevel(device),
+                properties, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the device product type, or <code>null</code> if unknown
+     */
+    public String getProductType() {
+        return mProductType;
+    }
+
+    /**
+     * @return the device product variant, or <code>null</code> if unknown
+     */
+    public String getProductVariant() {
+        return mProductVariant;
+    }
+
+    /**
+     * @return the device battery level, or <code>null</code> if unknown
+     */
+    public Integer getBatteryLevel() {
+        return mBatteryLevel;
+    }
+
+    /**
+     * @return <code>true</code> if the given property was included in this snapshot
+     */
+    public boolean hasProperty(String name) {
+        return mProperties.containsKey(name);
+    }
+
+    /**
+     * @return <code>true</code> if all the given properties were included in this snapshot
+     */
+    public boolean hasProperties(Collection<String> names) {
+        return mProperties.keySet().containsAll(names);
+    }
+
+    /**
+     * @return the value of the given property, or <code>null</code> if not set or not included in
+     *         this snapshot
+     */
+    public String getProperty(String name) {
+        return mProperties.get(name);
+    }
+
+    /**
+     * @return the time in ms when the attributes were retrieved
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+}
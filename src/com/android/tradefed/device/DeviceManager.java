@@ -28,9 +28,10 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
-import com.android.tradefed.util.ConditionPriorityBlockingQueue;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
 import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.IndexedConditionPriorityBlockingQueue;
+import com.android.tradefed.util.LatencyStats;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.TableFormatter;
@@ -47,6 +48,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -75,12 +77,19 @@ public class DeviceManager implements IDeviceManager {
     /** A thread-safe map that tracks the devices currently allocated for testing.*/
     private Map<String, IManagedTestDevice> mAllocatedDeviceMap;
     /** A FIFO, thread-safe queue for holding devices visible on adb available for testing */
-    private ConditionPriorityBlockingQueue<IDevice> mAvailableDeviceQueue;
+    private IndexedConditionPriorityBlockingQueue<IDevice> mAvailableDeviceQueue;
     private IAndroidDebugBridge mAdbBridge;
     private ManagedDeviceListener mManagedDeviceListener;
     private boolean mFastbootEnabled;
     private Set<IFastbootListener> mFastbootListeners;
     private FastbootMonitor mFastbootMonitor;
+    private Set<IDeviceAvailableListener> mAvailableListeners;
+    private DeviceAttributeCache mAttributeCache;
+    private long mAttributeMaxAgeMs = DeviceAttributeCache.DEFAULT_MAX_AGE_MS;
+    /** time spent polling the available device queue for an allocation */
+    private final LatencyStats mAllocationStats = new LatencyStats("Device allocation");
+    /** time spent matching a device against allocation requirements, with the queue locked */
+    private final LatencyStats mMatchStats = new LatencyStats("Device matching");
     private Map<String, IDeviceStateMonitor> mCheckDeviceMap;
     private boolean mEnableLogcat = true;
     private boolean mIsTerminated = false;
@@ -123,8 +132,12 @@ public class DeviceManager implements IDeviceManager {
         mGlobalDeviceFilter = globalDeviceFilter;
         // Using ConcurrentHashMap for thread safety: handles concurrent modification and iteration
         mAllocatedDeviceMap = new ConcurrentHashMap<String, IManagedTestDevice>();
-        mAvailableDeviceQueue = new ConditionPriorityBlockingQueue<IDevice>();
+        mAvailableDeviceQueue = new IndexedConditionPriorityBlockingQueue<IDevice>();
         mCheckDeviceMap = new ConcurrentHashMap<String, IDeviceStateMonitor>();
+        mAvailableListeners = new CopyOnWriteArraySet<IDeviceAvailableListener>();
+        mAttributeCache = createAttributeCache(new AttributeRefreshListener());
+        mAttributeCache.setMaxAge(mAttributeMaxAgeMs);
+        mAttributeCache.setSynchronousMode(mSynchronousMode);
 
         if (isFastbootAvailable()) {
             mFastbootListeners = Collections.synchronizedSet(new HashSet<IFastbootListener>());
@@ -178,6 +191,44 @@ public class DeviceManager implements IDeviceManager {
         mSynchronousMode = syncMode;
     }
 
+    /**
+     * Set the maximum age of the device attributes used for matching devices to allocation
+     * requirements. Older attributes are refreshed in the background. Must be called before
+     * {@link #init()}.
+     *
+     * @param maxAgeMs the maximum age in ms
+     */
+    public void setDeviceAttributeMaxAge(long maxAgeMs) {
+        mAttributeMaxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Creates the {@link DeviceAttributeCache} used to match devices to allocation requirements.
+     * <p/>
+     * Exposed so unit tests can mock
+     */
+    DeviceAttributeCache createAttributeCache(DeviceAttributeCache.IRefreshListener listener) {
+        return new DeviceAttributeCache(listener);
+    }
+
+    /**
+     * Re-evaluates pending allocations when the attributes of an available device are refreshed.
+     */
+    private class AttributeRefreshListener implements DeviceAttributeCache.IRefreshListener {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void attributesRefreshed(IDevice device) {
+            if (mAvailableDeviceQueue.contains(device)) {
+                // the new attributes may match the requirements of pending allocations
+                mAvailableDeviceQueue.reprioritize(device);
+                notifyDeviceAvailable(device);
+            }
+        }
+    }
+
     private void checkInit() {
         if (!mIsInitialized) {
             throw new IllegalStateException("DeviceManager has not been initialized");
@@ -339,6 +390,15 @@ public class DeviceManager implements IDeviceManager {
             CLog.w("Found existing device for available device %s", device.getSerialNumber());
         }
         updateDeviceMonitor();
+        // make sure the device attributes are fresh for its next allocation
+        mAttributeCache.getSnapshot(device);
+        notifyDeviceAvailable(device);
+    }
+
+    private void notifyDeviceAvailable(IDevice device) {
+        for (IDeviceAvailableListener listener : mAvailableListeners) {
+            listener.deviceAvailable(device.getSerialNumber());
+        }
     }
 
     /**
@@ -347,7 +407,7 @@ public class DeviceManager implements IDeviceManager {
      * Exposed for unit testing
      * @return
      */
-    ConditionPriorityBlockingQueue<IDevice> getAvailableDeviceQueue() {
+    IndexedConditionPriorityBlockingQueue<IDevice> getAvailableDeviceQueue() {
         return mAvailableDeviceQueue;
     }
 
@@ -455,12 +515,67 @@ public class DeviceManager implements IDeviceManager {
      * @return the {@link IDevice} or <code>null</code> if interrupted
      */
     private IDevice pollAvailableDevice(long timeout, IDeviceSelection options) {
+        mAttributeCache.trackProperties(options.getProperties().keySet());
+        long startTime = System.nanoTime();
         try {
-            return mAvailableDeviceQueue.poll(timeout, TimeUnit.MILLISECONDS, options);
+            return mAvailableDeviceQueue.poll(timeout, TimeUnit.MILLISECONDS,
+                    new SnapshotMatcher(options));
         } catch (InterruptedException e) {
             CLog.w("interrupted while polling for device");
             return null;
+        } finally {
+            mAllocationStats.recordSince(startTime);
+        }
+    }
+
+    /**
+     * A {@link IMatcher} that matches devices against {@link IDeviceSelection} criteria using
+     * their cached {@link DeviceAttributeSnapshot}, so the available device queue is never held
+     * locked during device I/O.
+     * <p/>
+     * Devices whose attributes have not been retrieved yet are skipped rather than matched on
+     * missing data. Once their refresh completes, {@link AttributeRefreshListener} re-evaluates
+     * the pending allocations.
+     */
+    private class SnapshotMatcher implements IMatcher<IDevice> {
+        private final IDeviceSelection mOptions;
+
+        SnapshotMatcher(IDeviceSelection options) {
+            mOptions = options;
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(IDevice device) {
+            long startTime = System.nanoTime();
+            try {
+                DeviceAttributeSnapshot snapshot = mAttributeCache.getSnapshot(device);
+                if (snapshot == null && !(device instanceof StubDevice)) {
+                    return false;
+                }
+                return mOptions.matches(device, snapshot);
+            } finally {
+                mMatchStats.recordSince(startTime);
+            }
+        }
+    }
+
+    /**
+     * Get the latency statistics of device allocations, including the time spent waiting for a
+     * matching device.
+     */
+    public LatencyStats getAllocationStats() {
+        return mAllocationStats;
+    }
+
+    /**
+     * Get the latency statistics of matching a single device against allocation requirements.
+     * This is the time the available device queue is locked for each candidate device.
+     */
+    public LatencyStats getMatchStats() {
+        return mMatchStats;
     }
 
     private ITestDevice createAllocatedDevice(IDevice allocatedDevice) {
@@ -743,6 +858,8 @@ public class DeviceManager implements IDeviceManager {
             if (mFastbootMonitor != null) {
                 mFastbootMonitor.terminate();
             }
+            CLog.i("%s", mAllocationStats);
+            CLog.i("%s", mMatchStats);
         }
     }
 
@@ -952,6 +1069,9 @@ public class DeviceManager implements IDeviceManager {
                     checkAndAddAvailableDevice(device);
                 }
             }
+            if ((changeMask & IDevice.CHANGE_BUILD_INFO) != 0) {
+                mAttributeCache.refresh(device);
+            }
         }
 
         /**
@@ -993,6 +1113,7 @@ public class DeviceManager implements IDeviceManager {
                 CLog.i("Removed disconnected device %s from available queue",
                         disconnectedDevice.getSerialNumber());
             }
+            mAttributeCache.remove(disconnectedDevice.getSerialNumber());
             IManagedTestDevice testDevice = mAllocatedDeviceMap.get(
                     disconnectedDevice.getSerialNumber());
             if (testDevice != null) {
@@ -1030,6 +1151,24 @@ public class DeviceManager implements IDeviceManager {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addDeviceAvailableListener(IDeviceAvailableListener listener) {
+        checkInit();
+        mAvailableListeners.add(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeDeviceAvailableListener(IDeviceAvailableListener listener) {
+        checkInit();
+        mAvailableListeners.remove(listener);
+    }
+
     private class FastbootMonitor extends Thread {
 
         private boolean mQuit = false;
@@ -316,6 +316,27 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     @Override
     public boolean matches(IDevice device) {
+        return matches(device, null, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean matches(IDevice device, DeviceAttributeSnapshot attributes) {
+        return matches(device, attributes, false);
+    }
+
+    /**
+     * Determine if given device matches the provided options.
+     *
+     * @param device the {@link IDevice} to match
+     * @param attributes the previously retrieved {@link DeviceAttributeSnapshot} of the device.
+     *            Ignored if <var>queryDevice</var> is <code>true</code>.
+     * @param queryDevice if <code>true</code>, retrieve device attributes from the device itself.
+     */
+    private boolean matches(IDevice device, DeviceAttributeSnapshot attributes,
+            boolean queryDevice) {
         Collection<String> serials = getSerials();
         Collection<String> excludeSerials = getExcludeSerials();
         Map<String, Collection<String>> productVariants = splitOnVariant(getProductTypes());
@@ -330,10 +351,12 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             return false;
         }
         if (!productTypes.isEmpty()) {
-            String productType = getDeviceProductType(device);
+            String productType = queryDevice ? getDeviceProductType(device) :
+                    getSnapshotProductType(attributes);
             if (productTypes.contains(productType)) {
                 // check variant
-                String productVariant = getDeviceProductVariant(device);
+                String productVariant = queryDevice ? getDeviceProductVariant(device) :
+                        getSnapshotProductVariant(attributes);
                 Collection<String> variants = productVariants.get(productType);
                 if (variants != null && !variants.contains(productVariant)) {
                     return false;
@@ -344,7 +367,13 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             }
         }
         for (Map.Entry<String, String> propEntry : properties.entrySet()) {
-            if (!propEntry.getValue().equals(device.getProperty(propEntry.getKey()))) {
+            String propValue;
+            if (!queryDevice && attributes != null && attributes.hasProperty(propEntry.getKey())) {
+                propValue = attributes.getProperty(propEntry.getKey());
+            } else {
+                propValue = device.getProperty(propEntry.getKey());
+            }
+            if (!propEntry.getValue().equals(propValue)) {
                 return false;
             }
         }
@@ -362,7 +391,8 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             return false;
         }
         if ((mMinBattery != null) || (mMaxBattery != null)) {
-            Integer deviceBattery = getBatteryLevel(device);
+            Integer deviceBattery = queryDevice ? getBatteryLevel(device) :
+                    getSnapshotBatteryLevel(attributes);
             if (mRequireBatteryCheck && (deviceBattery == null)) {
                 // Couldn't determine battery level when that check is required; reject device
                 return false;
@@ -380,6 +410,18 @@ public class DeviceSelectionOptions implements IDeviceSelection {
         return true;
     }
 
+    private static String getSnapshotProductType(DeviceAttributeSnapshot attributes) {
+        return attributes == null ? null : attributes.getProductType();
+    }
+
+    private static String getSnapshotProductVariant(DeviceAttributeSnapshot attributes) {
+        return attributes == null ? null : attributes.getProductVariant();
+    }
+
+    private static Integer getSnapshotBatteryLevel(DeviceAttributeSnapshot attributes) {
+        return attributes == null ? null : attributes.getBatteryLevel();
+    }
+
     /** Determine if x is less-than y, given that both are non-Null */
     private static boolean isLessAndNotNull(Integer x, Integer y) {
         if ((x == null) || (y == null)) {
@@ -426,10 +468,15 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 
     @Override
     public String getDeviceProductType(IDevice device) {
-        return getProperty(device, DEVICE_PRODUCT_PROPERTY);
+        return getDeviceProperty(device, DEVICE_PRODUCT_PROPERTY);
     }
 
-    private String getProperty(IDevice device, String propName) {
+    /**
+     * Retrieves the given property of the given device, querying the device if necessary.
+     *
+     * @return the property value or <code>null</code> if unknown
+     */
+    String getDeviceProperty(IDevice device, String propName) {
         try {
             return device.getPropertyCacheOrSync(propName);
         } catch (TimeoutException e) {
@@ -451,7 +498,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 
     @Override
     public String getDeviceProductVariant(IDevice device) {
-        return getProperty(device, DEVICE_VARIANT_PROPERTY);
+        return getDeviceProperty(device, DEVICE_VARIANT_PROPERTY);
     }
 
     @Override
@@ -19,6 +19,7 @@ import com.android.ddmlib.AdbCommandRejectedException;
 import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
+import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 import com.android.tradefed.device.IDeviceManager.IFastbootListener;
@@ -29,7 +30,10 @@ import com.android.tradefed.util.RunUtil;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Helper class for monitoring the state of a {@link IDevice}.
@@ -42,9 +46,33 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
 
     /** the time in ms to wait between 'poll for responsiveness' attempts */
     private static final long CHECK_POLL_TIME = 3 * 1000;
+    /** the initial time in ms to wait between polls for device availability */
+    private static final long MIN_POLL_TIME = 100;
     /** the maximum operation time in ms for a 'poll for responsiveness' command */
     private static final int MAX_OP_TIME = 10 * 1000;
 
+    /** prefix of the status lines printed by {@link #AVAILABLE_WATCHER_CMD} */
+    static final String AVAILABLE_STATUS = "TF_AVAILABLE";
+    /**
+     * Shell command that checks the remaining stages of device availability on the device, and
+     * prints their state every second, until all are complete. Each check stops once it
+     * succeeded. Takes the external store mount point as argument.
+     * <p/>
+     * Toolbox sleep only takes whole seconds, and reads a fraction like 0.2 as 0 without failing,
+     * so a shorter interval would busy-loop.
+     */
+    private static final String AVAILABLE_WATCHER_CMD = "b=0; p=0; m=0; f=\"%s/.tf_available\"; "
+            + "while true; do "
+            + "[ $b = 1 ] || { [ \"$(getprop dev.bootcomplete)\" = 1 ] && b=1; }; "
+            + "[ $b = 0 -o $p = 1 ] || "
+            + "case \"$(pm path android 2>/dev/null)\" in *package:*) p=1;; esac; "
+            + "[ $m = 1 ] || { { echo tf > \"$f\"; } 2>/dev/null "
+            + "&& [ \"$(cat \"$f\" 2>/dev/null)\" = tf ] && m=1; rm \"$f\" 2>/dev/null; }; "
+            + "echo \"" + AVAILABLE_STATUS + " boot=$b pm=$p store=$m\"; "
+            + "[ $b$p$m = 111 ] && exit 0; "
+            + "sleep 1; "
+            + "done";
+
     /** The  time in ms to wait for a device to be online. */
     private long mDefaultOnlineTimeout = 1 * 60 * 1000;
 
@@ -54,6 +82,38 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     private List<DeviceStateListener> mStateListeners;
     private IDeviceManager mMgr;
     private final boolean mFastbootEnabled;
+    private boolean mUseAvailableWatcher = true;
+    private Map<AvailableStage, Long> mLastStageTimes = Collections.emptyMap();
+
+    /**
+     * The stages a device goes through before being available.
+     */
+    static enum AvailableStage {
+        ONLINE("online", null),
+        BOOT_COMPLETE("boot complete", "boot"),
+        PM_RESPONSIVE("package manager", "pm"),
+        STORE_MOUNTED("external store", "store");
+
+        private final String mDescription;
+        private final String mStatusKey;
+
+        AvailableStage(String description, String statusKey) {
+            mDescription = description;
+            mStatusKey = statusKey;
+        }
+
+        String getDescription() {
+            return mDescription;
+        }
+
+        /**
+         * @return the key of the stage in the status lines of {@link #AVAILABLE_WATCHER_CMD}, or
+         *         <code>null</code> if the stage is not watched on the device
+         */
+        String getStatusKey() {
+            return mStatusKey;
+        }
+    }
 
     DeviceStateMonitor(IDeviceManager mgr, IDevice device, boolean fastbootEnabled) {
         mMgr = mgr;
@@ -191,29 +251,37 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         // 3. Device's package manager is responsive
         // 4. Device's external storage is mounted
         //
-        // The current implementation waits for each event to occur in sequence.
+        // Once the device is online, the remaining events are watched for together by a shell
+        // running on the device, which reports them as soon as they occur. If the watcher shell
+        // cannot be used, each remaining event is polled for in turn, with increasing intervals.
         //
         // it will track the currently elapsed time and fail if it is
         // greater than waitTime
 
         long startTime = System.currentTimeMillis();
+        Map<AvailableStage, Long> stageTimes = new EnumMap<AvailableStage, Long>(
+                AvailableStage.class);
+        mLastStageTimes = stageTimes;
         IDevice device = waitForDeviceOnline(waitTime);
         if (device == null) {
             return null;
         }
-        long elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForBootComplete(waitTime - elapsedTime)) {
-            return null;
+        stageTimes.put(AvailableStage.ONLINE, System.currentTimeMillis() - startTime);
+        long deadline = startTime + waitTime;
+        CLog.i("Waiting %d ms for device %s boot complete, package manager and external store",
+                deadline - System.currentTimeMillis(), getSerialNumber());
+        if (!watchForAvailable(startTime, deadline, stageTimes)) {
+            pollForAvailable(startTime, deadline, stageTimes);
         }
-        elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForPmResponsive(waitTime - elapsedTime)) {
-            return null;
+        boolean available = stageTimes.size() == AvailableStage.values().length;
+        if (available) {
+            CLog.i("Device %s available after %d ms (%s)", getSerialNumber(),
+                    System.currentTimeMillis() - startTime, formatStageTimes(stageTimes));
+        } else {
+            CLog.w("Device %s not available after %d ms (%s)", getSerialNumber(), waitTime,
+                    formatStageTimes(stageTimes));
         }
-        elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForStoreMount(waitTime - elapsedTime)) {
-            return null;
-        }
-        return device;
+        return available ? device : null;
     }
 
     /**
@@ -225,126 +293,210 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     }
 
     /**
-     * Blocks until the device's boot complete flag is set
+     * Get the time at which each stage of the last {@link #waitForDeviceAvailable(long)} call
+     * completed.
+     * <p/>
+     * Exposed for unit testing.
      *
-     * @param waitTime the amount in ms to wait
+     * @return a map of the completed stages to the time in ms elapsed between the start of the
+     *         wait and their completion. Stages that did not complete are absent.
      */
-    private boolean waitForBootComplete(final long waitTime) {
-        CLog.i("Waiting %d ms for device %s boot complete", waitTime, getSerialNumber());
-        long startTime = System.currentTimeMillis();
-        final String cmd = "getprop dev.bootcomplete";
-        while ((System.currentTimeMillis() - startTime) < waitTime) {
-            try {
-                String bootFlag = getIDevice().getPropertySync("dev.bootcomplete");
-                if ("1".equals(bootFlag)) {
-                    return true;
-                }
-            } catch (IOException e) {
-                CLog.i("%s failed %s", cmd, e.getMessage());
-            } catch (TimeoutException e) {
-                CLog.i("%s failed: timeout", cmd);
-            } catch (AdbCommandRejectedException e) {
-                CLog.i("%s failed: %s", cmd, e.getMessage());
-            } catch (ShellCommandUnresponsiveException e) {
-                CLog.i("%s failed: %s", cmd, e.getMessage());
+    Map<AvailableStage, Long> getLastStageTimes() {
+        return mLastStageTimes;
+    }
+
+    /**
+     * Enable or disable the on-device watcher shell used by {@link #waitForDeviceAvailable()}.
+     * When disabled, the device is only polled.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void setUseAvailableWatcher(boolean useWatcher) {
+        mUseAvailableWatcher = useWatcher;
+    }
+
+    private static String formatStageTimes(Map<AvailableStage, Long> stageTimes) {
+        StringBuilder builder = new StringBuilder();
+        for (AvailableStage stage : AvailableStage.values()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            Long time = stageTimes.get(stage);
+            builder.append(stage.getDescription());
+            builder.append(time == null ? " not done" : String.format(" at %d ms", time));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Waits for the remaining stages of device availability, using a single shell command that
+     * checks them on the device and streams their state back.
+     *
+     * @param startTime the time in ms the wait for the device to be available started
+     * @param deadline the time in ms at which to stop waiting
+     * @param stageTimes the completed stages, updated as stages complete
+     * @return <code>true</code> if the watcher ran until all stages completed or the deadline
+     *         expired. <code>false</code> if it could not be used, and the device should be
+     *         polled instead.
+     */
+    private boolean watchForAvailable(long startTime, long deadline,
+            Map<AvailableStage, Long> stageTimes) {
+        if (!mUseAvailableWatcher) {
+            return false;
+        }
+        String externalStore = getIDevice().getMountPoint(IDevice.MNT_EXTERNAL_STORAGE);
+        if (externalStore == null) {
+            externalStore = "$" + IDevice.MNT_EXTERNAL_STORAGE;
+        }
+        String cmd = String.format(AVAILABLE_WATCHER_CMD, externalStore);
+        AvailableWatcherReceiver receiver = new AvailableWatcherReceiver(startTime, deadline,
+                stageTimes);
+        try {
+            getIDevice().executeShellCommand(cmd, receiver, MAX_OP_TIME);
+        } catch (IOException e) {
+            CLog.i("availability watcher failed: %s", e.getMessage());
+        } catch (TimeoutException e) {
+            CLog.i("availability watcher failed: timeout");
+        } catch (AdbCommandRejectedException e) {
+            CLog.i("availability watcher failed: %s", e.getMessage());
+        } catch (ShellCommandUnresponsiveException e) {
+            CLog.i("availability watcher failed: %s", e.getMessage());
+        }
+        if (receiver.isCancelled()) {
+            return true;
+        }
+        if (!receiver.hasReceivedStatus()) {
+            CLog.i("availability watcher is not supported on device %s, polling instead",
+                    getSerialNumber());
         }
-        CLog.w("Device %s did not boot after %d ms", getSerialNumber(), waitTime);
         return false;
     }
 
     /**
-     * Waits for the device package manager to be responsive.
+     * Polls the device until all remaining stages of device availability complete. The poll
+     * interval starts short, and increases up to {@link #CHECK_POLL_TIME}.
      *
-     * @param waitTime time in ms to wait before giving up
-     * @return <code>true</code> if package manage becomes responsive before waitTime expires.
-     * <code>false</code> otherwise
+     * @param startTime the time in ms the wait for the device to be available started
+     * @param deadline the time in ms at which to stop waiting
+     * @param stageTimes the completed stages, updated as stages complete
      */
-    private boolean waitForPmResponsive(final long waitTime) {
-        CLog.i("Waiting %d ms for device %s package manager",
-                waitTime, getSerialNumber());
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < waitTime) {
-            final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-            final String cmd = "pm path android";
-            try {
-                getIDevice().executeShellCommand(cmd, receiver, MAX_OP_TIME);
-                String output = receiver.getOutput();
-                Log.v(LOG_TAG, String.format("%s returned %s", cmd, output));
-                if (output.contains("package:")) {
-                    return true;
-                }
-            } catch (IOException e) {
-                Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-            } catch (TimeoutException e) {
-                Log.i(LOG_TAG, String.format("%s failed: timeout", cmd));
-            } catch (AdbCommandRejectedException e) {
-                Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-            } catch (ShellCommandUnresponsiveException e) {
-                Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
+    private void pollForAvailable(long startTime, long deadline,
+            Map<AvailableStage, Long> stageTimes) {
+        long pollTime = MIN_POLL_TIME;
+        while (System.currentTimeMillis() < deadline) {
+            if (!stageTimes.containsKey(AvailableStage.BOOT_COMPLETE) && checkBootComplete()) {
+                stageTimes.put(AvailableStage.BOOT_COMPLETE,
+                        System.currentTimeMillis() - startTime);
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            // package manager will not respond before the device has booted
+            if (stageTimes.containsKey(AvailableStage.BOOT_COMPLETE)
+                    && !stageTimes.containsKey(AvailableStage.PM_RESPONSIVE)
+                    && checkPmResponsive()) {
+                stageTimes.put(AvailableStage.PM_RESPONSIVE,
+                        System.currentTimeMillis() - startTime);
+            }
+            if (!stageTimes.containsKey(AvailableStage.STORE_MOUNTED) && checkStoreMount()) {
+                stageTimes.put(AvailableStage.STORE_MOUNTED,
+                        System.currentTimeMillis() - startTime);
+            }
+            if (stageTimes.size() == AvailableStage.values().length) {
+                return;
+            }
+            getRunUtil().sleep(Math.min(pollTime,
+                    Math.max(deadline - System.currentTimeMillis(), 0)));
+            pollTime = Math.min(pollTime * 2, CHECK_POLL_TIME);
+        }
+    }
+
+    /**
+     * Checks once if the device's boot complete flag is set
+     *
+     * @return <code>true</code> if the device has booted
+     */
+    private boolean checkBootComplete() {
+        final String cmd = "getprop dev.bootcomplete";
+        try {
+            String bootFlag = getIDevice().getPropertySync("dev.bootcomplete");
+            return "1".equals(bootFlag);
+        } catch (IOException e) {
+            CLog.i("%s failed %s", cmd, e.getMessage());
+        } catch (TimeoutException e) {
+            CLog.i("%s failed: timeout", cmd);
+        } catch (AdbCommandRejectedException e) {
+            CLog.i("%s failed: %s", cmd, e.getMessage());
+        } catch (ShellCommandUnresponsiveException e) {
+            CLog.i("%s failed: %s", cmd, e.getMessage());
         }
-        Log.w(LOG_TAG, String.format("Device %s package manager is unresponsive",
-                getSerialNumber()));
         return false;
     }
 
     /**
-     * Waits for the device's external store to be mounted.
+     * Checks once if the device package manager is responsive.
      *
-     * @param waitTime time in ms to wait before giving up
-     * @return <code>true</code> if external store is mounted before waitTime expires.
-     * <code>false</code> otherwise
+     * @return <code>true</code> if package manager is responsive
      */
-    private boolean waitForStoreMount(final long waitTime) {
-        Log.i(LOG_TAG, String.format("Waiting %d ms for device %s external store", waitTime,
-                getSerialNumber()));
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < waitTime) {
-            final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-            final CollectingOutputReceiver bitBucket = new CollectingOutputReceiver();
-            final long number = System.currentTimeMillis();
-            final String externalStore = getMountPoint(IDevice.MNT_EXTERNAL_STORAGE);
-
-            final String testFile = String.format("'%s/%d'", externalStore, number);
-            final String testString = String.format("number %d one", number);
-            final String writeCmd = String.format("echo '%s' > %s", testString, testFile);
-            final String checkCmd = String.format("cat %s", testFile);
-            final String cleanupCmd = String.format("rm %s", testFile);
-            String cmd = null;
-            if (externalStore != null) {
-                try {
-                    cmd = writeCmd;
-                    getIDevice().executeShellCommand(writeCmd, bitBucket, MAX_OP_TIME);
-                    cmd = checkCmd;
-                    getIDevice().executeShellCommand(checkCmd, receiver, MAX_OP_TIME);
-                    cmd = cleanupCmd;
-                    getIDevice().executeShellCommand(cleanupCmd, bitBucket, MAX_OP_TIME);
-
-                    String output = receiver.getOutput();
-                    Log.v(LOG_TAG, String.format("%s returned %s", checkCmd, output));
-                    if (output.contains(testString)) {
-                        return true;
-                    }
-                } catch (IOException e) {
-                    Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-                } catch (TimeoutException e) {
-                    Log.i(LOG_TAG, String.format("%s failed: timeout", cmd));
-                } catch (AdbCommandRejectedException e) {
-                    Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-                } catch (ShellCommandUnresponsiveException e) {
-                    Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
-                }
-            } else {
-                Log.w(LOG_TAG, String.format("Failed to get external store mount point for %s",
-                        getSerialNumber()));
-            }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+    private boolean checkPmResponsive() {
+        final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        final String cmd = "pm path android";
+        try {
+            getIDevice().executeShellCommand(cmd, receiver, MAX_OP_TIME);
+            String output = receiver.getOutput();
+            Log.v(LOG_TAG, String.format("%s returned %s", cmd, output));
+            return output.contains("package:");
+        } catch (IOException e) {
+            Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
+        } catch (TimeoutException e) {
+            Log.i(LOG_TAG, String.format("%s failed: timeout", cmd));
+        } catch (AdbCommandRejectedException e) {
+            Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
+        } catch (ShellCommandUnresponsiveException e) {
+            Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Checks once if the device's external store is mounted, by writing and reading back a file.
+     *
+     * @return <code>true</code> if external store is mounted
+     */
+    private boolean checkStoreMount() {
+        final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        final CollectingOutputReceiver bitBucket = new CollectingOutputReceiver();
+        final long number = System.currentTimeMillis();
+        final String externalStore = getMountPoint(IDevice.MNT_EXTERNAL_STORAGE);
+        if (externalStore == null) {
+            Log.w(LOG_TAG, String.format("Failed to get external store mount point for %s",
+                    getSerialNumber()));
+            return false;
+        }
+
+        final String testFile = String.format("'%s/%d'", externalStore, number);
+        final String testString = String.format("number %d one", number);
+        final String writeCmd = String.format("echo '%s' > %s", testString, testFile);
+        final String checkCmd = String.format("cat %s", testFile);
+        final String cleanupCmd = String.format("rm %s", testFile);
+        String cmd = null;
+        try {
+            cmd = writeCmd;
+            getIDevice().executeShellCommand(writeCmd, bitBucket, MAX_OP_TIME);
+            cmd = checkCmd;
+            getIDevice().executeShellCommand(checkCmd, receiver, MAX_OP_TIME);
+            cmd = cleanupCmd;
+            getIDevice().executeShellCommand(cleanupCmd, bitBucket, MAX_OP_TIME);
+
+            String output = receiver.getOutput();
+            Log.v(LOG_TAG, String.format("%s returned %s", checkCmd, output));
+            return output.contains(testString);
+        } catch (IOException e) {
+            Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
+        } catch (TimeoutException e) {
+            Log.i(LOG_TAG, String.format("%s failed: timeout", cmd));
+        } catch (AdbCommandRejectedException e) {
+            Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
+        } catch (ShellCommandUnresponsiveException e) {
+            Log.i(LOG_TAG, String.format("%s failed: %s", cmd, e.getMessage()));
         }
-        Log.w(LOG_TAG, String.format("Device %s external storage is not mounted after %d ms",
-                getSerialNumber(), waitTime));
         return false;
     }
 
@@ -505,6 +657,61 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         }
     }
 
+    /**
+     * Receives the status lines of {@link #AVAILABLE_WATCHER_CMD}, and records the stages that
+     * completed. Cancels the command once all stages have completed or the deadline expired.
+     */
+    private static class AvailableWatcherReceiver extends MultiLineReceiver {
+        private final long mStartTime;
+        private final long mDeadline;
+        private final Map<AvailableStage, Long> mStageTimes;
+        private boolean mReceivedStatus = false;
+
+        AvailableWatcherReceiver(long startTime, long deadline,
+                Map<AvailableStage, Long> stageTimes) {
+            mStartTime = startTime;
+            mDeadline = deadline;
+            mStageTimes = stageTimes;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                if (!line.startsWith(AVAILABLE_STATUS)) {
+                    continue;
+                }
+                mReceivedStatus = true;
+                for (String status : line.substring(AVAILABLE_STATUS.length()).trim().split(" ")) {
+                    for (AvailableStage stage : AvailableStage.values()) {
+                        if (status.equals(stage.getStatusKey() + "=1")
+                                && !mStageTimes.containsKey(stage)) {
+                            mStageTimes.put(stage, System.currentTimeMillis() - mStartTime);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return <code>true</code> if at least one status line was received
+         */
+        boolean hasReceivedStatus() {
+            return mReceivedStatus;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isCancelled() {
+            return mStageTimes.size() == AvailableStage.values().length
+                    || System.currentTimeMillis() >= mDeadline;
+        }
+    }
+
     /**
      * An empty implementation of {@link IFastbootListener}
      */
@@ -60,6 +60,20 @@ public interface IDeviceManager {
         public void stateUpdated();
     }
 
+    /**
+     * A listener for devices being added to the pool of devices available for allocation.
+     */
+    public static interface IDeviceAvailableListener {
+        /**
+         * Callback when a device has become available for allocation.
+         * <p/>
+         * Called with no locks held, and should return quickly.
+         *
+         * @param serial the serial number of the available device
+         */
+        public void deviceAvailable(String serial);
+    }
+
     /**
      * Initialize the device manager. This must be called once and only once before any other
      * methods are called.
@@ -246,4 +260,19 @@ public interface IDeviceManager {
      */
     public void removeFastbootListener(IFastbootListener listener);
 
+    /**
+     * Informs the manager that a listener is interested in devices becoming available for
+     * allocation.
+     *
+     * @param listener
+     */
+    public void addDeviceAvailableListener(IDeviceAvailableListener listener);
+
+    /**
+     * Informs the manager that a listener is no longer interested in available devices.
+     *
+     * @param listener
+     */
+    public void removeDeviceAvailableListener(IDeviceAvailableListener listener);
+
 }
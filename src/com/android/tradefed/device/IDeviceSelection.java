@@ -100,6 +100,17 @@ public interface IDeviceSelection extends IMatcher<IDevice> {
      */
     public Integer getBatteryLevel(IDevice device);
 
+    /**
+     * Determine if the given device is a match, using previously retrieved attributes rather than
+     * querying the device. Will never block on device I/O.
+     *
+     * @param device the {@link IDevice}
+     * @param attributes the {@link DeviceAttributeSnapshot} of the device, or <code>null</code>
+     *            for placeholder devices, which have no attributes to retrieve
+     * @return <code>true</code> if the device matches
+     */
+    public boolean matches(IDevice device, DeviceAttributeSnapshot attributes);
+
     /**
      * Set the serial numbers inclusion list, replacing any existing values.
      */
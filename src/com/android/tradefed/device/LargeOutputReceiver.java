@@ -21,8 +21,6 @@ import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
-import com.android.tradefed.result.SnapshotInputStreamSource;
-import com.android.tradefed.util.FixedByteArrayOutputStream;
 import com.android.tradefed.util.SizeLimitedOutputStream;
 import com.android.tradefed.util.StreamUtil;
 
@@ -76,17 +74,15 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
 
     /**
      * Gets the collected output as a {@link InputStreamSource}.
+     * <p/>
+     * The data is not copied: the returned source refers to the backing files of the collected
+     * output, which are kept until {@link InputStreamSource#cancel()} is called.
      *
      * @return The collected output from the command.
      */
     public synchronized InputStreamSource getData() {
         if (mOutStream != null) {
-            try {
-                return new SnapshotInputStreamSource(mOutStream.getData());
-            } catch (IOException e) {
-                CLog.e("failed to get %s data for %s.", mDescriptor, mSerialNumber);
-                CLog.e(e);
-            }
+            return mOutStream.createSnapshot();
         }
 
         // return an empty InputStreamSource
@@ -102,33 +98,21 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
      */
     public synchronized InputStreamSource getData(final int maxBytes) {
         if (mOutStream != null) {
-            InputStream fullStream = null;
+            SizeLimitedOutputStream.Snapshot snapshot = mOutStream.createSnapshot();
+            InputStream tailStream = null;
             try {
-                fullStream = mOutStream.getData();
-                final FixedByteArrayOutputStream os = new FixedByteArrayOutputStream(maxBytes);
-                StreamUtil.copyStreams(fullStream, os);
-                return new InputStreamSource() {
-
-                    @Override
-                    public InputStream createInputStream()  {
-                        return os.getData();
-                    }
-
-                    @Override
-                    public void cancel() {
-                        // ignore, nothing to do
-                    }
-
-                    @Override
-                    public long size() {
-                        return os.size();
-                    }
-                };
+                // only read the requested data, rather than scanning the whole output
+                tailStream = snapshot.createTailInputStream(maxBytes);
+                if (tailStream != null) {
+                    return new ByteArrayInputStreamSource(
+                            StreamUtil.getByteArrayListFromStream(tailStream).getContents());
+                }
             } catch (IOException e) {
                 CLog.e("failed to get %s data for %s.", mDescriptor, mSerialNumber);
                 CLog.e(e);
             } finally {
-                StreamUtil.close(fullStream);
+                StreamUtil.close(tailStream);
+                snapshot.cancel();
             }
         }
 
@@ -156,8 +140,10 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
     }
 
     private SizeLimitedOutputStream createOutputStream() {
+        // output arrives in large chunks for the lifetime of the device, so write it through a
+        // channel rather than holding a heap buffer per receiver
         return new SizeLimitedOutputStream(mMaxDataSize, String.format("%s_%s",
-                getDescriptor(), mSerialNumber), ".txt");
+                getDescriptor(), mSerialNumber), ".txt", true);
     }
 
     /**
@@ -170,7 +156,7 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
     /**
      * Delete all accumulated data.
      */
-    public void delete() {
+    public synchronized void delete() {
         mOutStream.delete();
         mOutStream = null;
     }
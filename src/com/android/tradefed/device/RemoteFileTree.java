@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A snapshot of the contents of a directory tree on a device, obtained with a single shell
+ * command.
+ * <p/>
+ * Used to find the local files that need to be pushed to sync a local directory to the device,
+ * without querying each remote directory separately.
+ */
+class RemoteFileTree {
+
+    /** marker printed after the checksums in the listing output */
+    static final String END_MARKER = "TF_LISTING_END";
+    private static final String CHECKSUM_MARKER = "TF_LISTING_MD5";
+    /** matches a line of stat output: type|size|mtime in seconds|path */
+    private static final Pattern STAT_PATTERN = Pattern.compile("([^|]+)\\|(\\d+)\\|(\\d+)\\|(.+)");
+    /** matches a line of md5sum output: checksum, two spaces, path */
+    private static final Pattern MD5_PATTERN = Pattern.compile("([0-9a-fA-F]{32})\\s+(.+)");
+
+    /**
+     * Info about a single remote file.
+     */
+    static class RemoteFile {
+        final boolean mIsDirectory;
+        final long mSize;
+        /** last modification time in seconds */
+        final long mModifiedTime;
+        String mMd5 = null;
+
+        RemoteFile(boolean isDirectory, long size, long modifiedTime) {
+            mIsDirectory = isDirectory;
+            mSize = size;
+            mModifiedTime = modifiedTime;
+        }
+    }
+
+    private final Map<String, RemoteFile> mFiles = new HashMap<String, RemoteFile>();
+
+    private RemoteFileTree() {
+    }
+
+    /**
+     * Build the shell command that lists the contents of given remote directory.
+     *
+     * @param remoteDir the remote directory path
+     * @param includeChecksums whether to also list the md5 checksum of each file
+     * @return the shell command
+     */
+    static String buildListCommand(String remoteDir, boolean includeChecksums) {
+        String quotedDir = quote(remoteDir);
+        StringBuilder cmd = new StringBuilder();
+        cmd.append(String.format("find %s -exec stat -c '%%F|%%s|%%Y|%%n' {} + 2>&1; ",
+                quotedDir));
+        cmd.append(String.format("echo %s; ", CHECKSUM_MARKER));
+        if (includeChecksums) {
+            cmd.append(String.format("find %s -type f -exec md5sum {} + 2>/dev/null; ",
+                    quotedDir));
+        }
+        cmd.append(String.format("echo %s", END_MARKER));
+        return cmd.toString();
+    }
+
+    /**
+     * Parse the output of the command built by {@link #buildListCommand(String, boolean)}.
+     *
+     * @param remoteDir the remote directory path that was listed
+     * @param output the command output
+     * @return the {@link RemoteFileTree}, or <code>null</code> if the output could not be parsed,
+     *         which typically means the device does not support the listing command
+     */
+    static RemoteFileTree parse(String remoteDir, String output) {
+        if (output == null || !output.contains(END_MARKER)) {
+            return null;
+        }
+        RemoteFileTree tree = new RemoteFileTree();
+        boolean inChecksums = false;
+        boolean rootMissing = false;
+        for (String line : output.split("\r?\n")) {
+            if (line.equals(CHECKSUM_MARKER)) {
+                inChecksums = true;
+            } else if (line.equals(END_MARKER)) {
+                break;
+            } else if (inChecksums) {
+                Matcher matcher = MD5_PATTERN.matcher(line);
+                if (matcher.matches()) {
+                    RemoteFile file = tree.mFiles.get(matcher.group(2));
+                    if (file != null) {
+                        file.mMd5 = matcher.group(1).toLowerCase();
+                    }
+                }
+            } else {
+                Matcher matcher = STAT_PATTERN.matcher(line);
+                if (matcher.matches()) {
+                    tree.mFiles.put(matcher.group(4), new RemoteFile(
+                            matcher.group(1).startsWith("directory"),
+                            Long.parseLong(matcher.group(2)), Long.parseLong(matcher.group(3))));
+                } else if (line.contains(remoteDir) && line.contains("No such file")) {
+                    rootMissing = true;
+                }
+            }
+        }
+        RemoteFile root = tree.mFiles.get(remoteDir);
+        if (root == null && !rootMissing) {
+            CLog.d("Could not parse file listing of %s: %s", remoteDir, output);
+            return null;
+        }
+        if (root != null && !root.mIsDirectory) {
+            CLog.d("Remote path %s is not a directory", remoteDir);
+            return null;
+        }
+        return tree;
+    }
+
+    /**
+     * Get the info about given remote path.
+     *
+     * @return the {@link RemoteFile} or <code>null</code> if the path does not exist
+     */
+    RemoteFile get(String remotePath) {
+        return mFiles.get(remotePath);
+    }
+
+    /**
+     * Find the local files that are missing or outdated on the device.
+     *
+     * @param localDir the local directory to sync
+     * @param remoteDir the remote directory that <var>localDir</var> is synced to
+     * @param filter the {@link FilenameFilter} of local files to consider
+     * @param compareChecksums if <code>true</code>, files with the same size are compared by
+     *            checksum. Otherwise they are compared by modification time
+     * @param dirsToCreate the list to add remote directories that need to be created to
+     * @param filesToPush the map to add local files that need to be pushed to, mapped to their
+     *            remote path
+     */
+    void findChanges(File localDir, String remoteDir, FilenameFilter filter,
+            boolean compareChecksums, List<String> dirsToCreate, Map<File, String> filesToPush) {
+        RemoteFile remoteRoot = mFiles.get(remoteDir);
+        if (remoteRoot == null) {
+            dirsToCreate.add(remoteDir);
+        }
+        File[] localFiles = localDir.listFiles(filter);
+        if (localFiles == null) {
+            return;
+        }
+        for (File localFile : localFiles) {
+            String remotePath = String.format("%s/%s", remoteDir, localFile.getName());
+            if (localFile.isDirectory()) {
+                findChanges(localFile, remotePath, filter, compareChecksums, dirsToCreate,
+                        filesToPush);
+            } else if (isOutdated(localFile, mFiles.get(remotePath), compareChecksums)) {
+                CLog.d("Detected new or changed file %s", localFile.getAbsolutePath());
+                filesToPush.put(localFile, remotePath);
+            }
+        }
+    }
+
+    /**
+     * Return <code>true</code> if given remote file does not match the local file.
+     */
+    private boolean isOutdated(File localFile, RemoteFile remoteFile, boolean compareChecksums) {
+        if (remoteFile == null || remoteFile.mIsDirectory
+                || remoteFile.mSize != localFile.length()) {
+            return true;
+        }
+        if (compareChecksums && remoteFile.mMd5 != null) {
+            try {
+                return !remoteFile.mMd5.equals(FileUtil.calculateMd5(localFile));
+            } catch (IOException e) {
+                CLog.w("Failed to calculate checksum of %s: %s", localFile.getAbsolutePath(),
+                        e.getMessage());
+                return true;
+            }
+        }
+        // sync sets the remote modification time to the local one, in seconds
+        return localFile.lastModified() / 1000 > remoteFile.mModifiedTime;
+    }
+
+    /**
+     * Quote a path for use as a single shell argument.
+     */
+    static String quote(String path) {
+        return String.format("'%s'", path.replace("'", "'\\''"));
+    }
+}
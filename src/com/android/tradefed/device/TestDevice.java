@@ -58,10 +58,19 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -77,6 +86,8 @@ class TestDevice implements IManagedTestDevice {
     static final int MAX_RETRY_ATTEMPTS = 2;
     private static final String BUGREPORT_CMD = "bugreport";
     static final String LIST_PACKAGES_CMD = "pm list packages -f";
+    /** the max length of a batched shell command, well below the adb limit */
+    private static final int MAX_SHELL_CMD_LENGTH = 800;
     private static final Pattern PACKAGE_REGEX = Pattern.compile("package:(.*)=(.*)");
     /**
      * Allow pauses of up to 2 minutes while receiving bugreport.  Note that dumpsys may pause up to
@@ -942,27 +953,220 @@ class TestDevice implements IManagedTestDevice {
             CLog.e("file %s is not a directory", localFileDir.getAbsolutePath());
             return false;
         }
-        File[] childFiles = localFileDir.listFiles();
+        List<String> dirsToCreate = new ArrayList<String>();
+        Map<File, String> filesToPush = new LinkedHashMap<File, String>();
+        if (!collectFiles(localFileDir, deviceFilePath, dirsToCreate, filesToPush)) {
+            return false;
+        }
+        createRemoteDirs(dirsToCreate);
+        return pushFiles(filesToPush);
+    }
+
+    /**
+     * Recursively collect the contents of a local directory.
+     *
+     * @param localDir the local directory
+     * @param remoteDir the remote path of the local directory
+     * @param dirsToCreate the list to add the remote paths of sub directories to
+     * @param filesToPush the map to add the local files to, mapped to their remote path
+     * @return <code>false</code> if a directory could not be read
+     */
+    private boolean collectFiles(File localDir, String remoteDir, List<String> dirsToCreate,
+            Map<File, String> filesToPush) {
+        File[] childFiles = localDir.listFiles();
         if (childFiles == null) {
-            CLog.e("Could not read files in %s", localFileDir.getAbsolutePath());
+            CLog.e("Could not read files in %s", localDir.getAbsolutePath());
             return false;
         }
         for (File childFile : childFiles) {
-            String remotePath = String.format("%s/%s", deviceFilePath, childFile.getName());
+            String remotePath = String.format("%s/%s", remoteDir, childFile.getName());
             if (childFile.isDirectory()) {
-                executeShellCommand(String.format("mkdir %s", remotePath));
-                if (!pushDir(childFile, remotePath)) {
+                dirsToCreate.add(remotePath);
+                if (!collectFiles(childFile, remotePath, dirsToCreate, filesToPush)) {
                     return false;
                 }
             } else if (childFile.isFile()) {
-                if (!pushFile(childFile, remotePath)) {
-                    return false;
-                }
+                filesToPush.put(childFile, remotePath);
             }
         }
         return true;
     }
 
+    /**
+     * Create given remote directories, and any missing parents, using as few shell commands as
+     * possible.
+     */
+    private void createRemoteDirs(List<String> remoteDirs) throws DeviceNotAvailableException {
+        StringBuilder cmd = new StringBuilder();
+        for (String remoteDir : remoteDirs) {
+            if (cmd.length() > 0 && cmd.length() + remoteDir.length() > MAX_SHELL_CMD_LENGTH) {
+                executeShellCommand(cmd.toString());
+                cmd.setLength(0);
+            }
+            if (cmd.length() == 0) {
+                cmd.append("mkdir -p");
+            }
+            cmd.append(' ');
+            cmd.append(RemoteFileTree.quote(remoteDir));
+        }
+        if (cmd.length() > 0) {
+            executeShellCommand(cmd.toString());
+        }
+    }
+
+    /**
+     * Push given files to the device, over up to {@link TestDeviceOptions#getSyncSessions()}
+     * parallel sync sessions. The remote parent directories must already exist.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param filesToPush the local files to push, mapped to their remote path
+     * @return <code>true</code> if all files were pushed successfully
+     * @throws DeviceNotAvailableException
+     */
+    boolean pushFiles(Map<File, String> filesToPush) throws DeviceNotAvailableException {
+        if (filesToPush.isEmpty()) {
+            return true;
+        }
+        PushFilesAction pushAction = new PushFilesAction(filesToPush,
+                mOptions.getSyncSessions());
+        return performDeviceAction(String.format("push %d files", filesToPush.size()),
+                pushAction, MAX_RETRY_ATTEMPTS);
+    }
+
+    /**
+     * A {@link DeviceAction} that pushes files over several parallel sync sessions. Files that
+     * were pushed successfully are not pushed again if the action is retried.
+     */
+    private class PushFilesAction implements DeviceAction {
+        private final Map<File, String> mRemainingFiles;
+        private final int mNumSessions;
+
+        PushFilesAction(Map<File, String> filesToPush, int numSessions) {
+            mRemainingFiles = Collections.synchronizedMap(
+                    new LinkedHashMap<File, String>(filesToPush));
+            mNumSessions = Math.max(1, numSessions);
+        }
+
+        @Override
+        public boolean run() throws TimeoutException, IOException, AdbCommandRejectedException,
+                SyncException {
+            List<List<File>> sessionFiles = splitBySize(mNumSessions);
+            if (sessionFiles.size() == 1) {
+                pushSessionFiles(sessionFiles.get(0));
+                return true;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(sessionFiles.size());
+            try {
+                List<Future<Void>> results = new ArrayList<Future<Void>>();
+                for (final List<File> files : sessionFiles) {
+                    results.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            pushSessionFiles(files);
+                            return null;
+                        }
+                    }));
+                }
+                Throwable failure = null;
+                for (Future<Void> result : results) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause();
+                        }
+                    }
+                }
+                if (failure != null) {
+                    rethrowPushFailure(failure);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while pushing files");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Split the remaining files into up to <var>numSessions</var> lists of similar total
+         * size.
+         */
+        private List<List<File>> splitBySize(int numSessions) {
+            List<File> files;
+            synchronized (mRemainingFiles) {
+                files = new ArrayList<File>(mRemainingFiles.keySet());
+            }
+            Collections.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File file1, File file2) {
+                    long diff = file2.length() - file1.length();
+                    return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+                }
+            });
+            int numLists = Math.max(1, Math.min(numSessions, files.size()));
+            List<List<File>> lists = new ArrayList<List<File>>(numLists);
+            long[] listSizes = new long[numLists];
+            for (int i = 0; i < numLists; i++) {
+                lists.add(new ArrayList<File>());
+            }
+            for (File file : files) {
+                // add largest files first, each to the list with the least data so far
+                int smallest = 0;
+                for (int i = 1; i < numLists; i++) {
+                    if (listSizes[i] < listSizes[smallest]) {
+                        smallest = i;
+                    }
+                }
+                lists.get(smallest).add(file);
+                listSizes[smallest] += file.length();
+            }
+            return lists;
+        }
+
+        /**
+         * Push given files sequentially over a single sync session.
+         */
+        private void pushSessionFiles(List<File> files) throws TimeoutException, IOException,
+                AdbCommandRejectedException, SyncException {
+            SyncService syncService = null;
+            try {
+                syncService = getIDevice().getSyncService();
+                for (File file : files) {
+                    String remotePath = mRemainingFiles.get(file);
+                    syncService.pushFile(file.getAbsolutePath(), remotePath,
+                            SyncService.getNullProgressMonitor());
+                    mRemainingFiles.remove(file);
+                }
+            } catch (SyncException e) {
+                CLog.w("Failed to push files to device %s. Message %s", getSerialNumber(),
+                        e.getMessage());
+                throw e;
+            } finally {
+                if (syncService != null) {
+                    syncService.close();
+                }
+            }
+        }
+
+        private void rethrowPushFailure(Throwable failure) throws TimeoutException, IOException,
+                AdbCommandRejectedException, SyncException {
+            if (failure instanceof TimeoutException) {
+                throw (TimeoutException)failure;
+            } else if (failure instanceof IOException) {
+                throw (IOException)failure;
+            } else if (failure instanceof AdbCommandRejectedException) {
+                throw (AdbCommandRejectedException)failure;
+            } else if (failure instanceof SyncException) {
+                throw (SyncException)failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException)failure;
+            }
+            throw new IOException(failure);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -982,6 +1186,36 @@ class TestDevice implements IManagedTestDevice {
         // implementation will add localFileDir.getName() to destination path
         deviceFilePath = String.format("%s/%s", interpolatePathVariables(deviceFilePath),
                 localFileDir.getName());
+        // list the whole remote tree in one command, rather than one query per directory
+        boolean compareChecksums = mOptions.isSyncChecksum();
+        String listing = executeShellCommand(RemoteFileTree.buildListCommand(deviceFilePath,
+                compareChecksums));
+        RemoteFileTree remoteTree = RemoteFileTree.parse(deviceFilePath, listing);
+        if (remoteTree == null) {
+            CLog.d("Could not list %s on device %s, syncing each directory separately",
+                    deviceFilePath, getSerialNumber());
+            return syncFilesByDirectory(localFileDir, deviceFilePath);
+        }
+        List<String> dirsToCreate = new ArrayList<String>();
+        Map<File, String> filesToPush = new LinkedHashMap<File, String>();
+        remoteTree.findChanges(localFileDir, deviceFilePath, new NoHiddenFilesFilter(),
+                compareChecksums, dirsToCreate, filesToPush);
+        if (dirsToCreate.isEmpty() && filesToPush.isEmpty()) {
+            CLog.d("No files to sync");
+            return true;
+        }
+        CLog.d("Syncing %d files and %d directories to %s", filesToPush.size(),
+                dirsToCreate.size(), deviceFilePath);
+        createRemoteDirs(dirsToCreate);
+        return pushFiles(filesToPush);
+    }
+
+    /**
+     * Sync files by querying each remote directory with the {@link FileListingService}. Used
+     * when the device does not support listing the remote tree in one command.
+     */
+    private boolean syncFilesByDirectory(File localFileDir, String deviceFilePath)
+            throws DeviceNotAvailableException {
         if (!doesFileExist(deviceFilePath)) {
             executeShellCommand(String.format("mkdir %s", deviceFilePath));
         }
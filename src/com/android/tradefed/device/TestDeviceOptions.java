@@ -64,6 +64,14 @@ public class TestDeviceOptions {
             + "to be available aka fully boot.")
     private long mAvailableTimeout = 6 * 60 * 1000;
 
+    @Option(name = "sync-checksum", description = "compare the md5 checksums of local and device "
+            + "files instead of their modification times when syncing files to the device.")
+    private boolean mSyncChecksum = false;
+
+    @Option(name = "sync-sessions", description = "max number of parallel adb sync sessions to "
+            + "use when pushing several files to the device.")
+    private int mSyncSessions = 3;
+
     /**
      * Check whether adb root should be enabled on boot for this device
      */
@@ -210,4 +218,34 @@ public class TestDeviceOptions {
     public long getAvailableTimeout() {
         return mAvailableTimeout;
     }
+
+    /**
+     * @return whether files are compared by checksum rather than modification time when syncing
+     * files to the device.
+     */
+    public boolean isSyncChecksum() {
+        return mSyncChecksum;
+    }
+
+    /**
+     * @param syncChecksum whether to compare files by checksum rather than modification time when
+     * syncing files to the device.
+     */
+    public void setSyncChecksum(boolean syncChecksum) {
+        mSyncChecksum = syncChecksum;
+    }
+
+    /**
+     * @return the max number of parallel adb sync sessions used to push files.
+     */
+    public int getSyncSessions() {
+        return mSyncSessions;
+    }
+
+    /**
+     * @param syncSessions the max number of parallel adb sync sessions used to push files.
+     */
+    public void setSyncSessions(int syncSessions) {
+        mSyncSessions = syncSessions;
+    }
 }
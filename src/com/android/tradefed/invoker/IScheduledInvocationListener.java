@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.result.ITestInvocationListener;
+
+/**
+ * A {@link ITestInvocationListener} of a config scheduled through
+ * {@link IRescheduler#scheduleConfig(IConfiguration)}, that needs to know if the config will
+ * never be run.
+ */
+public interface IScheduledInvocationListener extends ITestInvocationListener {
+
+    /**
+     * Callback when the scheduled config was discarded before being run, eg because it could not
+     * be scheduled or the scheduler was shut down. No other callback will be received afterwards.
+     */
+    public void invocationDiscarded();
+}
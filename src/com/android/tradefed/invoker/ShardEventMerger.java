@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.SnapshotInputStreamSource;
+import com.android.tradefed.result.TestSummary;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Forwards the results of the shards of an invocation to a master listener as they are produced.
+ * <p/>
+ * Each shard reports its results to a listener created by {@link #createShardListener()}, which
+ * queues them in the shard's own ordered channel. A single merge thread forwards the queued
+ * events to the master listener, so the master listener is only ever called from one thread.
+ * Once the merge thread forwards the start of a test run, it only forwards events of that shard
+ * until the run ends, so the master listener never sees the events of different runs
+ * interleaved. Only the events of runs waiting for another shard's run to end are kept in
+ * memory, and a shard waits to report more results once {@link #MAX_QUEUED_EVENTS} of its
+ * events are waiting.
+ * <p/>
+ * The merge thread stops once all shards have ended or been discarded, and their results have
+ * been forwarded. It is a daemon thread, so shards that are never run cannot keep the JVM alive.
+ * Instead the shard that ends last waits for its results to be forwarded.
+ */
+class ShardEventMerger {
+
+    /** max number of events of a shard waiting to be forwarded */
+    static final int MAX_QUEUED_EVENTS = 10000;
+
+    /**
+     * A queued event, to be forwarded to the master listener.
+     */
+    private static abstract class Event {
+        /**
+         * Forward the event to the master listener.
+         */
+        abstract void forward(ITestInvocationListener listener);
+
+        /**
+         * @return <code>true</code> if the event is the start of a test run
+         */
+        boolean startsRun() {
+            return false;
+        }
+
+        /**
+         * @return <code>true</code> if the event is the end of a test run
+         */
+        boolean endsRun() {
+            return false;
+        }
+    }
+
+    /**
+     * The ordered events of a shard.
+     */
+    private static class Channel {
+        final Queue<Event> mEvents = new LinkedList<Event>();
+        /** true once the shard invocation has ended. Guarded by the merger lock */
+        boolean mClosed = false;
+    }
+
+    private final ITestInvocationListener mMasterListener;
+    private final int mExpectedShards;
+    private final int mMaxQueuedEvents;
+    private final Object mLock = new Object();
+    private final List<Channel> mChannels = new ArrayList<Channel>();
+    private final Thread mMergeThread;
+    private int mClosedCount = 0;
+
+    /**
+     * Create a {@link ShardEventMerger} and start its merge thread.
+     *
+     * @param master the {@link ITestInvocationListener} to forward results to
+     * @param expectedShards the number of shards. The merge thread stops once this many shards
+     *            have ended
+     */
+    ShardEventMerger(ITestInvocationListener master, int expectedShards) {
+        this(master, expectedShards, MAX_QUEUED_EVENTS);
+    }
+
+    /**
+     * Create a {@link ShardEventMerger} with a custom max number of queued events per shard.
+     * Exposed for unit testing.
+     */
+    ShardEventMerger(ITestInvocationListener master, int expectedShards, int maxQueuedEvents) {
+        mMasterListener = master;
+        mExpectedShards = expectedShards;
+        mMaxQueuedEvents = maxQueuedEvents;
+        mMergeThread = new Thread("ShardEventMerger") {
+            @Override
+            public void run() {
+                try {
+                    mergeEvents();
+                } finally {
+                    synchronized (mLock) {
+                        // wake up shards waiting for room in their channel
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        };
+        // discarded shards must not hold the JVM open
+        mMergeThread.setDaemon(true);
+        mMergeThread.start();
+    }
+
+    /**
+     * Create the {@link ITestInvocationListener} a shard should report its results to.
+     */
+    IScheduledInvocationListener createShardListener() {
+        Channel channel = new Channel();
+        synchronized (mLock) {
+            mChannels.add(channel);
+        }
+        return new StreamingShardListener(channel);
+    }
+
+    /**
+     * Wait for the merge thread to stop.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @return <code>true</code> if the merge thread stopped
+     */
+    boolean awaitStopped(long timeoutMs) throws InterruptedException {
+        mMergeThread.join(timeoutMs);
+        return !mMergeThread.isAlive();
+    }
+
+    /**
+     * Queue an event in a channel, waiting for the merge thread to forward older events first if
+     * the channel is full.
+     */
+    private void post(Channel channel, Event event) {
+        synchronized (mLock) {
+            while (channel.mEvents.size() >= mMaxQueuedEvents && mMergeThread.isAlive()) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            channel.mEvents.add(event);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Close a channel once the shard invocation has ended or was discarded.
+     *
+     * @return <code>true</code> if all channels are now closed
+     */
+    private boolean close(Channel channel) {
+        synchronized (mLock) {
+            if (!channel.mClosed) {
+                channel.mClosed = true;
+                mClosedCount++;
+                mLock.notifyAll();
+            }
+            return mClosedCount >= mExpectedShards;
+        }
+    }
+
+    /**
+     * Wait for the merge thread to forward all results, once all shards have ended.
+     */
+    private void awaitMerged() {
+        try {
+            mMergeThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CLog.w("Interrupted while forwarding shard results");
+        }
+    }
+
+    /**
+     * Main loop of the merge thread.
+     */
+    private void mergeEvents() {
+        // the channel whose test run is being forwarded, if any
+        Channel activeChannel = null;
+        int nextChannel = 0;
+        while (true) {
+            Channel eventChannel = null;
+            Event event = null;
+            synchronized (mLock) {
+                while (event == null) {
+                    if (activeChannel != null) {
+                        event = activeChannel.mEvents.poll();
+                        if (event != null) {
+                            eventChannel = activeChannel;
+                        } else if (activeChannel.mClosed) {
+                            // the shard ended without ending its run
+                            activeChannel = null;
+                            continue;
+                        }
+                    } else {
+                        // pick the next channel with events, in turn
+                        for (int i = 0; i < mChannels.size() && event == null; i++) {
+                            Channel channel = mChannels.get((nextChannel + i) % mChannels.size());
+                            event = channel.mEvents.poll();
+                            if (event != null) {
+                                eventChannel = channel;
+                                nextChannel = (nextChannel + i + 1) % mChannels.size();
+                            }
+                        }
+                        if (event == null && mClosedCount >= mExpectedShards) {
+                            return;
+                        }
+                    }
+                    if (event != null && eventChannel.mEvents.size() == mMaxQueuedEvents - 1) {
+                        // the channel was full, wake up its shard
+                        mLock.notifyAll();
+                    } else if (event == null) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            CLog.w("Shard event merger interrupted");
+                            return;
+                        }
+                    }
+                }
+            }
+            try {
+                event.forward(mMasterListener);
+            } catch (RuntimeException e) {
+                CLog.e("Failed to forward shard result");
+                CLog.e(e);
+            }
+            if (event.startsRun()) {
+                activeChannel = eventChannel;
+            } else if (event.endsRun()) {
+                activeChannel = null;
+            }
+        }
+    }
+
+    /**
+     * A {@link ITestInvocationListener} that queues a shard's results in its channel.
+     */
+    private class StreamingShardListener implements IScheduledInvocationListener {
+        private final Channel mChannel;
+
+        StreamingShardListener(Channel channel) {
+            mChannel = channel;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void invocationStarted(final IBuildInfo buildInfo) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.invocationStarted(buildInfo);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * The data is copied, since the caller may cancel <var>dataStream</var> before the
+         * merge thread forwards it.
+         */
+        @Override
+        public void testLog(final String dataName, final LogDataType dataType,
+                InputStreamSource dataStream) {
+            InputStream stream = dataStream.createInputStream();
+            if (stream == null) {
+                CLog.w("Could not read test log %s to forward it", dataName);
+                return;
+            }
+            final InputStreamSource snapshot = new SnapshotInputStreamSource(stream);
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    try {
+                        listener.testLog(dataName, dataType, snapshot);
+                    } finally {
+                        snapshot.cancel();
+                    }
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void invocationEnded(final long elapsedTime) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.invocationEnded(elapsedTime);
+                }
+            });
+            if (close(mChannel)) {
+                // don't let the last shard return before all results are forwarded
+                awaitMerged();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * Closes the channel of the shard, so the merge thread does not wait for it.
+         */
+        @Override
+        public void invocationDiscarded() {
+            close(mChannel);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void invocationFailed(final Throwable cause) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.invocationFailed(cause);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TestSummary getSummary() {
+            return null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testRunStarted(final String runName, final int testCount) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testRunStarted(runName, testCount);
+                }
+
+                @Override
+                boolean startsRun() {
+                    return true;
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testStarted(final TestIdentifier test) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testStarted(test);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testFailed(final TestFailure status, final TestIdentifier test,
+                final String trace) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testFailed(status, test, trace);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testEnded(final TestIdentifier test, final Map<String, String> testMetrics) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testEnded(test, testMetrics);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testRunFailed(final String errorMessage) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testRunFailed(errorMessage);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testRunStopped(final long elapsedTime) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testRunStopped(elapsedTime);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testRunEnded(final long elapsedTime, final Map<String, String> runMetrics) {
+            post(mChannel, new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testRunEnded(elapsedTime, runMetrics);
+                }
+
+                @Override
+                boolean endsRun() {
+                    return true;
+                }
+            });
+        }
+    }
+}
@@ -31,6 +31,8 @@ import java.util.Map;
  * A {@link ITestInvocationListener} that collects results from a invocation shard (aka an
  * invocation split to run on multiple resources in parallel), and forwards them to another
  * listener.
+ * <p/>
+ * See {@link ShardEventMerger} to forward results as they are produced instead.
  */
 class ShardListener extends CollectingTestListener {
 
@@ -96,6 +98,8 @@ class ShardListener extends CollectingTestListener {
                     mMasterListener.testRunFailed(runResult.getRunFailureMessage());
                 }
                 mMasterListener.testRunEnded(runResult.getElapsedTime(), runResult.getRunMetrics());
+                // all results have been forwarded
+                runResult.release();
             }
             mMasterListener.invocationEnded(elapsedTime);
         }
@@ -103,16 +107,17 @@ class ShardListener extends CollectingTestListener {
 
     private void forwardTestResults(Map<TestIdentifier, TestResult> testResults) {
         for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
+            TestResult result = testEntry.getValue();
             mMasterListener.testStarted(testEntry.getKey());
-            if (testEntry.getValue().getStatus().equals(TestStatus.ERROR)) {
+            if (result.getStatus().equals(TestStatus.ERROR)) {
                 mMasterListener.testFailed(TestFailure.ERROR, testEntry.getKey(),
-                        testEntry.getValue().getStackTrace());
-            } else if (testEntry.getValue().getStatus().equals(TestStatus.FAILURE)) {
+                        result.getStackTrace());
+            } else if (result.getStatus().equals(TestStatus.FAILURE)) {
                 mMasterListener.testFailed(TestFailure.FAILURE, testEntry.getKey(),
-                        testEntry.getValue().getStackTrace());
+                        result.getStackTrace());
             }
-            if (!testEntry.getValue().getStatus().equals(TestStatus.INCOMPLETE)) {
-                mMasterListener.testEnded(testEntry.getKey(), testEntry.getValue().getMetrics());
+            if (!result.getStatus().equals(TestStatus.INCOMPLETE)) {
+                mMasterListener.testEnded(testEntry.getKey(), result.getMetrics());
             }
         }
     }
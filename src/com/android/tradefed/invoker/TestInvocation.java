@@ -195,18 +195,33 @@ public class TestInvocation implements ITestInvocation {
             config.setTestInvocationListener(origConfigListener);
             // report invocation started using original buildinfo
             resultCollector.invocationStarted(info);
+            ShardEventMerger eventMerger = null;
+            if (config.getCommandOptions().streamShardResults()) {
+                eventMerger = new ShardEventMerger(resultCollector, shardableTests.size());
+            }
             for (IRemoteTest testShard : shardableTests) {
                 CLog.i("Rescheduling sharded config...");
                 IConfiguration shardConfig = config.clone();
                 shardConfig.setTest(testShard);
                 shardConfig.setBuildProvider(new ExistingBuildProvider(info.clone(),
                         config.getBuildProvider()));
-                shardConfig.setTestInvocationListener(new ShardListener(resultCollector));
+                IScheduledInvocationListener streamingListener = null;
+                if (eventMerger != null) {
+                    streamingListener = eventMerger.createShardListener();
+                    shardConfig.setTestInvocationListener(streamingListener);
+                } else {
+                    shardConfig.setTestInvocationListener(new ShardListener(resultCollector));
+                }
                 shardConfig.setLogOutput(config.getLogOutput().clone());
                 shardConfig.setCommandOptions(config.getCommandOptions().clone());
                 // use the same {@link ITargetPreparer}, {@link IDeviceRecovery} etc as original
                 // config
-                rescheduler.scheduleConfig(shardConfig);
+                if (!rescheduler.scheduleConfig(shardConfig)) {
+                    CLog.w("Failed to schedule shard");
+                    if (streamingListener != null) {
+                        streamingListener.invocationDiscarded();
+                    }
+                }
             }
             // clean up original build
             config.getBuildProvider().cleanUp(info);
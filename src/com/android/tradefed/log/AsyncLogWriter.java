@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log messages to an {@link OutputStream} on a background thread.
+ * <p/>
+ * Messages are added to a bounded, lock-free queue by the logging threads, and are formatted and
+ * written in batches by the writer thread, so that logging threads do not wait on disk I/O. What
+ * happens when the queue is full is decided by the {@link OverflowPolicy}.
+ */
+public class AsyncLogWriter {
+
+    /**
+     * What to do with a message logged while the queue is full.
+     */
+    public static enum OverflowPolicy {
+        /** wait until there is room in the queue */
+        BLOCK,
+        /** drop verbose and debug messages, and wait for room for other messages */
+        DROP_DEBUG,
+        /**
+         * keep one in every sample-rate messages below warning level, and drop the others. Wait
+         * for room for the kept messages
+         */
+        SAMPLE
+    }
+
+    /** max number of messages written with a single write call */
+    private static final int MAX_BATCH_SIZE = 512;
+    /** time to wait between checks for room in the queue, when full */
+    private static final long FULL_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    /** time the writer thread waits for new messages before checking if it was closed */
+    private static final long IDLE_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * A message waiting to be written.
+     */
+    private static class LogRecord {
+        final LogLevel mLogLevel;
+        final String mTag;
+        final String mMessage;
+        final long mTime;
+
+        LogRecord(LogLevel logLevel, String tag, String message, long time) {
+            mLogLevel = logLevel;
+            mTag = tag;
+            mMessage = message;
+            mTime = time;
+        }
+    }
+
+    /**
+     * A marker record that is released once all records queued before it have been written.
+     */
+    private static class FlushRecord extends LogRecord {
+        final CountDownLatch mWritten = new CountDownLatch(1);
+
+        FlushRecord() {
+            super(null, null, null, 0);
+        }
+    }
+
+    private final OutputStream mOutput;
+    private final int mCapacity;
+    private final OverflowPolicy mOverflowPolicy;
+    private final int mSampleRate;
+    private final Queue<LogRecord> mQueue = new ConcurrentLinkedQueue<LogRecord>();
+    /** number of log records in the queue. Flush records are not counted */
+    private final AtomicInteger mPendingCount = new AtomicInteger(0);
+    private final AtomicLong mQueuedCount = new AtomicLong(0);
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+    private final AtomicLong mOverflowCount = new AtomicLong(0);
+    private final Thread mWriterThread;
+    private volatile boolean mWriterIdle = false;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Creates a {@link AsyncLogWriter} and starts its writer thread.
+     *
+     * @param output the {@link OutputStream} to write formatted messages to. Must support writes
+     *            from a different thread than the one that created it
+     * @param capacity the max number of messages waiting to be written
+     * @param overflowPolicy the {@link OverflowPolicy} to apply when the queue is full
+     * @param sampleRate for {@link OverflowPolicy#SAMPLE}, keep one in this many messages
+     */
+    AsyncLogWriter(OutputStream output, int capacity, OverflowPolicy overflowPolicy,
+            int sampleRate) {
+        mOutput = output;
+        mCapacity = Math.max(1, capacity);
+        mOverflowPolicy = overflowPolicy;
+        mSampleRate = Math.max(1, sampleRate);
+        mWriterThread = new Thread("AsyncLogWriter") {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        };
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Queue a message to be written.
+     *
+     * @param logLevel the {@link LogLevel} of the message
+     * @param tag the message tag
+     * @param message the message
+     * @param time the time the message was logged, in ms since the epoch
+     * @return <code>true</code> if the message was queued, <code>false</code> if it was dropped
+     */
+    boolean write(LogLevel logLevel, String tag, String message, long time) {
+        if (Thread.currentThread() == mWriterThread) {
+            // logged while writing, eg by the output stream. Waiting for room in the queue
+            // would wait for this thread
+            writeDirect(logLevel, tag, message, time);
+            return true;
+        }
+        boolean overflowed = false;
+        while (true) {
+            if (mClosed) {
+                return false;
+            }
+            int pending = mPendingCount.get();
+            if (pending < mCapacity) {
+                if (mPendingCount.compareAndSet(pending, pending + 1)) {
+                    break;
+                }
+                continue;
+            }
+            // decide only once whether to drop, so a kept message is not re-sampled while waiting
+            if (!overflowed) {
+                overflowed = true;
+                if (shouldDrop(logLevel)) {
+                    mDroppedCount.incrementAndGet();
+                    return false;
+                }
+            }
+            wakeWriter();
+            LockSupport.parkNanos(FULL_WAIT_NS);
+        }
+        mQueue.add(new LogRecord(logLevel, tag, message, time));
+        mQueuedCount.incrementAndGet();
+        wakeWriter();
+        return true;
+    }
+
+    /**
+     * Decide whether to drop a message logged while the queue is full.
+     */
+    private boolean shouldDrop(LogLevel logLevel) {
+        switch (mOverflowPolicy) {
+            case DROP_DEBUG:
+                return logLevel.getPriority() < LogLevel.INFO.getPriority();
+            case SAMPLE:
+                return logLevel.getPriority() < LogLevel.WARN.getPriority()
+                        && mOverflowCount.incrementAndGet() % mSampleRate != 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Wait until all messages queued before this call have been written to the output.
+     */
+    void flush() {
+        if (Thread.currentThread() == mWriterThread) {
+            // the writer thread cannot wait for itself
+            return;
+        }
+        FlushRecord flushRecord = new FlushRecord();
+        mQueue.add(flushRecord);
+        wakeWriter();
+        try {
+            while (!flushRecord.mWritten.await(IDLE_WAIT_NS, TimeUnit.NANOSECONDS)) {
+                if (!mWriterThread.isAlive()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write all queued messages, and stop the writer thread. Messages logged afterwards are
+     * dropped.
+     */
+    void close() {
+        mClosed = true;
+        wakeWriter();
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if {@link #close()} was called, after which messages are no longer
+     *         queued
+     */
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * @return the total number of messages queued to be written
+     */
+    long getQueuedCount() {
+        return mQueuedCount.get();
+    }
+
+    /**
+     * @return the total number of messages dropped because the queue was full
+     */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the number of messages currently waiting to be written
+     */
+    int getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    private void wakeWriter() {
+        if (mWriterIdle) {
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    /**
+     * Main loop of the writer thread.
+     */
+    private void writeRecords() {
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            LogRecord record = mQueue.poll();
+            if (record == null) {
+                if (mClosed && mQueue.isEmpty()) {
+                    return;
+                }
+                // set idle before checking the queue again, so a message queued concurrently
+                // either is seen here or wakes the thread up
+                mWriterIdle = true;
+                if (mQueue.isEmpty() && !mClosed) {
+                    LockSupport.parkNanos(this, IDLE_WAIT_NS);
+                }
+                mWriterIdle = false;
+                continue;
+            }
+            int batchSize = 0;
+            batch.setLength(0);
+            while (record != null) {
+                if (record instanceof FlushRecord) {
+                    // write what precedes the flush record before releasing it
+                    writeBatch(batch, batchSize);
+                    batch.setLength(0);
+                    batchSize = 0;
+                    ((FlushRecord)record).mWritten.countDown();
+                } else {
+                    batch.append(LogUtil.getLogFormatString(record.mLogLevel, record.mTag,
+                            record.mMessage, record.mTime));
+                    batchSize++;
+                    if (batchSize >= MAX_BATCH_SIZE) {
+                        break;
+                    }
+                }
+                record = mQueue.poll();
+            }
+            writeBatch(batch, batchSize);
+        }
+    }
+
+    private void writeBatch(StringBuilder batch, int batchSize) {
+        if (batchSize == 0) {
+            return;
+        }
+        mPendingCount.addAndGet(-batchSize);
+        writeOutput(batch.toString());
+    }
+
+    /**
+     * Write a message logged by the writer thread, bypassing the queue.
+     */
+    private void writeDirect(LogLevel logLevel, String tag, String message, long time) {
+        mQueuedCount.incrementAndGet();
+        writeOutput(LogUtil.getLogFormatString(logLevel, tag, message, time));
+    }
+
+    private void writeOutput(String data) {
+        try {
+            mOutput.write(data.getBytes());
+        } catch (IOException e) {
+            // don't log failures, since they would be written to the same output
+            System.out.printf("failed to write log messages: %s\n", e);
+        } catch (RuntimeException e) {
+            System.out.printf("failed to write log messages: %s\n", e);
+        }
+    }
+}
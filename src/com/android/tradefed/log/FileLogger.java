@@ -19,6 +19,7 @@ import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.AsyncLogWriter.OverflowPolicy;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.SnapshotInputStreamSource;
@@ -52,7 +53,24 @@ public class FileLogger implements ILeveledLogOutput {
     @Option(name = "max-log-size", description = "maximum allowable size of tmp log data in mB.")
     private long mMaxLogSizeMbytes = 20;
 
+    @Option(name = "async-log", description = "write log messages to file on a background "
+            + "thread, rather than on the thread that logs them.")
+    private boolean mAsyncLog = true;
+
+    @Option(name = "async-log-capacity", description = "max number of log messages waiting to "
+            + "be written to file, when async-log is enabled.")
+    private int mAsyncLogCapacity = 10000;
+
+    @Option(name = "async-log-overflow", description = "what to do with a log message when the "
+            + "async-log queue is full.")
+    private OverflowPolicy mAsyncLogOverflow = OverflowPolicy.BLOCK;
+
+    @Option(name = "async-log-sample-rate", description = "with async-log-overflow SAMPLE, keep "
+            + "one in this many messages below warning level while the queue is full.")
+    private int mAsyncLogSampleRate = 10;
+
     private SizeLimitedOutputStream mLogStream;
+    private volatile AsyncLogWriter mAsyncWriter = null;
 
     /**
      * Adds tags to the log-tag-display list
@@ -73,6 +91,10 @@ public class FileLogger implements ILeveledLogOutput {
     public void init() throws IOException {
         mLogStream = new SizeLimitedOutputStream(mMaxLogSizeMbytes * 1024 * 1024,
                 TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+        if (mAsyncLog) {
+            mAsyncWriter = new AsyncLogWriter(mLogStream, mAsyncLogCapacity, mAsyncLogOverflow,
+                    mAsyncLogSampleRate);
+        }
     }
 
     /**
@@ -87,6 +109,11 @@ public class FileLogger implements ILeveledLogOutput {
         logger.setLogLevelDisplay(mLogLevelDisplay);
         logger.setLogLevel(mLogLevel);
         logger.addLogTagsDisplay(mLogTagsDisplay);
+        logger.mMaxLogSizeMbytes = mMaxLogSizeMbytes;
+        logger.mAsyncLog = mAsyncLog;
+        logger.mAsyncLogCapacity = mAsyncLogCapacity;
+        logger.mAsyncLogOverflow = mAsyncLogOverflow;
+        logger.mAsyncLogSampleRate = mAsyncLogSampleRate;
         return logger;
     }
 
@@ -112,12 +139,27 @@ public class FileLogger implements ILeveledLogOutput {
      */
     private void internalPrintLog(LogLevel logLevel, String tag, String message,
             boolean forceStdout) {
-        String outMessage = LogUtil.getLogFormatString(logLevel, tag, message);
+        long time = System.currentTimeMillis();
+        String outMessage = null;
         if (forceStdout
                 || logLevel.getPriority() >= mLogLevelDisplay.getPriority()
                 || mLogTagsDisplay.contains(tag)) {
+            outMessage = LogUtil.getLogFormatString(logLevel, tag, message, time);
             System.out.print(outMessage);
         }
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        if (asyncWriter != null) {
+            // formatted and written on the writer thread
+            if (asyncWriter.write(logLevel, tag, message, time) || !asyncWriter.isClosed()) {
+                return;
+            }
+            // the log is being closed. Wait for the queued messages to be written, then write
+            // this one after them
+            asyncWriter.close();
+        }
+        if (outMessage == null) {
+            outMessage = LogUtil.getLogFormatString(logLevel, tag, message, time);
+        }
         try {
             writeToLog(outMessage);
         } catch (IOException e) {
@@ -125,6 +167,41 @@ public class FileLogger implements ILeveledLogOutput {
         }
     }
 
+    /**
+     * @return the total number of messages queued to be written to file by the background
+     *         writer, or 0 if async-log is disabled
+     */
+    public long getQueuedCount() {
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        return asyncWriter != null ? asyncWriter.getQueuedCount() : 0;
+    }
+
+    /**
+     * @return the total number of messages dropped because the async-log queue was full
+     */
+    public long getDroppedCount() {
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        return asyncWriter != null ? asyncWriter.getDroppedCount() : 0;
+    }
+
+    /**
+     * @return the {@link AsyncLogWriter}, or <code>null</code> if async-log is disabled or the log
+     *         is closed. Exposed for unit testing.
+     */
+    AsyncLogWriter getAsyncWriter() {
+        return mAsyncWriter;
+    }
+
+    /**
+     * Wait until all messages logged so far have been written to file.
+     */
+    private void flushAsyncWriter() {
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        if (asyncWriter != null) {
+            asyncWriter.flush();
+        }
+    }
+
     /**
      * Writes given message to log.
      * <p/>
@@ -180,6 +257,8 @@ public class FileLogger implements ILeveledLogOutput {
     public InputStreamSource getLog() {
         if (mLogStream != null) {
             try {
+                // include all messages logged before this call
+                flushAsyncWriter();
                 // create a InputStream from log file
                 mLogStream.flush();
                 return new SnapshotInputStreamSource(mLogStream.getData());
@@ -211,6 +290,17 @@ public class FileLogger implements ILeveledLogOutput {
      * @throws IOException
      */
     void doCloseLog() throws IOException {
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        if (asyncWriter != null) {
+            // drain the queue before messages can be written directly to the stream
+            asyncWriter.close();
+            mAsyncWriter = null;
+            if (asyncWriter.getDroppedCount() > 0) {
+                writeToLog(LogUtil.getLogFormatString(LogLevel.WARN, "FileLogger", String.format(
+                        "Dropped %d log messages because the log queue was full",
+                        asyncWriter.getDroppedCount())));
+            }
+        }
         SizeLimitedOutputStream stream = mLogStream;
         mLogStream = null;
         if (stream != null) {
@@ -231,6 +321,7 @@ public class FileLogger implements ILeveledLogOutput {
      */
     void dumpToLog(InputStream inputStream) throws IOException {
         if (mLogStream != null) {
+            flushAsyncWriter();
             StreamUtil.copyStreams(inputStream, mLogStream);
         }
     }
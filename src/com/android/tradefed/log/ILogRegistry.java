@@ -56,6 +56,15 @@ public interface ILogRegistry extends ILogOutput {
      */
     public void unregisterLogger();
 
+    /**
+     * Check whether a message of given level would be printed by the logger in effect for the
+     * current thread.
+     *
+     * @param logLevel the {@link LogLevel} of the message
+     * @return <code>true</code> if the message would be printed
+     */
+    public boolean isLoggable(LogLevel logLevel);
+
     /**
      * Dumps the entire contents of a {@link ILeveledLogOutput} logger to the global log.
      * <p/>
@@ -25,9 +25,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A {@link ILogRegistry} implementation that multiplexes and manages different loggers,
@@ -42,7 +42,7 @@ public class LogRegistry implements ILogRegistry {
     private static final String LOG_TAG = "LogRegistry";
     private static LogRegistry mLogRegistry = null;
     private Map<ThreadGroup, ILeveledLogOutput> mLogTable =
-            new Hashtable<ThreadGroup, ILeveledLogOutput>();
+            new ConcurrentHashMap<ThreadGroup, ILeveledLogOutput>();
     private FileLogger mGlobalLogger;
 
     /**
@@ -165,6 +165,14 @@ public class LogRegistry implements ILogRegistry {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLoggable(LogLevel logLevel) {
+        return logLevel.getPriority() >= getLogger().getLogLevel().getPriority();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -21,6 +21,8 @@ import com.android.ddmlib.Log.LogLevel;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A logging utility class.  Useful for code that needs to override static methods from {@link Log}
@@ -52,9 +54,69 @@ public class LogUtil {
      * {@see Log#getLogFormatString()}
      */
     public static String getLogFormatString(LogLevel logLevel, String tag, String message) {
-        SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss");
-        return String.format("%s %c/%s: %s\n", formatter.format(new Date()),
-                logLevel.getPriorityLetter(), tag, message);
+        return getLogFormatString(logLevel, tag, message, System.currentTimeMillis());
+    }
+
+    /**
+     * Alternate form of {@link #getLogFormatString(LogLevel, String, String)} for a message that
+     * was logged at the given time, rather than now.
+     *
+     * @param timeMs the time the message was logged, in ms since the epoch
+     */
+    public static String getLogFormatString(LogLevel logLevel, String tag, String message,
+            long timeMs) {
+        String timestamp = getTimestamp(timeMs);
+        StringBuilder builder = new StringBuilder(timestamp.length() + tag.length()
+                + message.length() + 6);
+        builder.append(timestamp);
+        builder.append(' ');
+        builder.append(logLevel.getPriorityLetter());
+        builder.append('/');
+        builder.append(tag);
+        builder.append(": ");
+        builder.append(message);
+        builder.append('\n');
+        return builder.toString();
+    }
+
+    /**
+     * A formatted timestamp, with the second it was formatted for.
+     */
+    private static class CachedTimestamp {
+        final long mSecond;
+        final String mText;
+
+        CachedTimestamp(long second, String text) {
+            mSecond = second;
+            mText = text;
+        }
+    }
+
+    private static final ThreadLocal<SimpleDateFormat> sTimestampFormat =
+            new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("MM-dd HH:mm:ss");
+        }
+    };
+
+    /** the last formatted timestamp. Log lines are usually bunched within the same second */
+    private static volatile CachedTimestamp sLastTimestamp = null;
+
+    /**
+     * Format given time as a log timestamp.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static String getTimestamp(long timeMs) {
+        long second = timeMs / 1000;
+        CachedTimestamp cached = sLastTimestamp;
+        if (cached != null && cached.mSecond == second) {
+            return cached.mText;
+        }
+        String text = sTimestampFormat.get().format(new Date(timeMs));
+        sLastTimestamp = new CachedTimestamp(second, text);
+        return text;
     }
 
     /**
@@ -62,12 +124,20 @@ public class LogUtil {
      * the log tag
      */
     public static class CLog {
+        /** cache of full class names to simple class names, for log tags */
+        private static final Map<String, String> sSimpleClassNames =
+                new ConcurrentHashMap<String, String>();
+        private static volatile ILogRegistry sLogRegistry = null;
+
         /**
          * The shim version of {@link Log#v(String, String)}.
          *
          * @param message The {@code String} to log
          */
         public static void v(String message) {
+            if (!isLoggable(LogLevel.VERBOSE)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.v(getClassName(2), message);
         }
@@ -80,6 +150,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void v(String format, Object... args) {
+            if (!isLoggable(LogLevel.VERBOSE)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.v(getClassName(2), String.format(format, args));
         }
@@ -90,6 +163,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void d(String message) {
+            if (!isLoggable(LogLevel.DEBUG)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.d(getClassName(2), message);
         }
@@ -102,6 +178,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void d(String format, Object... args) {
+            if (!isLoggable(LogLevel.DEBUG)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.d(getClassName(2), String.format(format, args));
         }
@@ -112,6 +191,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void i(String message) {
+            if (!isLoggable(LogLevel.INFO)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.i(getClassName(2), message);
         }
@@ -124,6 +206,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void i(String format, Object... args) {
+            if (!isLoggable(LogLevel.INFO)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.i(getClassName(2), String.format(format, args));
         }
@@ -134,6 +219,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void w(String message) {
+            if (!isLoggable(LogLevel.WARN)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.w(getClassName(2), message);
         }
@@ -146,6 +234,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void w(String format, Object... args) {
+            if (!isLoggable(LogLevel.WARN)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.w(getClassName(2), String.format(format, args));
         }
@@ -156,6 +247,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void e(String message) {
+            if (!isLoggable(LogLevel.ERROR)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.e(getClassName(2), message);
         }
@@ -168,6 +262,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void e(String format, Object... args) {
+            if (!isLoggable(LogLevel.ERROR)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.e(getClassName(2), String.format(format, args));
         }
@@ -178,6 +275,9 @@ public class LogUtil {
          * @param t the {@link Throwable} to output.
          */
         public static void e(Throwable t) {
+            if (!isLoggable(LogLevel.ERROR)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.e(getClassName(2), t);
         }
@@ -205,6 +305,15 @@ public class LogUtil {
         public static String getClassName(int frame) {
             StackTraceElement[] frames = (new Throwable()).getStackTrace();
             String fullName = frames[frame].getClassName();
+            String simpleName = sSimpleClassNames.get(fullName);
+            if (simpleName == null) {
+                simpleName = getSimpleClassName(fullName);
+                sSimpleClassNames.put(fullName, simpleName);
+            }
+            return simpleName;
+        }
+
+        private static String getSimpleClassName(String fullName) {
             @SuppressWarnings("rawtypes")
             Class klass = null;
             try {
@@ -220,6 +329,30 @@ public class LogUtil {
                 return klass.getSimpleName();
             }
         }
+
+        /**
+         * Set the {@link ILogRegistry} that ddmlib log output is sent to.
+         * <p/>
+         * Once set, messages that the logger of the calling thread would discard are dropped
+         * before their tag is resolved or their format string is expanded.
+         *
+         * @param logRegistry the {@link ILogRegistry}, or <code>null</code> to pass all messages
+         *            to {@link Log}
+         */
+        public static void setLogRegistry(ILogRegistry logRegistry) {
+            sLogRegistry = logRegistry;
+        }
+
+        /**
+         * Return <code>true</code> if a message of given level would be logged by the calling
+         * thread.
+         * <p/>
+         * Useful to avoid building a message that would be dropped, when its arguments are
+         * costly to compute.
+         */
+        public static boolean isLoggable(LogLevel logLevel) {
+            ILogRegistry logRegistry = sLogRegistry;
+            return logRegistry == null || logRegistry.isLoggable(logLevel);
+        }
     }
 }
-
@@ -44,6 +44,11 @@ public class CollectingTestListener implements ITestInvocationListener {
         "attempt to add test metrics values for test runs with the same name." )
     private boolean mIsAggregateMetrics = false;
 
+    @Option(name = "spill-stack-traces", description =
+        "store the stack traces of failed tests in a temporary file instead of in memory. "
+        + "Reduces memory use of runs with many failures.")
+    private boolean mSpillStackTraces = false;
+
     private IBuildInfo mBuildInfo;
 
     /**
@@ -55,6 +60,15 @@ public class CollectingTestListener implements ITestInvocationListener {
         mIsAggregateMetrics = aggregate;
     }
 
+    /**
+     * Toggle the 'spill stack traces' option
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setSpillStackTraces(boolean spill) {
+        mSpillStackTraces = spill;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -87,7 +101,7 @@ public class CollectingTestListener implements ITestInvocationListener {
             mCurrentResults = mRunResultsMap.get(name);
         } else {
             // new run
-            mCurrentResults = new TestRunResult(name);
+            mCurrentResults = new TestRunResult(name, mSpillStackTraces);
             mRunResultsMap.put(name, mCurrentResults);
         }
         mCurrentResults.setRunComplete(false);
@@ -181,22 +181,21 @@ public class LogFileSaver implements ILogFileSaver {
             CLog.d("Log data for %s is already compressed, skipping compression", dataName);
             return saveLogData(dataName, dataType, dataStream);
         }
-        BufferedInputStream bufInput = null;
         ZipOutputStream outStream = null;
         try {
             final String saneDataName = sanitizeFilename(dataName);
             // add underscore to end of data name to make generated name more readable
             File logFile = FileUtil.createTempFile(saneDataName + "_", "."
                     + LogDataType.ZIP.getFileExt(), mRootDir);
-            bufInput = new BufferedInputStream(dataStream);
             outStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(
                     logFile), BUFFER_SIZE));
             outStream.putNextEntry(new ZipEntry(saneDataName + "." + dataType.getFileExt()));
-            StreamUtil.copyStreams(bufInput, outStream);
+            // no need to buffer input since StreamUtil copies in blocks
+            StreamUtil.copyStreams(dataStream, outStream);
             CLog.i("Saved log file %s", logFile.getAbsolutePath());
             return logFile;
         } finally {
-            StreamUtil.close(bufInput);
+            StreamUtil.close(dataStream);
             StreamUtil.closeZipStream(outStream);
 
         }
@@ -48,6 +48,18 @@ public class TestResult {
         mStartTime = System.currentTimeMillis();
     }
 
+    /**
+     * Create a {@link TestResult} holding a stored result.
+     */
+    TestResult(TestStatus status, String stackTrace, Map<String, String> metrics, long startTime,
+            long endTime) {
+        mStatus = status;
+        mStackTrace = stackTrace;
+        mMetrics = metrics;
+        mStartTime = startTime;
+        mEndTime = endTime;
+    }
+
     /**
      * Get the {@link TestStatus} result of the test.
      */
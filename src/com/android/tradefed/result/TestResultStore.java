@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.TestResult.TestStatus;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact storage for the results of the tests of a single test run.
+ * <p/>
+ * The state of each test is kept in parallel arrays indexed by the order in which tests were
+ * first reported, instead of in a {@link TestResult} per test. Class and method names are
+ * interned so tests of the same class share the same strings, identical stack traces are stored
+ * once, and empty metrics are not kept. Stack traces can optionally be kept in a temporary file
+ * instead of in memory.
+ * <p/>
+ * All methods are thread safe.
+ */
+class TestResultStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NO_TRACE = -1;
+    private static final TestStatus[] STATUSES = TestStatus.values();
+    /** spill directories modified more recently than this may not be locked yet */
+    private static final long SPILL_DIR_MIN_AGE_MS = 60 * 1000;
+    /** prefix of the per process directories holding spilled stack traces */
+    static final String SPILL_DIR_PREFIX = "tf_stack_traces_";
+    /** name of the file locked by the process owning a spill directory */
+    static final String SPILL_LOCK_FILE = "lock";
+
+    /** the spill directory of this process, created on first use */
+    private static File sSpillDir = null;
+    /** held for the life of the process so other processes do not sweep {@link #sSpillDir} */
+    private static FileLock sSpillLock = null;
+
+    private final Map<String, String> mNamePool = new HashMap<String, String>();
+    private final StackTraces mStackTraces;
+
+    private int mSize = 0;
+    private TestIdentifier[] mTests = new TestIdentifier[INITIAL_CAPACITY];
+    private byte[] mStatus = new byte[INITIAL_CAPACITY];
+    private long[] mStartTimes = new long[INITIAL_CAPACITY];
+    private long[] mEndTimes = new long[INITIAL_CAPACITY];
+    private int[] mTraceIds = new int[INITIAL_CAPACITY];
+    private Object[] mMetrics = new Object[INITIAL_CAPACITY];
+    /** the tests with a status other than {@link TestStatus#INCOMPLETE} */
+    private final BitSet mCompleted = new BitSet();
+    /**
+     * open addressing hash table of test indexes + 1, 0 meaning empty. Always at least twice as
+     * large as the number of tests
+     */
+    private int[] mTable = new int[INITIAL_CAPACITY * 2];
+
+    /**
+     * Create a {@link TestResultStore}.
+     *
+     * @param spillStackTraces if <code>true</code>, store the stack traces in a temporary file
+     */
+    TestResultStore(boolean spillStackTraces) {
+        mStackTraces = spillStackTraces ? new SpilledStackTraces() : new MemoryStackTraces();
+    }
+
+    /**
+     * @return the number of tests
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of tests with a status other than {@link TestStatus#INCOMPLETE}
+     */
+    synchronized int getNumCompleted() {
+        return mCompleted.cardinality();
+    }
+
+    /**
+     * Get the index of a test.
+     *
+     * @return the index of the test, or -1 if no results were stored for the test
+     */
+    synchronized int indexOf(Object test) {
+        if (!(test instanceof TestIdentifier)) {
+            return -1;
+        }
+        int mask = mTable.length - 1;
+        for (int slot = hash(test) & mask; mTable[slot] != 0; slot = (slot + 1) & mask) {
+            int index = mTable[slot] - 1;
+            if (mTests[index].equals(test)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a new {@link TestStatus#INCOMPLETE} test, starting now.
+     *
+     * @return the index of the test
+     */
+    synchronized int add(TestIdentifier test) {
+        if (mSize == mTests.length) {
+            grow();
+        }
+        int index = mSize++;
+        mTests[index] = new TestIdentifier(intern(test.getClassName()),
+                intern(test.getTestName()));
+        insertIndex(index);
+        reset(index);
+        return index;
+    }
+
+    /**
+     * Reset a test to {@link TestStatus#INCOMPLETE}, starting now.
+     */
+    synchronized void reset(int index) {
+        setStatus(index, TestStatus.INCOMPLETE);
+        mStartTimes[index] = System.currentTimeMillis();
+        mEndTimes[index] = 0;
+        mTraceIds[index] = NO_TRACE;
+        mMetrics[index] = null;
+    }
+
+    /**
+     * @return the {@link TestIdentifier} at given index
+     */
+    synchronized TestIdentifier getTest(int index) {
+        return mTests[index];
+    }
+
+    /**
+     * @return the {@link TestStatus} of the test at given index
+     */
+    synchronized TestStatus getStatus(int index) {
+        return STATUSES[mStatus[index]];
+    }
+
+    /**
+     * Set the {@link TestStatus} of the test at given index.
+     */
+    synchronized void setStatus(int index, TestStatus status) {
+        mStatus[index] = (byte)status.ordinal();
+        mCompleted.set(index, status != TestStatus.INCOMPLETE);
+    }
+
+    /**
+     * Set the stack trace of the test at given index.
+     */
+    synchronized void setStackTrace(int index, String trace) {
+        mTraceIds[index] = trace == null ? NO_TRACE : mStackTraces.add(trace);
+    }
+
+    /**
+     * Record the end of the test at given index, now.
+     */
+    synchronized void setEnded(int index, Map<String, String> metrics) {
+        mEndTimes[index] = System.currentTimeMillis();
+        mMetrics[index] = metrics != null && metrics.isEmpty() ?
+                Collections.<String, String>emptyMap() : metrics;
+    }
+
+    /**
+     * Create a {@link TestResult} holding the current result of the test at given index.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized TestResult getResult(int index) {
+        String trace = mTraceIds[index] == NO_TRACE ? null : mStackTraces.get(mTraceIds[index]);
+        return new TestResult(getStatus(index), trace, (Map<String, String>)mMetrics[index],
+                mStartTimes[index], mEndTimes[index]);
+    }
+
+    /**
+     * Release the temporary file holding the stack traces, if any. Stack traces stored in it are
+     * no longer available afterwards.
+     */
+    synchronized void release() {
+        mStackTraces.release();
+    }
+
+    /**
+     * @return <code>true</code> if the test at given index has completed
+     */
+    synchronized boolean isCompleted(int index) {
+        return mCompleted.get(index);
+    }
+
+    /**
+     * @return the index of the first completed test at or after given index, or -1 if none
+     */
+    synchronized int nextCompleted(int fromIndex) {
+        return mCompleted.nextSetBit(fromIndex);
+    }
+
+    private String intern(String name) {
+        if (name == null) {
+            return null;
+        }
+        String pooled = mNamePool.get(name);
+        if (pooled == null) {
+            mNamePool.put(name, name);
+            pooled = name;
+        }
+        return pooled;
+    }
+
+    private static int hash(Object test) {
+        int h = test.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private void insertIndex(int index) {
+        int mask = mTable.length - 1;
+        int slot = hash(mTests[index]) & mask;
+        while (mTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mTable[slot] = index + 1;
+    }
+
+    private void grow() {
+        int capacity = mTests.length * 2;
+        mTests = Arrays.copyOf(mTests, capacity);
+        mStatus = Arrays.copyOf(mStatus, capacity);
+        mStartTimes = Arrays.copyOf(mStartTimes, capacity);
+        mEndTimes = Arrays.copyOf(mEndTimes, capacity);
+        mTraceIds = Arrays.copyOf(mTraceIds, capacity);
+        mMetrics = Arrays.copyOf(mMetrics, capacity);
+        mTable = new int[capacity * 2];
+        for (int i = 0; i < mSize; i++) {
+            insertIndex(i);
+        }
+    }
+
+    /**
+     * Get the directory of this process in which stack traces are spilled, creating it on first
+     * use.
+     * <p/>
+     * The directory is locked for the life of the process. Before it is created, spill
+     * directories left by processes that exited without releasing their results are deleted.
+     *
+     * @throws IOException if the directory could not be created or locked
+     */
+    private static synchronized File getSpillDir() throws IOException {
+        if (sSpillDir == null) {
+            File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+            sweepStaleSpillDirs(tmpDir);
+            File spillDir = FileUtil.createTempDir(SPILL_DIR_PREFIX, tmpDir);
+            RandomAccessFile lockFile = null;
+            try {
+                lockFile = new RandomAccessFile(new File(spillDir, SPILL_LOCK_FILE), "rw");
+                sSpillLock = lockFile.getChannel().lock();
+            } catch (IOException e) {
+                StreamUtil.close(lockFile);
+                FileUtil.recursiveDelete(spillDir);
+                throw e;
+            }
+            sSpillDir = spillDir;
+        }
+        return sSpillDir;
+    }
+
+    /**
+     * Delete the spill directories in the given directory that are not locked by a live process.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static void sweepStaleSpillDirs(File parentDir) {
+        File[] children = parentDir.listFiles();
+        if (children == null) {
+            return;
+        }
+        long minModified = System.currentTimeMillis() - SPILL_DIR_MIN_AGE_MS;
+        for (File child : children) {
+            // a recent directory may belong to a process that is about to lock it
+            if (!child.getName().startsWith(SPILL_DIR_PREFIX) || !child.isDirectory()
+                    || child.lastModified() > minModified) {
+                continue;
+            }
+            File lock = new File(child, SPILL_LOCK_FILE);
+            if (!lock.exists() || isLockFree(lock)) {
+                CLog.d("Deleting stale stack trace directory %s", child.getAbsolutePath());
+                FileUtil.recursiveDelete(child);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if no process holds a lock on the given file
+     */
+    private static boolean isLockFree(File lock) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(lock, "rw");
+            FileChannel channel = file.getChannel();
+            FileLock fileLock = channel.tryLock();
+            if (fileLock == null) {
+                return false;
+            }
+            fileLock.release();
+            return true;
+        } catch (OverlappingFileLockException e) {
+            // locked by this process
+            return false;
+        } catch (IOException e) {
+            CLog.w("Failed to check lock %s: %s", lock.getAbsolutePath(), e.getMessage());
+            return false;
+        } finally {
+            StreamUtil.close(file);
+        }
+    }
+
+    /**
+     * Deduplicated stack traces.
+     */
+    private static interface StackTraces {
+        /**
+         * Store a trace if not already stored.
+         *
+         * @return the id of the trace
+         */
+        int add(String trace);
+
+        /**
+         * @return the trace with given id
+         */
+        String get(int id);
+
+        /**
+         * Release any resources held outside of memory.
+         */
+        void release();
+    }
+
+    /**
+     * {@link StackTraces} kept in memory.
+     */
+    private static class MemoryStackTraces implements StackTraces {
+        private final Map<String, Integer> mIds = new HashMap<String, Integer>();
+        private final List<String> mTraces = new ArrayList<String>();
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int add(String trace) {
+            Integer id = mIds.get(trace);
+            if (id == null) {
+                id = mTraces.size();
+                mTraces.add(trace);
+                mIds.put(trace, id);
+            }
+            return id;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String get(int id) {
+            return mTraces.get(id);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void release() {
+            // nothing to release
+        }
+    }
+
+    /**
+     * {@link StackTraces} kept in a temporary file. Only a 64 bit hash, offset and length
+     * of each trace are kept in memory.
+     * <p/>
+     * The file is only open while a trace is written or read, so results kept around do not hold
+     * file descriptors. It is deleted by {@link #release()}. Files of results that are never
+     * released are swept by the next process, see {@link #getSpillDir()}. Traces that cannot be
+     * written are kept in memory instead.
+     */
+    private static class SpilledStackTraces implements StackTraces {
+        private File mFile = null;
+        private long mFileLength = 0;
+        /** true if the file could not be written, or was released */
+        private boolean mFileFailed = false;
+        private final Map<Long, Integer> mIdsByHash = new HashMap<Long, Integer>();
+        /** the in memory traces, or null for traces stored in the file */
+        private final List<String> mMemoryTraces = new ArrayList<String>();
+        private long[] mOffsets = new long[INITIAL_CAPACITY];
+        private int[] mLengths = new int[INITIAL_CAPACITY];
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int add(String trace) {
+            Long hash = hash64(trace);
+            Integer id = mIdsByHash.get(hash);
+            if (id != null && trace.equals(get(id))) {
+                return id;
+            }
+            int newId = mMemoryTraces.size();
+            if (newId == mOffsets.length) {
+                mOffsets = Arrays.copyOf(mOffsets, newId * 2);
+                mLengths = Arrays.copyOf(mLengths, newId * 2);
+            }
+            if (write(newId, trace)) {
+                mMemoryTraces.add(null);
+            } else {
+                mMemoryTraces.add(trace);
+            }
+            if (id == null) {
+                mIdsByHash.put(hash, newId);
+            }
+            return newId;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String get(int id) {
+            String trace = mMemoryTraces.get(id);
+            if (trace != null) {
+                return trace;
+            }
+            if (mFile == null) {
+                CLog.w("Stack trace requested after its file was released");
+                return null;
+            }
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mFile, "r");
+                byte[] data = new byte[mLengths[id]];
+                file.seek(mOffsets[id]);
+                file.readFully(data);
+                return new String(data, "UTF-8");
+            } catch (IOException e) {
+                CLog.e("Failed to read stack trace from temporary file");
+                CLog.e(e);
+                return null;
+            } finally {
+                StreamUtil.close(file);
+            }
+        }
+
+        /**
+         * Append a trace to the file.
+         *
+         * @return <code>true</code> if the trace was written
+         */
+        private boolean write(int id, String trace) {
+            if (mFileFailed) {
+                return false;
+            }
+            RandomAccessFile file = null;
+            try {
+                if (mFile == null) {
+                    mFile = FileUtil.createTempFile("stack_traces", ".txt", getSpillDir());
+                }
+                byte[] data = trace.getBytes("UTF-8");
+                file = new RandomAccessFile(mFile, "rw");
+                file.seek(mFileLength);
+                file.write(data);
+                mOffsets[id] = mFileLength;
+                mLengths[id] = data.length;
+                mFileLength += data.length;
+                return true;
+            } catch (IOException e) {
+                CLog.e("Failed to write stack trace to temporary file, keeping it in memory");
+                CLog.e(e);
+                mFileFailed = true;
+                return false;
+            } finally {
+                StreamUtil.close(file);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * Deletes the file. Traces added afterwards are kept in memory.
+         */
+        @Override
+        public void release() {
+            mFileFailed = true;
+            if (mFile != null) {
+                FileUtil.deleteFile(mFile);
+                mFile = null;
+            }
+        }
+
+        /**
+         * 64 bit FNV-1a hash of a trace.
+         */
+        private static long hash64(String trace) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < trace.length(); i++) {
+                hash ^= trace.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+}
@@ -19,11 +19,12 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.TestResult.TestStatus;
 
-import java.util.Collections;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
@@ -31,10 +32,10 @@ import java.util.Set;
  */
 public class TestRunResult {
     private final String mTestRunName;
-    // Uses a synchronized map to make thread safe.
-    // Uses a LinkedHashmap to have predictable iteration order
-    private Map<TestIdentifier, TestResult> mTestResults =
-        Collections.synchronizedMap(new LinkedHashMap<TestIdentifier, TestResult>());
+    // Thread safe, and iterated in the order tests were first reported
+    private final TestResultStore mTestResults;
+    private final Map<TestIdentifier, TestResult> mTestResultsView = new TestResultMap();
+    private final Set<TestIdentifier> mCompletedTestsView = new CompletedTestSet();
     private Map<String, String> mRunMetrics = new HashMap<String, String>();
     private boolean mIsRunComplete = false;
     private long mElapsedTime = 0;
@@ -50,7 +51,19 @@ public class TestRunResult {
      * @param runName
      */
     public TestRunResult(String runName) {
+        this(runName, false);
+    }
+
+    /**
+     * Create a {@link TestRunResult}.
+     *
+     * @param runName
+     * @param spillStackTraces if <code>true</code>, store the stack traces of failed tests in a
+     *            temporary file instead of in memory
+     */
+    TestRunResult(String runName, boolean spillStackTraces) {
         mTestRunName = runName;
+        mTestResults = new TestResultStore(spillStackTraces);
     }
 
     /**
@@ -69,10 +82,25 @@ public class TestRunResult {
 
     /**
      * Gets a map of the test results.
+     * <p/>
+     * The returned map is a read-only view of the results of this run, iterated in the order
+     * tests were first reported. Each {@link TestResult} retrieved from it is a copy of the
+     * result of the test at the time it was retrieved. Iterating over the keys does not create
+     * any {@link TestResult}.
+     *
      * @return
      */
     public Map<TestIdentifier, TestResult> getTestResults() {
-        return mTestResults;
+        return mTestResultsView;
+    }
+
+    /**
+     * Release the temporary file holding the stack traces of this run, if any. Should be called
+     * once the results are no longer used. Stack traces stored in the file are no longer
+     * available afterwards.
+     */
+    public void release() {
+        mTestResults.release();
     }
 
     /**
@@ -132,15 +160,12 @@ public class TestRunResult {
 
     /**
      * Gets the set of completed tests.
+     * <p/>
+     * The returned set is a read-only view of the completed tests of this run, iterated in the
+     * order tests were first reported. Copy it to keep or modify it.
      */
     public Set<TestIdentifier> getCompletedTests() {
-        Set<TestIdentifier> completedTests = new LinkedHashSet<TestIdentifier>();
-        for (Map.Entry<TestIdentifier, TestResult> testEntry : getTestResults().entrySet()) {
-            if (!testEntry.getValue().getStatus().equals(TestStatus.INCOMPLETE)) {
-                completedTests.add(testEntry.getKey());
-            }
-        }
-        return completedTests;
+        return mCompletedTestsView;
     }
 
     /**
@@ -237,11 +262,10 @@ public class TestRunResult {
      * @param test
      */
     void reportTestStarted(TestIdentifier test) {
-        TestResult result = mTestResults.get(test);
-
-        if (result != null) {
+        int index = mTestResults.indexOf(test);
+        if (index >= 0) {
             CLog.d("Replacing result for %s", test);
-            switch (result.getStatus()) {
+            switch (mTestResults.getStatus(index)) {
                 case ERROR:
                     mNumErrorTests--;
                     break;
@@ -252,10 +276,11 @@ public class TestRunResult {
                     mNumPassedTests--;
                     break;
             }
+            mTestResults.reset(index);
         } else {
             mNumInCompleteTests++;
+            mTestResults.add(test);
         }
-        mTestResults.put(test, new TestResult());
     }
 
     /**
@@ -266,25 +291,24 @@ public class TestRunResult {
      * @param trace
      */
     void reportTestFailure(TestIdentifier test, TestStatus status, String trace) {
-        TestResult result = mTestResults.get(test);
-        if (result == null) {
+        int index = mTestResults.indexOf(test);
+        if (index < 0) {
             CLog.d("Received test failure for %s without testStarted", test);
-            result = new TestResult();
-            mTestResults.put(test, result);
-        } else if (result.getStatus().equals(TestStatus.PASSED)) {
+            index = mTestResults.add(test);
+        } else if (mTestResults.getStatus(index).equals(TestStatus.PASSED)) {
             // this should never happen...
             CLog.d("Replacing passed result for %s", test);
             mNumPassedTests--;
         }
 
-        result.setStackTrace(trace);
+        mTestResults.setStackTrace(index, trace);
         switch (status) {
             case ERROR:
                 mNumErrorTests++;
-                result.setStatus(TestStatus.ERROR);
+                mTestResults.setStatus(index, TestStatus.ERROR);
                 break;
             case FAILURE:
-                result.setStatus(TestStatus.FAILURE);
+                mTestResults.setStatus(index, TestStatus.FAILURE);
                 mNumFailedTests++;
                 break;
         }
@@ -298,22 +322,211 @@ public class TestRunResult {
      * @return <code>true</code> if test was recorded as passed, false otherwise
      */
     boolean reportTestEnded(TestIdentifier test, Map<String, String> testMetrics) {
-        TestResult result = mTestResults.get(test);
-        if (result == null) {
+        int index = mTestResults.indexOf(test);
+        if (index < 0) {
             CLog.d("Received test ended for %s without testStarted", test);
-            result = new TestResult();
-            mTestResults.put(test, result);
+            index = mTestResults.add(test);
         } else {
             mNumInCompleteTests--;
         }
 
-        result.setEndTime(System.currentTimeMillis());
-        result.setMetrics(testMetrics);
-        if (result.getStatus().equals(TestStatus.INCOMPLETE)) {
-            result.setStatus(TestStatus.PASSED);
+        mTestResults.setEnded(index, testMetrics);
+        if (mTestResults.getStatus(index).equals(TestStatus.INCOMPLETE)) {
+            mTestResults.setStatus(index, TestStatus.PASSED);
             mNumPassedTests++;
             return true;
         }
         return false;
     }
+
+    /**
+     * A read-only {@link Map} view of the test results.
+     */
+    private class TestResultMap extends AbstractMap<TestIdentifier, TestResult> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return mTestResults.size();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean containsKey(Object key) {
+            return mTestResults.indexOf(key) >= 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TestResult get(Object key) {
+            int index = mTestResults.indexOf(key);
+            return index >= 0 ? mTestResults.getResult(index) : null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Set<Map.Entry<TestIdentifier, TestResult>> entrySet() {
+            return new AbstractSet<Map.Entry<TestIdentifier, TestResult>>() {
+                @Override
+                public int size() {
+                    return mTestResults.size();
+                }
+
+                @Override
+                public Iterator<Map.Entry<TestIdentifier, TestResult>> iterator() {
+                    return new Iterator<Map.Entry<TestIdentifier, TestResult>>() {
+                        private int mNext = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return mNext < mTestResults.size();
+                        }
+
+                        @Override
+                        public Map.Entry<TestIdentifier, TestResult> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            return new ResultEntry(mNext++);
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Read-only {@link Set} view of the completed tests, backed by the completed tests of
+     * {@link #mTestResults}.
+     */
+    private class CompletedTestSet extends AbstractSet<TestIdentifier> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return mTestResults.getNumCompleted();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean contains(Object o) {
+            int index = mTestResults.indexOf(o);
+            return index >= 0 && mTestResults.isCompleted(index);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<TestIdentifier> iterator() {
+            return new Iterator<TestIdentifier>() {
+                private int mNext = mTestResults.nextCompleted(0);
+
+                @Override
+                public boolean hasNext() {
+                    return mNext >= 0;
+                }
+
+                @Override
+                public TestIdentifier next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    TestIdentifier test = mTestResults.getTest(mNext);
+                    mNext = mTestResults.nextCompleted(mNext + 1);
+                    return test;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * A {@link Map.Entry} of {@link TestResultMap}, that only creates its {@link TestResult}
+     * once the value is retrieved.
+     */
+    private class ResultEntry implements Map.Entry<TestIdentifier, TestResult> {
+        private final int mIndex;
+        private TestResult mResult = null;
+
+        ResultEntry(int index) {
+            mIndex = index;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TestIdentifier getKey() {
+            return mTestResults.getTest(mIndex);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TestResult getValue() {
+            if (mResult == null) {
+                mResult = mTestResults.getResult(mIndex);
+            }
+            return mResult;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TestResult setValue(TestResult value) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>)other;
+            return getKey().equals(entry.getKey()) && getValue().equals(entry.getValue());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ getValue().hashCode();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
 }
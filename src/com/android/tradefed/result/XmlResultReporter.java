@@ -25,15 +25,21 @@ import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.TestResult.TestStatus;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
 
 import org.kxml2.io.KXmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TimeZone;
 
@@ -46,6 +52,12 @@ import java.util.TimeZone;
  * <p/>
  * Collects all test info in memory, then dumps to file when invocation is complete.
  * <p/>
+ * If --stream-results is set, each test case is instead written to a partial result file as soon
+ * as the test ends, and results are not kept in memory. The final report is written when the
+ * invocation is complete, by writing the summary header and copying the partial result file after
+ * it. If the invocation never completes, the test cases written so far are left in the partial
+ * result file.
+ * <p/>
  * Ported from dalvik runner XmlReportPrinter.
  * <p/>
  * Result files will be stored in path constructed via [--output-file-path]/[build_id]
@@ -57,6 +69,9 @@ public class XmlResultReporter extends CollectingTestListener {
 
     private static final String TEST_RESULT_FILE_SUFFIX = ".xml";
     private static final String TEST_RESULT_FILE_PREFIX = "test_result_";
+    private static final String PARTIAL_RESULT_FILE_SUFFIX = ".xml.partial";
+    /** max time partial results can stay buffered in memory */
+    private static final long PARTIAL_RESULT_FLUSH_INTERVAL_MS = 1000;
 
     private static final String TESTSUITE = "testsuite";
     private static final String TESTCASE = "testcase";
@@ -82,19 +97,43 @@ public class XmlResultReporter extends CollectingTestListener {
             + "test results and associated logs.")
     private File mReportDir = new File(System.getProperty("java.io.tmpdir"));
 
+    @Option(name = "stream-results", description = "write each test result to disk as soon as "
+            + "the test ends, instead of keeping all results in memory until the invocation ends.")
+    private boolean mStreamResults = false;
+
     private ILogFileSaver mLogFileSaver;
     private IBuildInfo mBuildInfo;
 
     private String mReportPath = "";
 
+    // state of streamed results
+    private File mPartialResultFile = null;
+    private OutputStream mPartialResultStream = null;
+    private KXmlSerializer mPartialResultSerializer = null;
+    private long mLastFlushTime = 0;
+    private Map<TestIdentifier, TestResult> mRunningTests =
+            new HashMap<TestIdentifier, TestResult>();
+    private int mNumStreamedPassedTests = 0;
+    private int mNumStreamedFailedTests = 0;
+    private int mNumStreamedErrorTests = 0;
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void invocationEnded(long elapsedTime) {
         super.invocationEnded(elapsedTime);
+        boolean generated = false;
         if (mReportDir != null) {
-            generateSummary(mLogFileSaver.getFileDir(), elapsedTime);
+            generated = generateSummary(mLogFileSaver.getFileDir(), elapsedTime);
+        }
+        if (mPartialResultFile != null) {
+            closePartialResults();
+            // keep the partial results if they could not be copied to the report
+            if (generated) {
+                mPartialResultFile.delete();
+            }
+            mPartialResultFile = null;
         }
     }
 
@@ -109,18 +148,187 @@ public class XmlResultReporter extends CollectingTestListener {
         }
         mLogFileSaver = new LogFileSaver(buildInfo, mReportDir);
         mBuildInfo = buildInfo;
+        if (mStreamResults) {
+            openPartialResults(mLogFileSaver.getFileDir());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        if (mStreamResults) {
+            mRunningTests.put(test, new TestResult());
+        } else {
+            super.testStarted(test);
+        }
     }
 
     @Override
     public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-        super.testFailed(status, test, trace);
+        if (mStreamResults) {
+            TestResult result = getRunningTest(test);
+            result.setStatus(status.equals(TestFailure.ERROR) ? TestStatus.ERROR :
+                    TestStatus.FAILURE);
+            result.setStackTrace(trace);
+        } else {
+            super.testFailed(status, test, trace);
+        }
         CLog.d("%s %s: %s", test, status, trace);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        if (!mStreamResults) {
+            super.testEnded(test, testMetrics);
+            return;
+        }
+        TestResult result = getRunningTest(test);
+        mRunningTests.remove(test);
+        result.setEndTime(System.currentTimeMillis());
+        switch (result.getStatus()) {
+            case ERROR:
+                mNumStreamedErrorTests++;
+                break;
+            case FAILURE:
+                mNumStreamedFailedTests++;
+                break;
+            default:
+                result.setStatus(TestStatus.PASSED);
+                mNumStreamedPassedTests++;
+                break;
+        }
+        writePartialResult(test, result);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        super.testRunEnded(elapsedTime, runMetrics);
+        if (mPartialResultStream != null) {
+            flushPartialResults();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumFailedTests() {
+        return mStreamResults ? mNumStreamedFailedTests : super.getNumFailedTests();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumErrorTests() {
+        return mStreamResults ? mNumStreamedErrorTests : super.getNumErrorTests();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumPassedTests() {
+        return mStreamResults ? mNumStreamedPassedTests : super.getNumPassedTests();
+    }
+
+    /**
+     * Get the result of a running test, creating it if the test was not reported as started.
+     */
+    private TestResult getRunningTest(TestIdentifier test) {
+        TestResult result = mRunningTests.get(test);
+        if (result == null) {
+            CLog.d("Received result for %s without testStarted", test);
+            result = new TestResult();
+            mRunningTests.put(test, result);
+        }
+        return result;
+    }
+
+    /**
+     * Create the partial result file, that results are streamed to.
+     */
+    private void openPartialResults(File reportDir) {
+        try {
+            mPartialResultFile = FileUtil.createTempFile(TEST_RESULT_FILE_PREFIX,
+                    PARTIAL_RESULT_FILE_SUFFIX, reportDir);
+            mPartialResultStream = new BufferedOutputStream(new FileOutputStream(
+                    mPartialResultFile));
+            mPartialResultSerializer = new KXmlSerializer();
+            mPartialResultSerializer.setOutput(mPartialResultStream, "UTF-8");
+            mPartialResultSerializer.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            mLastFlushTime = System.currentTimeMillis();
+            Log.i(LOG_TAG, String.format("Streaming xml test results to %s",
+                    mPartialResultFile.getAbsolutePath()));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to create partial result file");
+            Log.e(LOG_TAG, e);
+            closePartialResults();
+        }
+    }
+
+    /**
+     * Append the result of a test to the partial result file.
+     */
+    private void writePartialResult(TestIdentifier test, TestResult result) {
+        if (mPartialResultSerializer == null) {
+            return;
+        }
+        try {
+            print(mPartialResultSerializer, test, result);
+            // bound the results lost if the invocation dies, without flushing each test
+            if (System.currentTimeMillis() - mLastFlushTime >= PARTIAL_RESULT_FLUSH_INTERVAL_MS) {
+                flushPartialResults();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write partial result data");
+            Log.e(LOG_TAG, e);
+            closePartialResults();
+        }
+    }
+
+    private void flushPartialResults() {
+        try {
+            mPartialResultSerializer.flush();
+            mLastFlushTime = System.currentTimeMillis();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write partial result data");
+            Log.e(LOG_TAG, e);
+            closePartialResults();
+        }
+    }
+
+    /**
+     * Flush and close the partial result file. It is kept on disk.
+     */
+    private void closePartialResults() {
+        if (mPartialResultStream != null) {
+            try {
+                mPartialResultSerializer.flush();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to write partial result data");
+            }
+            StreamUtil.closeStream(mPartialResultStream);
+        }
+        mPartialResultStream = null;
+        mPartialResultSerializer = null;
+    }
+
     /**
      * Creates a report file and populates it with the report data from the completed tests.
+     *
+     * @return <code>true</code> if the report was generated
      */
-    private void generateSummary(File reportDir, long elapsedTime) {
+    private boolean generateSummary(File reportDir, long elapsedTime) {
         String timestamp = getTimestamp();
 
         OutputStream stream = null;
@@ -132,15 +340,17 @@ public class XmlResultReporter extends CollectingTestListener {
             serializer.setFeature(
                     "http://xmlpull.org/v1/doc/features.html#indent-output", true);
             // TODO: insert build info
-            printTestResults(serializer, timestamp, elapsedTime);
+            printTestResults(serializer, stream, timestamp, elapsedTime);
             serializer.endDocument();
             String msg = String.format("XML test result file generated at %s. Total tests %d, " +
                     "Failed %d, Error %d", getAbsoluteReportPath(), getNumTotalTests(),
                     getNumFailedTests(), getNumErrorTests());
             Log.logAndDisplay(LogLevel.INFO, LOG_TAG, msg);
+            return true;
         } catch (IOException e) {
             Log.e(LOG_TAG, "Failed to generate report data");
             // TODO: consider throwing exception
+            return false;
         } finally {
             if (stream != null) {
                 try {
@@ -176,11 +386,11 @@ public class XmlResultReporter extends CollectingTestListener {
         Log.i(LOG_TAG, String.format("Created xml report file at %s",
                 reportFile.getAbsolutePath()));
         mReportPath = reportFile.getAbsolutePath();
-        return new FileOutputStream(reportFile);
+        return new BufferedOutputStream(new FileOutputStream(reportFile));
     }
 
-    void printTestResults(KXmlSerializer serializer, String timestamp, long elapsedTime)
-            throws IOException {
+    void printTestResults(KXmlSerializer serializer, OutputStream stream, String timestamp,
+            long elapsedTime) throws IOException {
         serializer.startTag(ns, TESTSUITE);
         serializer.attribute(ns, ATTR_NAME, mBuildInfo.getTestTag());
         serializer.attribute(ns, ATTR_TESTS, Integer.toString(getNumTotalTests()));
@@ -192,6 +402,9 @@ public class XmlResultReporter extends CollectingTestListener {
         serializer.startTag(ns, PROPERTIES);
         serializer.endTag(ns, PROPERTIES);
 
+        if (mStreamResults) {
+            appendPartialResults(serializer, stream);
+        }
         for (TestRunResult runResult : getRunResults()) {
             // TODO: add test run summaries as TESTSUITES ?
             Map<TestIdentifier, TestResult> testResults = runResult.getTestResults();
@@ -203,6 +416,26 @@ public class XmlResultReporter extends CollectingTestListener {
         serializer.endTag(ns, TESTSUITE);
     }
 
+    /**
+     * Copy the test cases written to the partial result file into the report.
+     */
+    private void appendPartialResults(KXmlSerializer serializer, OutputStream stream)
+            throws IOException {
+        if (mPartialResultFile == null) {
+            return;
+        }
+        closePartialResults();
+        // write what the serializer buffered, so the test cases follow it in the report
+        serializer.flush();
+        InputStream partialResults = new BufferedInputStream(new FileInputStream(
+                mPartialResultFile));
+        try {
+            StreamUtil.copyStreams(partialResults, stream);
+        } finally {
+            StreamUtil.closeStream(partialResults);
+        }
+    }
+
     void print(KXmlSerializer serializer, TestIdentifier testId, TestResult testResult)
             throws IOException {
 
@@ -233,6 +466,9 @@ public class XmlResultReporter extends CollectingTestListener {
      * Returns the text in a format that is safe for use in an XML document.
      */
     private String sanitize(String text) {
+        if (text == null) {
+            return "";
+        }
         return text.replace("\0", "<\\0>");
     }
 
@@ -243,6 +479,13 @@ public class XmlResultReporter extends CollectingTestListener {
         mReportDir = file;
     }
 
+    /**
+     * Sets whether to stream results. Exposed for unit testing.
+     */
+    void setStreamResults(boolean streamResults) {
+        mStreamResults = streamResults;
+    }
+
     /**
      * {@inheritDoc}
      */
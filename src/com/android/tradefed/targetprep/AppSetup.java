@@ -23,16 +23,22 @@ import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.util.AaptParser;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * A {@link ITargetPreparer} that installs an apk and its tests.
  * <p/>
- * Requires 'aapt' on PATH when --uninstall is set
+ * Apks are installed with a {@link PackageInstaller}, so apks already installed on the device with
+ * the same content are skipped.
+ * <p/>
+ * Requires 'aapt' on PATH when --uninstall is set. The {@link PackageInstaller} also uses it to
+ * find the package of each apk, so without it apks are always installed.
  */
 @OptionClass(alias="app-setup")
 public class AppSetup implements ITargetPreparer, ITargetCleaner {
@@ -80,32 +86,34 @@ public class AppSetup implements ITargetPreparer, ITargetCleaner {
         }
 
         if (mInstall) {
+            List<File> apkFiles = new ArrayList<File>();
             for (VersionedFile apkFile : appBuild.getAppPackageFiles()) {
-                String result = device.installPackage(apkFile.getFile(), true);
-                if (result != null) {
-                    throw new TargetSetupError(String.format(
-                            "Failed to install %s on %s. Reason: %s",
-                            apkFile.getFile().getName(), device.getSerialNumber(), result));
-                }
-                if (mUninstall && !mUninstallAll) {
-                    addPackageNameToUninstall(apkFile.getFile());
+                apkFiles.add(apkFile.getFile());
+            }
+            Map<File, String> packageNames = createPackageInstaller(device).install(apkFiles);
+            if (mUninstall && !mUninstallAll) {
+                for (Map.Entry<File, String> entry : packageNames.entrySet()) {
+                    addPackageNameToUninstall(entry.getKey(), entry.getValue());
                 }
             }
         }
 
     }
 
-    private void addPackageNameToUninstall(File apkFile) throws TargetSetupError {
-        AaptParser aaptParser = AaptParser.parse(apkFile);
-        if (aaptParser == null) {
-            throw new TargetSetupError(String.format("Failed to extract info from '%s' using aapt",
-                    apkFile.getAbsolutePath()));
-        }
-        if (aaptParser.getPackageName() == null) {
+    private void addPackageNameToUninstall(File apkFile, String packageName)
+            throws TargetSetupError {
+        if (packageName == null) {
             throw new TargetSetupError(String.format(
                     "Failed to find package name for '%s' using aapt", apkFile.getAbsolutePath()));
         }
-        mInstalledPkgs.add(aaptParser.getPackageName());
+        mInstalledPkgs.add(packageName);
+    }
+
+    /**
+     * Create the {@link PackageInstaller} to use.
+     */
+    PackageInstaller createPackageInstaller(ITestDevice device) {
+        return new PackageInstaller(device);
     }
 
     /**
@@ -119,12 +127,11 @@ public class AppSetup implements ITargetPreparer, ITargetCleaner {
             device.reboot();
         }
         if (mUninstall && !mUninstallAll) {
-            for (String pkgName : mInstalledPkgs) {
-                String result = device.uninstallPackage(pkgName);
-                if (result != null) {
-                    CLog.e("Failed to uninstall %s: %s", pkgName, result);
-                    // TODO: consider throwing here
-                }
+            Map<String, String> failures = createPackageInstaller(device).uninstall(
+                    mInstalledPkgs);
+            for (Map.Entry<String, String> failure : failures.entrySet()) {
+                CLog.e("Failed to uninstall %s: %s", failure.getKey(), failure.getValue());
+                // TODO: consider throwing here
             }
         }
         if (mUninstallAll && !uninstallAllApps(device)) {
@@ -140,17 +147,16 @@ public class AppSetup implements ITargetPreparer, ITargetCleaner {
         // make multiple attempts to uninstall apps, aborting if failed
         // TODO: consider moving this to ITestDevice, so more sophisticated recovery attempts
         // can be performed
+        PackageInstaller installer = createPackageInstaller(device);
         for (int i = 0; i < 3; i++) {
             Set<String> pkgs = getAllAppsToUninstall(device);
             if (pkgs.isEmpty()) {
                 return true;
             }
-            for (String pkg : pkgs) {
-                String result = device.uninstallPackage(pkg);
-                if (result != null) {
-                    CLog.w("Uninstall of %s on %s failed: %s", pkg, device.getSerialNumber(),
-                            result);
-                }
+            Map<String, String> failures = installer.uninstall(pkgs);
+            for (Map.Entry<String, String> failure : failures.entrySet()) {
+                CLog.w("Uninstall of %s on %s failed: %s", failure.getKey(),
+                        device.getSerialNumber(), failure.getValue());
             }
         }
         // check getAppsToUninstall one more time, cause last attempt through loop might have been
@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.device.CollectingOutputReceiver;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.AaptParser;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Installs and uninstalls many packages on a device.
+ * <p/>
+ * {@link ITestDevice#installPackage(File, boolean, String...)} pushes an apk, then waits for
+ * 'pm install' to complete, before the next apk can be pushed. Here the push of the next apk
+ * overlaps with the install of the current one. Apks that were installed on the device before
+ * with the same content are not installed again, and uninstalls are batched in as few shell
+ * commands as possible.
+ * <p/>
+ * {@link ITestDevice} is not safe for concurrent use, so only the calling thread uses it. The
+ * overlapping pushes go straight through the ddmlib {@link SyncService}, and a push that fails
+ * there is retried with {@link ITestDevice#pushFile(File, String)}, so device recovery only
+ * happens on the calling thread.
+ * <p/>
+ * Requires 'aapt' on PATH to skip already installed apks.
+ */
+public class PackageInstaller {
+
+    /** the device directory apks are pushed to before being installed */
+    static final String REMOTE_DIR = "/data/local/tmp";
+
+    /** max time in ms to wait for output of 'pm install' and 'pm uninstall' */
+    private static final int PM_TIMEOUT_MS = 5 * 60 * 1000;
+    /** max time in ms to wait for a push to finish, when cleaning up after a failure */
+    private static final long PUSH_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final int MAX_RETRY_ATTEMPTS = 1;
+    /** max length of a shell command that takes a list of packages or files */
+    static final int MAX_SHELL_CMD_LENGTH = 800;
+    private static final String PACKAGE_PREFIX = "package:";
+    private static final String SUCCESS_OUTPUT = "Success";
+    private static final Pattern FAILURE_PATTERN = Pattern.compile("Failure \\[(.*)\\]");
+
+    private static final InstallLedger sLedger = new InstallLedger();
+
+    private final ITestDevice mDevice;
+    private final InstallLedger mLedger;
+
+    /**
+     * A record of the apks installed on each device, used to skip installing an apk with the same
+     * content again.
+     * <p/>
+     * Each entry stores the md5 hash of the installed apk, and its path on the device. The path
+     * and the hash of the apk at that path are checked against the device before skipping an
+     * install, so a package uninstalled or reinstalled by something else in the meantime is
+     * installed again, even if the package manager reused the recorded path.
+     */
+    static class InstallLedger {
+        /** map of device serials to maps of package names to entries */
+        private final Map<String, Map<String, String>> mEntries =
+                new HashMap<String, Map<String, String>>();
+
+        synchronized boolean isEmpty(String serial) {
+            Map<String, String> entries = mEntries.get(serial);
+            return entries == null || entries.isEmpty();
+        }
+
+        synchronized boolean contains(String serial, String packageName, String md5,
+                String codePath) {
+            Map<String, String> entries = mEntries.get(serial);
+            return entries != null && codePath != null &&
+                    createEntry(md5, codePath).equals(entries.get(packageName));
+        }
+
+        synchronized void put(String serial, String packageName, String md5, String codePath) {
+            Map<String, String> entries = mEntries.get(serial);
+            if (entries == null) {
+                entries = new HashMap<String, String>();
+                mEntries.put(serial, entries);
+            }
+            entries.put(packageName, createEntry(md5, codePath));
+        }
+
+        synchronized void remove(String serial, String packageName) {
+            Map<String, String> entries = mEntries.get(serial);
+            if (entries != null) {
+                entries.remove(packageName);
+            }
+        }
+
+        private static String createEntry(String md5, String codePath) {
+            return String.format("%s %s", md5, codePath);
+        }
+    }
+
+    /**
+     * Create a {@link PackageInstaller}.
+     *
+     * @param device the {@link ITestDevice} to install packages on
+     */
+    public PackageInstaller(ITestDevice device) {
+        this(device, sLedger);
+    }
+
+    /**
+     * Create a {@link PackageInstaller} with its own {@link InstallLedger}. Exposed for unit
+     * testing.
+     */
+    PackageInstaller(ITestDevice device, InstallLedger ledger) {
+        mDevice = device;
+        mLedger = ledger;
+    }
+
+    /**
+     * Install apks on the device, replacing existing packages. Apks already installed with the
+     * same content are skipped.
+     *
+     * @param apkFiles the apks to install, in install order
+     * @return a {@link Map} of each apk to its package name, or to <code>null</code> if its
+     *         package name could not be extracted with aapt
+     * @throws TargetSetupError if an apk could not be installed
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered
+     */
+    public Map<File, String> install(List<File> apkFiles) throws TargetSetupError,
+            DeviceNotAvailableException {
+        String serial = mDevice.getSerialNumber();
+        Map<File, String> packageNames = new LinkedHashMap<File, String>();
+        Map<File, String> md5s = new HashMap<File, String>();
+        for (File apkFile : apkFiles) {
+            String md5;
+            try {
+                md5 = FileUtil.calculateMd5(apkFile);
+            } catch (IOException e) {
+                throw new TargetSetupError(String.format("Failed to read %s: %s",
+                        apkFile.getAbsolutePath(), e.getMessage()));
+            }
+            md5s.put(apkFile, md5);
+            packageNames.put(apkFile, getPackageName(apkFile, md5));
+        }
+
+        Map<String, String> codePaths = Collections.emptyMap();
+        Map<String, String> installedMd5s = Collections.emptyMap();
+        if (!mLedger.isEmpty(serial)) {
+            codePaths = getInstalledCodePaths();
+            List<String> recordedPaths = new ArrayList<String>();
+            for (File apkFile : apkFiles) {
+                String packageName = packageNames.get(apkFile);
+                if (packageName != null && mLedger.contains(serial, packageName,
+                        md5s.get(apkFile), codePaths.get(packageName))) {
+                    recordedPaths.add(codePaths.get(packageName));
+                }
+            }
+            installedMd5s = getRemoteMd5s(recordedPaths);
+        }
+        List<File> apksToInstall = new ArrayList<File>(apkFiles.size());
+        for (File apkFile : apkFiles) {
+            String packageName = packageNames.get(apkFile);
+            if (packageName != null && mLedger.contains(serial, packageName,
+                    md5s.get(apkFile), codePaths.get(packageName))
+                    && md5s.get(apkFile).equals(installedMd5s.get(codePaths.get(packageName)))) {
+                CLog.d("%s is already installed on %s", apkFile.getName(), serial);
+                continue;
+            }
+            if (packageName != null) {
+                // the install could fail after removing the installed package
+                mLedger.remove(serial, packageName);
+            }
+            apksToInstall.add(apkFile);
+        }
+
+        installAll(apksToInstall);
+
+        if (!apksToInstall.isEmpty()) {
+            codePaths = getInstalledCodePaths();
+            for (File apkFile : apksToInstall) {
+                String packageName = packageNames.get(apkFile);
+                if (packageName != null && codePaths.containsKey(packageName)) {
+                    mLedger.put(serial, packageName, md5s.get(apkFile),
+                            codePaths.get(packageName));
+                }
+            }
+        }
+        CLog.i("Installed %d apks on %s, skipped %d already installed",
+                apksToInstall.size(), serial, apkFiles.size() - apksToInstall.size());
+        return packageNames;
+    }
+
+    /**
+     * Get the package name of an apk. Exposed for unit testing.
+     *
+     * @return the package name, or <code>null</code> if it could not be extracted with aapt
+     */
+    String getPackageName(File apkFile, String md5) {
+        AaptParser aaptParser = AaptParser.parse(apkFile, md5);
+        return aaptParser == null ? null : aaptParser.getPackageName();
+    }
+
+    /**
+     * Install apks, pushing each apk while the previous one is being installed.
+     */
+    private void installAll(List<File> apkFiles) throws TargetSetupError,
+            DeviceNotAvailableException {
+        if (apkFiles.isEmpty()) {
+            return;
+        }
+        List<String> remotePaths = new ArrayList<String>(apkFiles.size());
+        for (int i = 0; i < apkFiles.size(); i++) {
+            remotePaths.add(String.format("%s/tf_install_%d.apk", REMOTE_DIR, i));
+        }
+        IDevice iDevice = mDevice.getIDevice();
+        ExecutorService pushExecutor = Executors.newSingleThreadExecutor();
+        int installed = 0;
+        try {
+            Future<Boolean> nextPush = pushExecutor.submit(
+                    createPush(iDevice, apkFiles.get(0), remotePaths.get(0)));
+            for (int i = 0; i < apkFiles.size(); i++) {
+                Future<Boolean> push = nextPush;
+                if (i + 1 < apkFiles.size()) {
+                    nextPush = pushExecutor.submit(
+                            createPush(iDevice, apkFiles.get(i + 1), remotePaths.get(i + 1)));
+                }
+                // retry a failed push on this thread, where device recovery can run
+                if (!waitForPush(push) && !mDevice.pushFile(apkFiles.get(i), remotePaths.get(i))) {
+                    throw new TargetSetupError(String.format("Failed to push %s to %s",
+                            apkFiles.get(i).getName(), mDevice.getSerialNumber()));
+                }
+                String result = installRemotePackage(remotePaths.get(i));
+                installed++;
+                if (result != null) {
+                    throw new TargetSetupError(String.format(
+                            "Failed to install %s on %s. Reason: %s",
+                            apkFiles.get(i).getName(), mDevice.getSerialNumber(), result));
+                }
+            }
+        } finally {
+            pushExecutor.shutdown();
+            if (installed < apkFiles.size()) {
+                removeRemoteFiles(pushExecutor, remotePaths.subList(installed,
+                        remotePaths.size()));
+            }
+        }
+    }
+
+    private Callable<Boolean> createPush(final IDevice iDevice, final File apkFile,
+            final String remotePath) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return pushInBackground(iDevice, apkFile, remotePath);
+            }
+        };
+    }
+
+    /**
+     * Push an apk from the background push thread. Must not use the {@link ITestDevice}, which
+     * the calling thread uses at the same time, so failures are not recovered here.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @return <code>true</code> if the apk was pushed
+     */
+    boolean pushInBackground(IDevice iDevice, File apkFile, String remotePath) {
+        SyncService syncService = null;
+        try {
+            syncService = iDevice.getSyncService();
+            if (syncService == null) {
+                return false;
+            }
+            syncService.pushFile(apkFile.getAbsolutePath(), remotePath,
+                    SyncService.getNullProgressMonitor());
+            return true;
+        } catch (TimeoutException e) {
+            CLog.w("Timed out pushing %s: %s", apkFile.getName(), e.getMessage());
+        } catch (AdbCommandRejectedException e) {
+            CLog.w("Failed to push %s: %s", apkFile.getName(), e.getMessage());
+        } catch (SyncException e) {
+            CLog.w("Failed to push %s: %s", apkFile.getName(), e.getMessage());
+        } catch (IOException e) {
+            CLog.w("Failed to push %s: %s", apkFile.getName(), e.getMessage());
+        } finally {
+            if (syncService != null) {
+                syncService.close();
+            }
+        }
+        return false;
+    }
+
+    private boolean waitForPush(Future<Boolean> push) {
+        try {
+            return push.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            CLog.i("apk push interrupted");
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Install an apk already pushed to the device, then delete it.
+     *
+     * @return <code>null</code> on success, or the failure reason
+     */
+    private String installRemotePackage(String remotePath) throws DeviceNotAvailableException {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        mDevice.executeShellCommand(String.format("pm install -r \"%s\"; rm -f \"%s\"",
+                remotePath, remotePath), receiver, PM_TIMEOUT_MS, MAX_RETRY_ATTEMPTS);
+        return parsePmResult(receiver.getOutput());
+    }
+
+    /**
+     * Delete the apks left on the device after a failure. Errors are only logged, so they do not
+     * hide the original failure.
+     */
+    private void removeRemoteFiles(ExecutorService pushExecutor, List<String> remotePaths) {
+        try {
+            // do not delete a file while it is being pushed
+            pushExecutor.awaitTermination(PUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while waiting for apk push to complete");
+        }
+        List<String> args = new ArrayList<String>(remotePaths.size());
+        for (String remotePath : remotePaths) {
+            args.add(String.format("\"%s\"", remotePath));
+        }
+        try {
+            for (String command : buildCommands("rm -f", args, "")) {
+                mDevice.executeShellCommand(command);
+            }
+        } catch (DeviceNotAvailableException e) {
+            CLog.w("Failed to delete pushed apks from %s", mDevice.getSerialNumber());
+        }
+    }
+
+    /**
+     * Get the path of the apk of each package installed on the device.
+     *
+     * @return a {@link Map} of package names to the path of their apk
+     */
+    private Map<String, String> getInstalledCodePaths() throws DeviceNotAvailableException {
+        Map<String, String> codePaths = new HashMap<String, String>();
+        // lines are package:<path>=<package name>, and the path can contain '='
+        for (String line : mDevice.executeShellCommand("pm list packages -f").split("\r?\n")) {
+            int separator = line.lastIndexOf('=');
+            if (line.startsWith(PACKAGE_PREFIX) && separator > PACKAGE_PREFIX.length()) {
+                codePaths.put(line.substring(separator + 1).trim(),
+                        line.substring(PACKAGE_PREFIX.length(), separator));
+            }
+        }
+        return codePaths;
+    }
+
+    /**
+     * Get the md5 hash of files on the device, with as few shell commands as possible.
+     *
+     * @param remotePaths the paths of the files on the device
+     * @return a {@link Map} of the paths of the files that could be hashed to their hex encoded
+     *         md5 hash
+     */
+    private Map<String, String> getRemoteMd5s(List<String> remotePaths)
+            throws DeviceNotAvailableException {
+        List<String> args = new ArrayList<String>(remotePaths.size());
+        for (String remotePath : remotePaths) {
+            args.add(String.format("'%s'", remotePath));
+        }
+        Map<String, String> md5s = new HashMap<String, String>();
+        // older devices only have the toolbox md5 command
+        for (String command : buildCommands("for f in", args,
+                "; do md5sum \"$f\" 2>/dev/null || md5 \"$f\"; done")) {
+            for (String line : mDevice.executeShellCommand(command).split("\r?\n")) {
+                String[] parts = line.trim().split("\\s+", 2);
+                if (parts.length == 2 && parts[0].matches("[0-9a-fA-F]{32}")) {
+                    md5s.put(parts[1], parts[0].toLowerCase());
+                }
+            }
+        }
+        return md5s;
+    }
+
+    /**
+     * Build the shell commands that pass the given arguments to the same command, with as many
+     * arguments per command as fit in {@link #MAX_SHELL_CMD_LENGTH}.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param prefix the start of each command, before the arguments
+     * @param args the arguments, already quoted
+     * @param suffix the end of each command, after the arguments
+     * @return the commands, which together take all the arguments in order
+     */
+    static List<String> buildCommands(String prefix, Collection<String> args, String suffix) {
+        List<String> commands = new ArrayList<String>();
+        StringBuilder command = new StringBuilder(prefix);
+        for (String arg : args) {
+            if (command.length() > prefix.length() && command.length() + 1 + arg.length()
+                    + suffix.length() > MAX_SHELL_CMD_LENGTH) {
+                commands.add(command.append(suffix).toString());
+                command = new StringBuilder(prefix);
+            }
+            command.append(' ').append(arg);
+        }
+        if (command.length() > prefix.length()) {
+            commands.add(command.append(suffix).toString());
+        }
+        return commands;
+    }
+
+    /**
+     * Uninstall packages from the device, in as few shell commands as possible.
+     *
+     * @param packageNames the names of the packages to uninstall
+     * @return a {@link Map} of the packages that could not be uninstalled to the failure reason.
+     *         Empty if all packages were uninstalled.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *             recovered
+     */
+    public Map<String, String> uninstall(Collection<String> packageNames)
+            throws DeviceNotAvailableException {
+        if (packageNames.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<String> args = new ArrayList<String>(packageNames.size());
+        for (String packageName : packageNames) {
+            args.add(String.format("'%s'", packageName));
+            mLedger.remove(mDevice.getSerialNumber(), packageName);
+        }
+        Map<String, String> results = new HashMap<String, String>();
+        for (String command : buildCommands("for p in", args,
+                "; do echo \"$p $(pm uninstall $p)\"; done")) {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            mDevice.executeShellCommand(command, receiver, PM_TIMEOUT_MS, MAX_RETRY_ATTEMPTS);
+            for (String line : receiver.getOutput().split("\r?\n")) {
+                int separator = line.indexOf(' ');
+                if (separator > 0) {
+                    results.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        }
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        for (String packageName : packageNames) {
+            String result = results.get(packageName);
+            if (result == null) {
+                failures.put(packageName, "no output from pm uninstall");
+            } else if ((result = parsePmResult(result)) != null) {
+                failures.put(packageName, result);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Parse the output of 'pm install' or 'pm uninstall'.
+     *
+     * @return <code>null</code> on success, or the failure reason
+     */
+    private static String parsePmResult(String output) {
+        if (output.contains(SUCCESS_OUTPUT)) {
+            return null;
+        }
+        Matcher m = FAILURE_PATTERN.matcher(output);
+        if (m.find()) {
+            return m.group(1);
+        }
+        return output.trim().isEmpty() ? "no output from pm" : output.trim();
+    }
+}
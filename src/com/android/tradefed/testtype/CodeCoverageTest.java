@@ -29,6 +29,7 @@ import com.android.tradefed.result.TestRunResult;
 import com.android.tradefed.util.FileUtil;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -46,6 +47,16 @@ public class CodeCoverageTest extends InstrumentationTest {
 
     private static final String COVERAGE_REMOTE_FILE_LABEL = "coverageFilePath";
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Not supported, since the coverage file is generated by a single run of the whole package.
+     */
+    @Override
+    public Collection<IRemoteTest> split() {
+        return null;
+    }
+
     @Override
     public void run(final ITestInvocationListener listener) throws DeviceNotAvailableException {
         // Disable rerun mode, we want to stop the tests as soon as we fail.
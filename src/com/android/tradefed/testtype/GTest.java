@@ -20,6 +20,7 @@ import com.android.ddmlib.FileListingService;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
@@ -27,11 +28,27 @@ import com.android.tradefed.device.IFileEntry;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * A Test that runs a native test package on given device.
+ * <p/>
+ * The test can be sharded, either by distributing the gtest binaries among shards, or by having
+ * each shard run a part of the test cases of every binary using gtest's own sharding support.
  */
 @OptionClass(alias = "gtest")
-public class GTest implements IDeviceTest, IRemoteTest {
+public class GTest implements IDeviceTest, IRemoteTest, IShardableTest {
 
     private static final String LOG_TAG = "GTest";
     static final String DEFAULT_NATIVETEST_PATH = "/data/nativetest";
@@ -63,6 +80,25 @@ public class GTest implements IDeviceTest, IRemoteTest {
             description = "Send coverage target info to test listeners.")
     private boolean mSendCoverage = true;
 
+    @Option(name = "num-shards",
+            description = "Shard this test into given number of separately runnable chunks.")
+    private int mNumShards = 0;
+
+    @Option(name = "shard-test-cases", description =
+        "Shard the test cases of each gtest binary, using GTEST_TOTAL_SHARDS and " +
+        "GTEST_SHARD_INDEX, instead of distributing the gtest binaries among shards. " +
+        "Useful when a few binaries contain most of the tests.")
+    private boolean mShardTestCases = false;
+
+    @Option(name = "max-parallel-binaries", description =
+        "The max number of gtest binaries to run at the same time on the device.")
+    private int mMaxParallelBinaries = 1;
+
+    /** the index of this shard, when sharded */
+    private int mShardIndex = 0;
+    /** the total number of shards, or 0 if not sharded */
+    private int mTotalShards = 0;
+
     /** coverage target value. Just report all gtests as 'native' for now */
     private static final String COVERAGE_TARGET = "Native";
 
@@ -71,6 +107,13 @@ public class GTest implements IDeviceTest, IRemoteTest {
     private static final String GTEST_FLAG_FILTER = "--gtest_filter";
     private static final String GTEST_FLAG_RUN_DISABLED_TESTS = "--gtest_also_run_disabled_tests";
 
+    // GTest sharding environment variables
+    private static final String GTEST_ENV_TOTAL_SHARDS = "GTEST_TOTAL_SHARDS";
+    private static final String GTEST_ENV_SHARD_INDEX = "GTEST_SHARD_INDEX";
+
+    /** max length of a single chmod command, to stay well below the device shell limits */
+    private static final int MAX_CHMOD_CMD_LENGTH = 800;
+
     /**
      * {@inheritDoc}
      */
@@ -130,6 +173,33 @@ public class GTest implements IDeviceTest, IRemoteTest {
         mMaxTestTimeMs = timeout;
     }
 
+    /**
+     * Set the number of shards the test should be split into.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setNumShards(int numShards) {
+        mNumShards = numShards;
+    }
+
+    /**
+     * Set whether to shard the test cases of each binary, instead of distributing binaries.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setShardTestCases(boolean shardTestCases) {
+        mShardTestCases = shardTestCases;
+    }
+
+    /**
+     * Set the max number of gtest binaries to run at the same time.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setMaxParallelBinaries(int maxParallelBinaries) {
+        mMaxParallelBinaries = maxParallelBinaries;
+    }
+
     /**
      * Set the Android native test name to run (positive filter).
      *
@@ -229,22 +299,157 @@ public class GTest implements IDeviceTest, IRemoteTest {
      */
     void doRunAllTestsInSubdirectory(IFileEntry rootEntry, ITestDevice testDevice,
             ITestRunListener listener) throws DeviceNotAvailableException {
+        List<IFileEntry> testEntries = new ArrayList<IFileEntry>();
+        collectTestBinaries(rootEntry, testEntries);
+        testEntries = getShardTestBinaries(testEntries);
+        if (testEntries.isEmpty()) {
+            Log.i(LOG_TAG, String.format("No gtest binaries to run in %s on %s",
+                    rootEntry.getFullEscapedPath(), testDevice.getSerialNumber()));
+            return;
+        }
+        makeExecutable(testDevice, testEntries);
+        String flags = getAllGTestFlags();
+        if (mMaxParallelBinaries > 1 && testEntries.size() > 1) {
+            runTestsInParallel(testDevice, testEntries, flags, listener);
+        } else {
+            for (IFileEntry testEntry : testEntries) {
+                runTest(testDevice, testEntry, flags, listener);
+            }
+        }
+    }
 
+    /**
+     * Recursively collect all the gtest binaries in a folder.
+     *
+     * @param rootEntry the folder or file to search
+     * @param testEntries the {@link List} to add the gtest binaries to
+     * @throws DeviceNotAvailableException
+     */
+    private void collectTestBinaries(IFileEntry rootEntry, List<IFileEntry> testEntries)
+            throws DeviceNotAvailableException {
         if (rootEntry.isDirectory()) {
-            // recursively run tests in all subdirectories
             for (IFileEntry childEntry : rootEntry.getChildren(false)) {
-                doRunAllTestsInSubdirectory(childEntry, testDevice, listener);
+                collectTestBinaries(childEntry, testEntries);
             }
         } else {
             // assume every file is a valid gtest binary.
-            IShellOutputReceiver resultParser = createResultParser(rootEntry.getName(), listener);
-            String fullPath = rootEntry.getFullEscapedPath();
-            String flags = getAllGTestFlags();
-            Log.i(LOG_TAG, String.format("Running gtest %s %s on %s", fullPath, flags,
-                    mDevice.getSerialNumber()));
-            // force file to be executable
-            testDevice.executeShellCommand(String.format("chmod 755 %s", fullPath));
-            runTest(testDevice, resultParser, fullPath, flags);
+            testEntries.add(rootEntry);
+        }
+    }
+
+    /**
+     * Get the gtest binaries this shard should run.
+     * <p/>
+     * Binaries are distributed among shards by their sorted position, so each shard selects a
+     * distinct subset of the same device listing. When sharding test cases, every shard runs
+     * all binaries.
+     */
+    private List<IFileEntry> getShardTestBinaries(List<IFileEntry> testEntries) {
+        Collections.sort(testEntries, new Comparator<IFileEntry>() {
+            @Override
+            public int compare(IFileEntry entry1, IFileEntry entry2) {
+                return entry1.getFullEscapedPath().compareTo(entry2.getFullEscapedPath());
+            }
+        });
+        if (mTotalShards <= 1 || mShardTestCases) {
+            return testEntries;
+        }
+        List<IFileEntry> shardEntries = new ArrayList<IFileEntry>();
+        for (int i = mShardIndex; i < testEntries.size(); i += mTotalShards) {
+            shardEntries.add(testEntries.get(i));
+        }
+        return shardEntries;
+    }
+
+    /**
+     * Force the given gtest binaries to be executable, using as few shell commands as possible.
+     */
+    private void makeExecutable(ITestDevice testDevice, List<IFileEntry> testEntries)
+            throws DeviceNotAvailableException {
+        StringBuilder cmd = new StringBuilder();
+        for (IFileEntry testEntry : testEntries) {
+            String fullPath = testEntry.getFullEscapedPath();
+            if (cmd.length() > 0 && cmd.length() + fullPath.length() >= MAX_CHMOD_CMD_LENGTH) {
+                testDevice.executeShellCommand(cmd.toString());
+                cmd.setLength(0);
+            }
+            if (cmd.length() == 0) {
+                cmd.append("chmod 755");
+            }
+            cmd.append(' ');
+            cmd.append(fullPath);
+        }
+        if (cmd.length() > 0) {
+            testDevice.executeShellCommand(cmd.toString());
+        }
+    }
+
+    /**
+     * Run the given gtest binaries at the same time, up to max-parallel-binaries at once.
+     * <p/>
+     * Each binary has its own result parser, and its results are forwarded to the listener once
+     * it completes, so that test runs reported to the listener are not interleaved.
+     *
+     * @throws DeviceNotAvailableException if the device became unavailable while running any of
+     *             the binaries. Binaries that had not started yet are not run
+     */
+    private void runTestsInParallel(final ITestDevice testDevice, List<IFileEntry> testEntries,
+            final String flags, final ITestRunListener listener)
+            throws DeviceNotAvailableException {
+        int numThreads = Math.min(mMaxParallelBinaries, testEntries.size());
+        Log.i(LOG_TAG, String.format("Running %d gtest binaries, %d at a time, on %s",
+                testEntries.size(), numThreads, testDevice.getSerialNumber()));
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(testEntries.size());
+            for (final IFileEntry testEntry : testEntries) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws DeviceNotAvailableException {
+                        if (aborted.get()) {
+                            return null;
+                        }
+                        RecordingTestRunListener recorder = new RecordingTestRunListener();
+                        try {
+                            runTest(testDevice, testEntry, flags, recorder);
+                        } catch (DeviceNotAvailableException e) {
+                            aborted.set(true);
+                            throw e;
+                        } catch (RuntimeException e) {
+                            aborted.set(true);
+                            throw e;
+                        } finally {
+                            synchronized (listener) {
+                                recorder.replay(listener);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            Throwable failure = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                } catch (InterruptedException e) {
+                    Log.i(LOG_TAG, "gtest execution interrupted");
+                    throw new RuntimeException(e);
+                }
+            }
+            if (failure instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException)failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException)failure;
+            } else if (failure instanceof Error) {
+                throw (Error)failure;
+            }
+        } finally {
+            executor.shutdownNow();
         }
     }
 
@@ -252,16 +457,25 @@ public class GTest implements IDeviceTest, IRemoteTest {
      * Run the given gtest binary
      *
      * @param testDevice the {@link ITestDevice}
-     * @param resultParser the test run output parser
-     * @param fullPath absolute file system path to gtest binary on device
+     * @param testEntry the gtest binary on device
      * @param flags gtest execution flags
+     * @param listener the {@link ITestRunListener} to report results to
      * @throws DeviceNotAvailableException
      */
-    private void runTest(final ITestDevice testDevice, final IShellOutputReceiver resultParser,
-            final String fullPath, final String flags) throws DeviceNotAvailableException {
+    private void runTest(final ITestDevice testDevice, final IFileEntry testEntry,
+            final String flags, final ITestRunListener listener)
+            throws DeviceNotAvailableException {
         // TODO: add individual test timeout support, and rerun support
+        IShellOutputReceiver resultParser = createResultParser(testEntry.getName(), listener);
+        String fullPath = testEntry.getFullEscapedPath();
+        Log.i(LOG_TAG, String.format("Running gtest %s %s on %s", fullPath, flags,
+                testDevice.getSerialNumber()));
         try {
             String cmd = getGTestCmdLine(fullPath, flags);
+            if (mTotalShards > 1 && mShardTestCases) {
+                cmd = String.format("%s=%d %s=%d %s", GTEST_ENV_TOTAL_SHARDS, mTotalShards,
+                        GTEST_ENV_SHARD_INDEX, mShardIndex, cmd);
+            }
             testDevice.executeShellCommand(cmd, resultParser,
                     mMaxTestTimeMs /* maxTimeToShellOutputResponse */,
                     0 /* retryAttempts */);
@@ -325,4 +539,142 @@ public class GTest implements IDeviceTest, IRemoteTest {
         }
         doRunAllTestsInSubdirectory(nativeTestDirectory, mDevice, listener);
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<IRemoteTest> split() {
+        if (mNumShards <= 1) {
+            return null;
+        }
+        Collection<IRemoteTest> shards = new ArrayList<IRemoteTest>(mNumShards);
+        for (int i = 0; i < mNumShards; i++) {
+            shards.add(createShard(i, mNumShards));
+        }
+        Log.i(LOG_TAG, String.format("Split gtest into %d shards, sharding %s", mNumShards,
+                mShardTestCases ? "test cases" : "binaries"));
+        return shards;
+    }
+
+    /**
+     * Create a copy of this test that runs the given shard.
+     */
+    private GTest createShard(int shardIndex, int totalShards) {
+        GTest shard = new GTest();
+        shard.mRunDisabledTests = mRunDisabledTests;
+        shard.mNativeTestDevicePath = mNativeTestDevicePath;
+        shard.mTestModule = mTestModule;
+        shard.mTestNamePositiveFilter = mTestNamePositiveFilter;
+        shard.mTestNameNegativeFilter = mTestNameNegativeFilter;
+        shard.mMaxTestTimeMs = mMaxTestTimeMs;
+        shard.mSendCoverage = mSendCoverage;
+        shard.mShardTestCases = mShardTestCases;
+        shard.mMaxParallelBinaries = mMaxParallelBinaries;
+        shard.mShardIndex = shardIndex;
+        shard.mTotalShards = totalShards;
+        return shard;
+    }
+
+    /**
+     * Get the index of this shard.
+     * <p/>
+     * Exposed for unit testing
+     */
+    int getShardIndex() {
+        return mShardIndex;
+    }
+
+    /**
+     * A {@link ITestRunListener} that records test run events, to be forwarded later.
+     */
+    private static class RecordingTestRunListener implements ITestRunListener {
+
+        private static abstract class Event {
+            abstract void replay(ITestRunListener listener);
+        }
+
+        private final List<Event> mEvents = new ArrayList<Event>();
+
+        /**
+         * Forward all the recorded events to the given listener, in order.
+         */
+        void replay(ITestRunListener listener) {
+            for (Event event : mEvents) {
+                event.replay(listener);
+            }
+            mEvents.clear();
+        }
+
+        @Override
+        public void testRunStarted(final String runName, final int testCount) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testRunStarted(runName, testCount);
+                }
+            });
+        }
+
+        @Override
+        public void testStarted(final TestIdentifier test) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testStarted(test);
+                }
+            });
+        }
+
+        @Override
+        public void testFailed(final TestFailure status, final TestIdentifier test,
+                final String trace) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testFailed(status, test, trace);
+                }
+            });
+        }
+
+        @Override
+        public void testEnded(final TestIdentifier test, final Map<String, String> testMetrics) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testEnded(test, testMetrics);
+                }
+            });
+        }
+
+        @Override
+        public void testRunFailed(final String errorMessage) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testRunFailed(errorMessage);
+                }
+            });
+        }
+
+        @Override
+        public void testRunStopped(final long elapsedTime) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testRunStopped(elapsedTime);
+                }
+            });
+        }
+
+        @Override
+        public void testRunEnded(final long elapsedTime, final Map<String, String> runMetrics) {
+            mEvents.add(new Event() {
+                @Override
+                void replay(ITestRunListener listener) {
+                    listener.testRunEnded(elapsedTime, runMetrics);
+                }
+            });
+        }
+    }
 }
@@ -17,18 +17,19 @@ package com.android.tradefed.testtype;
 
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.testtype.testdefs.XmlDefsTest;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Parses the 'raw output mode' results of native tests using GTest that run from shell, and informs
@@ -85,10 +86,21 @@ import java.util.regex.Pattern;
  * </pre>
  *
  * All other lines are ignored.
+ * <p/>
+ * Output is parsed directly from the bytes received from the shell: only tag lines and the
+ * output of a test in progress are converted to {@link String}s, and the output kept for each
+ * test is bounded in size.
  */
-public class GTestResultParser extends MultiLineReceiver {
+public class GTestResultParser implements IShellOutputReceiver {
     private static final String LOG_TAG = "GTestResultParser";
 
+    /** the charset shell output is decoded with */
+    private static final Charset OUTPUT_CHARSET = Charset.forName("ISO-8859-1");
+    /** max length of a single output line. Longer lines are truncated */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    /** default max number of characters of output kept for each test */
+    static final int DEFAULT_MAX_TEST_OUTPUT_SIZE = 64 * 1024;
+
     // Variables to keep track of state
     private TestResult mCurrentTestResult = null;
     private int mNumTestsRun = 0;
@@ -107,15 +119,80 @@ public class GTestResultParser extends MultiLineReceiver {
 
     private String mCoverageTarget = null;
 
+    private int mMaxTestOutputSize = DEFAULT_MAX_TEST_OUTPUT_SIZE;
+
+    /** the start of a line split across calls to {@link #addOutput(byte[], int, int)} */
+    private byte[] mPartialLine = new byte[256];
+    private int mPartialLineLength = 0;
+
+    /**
+     * The output of a test, bounded in size.
+     * <p/>
+     * Output lines are kept until half of the max size is reached. After that, only the most
+     * recent lines are kept, up to the other half, so both the start of the output and what
+     * immediately preceded the end of the test are reported.
+     */
+    private static class TestOutput {
+        private final int mMaxHalfSize;
+        private final StringBuilder mHead = new StringBuilder();
+        private final LinkedList<String> mTail = new LinkedList<String>();
+        private int mTailSize = 0;
+        private int mDroppedLines = 0;
+
+        TestOutput(int maxSize) {
+            mMaxHalfSize = Math.max(1, maxSize / 2);
+        }
+
+        void appendLine(String line) {
+            if (mTail.isEmpty() && mHead.length() + line.length() + 2 <= mMaxHalfSize) {
+                if (mHead.length() > 0) {
+                    mHead.append("\r\n");
+                }
+                mHead.append(line);
+                return;
+            }
+            if (line.length() > mMaxHalfSize) {
+                line = line.substring(0, mMaxHalfSize);
+            }
+            mTail.add(line);
+            mTailSize += line.length() + 2;
+            while (mTailSize > mMaxHalfSize && mTail.size() > 1) {
+                mTailSize -= mTail.removeFirst().length() + 2;
+                mDroppedLines++;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder output = new StringBuilder(mHead.length() + mTailSize + 64);
+            output.append(mHead);
+            if (mDroppedLines > 0) {
+                appendSeparator(output);
+                output.append(String.format("[... %d lines truncated ...]", mDroppedLines));
+            }
+            for (String line : mTail) {
+                appendSeparator(output);
+                output.append(line);
+            }
+            return output.toString();
+        }
+
+        private void appendSeparator(StringBuilder output) {
+            if (output.length() > 0) {
+                output.append("\r\n");
+            }
+        }
+    }
+
     /**
      * Test result data
      */
     private static class TestResult {
         private String mTestName = null;
         private String mTestClass = null;
-        private StringBuilder mStackTrace = null;
+        private TestOutput mStackTrace = null;
         @SuppressWarnings("unused")
-        private Long mRunTime = null;
+        private long mRunTime = -1;
 
         /** Returns whether expected values have been parsed
          *
@@ -171,9 +248,9 @@ public class GTestResultParser extends MultiLineReceiver {
     private static class ParsedTestInfo {
         String mTestName = null;
         String mTestClassName = null;
-        String mTestRunTime = null;
+        long mTestRunTime = -1;
 
-        public ParsedTestInfo(String testName, String testClassName, String testRunTime) {
+        public ParsedTestInfo(String testName, String testClassName, long testRunTime) {
             mTestName = testName;
             mTestClassName = testClassName;
             mTestRunTime = testRunTime;
@@ -236,18 +313,111 @@ public class GTestResultParser extends MultiLineReceiver {
         mCurrentTestResult = null;
     }
 
+    /**
+     * Set the max number of characters of output to keep for each test.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void setMaxTestOutputSize(int maxTestOutputSize) {
+        mMaxTestOutputSize = maxTestOutputSize;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        boolean verbose = CLog.isLoggable(LogLevel.VERBOSE);
+        int lineStart = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (data[i] == '\n') {
+                if (mPartialLineLength > 0) {
+                    appendPartialLine(data, lineStart, i);
+                    processLine(mPartialLine, 0, mPartialLineLength, verbose);
+                    mPartialLineLength = 0;
+                } else {
+                    processLine(data, lineStart, i, verbose);
+                }
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < end) {
+            appendPartialLine(data, lineStart, end);
+        }
+    }
+
+    /**
+     * Keep the start of a line that is split across output chunks.
+     */
+    private void appendPartialLine(byte[] data, int start, int end) {
+        int length = Math.min(end - start, MAX_LINE_LENGTH - mPartialLineLength);
+        if (length <= 0) {
+            return;
+        }
+        if (mPartialLineLength + length > mPartialLine.length) {
+            byte[] newPartialLine = new byte[Math.min(MAX_LINE_LENGTH,
+                    Math.max(mPartialLine.length * 2, mPartialLineLength + length))];
+            System.arraycopy(mPartialLine, 0, newPartialLine, 0, mPartialLineLength);
+            mPartialLine = newPartialLine;
+        }
+        System.arraycopy(data, start, mPartialLine, mPartialLineLength, length);
+        mPartialLineLength += length;
+    }
+
+    /**
+     * Process an output line, given as a range of bytes.
+     * <p/>
+     * The line is trimmed, and only converted to a {@link String} when it can affect the
+     * results: tag lines, and output lines of a test in progress.
+     */
+    private void processLine(byte[] data, int start, int end, boolean verbose) {
+        end = Math.min(end, start + MAX_LINE_LENGTH);
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        if (!verbose && !testInProgress() && (start == end || data[start] != '[')) {
+            return;
+        }
+        String line = new String(data, start, end - start, OUTPUT_CHARSET);
+        parse(line);
+        if (verbose) {
+            // in verbose mode, dump all adb output to log
+            Log.v(LOG_TAG, line);
+        }
+    }
+
+    /**
+     * Process output lines.
+     *
+     * @param lines the output lines to parse
+     */
     public void processNewLines(String[] lines) {
+        boolean verbose = CLog.isLoggable(LogLevel.VERBOSE);
         for (String line : lines) {
             parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
+            if (verbose) {
+                // in verbose mode, dump all adb output to log
+                Log.v(LOG_TAG, line);
+            }
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() {
+        if (mPartialLineLength > 0) {
+            processLine(mPartialLine, 0, mPartialLineLength, CLog.isLoggable(LogLevel.VERBOSE));
+            mPartialLineLength = 0;
+        }
+        done();
+    }
+
     /**
      * Parse an individual output line.
      *
@@ -387,31 +557,68 @@ public class GTestResultParser extends MultiLineReceiver {
      *          test names (but not for the time value).
      */
     private ParsedTestInfo parseTestIdentifier(String identifier) {
-        ParsedTestInfo returnInfo = new ParsedTestInfo("UNKNOWN_CLASS", "UNKNOWN_TEST", null);
-
-        Pattern timePattern = Pattern.compile(".*(\\((\\d+) ms\\))");  // eg: (XX ms)
-        Matcher time = timePattern.matcher(identifier);
-
-        // Try to find a time
-        if (time.find()) {
-            String timeString = time.group(2);  // the "XX" in "(XX ms)"
-            String discardPortion = time.group(1);  // everything after the test class/name
-            identifier = identifier.substring(0, identifier.lastIndexOf(discardPortion)).trim();
-            returnInfo.mTestRunTime = timeString;
+        ParsedTestInfo returnInfo = new ParsedTestInfo("UNKNOWN_CLASS", "UNKNOWN_TEST", -1);
+
+        // Try to find a time, eg: (XX ms)
+        int timeEnd = identifier.lastIndexOf(" ms)");
+        if (timeEnd > 0) {
+            int timeStart = identifier.lastIndexOf('(', timeEnd);
+            long time = parseNumber(identifier, timeStart + 1, timeEnd);
+            if (timeStart >= 0 && time >= 0) {
+                identifier = identifier.substring(0, timeStart).trim();
+                returnInfo.mTestRunTime = time;
+            }
         }
 
-        String[] testId = identifier.split("\\.");
-        if (testId.length < 2) {
+        // eg: classname.testname, ignoring anything after a second '.'
+        int classEnd = identifier.indexOf('.');
+        int nameEnd = classEnd < 0 ? -1 : identifier.indexOf('.', classEnd + 1);
+        if (nameEnd < 0) {
+            nameEnd = identifier.length();
+        }
+        if (classEnd < 0 || !hasNonSeparator(identifier, classEnd + 1)) {
             Log.e(LOG_TAG, "Could not detect the test class and test name, received: " +
                     identifier);
         }
         else {
-            returnInfo.mTestClassName = testId[0];
-            returnInfo.mTestName = testId[1];
+            returnInfo.mTestClassName = identifier.substring(0, classEnd);
+            returnInfo.mTestName = identifier.substring(classEnd + 1, nameEnd);
         }
         return returnInfo;
     }
 
+    /**
+     * Returns true if the given string has a character other than '.' at or after start.
+     */
+    private static boolean hasNonSeparator(String identifier, int start) {
+        for (int i = start; i < identifier.length(); i++) {
+            if (identifier.charAt(i) != '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a non-negative decimal number from part of a string.
+     *
+     * @return the number, or -1 if the range is empty or does not contain only digits
+     */
+    private static long parseNumber(String text, int start, int end) {
+        if (start < 0 || start >= end || end - start > 18) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
     /**
      * Parses and stores the test identifier (class and test name).
      *
@@ -419,17 +626,18 @@ public class GTestResultParser extends MultiLineReceiver {
      */
     private void processRunStartedTag(String identifier) {
         // eg: (Running XX tests from 1 test case.)
-        Pattern numTestsPattern = Pattern.compile("Running (\\d+) test[s]? from .*");
-        Matcher numTests = numTestsPattern.matcher(identifier);
-
-        // Try to find number of tests
-        if (numTests.find()) {
-            try {
-                mNumTestsExpected = Integer.parseInt(numTests.group(1));
-            }
-            catch (NumberFormatException e) {
-                Log.e(LOG_TAG, "Unable to determine number of tests expected, received: " +
-                        numTests.group(1));
+        final String runningPrefix = "Running ";
+        if (identifier.startsWith(runningPrefix)) {
+            int numEnd = identifier.indexOf(' ', runningPrefix.length());
+            if (numEnd > 0 && identifier.startsWith(" test", numEnd)
+                    && identifier.indexOf(" from ", numEnd) > 0) {
+                long numTests = parseNumber(identifier, runningPrefix.length(), numEnd);
+                if (numTests >= 0 && numTests <= Integer.MAX_VALUE) {
+                    mNumTestsExpected = (int)numTests;
+                } else {
+                    Log.e(LOG_TAG, "Unable to determine number of tests expected, received: " +
+                            identifier);
+                }
             }
         }
         if (mNumTestsExpected > 0) {
@@ -445,17 +653,16 @@ public class GTestResultParser extends MultiLineReceiver {
      * @param identifier Raw log output from the suite ended tag
      */
     private void processRunCompletedTag(String identifier) {
-        Pattern timePattern = Pattern.compile(".*\\((\\d+) ms total\\)");  // eg: (XX ms total)
-        Matcher time = timePattern.matcher(identifier);
-
-        // Try to find the total run time
-        if (time.find()) {
-            try {
-                mTotalRunTime = Long.parseLong(time.group(1));
-            }
-            catch (NumberFormatException e) {
+        // Try to find the total run time, eg: (XX ms total)
+        int timeEnd = identifier.lastIndexOf(" ms total)");
+        if (timeEnd > 0) {
+            int timeStart = identifier.lastIndexOf('(', timeEnd);
+            long time = parseNumber(identifier, timeStart + 1, timeEnd);
+            if (time >= 0) {
+                mTotalRunTime = time;
+            } else {
                 Log.e(LOG_TAG, "Unable to determine the total running time, received: " +
-                        time.group(1));
+                        identifier);
             }
         }
         reportTestRunEnded();
@@ -501,14 +708,8 @@ public class GTestResultParser extends MultiLineReceiver {
         }
 
         // Save the run time for this test if one exists
-        if (parsedResults.mTestRunTime != null) {
-            try {
-                testResult.mRunTime = new Long(parsedResults.mTestRunTime);
-            }
-            catch (NumberFormatException e) {
-                Log.e(LOG_TAG, "Test run time value is invalid, received: " +
-                        parsedResults.mTestRunTime);
-            }
+        if (parsedResults.mTestRunTime >= 0) {
+            testResult.mRunTime = parsedResults.mTestRunTime;
         }
 
         // Check that the test result is for the same test/class we're expecting it to be for
@@ -584,12 +785,9 @@ public class GTestResultParser extends MultiLineReceiver {
     private void appendTestOutputLine(String line) {
         TestResult testResult = getCurrentTestResult();
         if (testResult.mStackTrace == null) {
-            testResult.mStackTrace = new StringBuilder();
+            testResult.mStackTrace = new TestOutput(mMaxTestOutputSize);
         }
-        else {
-            testResult.mStackTrace.append("\r\n");
-        }
-        testResult.mStackTrace.append(line);
+        testResult.mStackTrace.appendLine(line);
     }
 
     /**
@@ -630,11 +828,9 @@ public class GTestResultParser extends MultiLineReceiver {
     }
 
     /**
-     * Called by parent when adb session is complete.
+     * Called when the adb session is complete, from {@link #flush()}.
      */
-    @Override
     public void done() {
-        super.done();
         if (mNumTestsExpected > mNumTestsRun) {
             handleTestRunFailed(String.format("Test run incomplete. Expected %d tests, received %d",
                     mNumTestsExpected, mNumTestsRun));
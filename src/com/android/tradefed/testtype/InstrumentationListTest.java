@@ -24,13 +24,23 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ResultForwarder;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A Test that runs a set of individual instrumentation tests.
+ * <p/>
+ * By default each test is run with its own instrumentation. In batch mode, the tests of each
+ * class are run together with a single instrumentation. If the instrumentation fails to run all
+ * of them, the tests that did not run are split in two halves, which are run the same way, until
+ * the tests that cannot run are isolated and run individually.
  */
 class InstrumentationListTest implements IDeviceTest, IRemoteTest {
 
@@ -51,6 +61,9 @@ class InstrumentationListTest implements IDeviceTest, IRemoteTest {
     private ITestDevice mDevice = null;
     private String mRunName = null;
     private Map<String, String> mInstrArgMap = new HashMap<String, String>();
+    private boolean mBatchMode = false;
+    /** the number of instrumentations launched by the last run */
+    private int mLaunchCount = 0;
 
     /**
      * Creates a {@link InstrumentationListTest}.
@@ -89,6 +102,22 @@ class InstrumentationListTest implements IDeviceTest, IRemoteTest {
         mRunName  = runName;
     }
 
+    /**
+     * Optionally, run the tests of the same class with a single instrumentation.
+     */
+    void setBatchMode(boolean batchMode) {
+        mBatchMode = batchMode;
+    }
+
+    /**
+     * Get the number of instrumentations launched by the last run.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    int getLaunchCount() {
+        return mLaunchCount;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -112,23 +141,110 @@ class InstrumentationListTest implements IDeviceTest, IRemoteTest {
         if (mDevice == null) {
             throw new IllegalArgumentException("Device has not been set");
         }
-        // reuse the InstrumentationTest class to perform actual test run
+        mLaunchCount = 0;
+        if (mBatchMode) {
+            for (List<TestIdentifier> classTests : groupByClass(mTests)) {
+                for (List<TestIdentifier> batch : splitByLength(classTests)) {
+                    runBatch(batch, listener);
+                }
+            }
+            // running the tests one by one takes at least one instrumentation per test
+            CLog.i("Ran %d tests of %s with %d instrumentations, saving at least %d " +
+                    "instrumentations", mTests.size(), mPackageName, mLaunchCount,
+                    Math.max(0, mTests.size() - mLaunchCount));
+            return;
+        }
         for (TestIdentifier testToRun : mTests) {
-            InstrumentationTest runner = createInstrumentationTest();
-            runner.setDevice(mDevice);
-            runner.setPackageName(mPackageName);
-            runner.setRunnerName(mRunnerName);
+            runTest(createRunner(testToRun), listener, testToRun);
+        }
+    }
+
+    /**
+     * Create the {@link InstrumentationTest} to run a single test.
+     */
+    private InstrumentationTest createRunner(TestIdentifier testToRun) {
+        // reuse the InstrumentationTest class to perform actual test run
+        InstrumentationTest runner = createInstrumentationTest();
+        runner.setDevice(mDevice);
+        runner.setPackageName(mPackageName);
+        runner.setRunnerName(mRunnerName);
+        if (testToRun != null) {
             runner.setClassName(testToRun.getClassName());
             runner.setMethodName(testToRun.getTestName());
-            runner.setTestTimeout(mTestTimeout);
-            // no need to rerun when executing tests one by one
-            runner.setRerunMode(false);
-            runner.setRunName(mRunName);
-            for (Map.Entry<String, String> entry : mInstrArgMap.entrySet()) {
-                runner.addInstrumentationArg(entry.getKey(), entry.getValue());
+        }
+        runner.setTestTimeout(mTestTimeout);
+        // no need to rerun when executing tests one by one
+        runner.setRerunMode(false);
+        runner.setRunName(mRunName);
+        for (Map.Entry<String, String> entry : mInstrArgMap.entrySet()) {
+            runner.addInstrumentationArg(entry.getKey(), entry.getValue());
+        }
+        return runner;
+    }
+
+    /**
+     * Group tests by class, keeping their order.
+     */
+    private static Collection<List<TestIdentifier>> groupByClass(
+            Collection<TestIdentifier> tests) {
+        Map<String, List<TestIdentifier>> batches =
+                new LinkedHashMap<String, List<TestIdentifier>>();
+        for (TestIdentifier test : tests) {
+            List<TestIdentifier> batch = batches.get(test.getClassName());
+            if (batch == null) {
+                batch = new ArrayList<TestIdentifier>();
+                batches.put(test.getClassName(), batch);
             }
-            runTest(runner, listener, testToRun);
+            batch.add(test);
         }
+        return batches.values();
+    }
+
+    /**
+     * Split the tests of a class into batches whose names fit in the arguments of a single
+     * instrumentation.
+     */
+    private static List<List<TestIdentifier>> splitByLength(List<TestIdentifier> tests) {
+        List<List<TestIdentifier>> batches = new ArrayList<List<TestIdentifier>>();
+        int start = 0;
+        for (String[] names : InstrumentationTest.splitClassNames(
+                InstrumentationTest.getMethodArgNames(tests))) {
+            batches.add(tests.subList(start, start + names.length));
+            start += names.length;
+        }
+        return batches;
+    }
+
+    /**
+     * Run a batch of tests with a single instrumentation. If some tests did not run, run them
+     * again in two halves.
+     */
+    private void runBatch(List<TestIdentifier> batch, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        if (batch.size() == 1) {
+            TestIdentifier testToRun = batch.get(0);
+            runTest(createRunner(testToRun), listener, testToRun);
+            return;
+        }
+        InstrumentationTest runner = createRunner(null);
+        runner.setTestMethods(batch);
+        BatchTrackingListener trackingListener = new BatchTrackingListener(listener);
+        mLaunchCount++;
+        runner.run(trackingListener);
+        List<TestIdentifier> remainingTests = new ArrayList<TestIdentifier>();
+        for (TestIdentifier test : batch) {
+            if (!trackingListener.didTestRun(test)) {
+                remainingTests.add(test);
+            }
+        }
+        if (remainingTests.isEmpty()) {
+            return;
+        }
+        CLog.w("%d of %d tests did not run in batch, rerunning them in two halves",
+                remainingTests.size(), batch.size());
+        int half = remainingTests.size() / 2;
+        runBatch(remainingTests.subList(0, half), listener);
+        runBatch(remainingTests.subList(half, remainingTests.size()), listener);
     }
 
     private void runTest(InstrumentationTest runner, ITestInvocationListener listener,
@@ -136,6 +252,7 @@ class InstrumentationListTest implements IDeviceTest, IRemoteTest {
         // use a listener filter, to track if the test failed to run
         TestTrackingListener trackingListener = new TestTrackingListener(listener, testToRun);
         for (int i=1; i <= FAILED_RUN_TEST_ATTEMPTS; i++) {
+            mLaunchCount++;
             runner.run(trackingListener);
             if (trackingListener.didTestRun()) {
                 return;
@@ -203,6 +320,28 @@ class InstrumentationListTest implements IDeviceTest, IRemoteTest {
         }
     }
 
+    /**
+     * A {@link ResultForwarder} that records which tests of a batch ran.
+     */
+    private static class BatchTrackingListener extends ResultForwarder {
+
+        private final Set<TestIdentifier> mRanTests = new HashSet<TestIdentifier>();
+
+        public BatchTrackingListener(ITestInvocationListener listener) {
+            super(listener);
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            super.testEnded(test, testMetrics);
+            mRanTests.add(test);
+        }
+
+        public boolean didTestRun(TestIdentifier test) {
+            return mRanTests.contains(test);
+        }
+    }
+
     void addInstrumentationArgs(Map<String, String> instrArgMap) {
         mInstrArgMap.putAll(instrArgMap);
     }
@@ -22,9 +22,11 @@ import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner.TestSize;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -33,18 +35,26 @@ import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StringEscapeUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * A Test that runs an instrumentation test package on given device.
  */
 @OptionClass(alias = "instrumentation")
-public class InstrumentationTest implements IDeviceTest, IResumableTest {
+public class InstrumentationTest implements IDeviceTest, IResumableTest, IShardableTest {
 
     private static final String LOG_TAG = "InstrumentationTest";
 
@@ -53,6 +63,9 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
     static final String DELAY_MSEC_ARG = "delay_msec";
 
+    /** max length of the list of class names given to a single instrumentation */
+    static final int MAX_CLASS_ARG_LENGTH = 800;
+
     @Option(name = "package", shortName = 'p',
             description="The manifest package name of the Android test application to run.",
             importance = Importance.IF_UNSET)
@@ -85,10 +98,15 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
     private String mTestSize = null;
 
     @Option(name = "rerun",
-            description = "Rerun unexecuted tests individually on same device if test run " +
+            description = "Rerun unexecuted tests on same device if test run " +
             "fails to complete.")
     private boolean mIsRerunMode = true;
 
+    @Option(name = "rerun-batch",
+            description = "Rerun unexecuted tests of the same class with a single " +
+            "instrumentation, splitting batches that fail to complete, rather than individually.")
+    private boolean mIsRerunBatchMode = true;
+
     @Option(name = "resume",
             description = "Schedule unexecuted tests for resumption on another device " +
             "if first device becomes unavailable.")
@@ -117,6 +135,22 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             "collector, so use the EACH setting with due caution.")
     private BugreportCollector.Freq mBugreportFrequency = null;
 
+    @Option(name = "test-list-cache-dir",
+            description = "Optional directory in which to cache the list of tests of each test " +
+            "apk, to skip collecting them on later runs of the same apk.")
+    private File mTestListCacheDir = null;
+
+    @Option(name = "timing-history-file",
+            description = "Optional file in which to record the time taken by each test class, " +
+            "to balance shards by predicted time.")
+    private File mTimingHistoryFile = null;
+
+    @Option(name = "num-shards",
+            description = "Shard this test into given number of separately runnable chunks, " +
+            "at test class granularity. Requires a timing-history-file with recorded times " +
+            "for the package.")
+    private int mNumShards = 0;
+
     private ITestDevice mDevice = null;
 
     private IRemoteAndroidTestRunner mRunner;
@@ -125,6 +159,8 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
     private String mCoverageTarget = null;
 
+    private Collection<TestIdentifier> mTestMethods = null;
+
     /**
      * Max time in ms to allow for the 'max time to shell output response' when collecting tests.
      * TODO: currently the collect tests command may take a long time to even start, so this is set
@@ -134,6 +170,18 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
     private boolean mForceBatchMode = false;
 
+    /** the key of the list of tests to run, if it was read from the cache */
+    private String mTestListCacheKey = null;
+
+    /** the test classes to run in this shard, or <code>null</code> if not a shard */
+    private Set<String> mShardClasses = null;
+    /** the test classes planned to run in any shard */
+    private Set<String> mPlannedClasses = null;
+    /** if true, this shard also runs the test classes that were not planned for any shard */
+    private boolean mRunUnplannedClasses = false;
+    private ShardPlanner.Plan<String> mShardPlan = null;
+    private int mShardIndex = 0;
+
     /**
      * {@inheritDoc}
      */
@@ -177,6 +225,15 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         mTestMethodName = StringEscapeUtils.escapeShell(testMethodName);
     }
 
+    /**
+     * Optionally, set the test methods to run with a single instrumentation. Overrides the test
+     * class and method. Their names must fit in {@link #MAX_CLASS_ARG_LENGTH}, see
+     * {@link #splitClassNames(Collection)}.
+     */
+    void setTestMethods(Collection<TestIdentifier> tests) {
+        mTestMethods = tests;
+    }
+
     /**
      * Optionally, set the test size to run.
      */
@@ -221,7 +278,7 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
     /**
      * Get the class name to run.
      */
-    String getClassName() {
+    public String getClassName() {
         return mTestClassName;
     }
 
@@ -232,6 +289,13 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         return mTestMethodName;
     }
 
+    /**
+     * Get the test methods to run with a single instrumentation.
+     */
+    Collection<TestIdentifier> getTestMethods() {
+        return mTestMethods;
+    }
+
     /**
      * Get the test java package to run.
      */
@@ -308,6 +372,13 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         mIsRerunMode = rerun;
     }
 
+    /**
+     * Optionally, set if unexecuted tests should be rerun in batches rather than individually.
+     */
+    public void setRerunBatchMode(boolean rerunBatch) {
+        mIsRerunBatchMode = rerunBatch;
+    }
+
     /**
      * Optionally, set the resume mode.
      */
@@ -367,6 +438,52 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         mBugreportFrequency = freq;
     }
 
+    /**
+     * Set the directory in which to cache the list of tests of each test apk.
+     *
+     * @param cacheDir the cache directory, or <code>null</code> to disable caching
+     */
+    public void setTestListCacheDir(File cacheDir) {
+        mTestListCacheDir = cacheDir;
+    }
+
+    /**
+     * Set the file in which to record the time taken by each test class.
+     *
+     * @param historyFile the timing history file, or <code>null</code> to not record times
+     */
+    public void setTimingHistoryFile(File historyFile) {
+        mTimingHistoryFile = historyFile;
+    }
+
+    /**
+     * Set the number of shards this test should be split into.
+     */
+    public void setNumShards(int numShards) {
+        mNumShards = numShards;
+    }
+
+    /**
+     * Get the test classes to run in this shard.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @return the test classes, or <code>null</code> if this test is not a shard
+     */
+    Set<String> getShardClasses() {
+        return mShardClasses;
+    }
+
+    /**
+     * Return <code>true</code> if this shard also runs the test classes that were not planned
+     * for any shard.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    boolean isRunUnplannedClasses() {
+        return mRunUnplannedClasses;
+    }
+
     /**
      * Add an argument to provide when running the instrumentation tests
      *
@@ -377,6 +494,42 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         mInstrArgMap.put(key, value);
     }
 
+    /**
+     * Get the names to give to the instrumentation to run the given test methods.
+     */
+    static List<String> getMethodArgNames(Collection<TestIdentifier> tests) {
+        List<String> names = new ArrayList<String>(tests.size());
+        for (TestIdentifier test : tests) {
+            names.add(String.format("%s#%s", test.getClassName(),
+                    StringEscapeUtils.escapeShell(test.getTestName())));
+        }
+        return names;
+    }
+
+    /**
+     * Split class or method names into groups, keeping their order, so that the comma separated
+     * names of each group fit in {@link #MAX_CLASS_ARG_LENGTH}. A name longer than that gets a
+     * group of its own.
+     */
+    static List<String[]> splitClassNames(Collection<String> names) {
+        List<String[]> groups = new ArrayList<String[]>();
+        List<String> group = new ArrayList<String>();
+        int length = 0;
+        for (String name : names) {
+            if (!group.isEmpty() && length + 1 + name.length() > MAX_CLASS_ARG_LENGTH) {
+                groups.add(group.toArray(new String[group.size()]));
+                group.clear();
+            }
+            // names are separated by commas
+            length = group.isEmpty() ? name.length() : length + 1 + name.length();
+            group.add(name);
+        }
+        if (!group.isEmpty()) {
+            groups.add(group.toArray(new String[group.size()]));
+        }
+        return groups;
+    }
+
     /**
      * @return the {@link IRemoteAndroidTestRunner} to use.
      */
@@ -389,7 +542,7 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
      * {@inheritDoc}
      */
     @Override
-    public void run(final ITestInvocationListener listener) throws DeviceNotAvailableException {
+    public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
         if (mPackageName == null) {
             throw new IllegalArgumentException("package name has not been set");
         }
@@ -399,7 +552,15 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
         mRunner = createRemoteAndroidTestRunner(mPackageName, mRunnerName,
                 mDevice.getIDevice());
-        if (mTestClassName != null) {
+        if (mTestMethods != null) {
+            List<String> testNames = getMethodArgNames(mTestMethods);
+            if (splitClassNames(testNames).size() > 1) {
+                throw new IllegalArgumentException(String.format(
+                        "names of the %d test methods to run are longer than %d characters",
+                        testNames.size(), MAX_CLASS_ARG_LENGTH));
+            }
+            mRunner.setClassNames(testNames.toArray(new String[testNames.size()]));
+        } else if (mTestClassName != null) {
             if (mTestMethodName != null) {
                 mRunner.setMethodName(mTestClassName, mTestMethodName);
             } else {
@@ -419,6 +580,13 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             mRunner.addInstrumentationArg(argEntry.getKey(), argEntry.getValue());
         }
 
+        long startTime = System.currentTimeMillis();
+        TestTimingHistory.Recorder timingRecorder = null;
+        if (mTimingHistoryFile != null) {
+            timingRecorder = new TestTimingHistory(mTimingHistoryFile).createRecorder(listener,
+                    mPackageName);
+            listener = timingRecorder;
+        }
         if (mInstallFile != null) {
             mDevice.installPackage(mInstallFile, true);
             doTestRun(listener);
@@ -426,6 +594,76 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         } else {
             doTestRun(listener);
         }
+        if (timingRecorder != null) {
+            timingRecorder.commit();
+        }
+        if (mShardPlan != null) {
+            mShardPlan.reportShardDuration(mShardIndex, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The test classes of the package are distributed among shards by their predicted time,
+     * read from the timing history. Each shard collects the tests of the package, and only runs
+     * those of its classes. The classes that have no recorded time, typically because they were
+     * added since, run in the shard with the least predicted time.
+     */
+    @Override
+    public Collection<IRemoteTest> split() {
+        if (mNumShards <= 1) {
+            return null;
+        }
+        if (mPackageName == null || mTestClassName != null || mTestMethods != null
+                || mTimingHistoryFile == null || !mIsRerunMode) {
+            CLog.w("Sharding %s requires a timing history file, rerun mode, and no class or " +
+                    "method filter", mPackageName);
+            return null;
+        }
+        Map<String, Long> classDurations = new TestTimingHistory(
+                mTimingHistoryFile).getClassDurations(mPackageName);
+        if (classDurations.size() <= 1) {
+            CLog.w("Not enough test classes with recorded times to shard %s", mPackageName);
+            return null;
+        }
+        ShardPlanner.Plan<String> plan = ShardPlanner.plan(mPackageName, classDurations,
+                mNumShards);
+        int shortestShard = 0;
+        for (int i = 1; i < plan.getNumShards(); i++) {
+            if (plan.getPredictedDuration(i) < plan.getPredictedDuration(shortestShard)) {
+                shortestShard = i;
+            }
+        }
+        Set<String> plannedClasses = new HashSet<String>(classDurations.keySet());
+        Collection<IRemoteTest> shards = new ArrayList<IRemoteTest>(plan.getNumShards());
+        for (int i = 0; i < plan.getNumShards(); i++) {
+            InstrumentationTest shard = createShard();
+            try {
+                OptionCopier.copyOptions(this, shard);
+            } catch (ConfigurationException e) {
+                CLog.e("Failed to copy options of %s to its shards", mPackageName);
+                CLog.e(e);
+                return null;
+            }
+            shard.mNumShards = 0;
+            shard.mCoverageTarget = mCoverageTarget;
+            shard.mCollectTestsShellTimeout = mCollectTestsShellTimeout;
+            shard.mShardClasses = new HashSet<String>(plan.getShard(i));
+            shard.mPlannedClasses = plannedClasses;
+            shard.mRunUnplannedClasses = i == shortestShard;
+            shard.mShardPlan = plan;
+            shard.mShardIndex = i;
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    /**
+     * @return the {@link InstrumentationTest} to use for a shard. Exposed for unit testing.
+     */
+    InstrumentationTest createShard() {
+        return new InstrumentationTest();
     }
 
     /**
@@ -436,14 +674,19 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
      */
     private void doTestRun(ITestInvocationListener listener)
             throws DeviceNotAvailableException {
+        mTestListCacheKey = null;
 
         if (mRemainingTests != null && !mForceBatchMode) {
-            // have remaining tests! This must be a rerun - rerun them individually
+            // have remaining tests! This must be a rerun
             rerunTests(listener);
             return;
         }
+        List<String[]> shardClassGroups = null;
         if (mRemainingTests == null) {
             mRemainingTests = collectTestsToRun(mRunner);
+            if (mShardClasses != null) {
+                shardClassGroups = selectShardTests();
+            }
         }
         if (mBugreportFrequency != null) {
             // Collect a bugreport after EACH/FIRST failed testcase
@@ -456,7 +699,9 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             listener = collector;
         }
 
-        if (mRemainingTests == null) {
+        if (shardClassGroups != null && shardClassGroups.size() > 1) {
+            runClassGroups(listener, shardClassGroups);
+        } else if (mRemainingTests == null) {
             // failed to collect the tests or collection is off. Just try to run them all
             mDevice.runInstrumentationTests(mRunner, listener);
         } else if (mRemainingTests.size() != 0) {
@@ -467,7 +712,68 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
     }
 
     /**
-     * Execute the test run, but re-run incomplete tests individually if run fails to complete.
+     * Restrict the run to the tests of the test classes of this shard.
+     *
+     * @return the classes of this shard, in groups that each fit in the arguments of a single
+     *         instrumentation. The runner is set to run the classes when there is only one group.
+     */
+    private List<String[]> selectShardTests() {
+        // the tests to run are no longer those of the whole package, so the cached list cannot
+        // be checked
+        mTestListCacheKey = null;
+        Set<String> classes = new LinkedHashSet<String>();
+        if (mRemainingTests == null) {
+            CLog.w("Could not collect the tests of %s, only running the classes of shard %d",
+                    mPackageName, mShardIndex);
+            classes.addAll(mShardClasses);
+        } else {
+            Collection<TestIdentifier> shardTests = new LinkedHashSet<TestIdentifier>();
+            for (TestIdentifier test : mRemainingTests) {
+                if (mShardClasses.contains(test.getClassName()) || (mRunUnplannedClasses
+                        && !mPlannedClasses.contains(test.getClassName()))) {
+                    shardTests.add(test);
+                    classes.add(test.getClassName());
+                }
+            }
+            mRemainingTests = shardTests;
+        }
+        List<String[]> classGroups = splitClassNames(classes);
+        if (classGroups.size() == 1) {
+            mRunner.setClassNames(classGroups.get(0));
+        }
+        return classGroups;
+    }
+
+    /**
+     * Run groups of test classes with an instrumentation each, then re-run the tests that did not
+     * run.
+     *
+     * @param listener the {@link ITestInvocationListener}
+     * @param classGroups the names of the classes to run with each instrumentation
+     */
+    private void runClassGroups(ITestInvocationListener listener, List<String[]> classGroups)
+            throws DeviceNotAvailableException {
+        CLog.i("Running the classes of %s shard %d with %d instrumentations", mPackageName,
+                mShardIndex, classGroups.size());
+        for (String[] classes : classGroups) {
+            mRunner.setClassNames(classes);
+            CollectingTestListener testTracker = new CollectingTestListener();
+            try {
+                mDevice.runInstrumentationTests(mRunner,
+                        new ResultForwarder(listener, testTracker));
+            } finally {
+                if (mRemainingTests != null) {
+                    calculateRemainingTests(mRemainingTests, testTracker);
+                }
+            }
+        }
+        if (mRemainingTests != null) {
+            rerunTests(listener);
+        }
+    }
+
+    /**
+     * Execute the test run, but re-run incomplete tests if run fails to complete.
      *
      * @param listener the {@link ITestInvocationListener}
      * @param expectedTests the full set of expected tests in this run.
@@ -476,16 +782,109 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             Collection<TestIdentifier> expectedTests) throws DeviceNotAvailableException {
         CollectingTestListener testTracker = new CollectingTestListener();
         mRemainingTests = expectedTests;
+        Set<TestIdentifier> cachedTests = null;
+        if (mTestListCacheKey != null) {
+            cachedTests = new HashSet<TestIdentifier>(expectedTests);
+        }
         try {
             mDevice.runInstrumentationTests(mRunner, new ResultForwarder(listener, testTracker));
         } finally {
             calculateRemainingTests(mRemainingTests, testTracker);
         }
+        if (cachedTests != null) {
+            checkTestListCache(cachedTests, testTracker.getCurrentRunResults());
+        }
         rerunTests(listener);
     }
 
     /**
-     * Rerun any <var>mRemainingTests</var> one by one
+     * Check that the cached list of tests matches the tests of a complete run. If it does not,
+     * replace the cached list by the tests that ran, and do not rerun the cached tests that do not
+     * exist.
+     *
+     * @param cachedTests the cached tests
+     * @param runResults the results of the run
+     */
+    private void checkTestListCache(Set<TestIdentifier> cachedTests, TestRunResult runResults) {
+        if (!runResults.isRunComplete() || runResults.isRunFailure()) {
+            // cannot tell which tests exist
+            return;
+        }
+        Set<TestIdentifier> ranTests = runResults.getTestResults().keySet();
+        if (cachedTests.equals(ranTests)) {
+            return;
+        }
+        CLog.w("Cached list of %d tests for %s does not match the %d tests that ran, updating it",
+                cachedTests.size(), mPackageName, ranTests.size());
+        getTestListCache().put(mTestListCacheKey, ranTests);
+        mRemainingTests.retainAll(ranTests);
+    }
+
+    /**
+     * @return the {@link TestListCache} to use. Exposed for unit testing.
+     */
+    TestListCache getTestListCache() {
+        return new TestListCache(mTestListCacheDir);
+    }
+
+    /**
+     * Compute the key of the cached list of tests of this run, from the content of the test apk
+     * and from all the arguments that select the tests to run.
+     *
+     * @return the key, or <code>null</code> if the content of the apk could not be hashed
+     * @throws DeviceNotAvailableException
+     */
+    private String getTestListCacheKey() throws DeviceNotAvailableException {
+        String apkHash = null;
+        if (mInstallFile != null) {
+            try {
+                apkHash = FileUtil.calculateMd5(mInstallFile);
+            } catch (IOException e) {
+                CLog.w("Failed to hash %s: %s", mInstallFile.getAbsolutePath(), e.getMessage());
+            }
+        } else {
+            apkHash = getInstalledApkHash();
+        }
+        if (apkHash == null) {
+            return null;
+        }
+        // sort the args so their order does not matter
+        return TestListCache.createKey(apkHash, mPackageName, mRunnerName, mTestClassName,
+                mTestMethodName, mTestPackageName, mTestSize,
+                new TreeMap<String, String>(mInstrArgMap).toString());
+    }
+
+    /**
+     * Get the hash of the content of the installed test apk.
+     *
+     * @return the hex encoded MD5 checksum of the apk, or <code>null</code> if it could not be
+     *         computed
+     * @throws DeviceNotAvailableException
+     */
+    private String getInstalledApkHash() throws DeviceNotAvailableException {
+        String pathOutput = mDevice.executeShellCommand(String.format("pm path %s",
+                mPackageName));
+        if (pathOutput == null || !pathOutput.trim().startsWith("package:")) {
+            CLog.w("Could not find the apk of %s on device %s", mPackageName,
+                    mDevice.getSerialNumber());
+            return null;
+        }
+        String apkPath = pathOutput.trim().substring("package:".length()).split("\\s+")[0];
+        String md5Output = mDevice.executeShellCommand(String.format(
+                "md5sum %s 2>/dev/null || md5 %s", apkPath, apkPath));
+        if (md5Output != null) {
+            String hash = md5Output.trim().split("\\s+")[0].toLowerCase();
+            if (hash.matches("[0-9a-f]{32}")) {
+                return hash;
+            }
+        }
+        CLog.w("Could not compute the checksum of %s on device %s", apkPath,
+                mDevice.getSerialNumber());
+        return null;
+    }
+
+    /**
+     * Rerun any <var>mRemainingTests</var>, one by one or in batches
      *
      * @param listener the {@link ITestInvocationListener}
      * @throws DeviceNotAvailableException
@@ -499,6 +898,7 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             testRerunner.setTestTimeout(getTestTimeout());
             testRerunner.setRunName(mRunName);
             testRerunner.addInstrumentationArgs(mInstrArgMap);
+            testRerunner.setBatchMode(mIsRerunBatchMode);
             CollectingTestListener testTracker = new CollectingTestListener();
             try {
                 testRerunner.run(new ResultForwarder(listener, testTracker));
@@ -533,6 +933,20 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
     private Collection<TestIdentifier> collectTestsToRun(final IRemoteAndroidTestRunner runner)
             throws DeviceNotAvailableException {
         if (isRerunMode()) {
+            String cacheKey = null;
+            if (mTestListCacheDir != null) {
+                cacheKey = getTestListCacheKey();
+            }
+            if (cacheKey != null) {
+                Collection<TestIdentifier> cachedTests = getTestListCache().get(cacheKey);
+                // an empty list would skip the run, so the cache could never be corrected
+                if (cachedTests != null && !cachedTests.isEmpty()) {
+                    CLog.i("Using cached list of %d tests for %s, skipping test collection",
+                            cachedTests.size(), mPackageName);
+                    mTestListCacheKey = cacheKey;
+                    return cachedTests;
+                }
+            }
             Log.d(LOG_TAG, String.format("Collecting test info for %s on device %s",
                     mPackageName, mDevice.getSerialNumber()));
             runner.setLogOnly(true);
@@ -549,6 +963,10 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             runner.setLogOnly(false);
             runner.setMaxtimeToOutputResponse(mTestTimeout);
             runner.removeInstrumentationArg(DELAY_MSEC_ARG);
+            // an empty list may come from a transient collection failure, do not cache it
+            if (tests != null && !tests.isEmpty() && cacheKey != null) {
+                getTestListCache().put(cacheKey, tests);
+            }
             return tests;
         }
         return null;
@@ -581,8 +999,8 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
                         mDevice.getSerialNumber());
                 return null;
             } else {
-                // success!
-                return runResults.getCompletedTests();
+                // success! copy the tests, as callers remove tests from the collection
+                return new LinkedHashSet<TestIdentifier>(runResults.getCompletedTests());
             }
         }
         if (communicationFailure) {
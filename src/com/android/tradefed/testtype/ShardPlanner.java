@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Distributes work items among shards, so the shards take about the same time.
+ * <p/>
+ * Items are assigned with the longest processing time first rule: from the longest to the
+ * shortest predicted time, each item is assigned to the shard with the least predicted time so
+ * far. The resulting makespan, the time of the longest shard, is at most 4/3 of the optimal one.
+ */
+public class ShardPlanner {
+
+    /**
+     * The assignment of items to shards.
+     */
+    public static class Plan<T> {
+        private final String mName;
+        private final List<List<T>> mShards;
+        private final long[] mPredictedDurations;
+        private final long[] mActualDurations;
+        private int mReportedShards = 0;
+
+        Plan(String name, int numShards) {
+            mName = name;
+            mShards = new ArrayList<List<T>>(numShards);
+            for (int i = 0; i < numShards; i++) {
+                mShards.add(new ArrayList<T>());
+            }
+            mPredictedDurations = new long[numShards];
+            mActualDurations = new long[numShards];
+        }
+
+        /**
+         * @return the number of shards
+         */
+        public int getNumShards() {
+            return mShards.size();
+        }
+
+        /**
+         * @return the items assigned to a shard
+         */
+        public List<T> getShard(int shardIndex) {
+            return mShards.get(shardIndex);
+        }
+
+        /**
+         * @return the predicted time of a shard in ms
+         */
+        public long getPredictedDuration(int shardIndex) {
+            return mPredictedDurations[shardIndex];
+        }
+
+        /**
+         * @return the predicted time of the longest shard in ms
+         */
+        public long getPredictedMakespan() {
+            return max(mPredictedDurations);
+        }
+
+        /**
+         * Report the actual time a shard took. Once all shards have reported, the predicted and
+         * actual makespans are logged.
+         *
+         * @param shardIndex the index of the shard
+         * @param durationMs the time the shard took in ms
+         */
+        public void reportShardDuration(int shardIndex, long durationMs) {
+            synchronized (this) {
+                mActualDurations[shardIndex] = durationMs;
+                mReportedShards++;
+                if (mReportedShards < mShards.size()) {
+                    return;
+                }
+            }
+            CLog.i("%s: predicted makespan %d ms, actual makespan %d ms", mName,
+                    getPredictedMakespan(), getActualMakespan());
+            for (int i = 0; i < mShards.size(); i++) {
+                CLog.i("%s shard %d: %d items, predicted %d ms, actual %d ms", mName, i,
+                        mShards.get(i).size(), mPredictedDurations[i], mActualDurations[i]);
+            }
+        }
+
+        /**
+         * @return the actual time of the longest shard in ms, among the shards that reported
+         *         their time
+         */
+        public synchronized long getActualMakespan() {
+            return max(mActualDurations);
+        }
+
+        private static long max(long[] durations) {
+            long max = 0;
+            for (long duration : durations) {
+                max = Math.max(max, duration);
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Assign items to shards.
+     *
+     * @param name the name of the work being sharded, for logging
+     * @param predictedDurations a {@link Map} of the items to shard to their predicted time in
+     *            ms. Items with the same time are assigned in iteration order.
+     * @param numShards the number of shards. Fewer shards are created if there are fewer items.
+     * @return the {@link Plan}
+     */
+    public static <T> Plan<T> plan(String name, Map<T, Long> predictedDurations,
+            int numShards) {
+        List<Map.Entry<T, Long>> items = new ArrayList<Map.Entry<T, Long>>(
+                predictedDurations.entrySet());
+        // stable sort, longest first
+        Collections.sort(items, new Comparator<Map.Entry<T, Long>>() {
+            @Override
+            public int compare(Map.Entry<T, Long> item1, Map.Entry<T, Long> item2) {
+                return item2.getValue().compareTo(item1.getValue());
+            }
+        });
+        Plan<T> plan = new Plan<T>(name, Math.max(1, Math.min(numShards, items.size())));
+        for (Map.Entry<T, Long> item : items) {
+            // there are few shards, so a linear search is fine
+            int shortest = 0;
+            for (int i = 1; i < plan.getNumShards(); i++) {
+                if (plan.mPredictedDurations[i] < plan.mPredictedDurations[shortest]) {
+                    shortest = i;
+                }
+            }
+            plan.mShards.get(shortest).add(item.getKey());
+            plan.mPredictedDurations[shortest] += item.getValue();
+        }
+        CLog.i("%s: split %d items into %d shards, predicted makespan %d ms", name,
+                items.size(), plan.getNumShards(), plan.getPredictedMakespan());
+        return plan;
+    }
+}
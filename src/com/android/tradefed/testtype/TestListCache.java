@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * A host side cache of the tests of instrumentation test packages.
+ * <p/>
+ * Each list of tests is stored in its own file in the cache directory, so the cache can be shared
+ * by all invocations using the same directory. Lists are identified by a key computed from the
+ * content of the test apk, and from the arguments that select the tests to run, so a new build of
+ * the apk or different arguments never use a stale list.
+ */
+class TestListCache {
+
+    private static final String FILE_SUFFIX = ".tests";
+    private static final String HEADER = "# tradefed test list";
+
+    private final File mCacheDir;
+
+    /**
+     * Create a {@link TestListCache}.
+     *
+     * @param cacheDir the directory to store the lists in. Created if it does not exist.
+     */
+    TestListCache(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Create the key of a list of tests.
+     *
+     * @param apkHash the hash of the content of the test apk
+     * @param args the arguments that select the tests to run. May contain <code>null</code>s.
+     * @return the key
+     */
+    static String createKey(String apkHash, String... args) {
+        MessageDigest digest = StreamUtil.createMd5Digest();
+        try {
+            digest.update(apkHash.getBytes("UTF-8"));
+            for (String arg : args) {
+                // separate args, and distinguish null from "null"
+                digest.update((byte)0);
+                if (arg != null) {
+                    digest.update((byte)1);
+                    digest.update(arg.getBytes("UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return StreamUtil.bytesToHexString(digest.digest());
+    }
+
+    /**
+     * Get a list of tests.
+     *
+     * @param key the key of the list
+     * @return the tests, or <code>null</code> if the list is not cached or could not be read
+     */
+    Collection<TestIdentifier> get(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            String[] lines = FileUtil.readStringFromFile(file).split("\n");
+            if (lines.length == 0 || !HEADER.equals(lines[0])) {
+                CLog.w("Ignoring invalid test list cache file %s", file.getAbsolutePath());
+                return null;
+            }
+            Collection<TestIdentifier> tests = new LinkedHashSet<TestIdentifier>(lines.length);
+            for (int i = 1; i < lines.length; i++) {
+                if (lines[i].isEmpty()) {
+                    continue;
+                }
+                int separator = lines[i].indexOf('#');
+                if (separator < 0) {
+                    CLog.w("Ignoring invalid test list cache file %s", file.getAbsolutePath());
+                    return null;
+                }
+                tests.add(new TestIdentifier(lines[i].substring(0, separator),
+                        lines[i].substring(separator + 1)));
+            }
+            return tests;
+        } catch (IOException e) {
+            CLog.w("Failed to read test list cache file %s: %s", file.getAbsolutePath(),
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store a list of tests, replacing any list with the same key.
+     * <p/>
+     * The list is written to a temporary file first, then renamed, so other invocations never
+     * read a partial list.
+     *
+     * @param key the key of the list
+     * @param tests the tests
+     */
+    void put(String key, Collection<TestIdentifier> tests) {
+        StringBuilder builder = new StringBuilder(HEADER);
+        builder.append('\n');
+        for (TestIdentifier test : tests) {
+            builder.append(test.getClassName());
+            builder.append('#');
+            builder.append(test.getTestName());
+            builder.append('\n');
+        }
+        File tmpFile = null;
+        try {
+            if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs() && !mCacheDir.isDirectory()) {
+                throw new IOException(String.format("could not create %s",
+                        mCacheDir.getAbsolutePath()));
+            }
+            tmpFile = FileUtil.createTempFile(key, FILE_SUFFIX, mCacheDir);
+            FileUtil.writeToFile(builder.toString(), tmpFile);
+            if (!tmpFile.renameTo(getFile(key))) {
+                throw new IOException(String.format("could not rename %s",
+                        tmpFile.getAbsolutePath()));
+            }
+            tmpFile = null;
+        } catch (IOException e) {
+            CLog.w("Failed to write test list cache file for %s: %s", key, e.getMessage());
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    /**
+     * Remove a list of tests, if cached.
+     *
+     * @param key the key of the list
+     */
+    void remove(String key) {
+        FileUtil.deleteFile(getFile(key));
+    }
+
+    private File getFile(String key) {
+        return new File(mCacheDir, key + FILE_SUFFIX);
+    }
+}
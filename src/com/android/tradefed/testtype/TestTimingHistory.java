@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A host side history of the time taken by the test classes of instrumentation test packages,
+ * used to predict how long they will take on later runs.
+ * <p/>
+ * The history is stored in a text file, with a line per test class, so it can be shared by all
+ * invocations using the same file. The time of a class is the sum of the time of its tests. Each
+ * new measurement is averaged with the previous prediction, so the history follows changes in
+ * the tests without being thrown off by a single slow run.
+ */
+public class TestTimingHistory {
+
+    private static final String HEADER = "# tradefed test timing history";
+
+    private final File mHistoryFile;
+
+    /**
+     * Create a {@link TestTimingHistory}.
+     *
+     * @param historyFile the file to store the history in. Created if it does not exist.
+     */
+    public TestTimingHistory(File historyFile) {
+        mHistoryFile = historyFile;
+    }
+
+    /**
+     * Get the predicted time of the test classes of a package.
+     *
+     * @param packageName the Android manifest package of the test application
+     * @return a {@link Map} of test class names to their predicted time in ms. Empty if no time
+     *         was recorded for the package.
+     */
+    public Map<String, Long> getClassDurations(String packageName) {
+        Map<String, Long> durations = read().get(packageName);
+        if (durations == null) {
+            return Collections.emptyMap();
+        }
+        return durations;
+    }
+
+    /**
+     * Get the predicted time of a package.
+     *
+     * @param packageName the Android manifest package of the test application
+     * @return the sum of the predicted time of all classes of the package in ms, or
+     *         <code>null</code> if no time was recorded for the package
+     */
+    public Long getPackageDuration(String packageName) {
+        Map<String, Long> durations = getClassDurations(packageName);
+        if (durations.isEmpty()) {
+            return null;
+        }
+        long total = 0;
+        for (Long duration : durations.values()) {
+            total += duration;
+        }
+        return total;
+    }
+
+    /**
+     * Record the time taken by test classes of a package.
+     *
+     * @param packageName the Android manifest package of the test application
+     * @param classDurations a {@link Map} of test class names to the time they took in ms
+     */
+    public void update(String packageName, Map<String, Long> classDurations) {
+        if (classDurations.isEmpty()) {
+            return;
+        }
+        synchronized (TestTimingHistory.class) {
+            // read the file again, to keep what other invocations recorded
+            Map<String, Map<String, Long>> history = read();
+            Map<String, Long> durations = history.get(packageName);
+            if (durations == null) {
+                durations = new TreeMap<String, Long>();
+                history.put(packageName, durations);
+            }
+            for (Map.Entry<String, Long> entry : classDurations.entrySet()) {
+                Long previous = durations.get(entry.getKey());
+                durations.put(entry.getKey(), previous == null ? entry.getValue() :
+                        (previous + entry.getValue()) / 2);
+            }
+            write(history);
+        }
+    }
+
+    /**
+     * Create a {@link Recorder} that measures the time taken by the test classes of a package.
+     *
+     * @param listener the {@link ITestInvocationListener} to forward results to
+     * @param packageName the Android manifest package of the test application
+     */
+    public Recorder createRecorder(ITestInvocationListener listener, String packageName) {
+        return new Recorder(listener, packageName);
+    }
+
+    /**
+     * A {@link ResultForwarder} that measures the time taken by each test class, and records it
+     * in the history once {@link #commit()} is called.
+     */
+    public class Recorder extends ResultForwarder {
+        private final String mPackageName;
+        private final Map<TestIdentifier, Long> mStartTimes = new HashMap<TestIdentifier, Long>();
+        private final Map<String, Long> mClassDurations = new LinkedHashMap<String, Long>();
+
+        Recorder(ITestInvocationListener listener, String packageName) {
+            super(listener);
+            mPackageName = packageName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mStartTimes.put(test, System.currentTimeMillis());
+            super.testStarted(test);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            super.testEnded(test, testMetrics);
+            Long startTime = mStartTimes.remove(test);
+            if (startTime != null) {
+                Long classDuration = mClassDurations.get(test.getClassName());
+                mClassDurations.put(test.getClassName(), (classDuration == null ? 0 :
+                        classDuration) + System.currentTimeMillis() - startTime);
+            }
+        }
+
+        /**
+         * Record the time taken by the test classes that ran in the history.
+         */
+        public void commit() {
+            update(mPackageName, mClassDurations);
+            mClassDurations.clear();
+        }
+    }
+
+    /**
+     * Read the history file.
+     *
+     * @return a {@link Map} of package names to {@link Map}s of class names to time in ms
+     */
+    private Map<String, Map<String, Long>> read() {
+        Map<String, Map<String, Long>> history = new TreeMap<String, Map<String, Long>>();
+        if (!mHistoryFile.exists()) {
+            return history;
+        }
+        try {
+            String[] lines = FileUtil.readStringFromFile(mHistoryFile).split("\n");
+            if (lines.length == 0 || !HEADER.equals(lines[0])) {
+                CLog.w("Ignoring invalid test timing history %s", mHistoryFile.getAbsolutePath());
+                return history;
+            }
+            for (int i = 1; i < lines.length; i++) {
+                String[] fields = lines[i].split(" ");
+                if (fields.length != 3) {
+                    continue;
+                }
+                Map<String, Long> durations = history.get(fields[0]);
+                if (durations == null) {
+                    durations = new TreeMap<String, Long>();
+                    history.put(fields[0], durations);
+                }
+                try {
+                    durations.put(fields[1], Long.parseLong(fields[2]));
+                } catch (NumberFormatException e) {
+                    CLog.w("Ignoring invalid test timing history line '%s'", lines[i]);
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to read test timing history %s: %s", mHistoryFile.getAbsolutePath(),
+                    e.getMessage());
+        }
+        return history;
+    }
+
+    /**
+     * Write the history file. It is written to a temporary file first, then renamed, so other
+     * invocations never read a partial history.
+     */
+    private void write(Map<String, Map<String, Long>> history) {
+        StringBuilder builder = new StringBuilder(HEADER);
+        builder.append('\n');
+        for (Map.Entry<String, Map<String, Long>> packageEntry : history.entrySet()) {
+            for (Map.Entry<String, Long> classEntry : packageEntry.getValue().entrySet()) {
+                builder.append(String.format("%s %s %d\n", packageEntry.getKey(),
+                        classEntry.getKey(), classEntry.getValue()));
+            }
+        }
+        File tmpFile = null;
+        try {
+            File dir = mHistoryFile.getAbsoluteFile().getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException(String.format("could not create %s",
+                        dir.getAbsolutePath()));
+            }
+            tmpFile = FileUtil.createTempFile(mHistoryFile.getName(), ".tmp", dir);
+            FileUtil.writeToFile(builder.toString(), tmpFile);
+            if (!tmpFile.renameTo(mHistoryFile)) {
+                throw new IOException(String.format("could not rename %s",
+                        tmpFile.getAbsolutePath()));
+            }
+            tmpFile = null;
+        } catch (IOException e) {
+            CLog.w("Failed to write test timing history %s: %s", mHistoryFile.getAbsolutePath(),
+                    e.getMessage());
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+}
@@ -27,6 +27,8 @@ import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.testtype.InstrumentationTest;
+import com.android.tradefed.testtype.ShardPlanner;
+import com.android.tradefed.testtype.TestTimingHistory;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
@@ -37,10 +39,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
 /**
  * Runs a set of instrumentation test's defined in test_defs.xml files.
@@ -98,8 +100,16 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
             description = "Shard this test into given number of separately runnable chunks.")
     private int mNumShards = 0;
 
+    @Option(name = "timing-history-file",
+            description = "Optional file in which to record the time taken by each test class, " +
+            "to balance shards by predicted time.")
+    private File mTimingHistoryFile = null;
+
     private List<InstrumentationTest> mTests = null;
 
+    private ShardPlanner.Plan<InstrumentationTest> mShardPlan = null;
+    private int mShardIndex = 0;
+
     public XmlDefsTest() {
     }
 
@@ -155,6 +165,15 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
         mNumShards = shards;
     }
 
+    /**
+     * Sets the timing history file.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void setTimingHistoryFile(File historyFile) {
+        mTimingHistoryFile = historyFile;
+    }
+
     /**
      * Gets the list of parsed {@link InstrumentationTest}s contained within.
      * <p/>
@@ -173,7 +192,11 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
             throw new IllegalArgumentException("Device has not been set");
         }
         buildTests();
+        long startTime = System.currentTimeMillis();
         doRun(listener);
+        if (mShardPlan != null) {
+            mShardPlan.reportShardDuration(mShardIndex, System.currentTimeMillis() - startTime);
+        }
     }
 
     /**
@@ -217,6 +240,7 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
                     test.setTestSize(getTestSize());
                     test.setTestTimeout(getTestTimeout());
                     test.setCoverageTarget(def.getCoverageTarget());
+                    test.setTimingHistoryFile(mTimingHistoryFile);
                     mTests.add(test);
                 }
             }
@@ -364,20 +388,60 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
             return null;
         }
 
-        // treat shardQueue as a circular queue, to sequentially distribute tests among shards
-        Queue<IRemoteTest> shardQueue = new LinkedList<IRemoteTest>();
-        // don't create more shards than the number of tests we have!
-        for (int i = 0; i < mNumShards && i < mTests.size(); i++) {
+        // distribute tests among shards by their predicted time. Without history, all tests
+        // are predicted to take the same time, so they are distributed in turn
+        ShardPlanner.Plan<InstrumentationTest> plan = ShardPlanner.plan("xml defs",
+                predictDurations(mTests), mNumShards);
+        mTests.clear();
+        List<IRemoteTest> shards = new ArrayList<IRemoteTest>(plan.getNumShards());
+        for (int i = 0; i < plan.getNumShards(); i++) {
             XmlDefsTest shard = new XmlDefsTest();
-            shard.mTests = new LinkedList<InstrumentationTest>();
-            shardQueue.add(shard);
+            shard.mTests = new LinkedList<InstrumentationTest>(plan.getShard(i));
+            shard.mSendCoverage = mSendCoverage;
+            shard.mShardPlan = plan;
+            shard.mShardIndex = i;
+            shards.add(shard);
         }
-        while (!mTests.isEmpty()) {
-            InstrumentationTest test = mTests.remove(0);
-            XmlDefsTest shard = (XmlDefsTest)shardQueue.poll();
-            shard.mTests.add(test);
-            shardQueue.add(shard);
+        return shards;
+    }
+
+    /**
+     * Predict the time each test will take from the timing history. Tests without recorded
+     * time are predicted to take the average time of the others.
+     *
+     * @return a {@link Map} of the tests to their predicted time in ms, in the order of
+     *         <var>tests</var>
+     */
+    private Map<InstrumentationTest, Long> predictDurations(List<InstrumentationTest> tests) {
+        Map<InstrumentationTest, Long> durations = new LinkedHashMap<InstrumentationTest, Long>();
+        TestTimingHistory history = null;
+        if (mTimingHistoryFile != null) {
+            history = new TestTimingHistory(mTimingHistoryFile);
+        }
+        long knownTotal = 0;
+        int knownCount = 0;
+        for (InstrumentationTest test : tests) {
+            Long duration = null;
+            if (history != null) {
+                if (test.getClassName() != null) {
+                    duration = history.getClassDurations(test.getPackageName()).get(
+                            test.getClassName());
+                } else {
+                    duration = history.getPackageDuration(test.getPackageName());
+                }
+            }
+            durations.put(test, duration);
+            if (duration != null) {
+                knownTotal += duration;
+                knownCount++;
+            }
+        }
+        long defaultDuration = knownCount == 0 ? 1 : Math.max(1, knownTotal / knownCount);
+        for (Map.Entry<InstrumentationTest, Long> entry : durations.entrySet()) {
+            if (entry.getValue() == null) {
+                entry.setValue(defaultDuration);
+            }
         }
-        return shardQueue;
+        return durations;
     }
 }
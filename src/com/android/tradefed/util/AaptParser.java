@@ -18,6 +18,9 @@ package com.android.tradefed.util;
 import com.android.tradefed.log.LogUtil.CLog;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,9 +28,26 @@ import java.util.regex.Pattern;
  * Class that extracts info from apk by parsing output of 'aapt dump badging'.
  * <p/>
  * aapt must be on PATH
+ * <p/>
+ * Results are cached by the content hash of the apk, so parsing the same apk again, even from a
+ * different file, does not run aapt.
  */
 public class AaptParser {
 
+    /** max number of apks whose info is cached */
+    private static final int MAX_CACHE_SIZE = 256;
+
+    /** map of apk md5 hashes to their info, in least recently used order */
+    private static final Map<String, AaptParser> sCache =
+            new LinkedHashMap<String, AaptParser>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, AaptParser> eldest) {
+                    return size() > MAX_CACHE_SIZE;
+                }
+            };
+
     private String mPackageName;
 
     // @VisibleForTesting
@@ -51,17 +71,57 @@ public class AaptParser {
      * @return the {@link AaptParser} or <code>null</code> if failed to extract the information
      */
     public static AaptParser parse(File apkFile) {
+        String md5 = null;
+        try {
+            md5 = FileUtil.calculateMd5(apkFile);
+        } catch (IOException e) {
+            CLog.w("Failed to calculate md5 of %s: %s", apkFile.getAbsolutePath(),
+                    e.getMessage());
+        }
+        return parse(apkFile, md5);
+    }
+
+    /**
+     * Parse info from the apk, when its md5 hash is already known.
+     *
+     * @param apkFile the apk file
+     * @param md5 the md5 hash of the content of <var>apkFile</var>, used as cache key. If
+     *            <code>null</code>, the result is not cached.
+     * @return the {@link AaptParser} or <code>null</code> if failed to extract the information
+     */
+    public static AaptParser parse(File apkFile, String md5) {
+        if (md5 != null) {
+            synchronized (sCache) {
+                AaptParser p = sCache.get(md5);
+                if (p != null) {
+                    return p;
+                }
+            }
+        }
         CommandResult result = RunUtil.getDefault().runTimedCmd(5000, "aapt", "dump", "badging",
                 apkFile.getAbsolutePath());
         if (result.getStatus() == CommandStatus.SUCCESS) {
             AaptParser p = new AaptParser();
             p.parse(result.getStdout());
+            if (md5 != null && p.getPackageName() != null) {
+                cache(md5, p);
+            }
             return p;
         }
-        CLog.e("Failed to run aapt on %s", apkFile.getAbsoluteFile());
+        // not fatal to callers that can do without the info, which log their own errors
+        CLog.w("Failed to run aapt on %s", apkFile.getAbsoluteFile());
         return null;
     }
 
+    /**
+     * Add the info of an apk to the cache. Exposed for unit testing.
+     */
+    static void cache(String md5, AaptParser p) {
+        synchronized (sCache) {
+            sCache.put(md5, p);
+        }
+    }
+
     public String getPackageName() {
         return mPackageName;
     }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * A thread safe pool of fixed size {@link ByteBuffer}s.
+ * <p/>
+ * Intended for direct buffers, which are expensive to allocate and are only reclaimed when
+ * garbage collected.
+ */
+public class ByteBufferPool {
+
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final boolean mDirect;
+    private final LinkedList<ByteBuffer> mFreeBuffers = new LinkedList<ByteBuffer>();
+
+    /**
+     * Creates a {@link ByteBufferPool}.
+     *
+     * @param bufferSize the capacity in bytes of each buffer
+     * @param maxPooled the maximum number of released buffers to keep for reuse
+     * @param direct if <code>true</code> create direct buffers
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+        mDirect = direct;
+    }
+
+    /**
+     * Get a cleared buffer from the pool, allocating a new one if none are free.
+     *
+     * @return the {@link ByteBuffer}
+     */
+    public ByteBuffer acquire() {
+        synchronized (mFreeBuffers) {
+            if (!mFreeBuffers.isEmpty()) {
+                return mFreeBuffers.removeFirst();
+            }
+        }
+        return mDirect ? ByteBuffer.allocateDirect(mBufferSize) : ByteBuffer.allocate(mBufferSize);
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer the {@link ByteBuffer} previously obtained from {@link #acquire()}
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (mFreeBuffers) {
+            if (mFreeBuffers.size() < mMaxPooled) {
+                mFreeBuffers.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return the capacity in bytes of the buffers of this pool
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+}
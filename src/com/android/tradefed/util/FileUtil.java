@@ -29,11 +29,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -54,6 +60,15 @@ public class FileUtil {
     /** The min disk space in bytes */
     private static final long MIN_DISK_SPACE = MIN_DISK_SPACE_MB * 1024 * 1024;
 
+    /** The max number of files to hardlink with a single command */
+    private static final int MAX_HARDLINK_BATCH_SIZE = 256;
+
+    /** The number of threads used to hardlink the contents of a directory tree */
+    private static final int HARDLINK_THREADS = 4;
+
+    /** The timeout for a single hardlink command */
+    private static final long HARDLINK_TIMEOUT_MS = 60 * 1000;
+
     private static final char[] SIZE_SPECIFIERS = {
             ' ', 'K', 'M', 'G', 'T'
     };
@@ -248,11 +263,14 @@ public class FileUtil {
     }
 
     /**
-     * A helper method that hardlinks a file to another file
+     * A helper method that hardlinks a file to another file.
+     * <p/>
+     * Falls back to copying the file if it cannot be hardlinked, for example across filesystem
+     * boundaries.
      *
      * @param origFile the original file
      * @param destFile the destination file
-     * @throws IOException if failed to hardlink file
+     * @throws IOException if failed to hardlink or copy file
      */
     public static void hardlinkFile(File origFile, File destFile) throws IOException {
         if (!origFile.exists()) {
@@ -261,40 +279,129 @@ public class FileUtil {
         }
         // `ln src dest` will create a hardlink (note: not `ln -s src dest`, which creates symlink)
         // note that this will fail across filesystem boundaries
-        // FIXME: should probably just fall back to normal copy if this fails
-        CommandResult result = RunUtil.getDefault().runTimedCmd(10*1000, "ln",
-                origFile.getAbsolutePath(), destFile.getAbsolutePath());
+        CommandResult result = runHardlinkCmd("ln", origFile.getAbsolutePath(),
+                destFile.getAbsolutePath());
         if (!result.getStatus().equals(CommandStatus.SUCCESS)) {
-            throw new IOException(String.format(
-                    "Failed to hardlink %s to %s.  Across filesystem boundary?",
-                    origFile.getAbsolutePath(), destFile.getAbsolutePath()));
+            CLog.w("Failed to hardlink %s to %s. Across filesystem boundary? Copying instead.",
+                    origFile.getAbsolutePath(), destFile.getAbsolutePath());
+            copyFile(origFile, destFile);
         }
     }
 
     /**
      * Recursively hardlink folder contents.
      * <p/>
-     * Only supports copying of files and directories - symlinks are not copied.
+     * Only supports copying of files and directories - symlinks are not copied. The directory
+     * structure is created first, and then the files of each directory are hardlinked in batches
+     * using multiple threads, rather than with one command per file. Files that cannot be
+     * hardlinked are copied.
      *
      * @param sourceDir the folder that contains the files to copy
      * @param destDir the destination folder
      * @throws IOException
      */
     public static void recursiveHardlink(File sourceDir, File destDir) throws IOException {
-        for (File childFile : sourceDir.listFiles()) {
-            File destChild = new File(destDir, childFile.getName());
+        List<File[]> dirPairs = new ArrayList<File[]>();
+        createDirTree(sourceDir, destDir, dirPairs);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(HARDLINK_THREADS, dirPairs.size()));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(dirPairs.size());
+            for (final File[] dirPair : dirPairs) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        hardlinkDirFiles(dirPair[0], dirPair[1]);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Recreate the directory structure of <var>sourceDir</var> under <var>destDir</var>.
+     *
+     * @param dirPairs the list to add each source directory and its copy to
+     */
+    private static void createDirTree(File sourceDir, File destDir, List<File[]> dirPairs)
+            throws IOException {
+        File[] childFiles = sourceDir.listFiles();
+        if (childFiles == null) {
+            throw new IOException(String.format(
+                    "Failed to recursively hardlink. Could not determine contents for directory "
+                    + "'%s'", sourceDir.getAbsolutePath()));
+        }
+        dirPairs.add(new File[] {sourceDir, destDir});
+        for (File childFile : childFiles) {
             if (childFile.isDirectory()) {
+                File destChild = new File(destDir, childFile.getName());
                 if (!destChild.mkdir()) {
                     throw new IOException(String.format("Could not create directory %s",
                             destChild.getAbsolutePath()));
                 }
-                recursiveHardlink(childFile, destChild);
-            } else if (childFile.isFile()) {
-                hardlinkFile(childFile, destChild);
+                createDirTree(childFile, destChild, dirPairs);
             }
         }
     }
 
+    /**
+     * Hardlink the files directly contained in <var>sourceDir</var> into <var>destDir</var>,
+     * using `ln file1 file2 ... destDir`.
+     */
+    private static void hardlinkDirFiles(File sourceDir, File destDir) throws IOException {
+        File[] childFiles = sourceDir.listFiles();
+        if (childFiles == null) {
+            throw new IOException(String.format("Could not determine contents for directory '%s'",
+                    sourceDir.getAbsolutePath()));
+        }
+        List<File> files = new ArrayList<File>(childFiles.length);
+        for (File childFile : childFiles) {
+            if (childFile.isFile()) {
+                files.add(childFile);
+            }
+        }
+        for (int start = 0; start < files.size(); start += MAX_HARDLINK_BATCH_SIZE) {
+            List<File> batch = files.subList(start,
+                    Math.min(start + MAX_HARDLINK_BATCH_SIZE, files.size()));
+            String[] cmd = new String[batch.size() + 2];
+            cmd[0] = "ln";
+            for (int i = 0; i < batch.size(); i++) {
+                cmd[i + 1] = batch.get(i).getAbsolutePath();
+            }
+            cmd[cmd.length - 1] = destDir.getAbsolutePath();
+            CommandResult result = runHardlinkCmd(cmd);
+            if (!result.getStatus().equals(CommandStatus.SUCCESS)) {
+                CLog.w("Failed to hardlink files from %s to %s. Across filesystem boundary? "
+                        + "Copying instead.", sourceDir.getAbsolutePath(),
+                        destDir.getAbsolutePath());
+                for (File file : batch) {
+                    File destFile = new File(destDir, file.getName());
+                    // some files may have been linked before the failure
+                    if (!destFile.exists()) {
+                        copyFile(file, destFile);
+                    }
+                }
+            }
+        }
+    }
+
+    private static CommandResult runHardlinkCmd(String... cmd) {
+        return RunUtil.getDefault().runTimedCmd(HARDLINK_TIMEOUT_MS, cmd);
+    }
+
     /**
      * A helper method that copies a file's contents to a local file
      *
@@ -303,7 +410,25 @@ public class FileUtil {
      * @throws IOException if failed to copy file
      */
     public static void copyFile(File origFile, File destFile) throws IOException {
-        writeToFile(new FileInputStream(origFile), destFile);
+        copyFile(origFile, destFile, null);
+    }
+
+    /**
+     * A helper method that copies a file's contents to a local file, reporting progress to given
+     * listener.
+     * <p/>
+     * The data is transferred directly between the files, without being copied through the java
+     * heap where supported.
+     *
+     * @param origFile the original file to be copied
+     * @param destFile the destination file
+     * @param listener the {@link StreamUtil.ICopyProgressListener} to inform of progress. Can be
+     *            <code>null</code>.
+     * @throws IOException if failed to copy file
+     */
+    public static void copyFile(File origFile, File destFile,
+            StreamUtil.ICopyProgressListener listener) throws IOException {
+        writeToFile(new FileInputStream(origFile), destFile, listener);
     }
 
     /**
@@ -371,14 +496,26 @@ public class FileUtil {
      * @param destFile the dest file to write to
      */
     public static void writeToFile(InputStream input, File destFile) throws IOException {
-        InputStream origStream = null;
+        writeToFile(input, destFile, null);
+    }
+
+    /**
+     * A helper method for writing stream data to file, reporting progress to given listener.
+     *
+     * @param input the unbuffered input stream. Will be closed once written.
+     * @param destFile the dest file to write to
+     * @param listener the {@link StreamUtil.ICopyProgressListener} to inform of progress. Can be
+     *            <code>null</code>.
+     */
+    public static void writeToFile(InputStream input, File destFile,
+            StreamUtil.ICopyProgressListener listener) throws IOException {
         OutputStream destStream = null;
         try {
-            origStream = new BufferedInputStream(input);
-            destStream = new BufferedOutputStream(new FileOutputStream(destFile));
-            StreamUtil.copyStreams(origStream, destStream);
+            // no need to buffer since StreamUtil copies in blocks
+            destStream = new FileOutputStream(destFile);
+            StreamUtil.copyStreams(input, destStream, listener);
         } finally {
-            StreamUtil.close(origStream);
+            StreamUtil.close(input);
             StreamUtil.close(destStream);
         }
     }
@@ -578,7 +715,8 @@ public class FileUtil {
     private static void writeToStream(File file, OutputStream out) throws IOException {
         InputStream inputStream = null;
         try {
-            inputStream = new BufferedInputStream(new FileInputStream(file));
+            // no need to buffer since StreamUtil copies in blocks
+            inputStream = new FileInputStream(file);
             StreamUtil.copyStreams(inputStream, out);
         } finally {
             StreamUtil.close(inputStream);
@@ -661,6 +799,22 @@ public class FileUtil {
         return result;
     }
 
+    /**
+     * Calculate the MD5 checksum of a file's contents.
+     *
+     * @param file the {@link File} to read
+     * @return the hex encoded checksum
+     * @throws IOException if file could not be read
+     */
+    public static String calculateMd5(File file) throws IOException {
+        InputStream stream = new FileInputStream(file);
+        try {
+            return StreamUtil.calculateMd5(stream);
+        } finally {
+            StreamUtil.close(stream);
+        }
+    }
+
     /**
      * Helper method which constructs a unique file on temporary disk, whose name corresponds as
      * closely as possible to the file name given by the remote file path
@@ -0,0 +1,743 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.AlwaysMatch;
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe, indexed alternative to {@link ConditionPriorityBlockingQueue} with the same
+ * {@link IMatcher} based retrieval semantics.
+ * <p/>
+ * Elements are grouped into buckets, and the buckets are kept in a binary heap ordered by the
+ * provided {@link Comparator}, with ties broken by insertion order. Retrieving the minimum element
+ * is O(log n). Retrieving the minimum element that matches a {@link IMatcher} walks the heap in
+ * priority order and stops at the first matching bucket, rather than evaluating the matcher
+ * against every element.
+ * <p/>
+ * By default every element gets its own bucket. If a {@link IBucketKey} is provided, elements
+ * with equal keys share a bucket, and only the oldest element of each bucket is ever presented to
+ * a {@link IMatcher}.
+ * <p/>
+ * Threads blocked in {@link #take(IMatcher)} or {@link #poll(long, TimeUnit, IMatcher)} are
+ * grouped by matcher, using {@link Object#equals(Object)}. On {@link #add(Object)}, each distinct
+ * matcher is evaluated at most once, and only a waiter whose matcher accepts the new element is
+ * woken up.
+ * <p/>
+ * Unlike {@link ConditionPriorityBlockingQueue}, the priority of an element is not re-evaluated on
+ * every poll. If the priority of a queued element changes, {@link #reprioritize(Object)} must be
+ * called.
+ * <p/>
+ * Iteration is thread-safe, but not consistent. A copy of the queue is made at iterator creation
+ * time, in insertion order.
+ */
+public class IndexedConditionPriorityBlockingQueue<T> implements Iterable<T> {
+
+    /**
+     * Computes the bucket key of an element.
+     * <p/>
+     * Elements with equal keys must compare as equal using the queue's {@link Comparator}, and
+     * must be matched identically by every {@link IMatcher} used with the queue.
+     *
+     * @param <T>
+     */
+    public static interface IBucketKey<T> {
+        /**
+         * Get the bucket key for given <var>element</var>
+         *
+         * @param element the object to get the key for
+         * @return the key. Must not be <code>null</code>.
+         */
+        Object getKey(T element);
+    }
+
+    private static class Entry<T> {
+        private final T mElement;
+        private final long mSeq;
+
+        Entry(T element, long seq) {
+            mElement = element;
+            mSeq = seq;
+        }
+    }
+
+    private static class Bucket<T> {
+        private final Object mKey;
+        private final LinkedList<Entry<T>> mEntries = new LinkedList<Entry<T>>();
+        private int mHeapIndex = -1;
+        /** copy of the first entry, kept inline so scanning the heap stays cheap */
+        private T mHeadElement;
+        private long mHeadSeq;
+
+        Bucket(Object key) {
+            mKey = key;
+        }
+
+        /**
+         * Must be called whenever the first entry changes.
+         */
+        void updateHead() {
+            if (mEntries.isEmpty()) {
+                mHeadElement = null;
+            } else {
+                Entry<T> head = mEntries.getFirst();
+                mHeadElement = head.mElement;
+                mHeadSeq = head.mSeq;
+            }
+        }
+    }
+
+    private static class Waiter {
+        private final Condition mCondition;
+        private final long mSeq;
+        private boolean mSignaled = false;
+
+        Waiter(Condition condition, long seq) {
+            mCondition = condition;
+            mSeq = seq;
+        }
+    }
+
+    private static class WaiterGroup<T> {
+        private final IMatcher<T> mMatcher;
+        private final LinkedList<Waiter> mWaiters = new LinkedList<Waiter>();
+
+        WaiterGroup(IMatcher<T> matcher) {
+            mMatcher = matcher;
+        }
+
+        /**
+         * @return the oldest {@link Waiter} that has not been signaled yet, or <code>null</code>
+         */
+        Waiter firstUnsignaled() {
+            for (Waiter waiter : mWaiters) {
+                if (!waiter.mSignaled) {
+                    return waiter;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Orders buckets by the priority of their head element, falling back to insertion order.
+     */
+    private class BucketComparator implements Comparator<Bucket<T>> {
+        @Override
+        public int compare(Bucket<T> b1, Bucket<T> b2) {
+            if (mComparator != null) {
+                int result = mComparator.compare(b1.mHeadElement, b2.mHeadElement);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            if (b1.mHeadSeq == b2.mHeadSeq) {
+                return 0;
+            }
+            return b1.mHeadSeq < b2.mHeadSeq ? -1 : 1;
+        }
+    }
+
+    /**
+     * Max number of buckets to visit in priority order when looking for a match, before switching
+     * to a full scan.
+     */
+    private static final int MAX_ORDERED_VISITS = 32;
+
+    /** the global lock */
+    private final ReentrantLock mLock = new ReentrantLock(true);
+
+    private final Comparator<T> mComparator;
+    private final BucketComparator mBucketComparator = new BucketComparator();
+    private final IBucketKey<T> mBucketKey;
+
+    /** the binary min-heap of non-empty buckets */
+    private final ArrayList<Bucket<T>> mHeap = new ArrayList<Bucket<T>>();
+    /** index of buckets by key. Only used if a {@link IBucketKey} was provided */
+    private final Map<Object, Bucket<T>> mBucketMap = new HashMap<Object, Bucket<T>>();
+
+    /** the waiting threads, grouped by matcher */
+    private final Map<IMatcher<T>, WaiterGroup<T>> mWaiterGroups =
+            new LinkedHashMap<IMatcher<T>, WaiterGroup<T>>();
+    /** shared key for all {@link AlwaysMatch} waiters */
+    private final IMatcher<T> mAlwaysMatch = new AlwaysMatch<T>();
+
+    private long mNextSeq = 0;
+    private int mSize = 0;
+
+    /**
+     * Creates a {@link IndexedConditionPriorityBlockingQueue}
+     * <p/>
+     * Elements will be prioritized in FIFO order.
+     */
+    public IndexedConditionPriorityBlockingQueue() {
+        this(null, null);
+    }
+
+    /**
+     * Creates a {@link IndexedConditionPriorityBlockingQueue}
+     *
+     * @param c the {@link Comparator} used to prioritize the queue. If <code>null</code>, elements
+     *            will be prioritized in FIFO order.
+     */
+    public IndexedConditionPriorityBlockingQueue(Comparator<T> c) {
+        this(c, null);
+    }
+
+    /**
+     * Creates a {@link IndexedConditionPriorityBlockingQueue}
+     *
+     * @param c the {@link Comparator} used to prioritize the queue. If <code>null</code>, elements
+     *            will be prioritized in FIFO order.
+     * @param bucketKey the {@link IBucketKey} used to group equivalent elements. If
+     *            <code>null</code>, each element will be treated separately.
+     */
+    public IndexedConditionPriorityBlockingQueue(Comparator<T> c, IBucketKey<T> bucketKey) {
+        mComparator = c;
+        mBucketKey = bucketKey;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue.
+     *
+     * @return the head of this queue, or <code>null</code> if the queue is empty
+     */
+    public T poll() {
+        return poll(mAlwaysMatch);
+    }
+
+    /**
+     * Retrieves and removes the minimum (as judged by the provided {@link Comparator} element T in
+     * the queue where <var>matcher.matches(T)</var> is <code>true</code>.
+     *
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @return the minimum matched element or <code>null</code> if there are no matching elements
+     */
+    public T poll(IMatcher<T> matcher) {
+        mLock.lock();
+        try {
+            Bucket<T> bucket = findMatchingBucket(matcher);
+            if (bucket == null) {
+                return null;
+            }
+            return removeHead(bucket);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the minimum (as judged by the provided {@link Comparator} element T in
+     * the queue.
+     * <p/>
+     * Blocks up to <var>timeout</var> time for an element to become available.
+     *
+     * @param timeout the amount of time to wait for an element to become available
+     * @param unit the {@link TimeUnit} of timeout
+     * @return the minimum matched element or <code>null</code> if there are no matching elements
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(timeout, unit, mAlwaysMatch);
+    }
+
+    /**
+     * Retrieves and removes the minimum (as judged by the provided {@link Comparator} element T in
+     * the queue where <var>matcher.matches(T)</var> is <code>true</code>.
+     * <p/>
+     * Blocks up to <var>timeout</var> time for an element to become available.
+     *
+     * @param timeout the amount of time to wait for an element to become available
+     * @param unit the {@link TimeUnit} of timeout
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @return the minimum matched element or <code>null</code> if there are no matching elements
+     */
+    public T poll(long timeout, TimeUnit unit, IMatcher<T> matcher) throws InterruptedException {
+        Long nanos = unit.toNanos(timeout);
+        return blockingPoll(nanos, matcher);
+    }
+
+    /**
+     * Retrieves and removes the minimum (as judged by the provided {@link Comparator} element T in
+     * the queue.
+     * <p/>
+     * Blocks indefinitely for an element to become available.
+     *
+     * @return the head of this queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        return take(mAlwaysMatch);
+    }
+
+    /**
+     * Retrieves and removes the first element T in the queue where <var>matcher.matches(T)</var> is
+     * <code>true</code>, waiting if necessary until such an element becomes available.
+     *
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @return the matched element
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T take(IMatcher<T> matcher) throws InterruptedException {
+        return blockingPoll(null, matcher);
+    }
+
+    /**
+     * Retrieves and removes the minimum matching element, blocking up to <var>nanos</var> ns for
+     * one to become available. If <var>nanos</var> is <code>null</code> will block indefinitely.
+     */
+    private T blockingPoll(Long nanos, IMatcher<T> matcher) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            T matchedObj = poll(matcher);
+            if (matchedObj != null || (nanos != null && nanos <= 0)) {
+                return matchedObj;
+            }
+            IMatcher<T> groupKey = getGroupKey(matcher);
+            WaiterGroup<T> group = mWaiterGroups.get(groupKey);
+            if (group == null) {
+                group = new WaiterGroup<T>(groupKey);
+                mWaiterGroups.put(groupKey, group);
+            }
+            Waiter myWaiter = new Waiter(mLock.newCondition(), mNextSeq++);
+            group.mWaiters.add(myWaiter);
+            try {
+                while ((matchedObj = poll(matcher)) == null && (nanos == null || nanos > 0)) {
+                    myWaiter.mSignaled = false;
+                    if (nanos != null) {
+                        nanos = myWaiter.mCondition.awaitNanos(nanos);
+                    } else {
+                        myWaiter.mCondition.await();
+                    }
+                }
+            } finally {
+                group.mWaiters.remove(myWaiter);
+                if (group.mWaiters.isEmpty()) {
+                    mWaiterGroups.remove(groupKey);
+                }
+                if (myWaiter.mSignaled && matchedObj == null) {
+                    // interrupted after being signaled, pass the wakeup on so the element it was
+                    // signaled for is not left queued while other waiters sleep
+                    Bucket<T> bucket = findMatchingBucket(matcher);
+                    if (bucket != null) {
+                        signalWaiter(bucket.mHeadElement);
+                    }
+                }
+            }
+            return matchedObj;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element into this queue. As the queue is unbounded this method will
+     * never block.
+     *
+     * @param addedElement the element to add
+     * @return <code>true</code>
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(T addedElement) {
+        if (addedElement == null) {
+            throw new NullPointerException();
+        }
+        mLock.lock();
+        try {
+            insert(addedElement);
+            signalWaiter(addedElement);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a item to this queue, replacing any existing object that matches given condition
+     *
+     * @param matcher the matcher to evaluate existing objects
+     * @param object the object to add
+     * @return the replaced object or <code>null</code> if none exist
+     */
+    public T addUnique(IMatcher<T> matcher, T object) {
+        mLock.lock();
+        try {
+            T removedObj = poll(matcher);
+            add(object);
+            return removedObj;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Re-evaluates the priority of given queued <var>element</var>, and whether it matches the
+     * conditions of any waiting retrievals.
+     * <p/>
+     * Must be called whenever the priority of a queued element changes, otherwise it will keep
+     * being retrieved according to its old priority. If a {@link IBucketKey} is used, any element
+     * with the same key can be passed, even one that is not currently queued.
+     *
+     * @param element the element whose priority or state changed
+     */
+    public void reprioritize(T element) {
+        mLock.lock();
+        try {
+            for (Bucket<T> bucket : getCandidateBuckets(element)) {
+                if (mBucketKey != null) {
+                    fixHeap(bucket.mHeapIndex);
+                    signalWaiter(bucket.mHeadElement);
+                    return;
+                }
+                for (Entry<T> entry : bucket.mEntries) {
+                    if (entry.mElement.equals(element)) {
+                        fixHeap(bucket.mHeapIndex);
+                        signalWaiter(entry.mElement);
+                        return;
+                    }
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all elements from this queue.
+     */
+    public void clear() {
+        mLock.lock();
+        try {
+            for (Bucket<T> bucket : mHeap) {
+                bucket.mHeapIndex = -1;
+            }
+            mHeap.clear();
+            mBucketMap.clear();
+            mSize = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return getCopy().iterator();
+    }
+
+    /**
+     * Get a copy of the contents of the queue, in insertion order.
+     */
+    public List<T> getCopy() {
+        mLock.lock();
+        try {
+            List<Entry<T>> entries = new ArrayList<Entry<T>>(mSize);
+            for (Bucket<T> bucket : mHeap) {
+                entries.addAll(bucket.mEntries);
+            }
+            Collections.sort(entries, new Comparator<Entry<T>>() {
+                @Override
+                public int compare(Entry<T> e1, Entry<T> e2) {
+                    return e1.mSeq < e2.mSeq ? -1 : (e1.mSeq == e2.mSeq ? 0 : 1);
+                }
+            });
+            List<T> l = new ArrayList<T>(entries.size());
+            for (Entry<T> entry : entries) {
+                l.add(entry.mElement);
+            }
+            return l;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Determine if an object is currently contained in this queue.
+     *
+     * @param object the object to find
+     * @return <code>true</code> if given object is contained in queue. <code>false></code>
+     *         otherwise.
+     */
+    public boolean contains(T object) {
+        mLock.lock();
+        try {
+            for (Bucket<T> bucket : getCandidateBuckets(object)) {
+                for (Entry<T> entry : bucket.mEntries) {
+                    if (entry.mElement.equals(object)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of elements in queue
+     */
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes an item from this queue.
+     *
+     * @param object the object to remove
+     * @return <code>true</code> if given object was removed from queue. <code>false></code>
+     *         otherwise.
+     */
+    public boolean remove(T object) {
+        mLock.lock();
+        try {
+            for (Bucket<T> bucket : getCandidateBuckets(object)) {
+                ListIterator<Entry<T>> iter = bucket.mEntries.listIterator();
+                while (iter.hasNext()) {
+                    boolean wasHead = !iter.hasPrevious();
+                    if (iter.next().mElement.equals(object)) {
+                        iter.remove();
+                        mSize--;
+                        if (bucket.mEntries.isEmpty()) {
+                            removeBucket(bucket);
+                        } else if (wasHead) {
+                            bucket.updateHead();
+                            fixHeap(bucket.mHeapIndex);
+                        }
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Finds the highest priority bucket whose head element matches given <var>matcher</var>.
+     * <p/>
+     * First walks the heap in priority order, using a secondary priority queue as the frontier, so
+     * when a match is near the top of the heap only the buckets that rank ahead of it are
+     * evaluated. If no match is found within {@link #MAX_ORDERED_VISITS} buckets, falls back to a
+     * single pass over the heap, which is no worse than the linear scan done by
+     * {@link ConditionPriorityBlockingQueue}.
+     */
+    private Bucket<T> findMatchingBucket(IMatcher<T> matcher) {
+        if (mHeap.isEmpty()) {
+            return null;
+        }
+        Bucket<T> root = mHeap.get(0);
+        if (matcher instanceof AlwaysMatch || matcher.matches(root.mHeadElement)) {
+            return root;
+        }
+        PriorityQueue<Bucket<T>> frontier = new PriorityQueue<Bucket<T>>(11, mBucketComparator);
+        addChildren(frontier, root);
+        int visits = 1;
+        while (!frontier.isEmpty() && visits < MAX_ORDERED_VISITS) {
+            Bucket<T> bucket = frontier.poll();
+            visits++;
+            if (matcher.matches(bucket.mHeadElement)) {
+                return bucket;
+            }
+            addChildren(frontier, bucket);
+        }
+        if (frontier.isEmpty()) {
+            return null;
+        }
+        Bucket<T> bestBucket = null;
+        for (Bucket<T> bucket : mHeap) {
+            if (matcher.matches(bucket.mHeadElement)
+                    && (bestBucket == null || mBucketComparator.compare(bucket, bestBucket) < 0)) {
+                bestBucket = bucket;
+            }
+        }
+        return bestBucket;
+    }
+
+    private void addChildren(PriorityQueue<Bucket<T>> frontier, Bucket<T> parent) {
+        int left = 2 * parent.mHeapIndex + 1;
+        if (left < mHeap.size()) {
+            frontier.add(mHeap.get(left));
+        }
+        if (left + 1 < mHeap.size()) {
+            frontier.add(mHeap.get(left + 1));
+        }
+    }
+
+    /**
+     * Wake up the oldest waiter whose matcher accepts given <var>element</var>, if any.
+     */
+    private void signalWaiter(T element) {
+        Waiter target = null;
+        for (WaiterGroup<T> group : mWaiterGroups.values()) {
+            Waiter candidate = group.firstUnsignaled();
+            if (candidate != null && (target == null || candidate.mSeq < target.mSeq)
+                    && group.mMatcher.matches(element)) {
+                target = candidate;
+            }
+        }
+        if (target != null) {
+            target.mSignaled = true;
+            target.mCondition.signal();
+        }
+    }
+
+    private IMatcher<T> getGroupKey(IMatcher<T> matcher) {
+        if (matcher instanceof AlwaysMatch) {
+            return mAlwaysMatch;
+        }
+        return matcher;
+    }
+
+    /**
+     * Get the buckets that could contain given <var>object</var>.
+     */
+    private List<Bucket<T>> getCandidateBuckets(T object) {
+        if (mBucketKey != null) {
+            Bucket<T> bucket = mBucketMap.get(mBucketKey.getKey(object));
+            if (bucket == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(bucket);
+        }
+        return mHeap;
+    }
+
+    private void insert(T element) {
+        Entry<T> entry = new Entry<T>(element, mNextSeq++);
+        Bucket<T> bucket = null;
+        if (mBucketKey != null) {
+            Object key = mBucketKey.getKey(element);
+            bucket = mBucketMap.get(key);
+            if (bucket == null) {
+                bucket = new Bucket<T>(key);
+                mBucketMap.put(key, bucket);
+            }
+        } else {
+            bucket = new Bucket<T>(null);
+        }
+        bucket.mEntries.add(entry);
+        mSize++;
+        if (bucket.mHeapIndex < 0) {
+            bucket.updateHead();
+            bucket.mHeapIndex = mHeap.size();
+            mHeap.add(bucket);
+            siftUp(bucket.mHeapIndex);
+        }
+    }
+
+    private T removeHead(Bucket<T> bucket) {
+        Entry<T> entry = bucket.mEntries.removeFirst();
+        mSize--;
+        if (bucket.mEntries.isEmpty()) {
+            removeBucket(bucket);
+        } else {
+            // the new head has a later insertion time, but the same priority
+            bucket.updateHead();
+            siftDown(bucket.mHeapIndex);
+        }
+        return entry.mElement;
+    }
+
+    private void removeBucket(Bucket<T> bucket) {
+        if (mBucketKey != null) {
+            mBucketMap.remove(bucket.mKey);
+        }
+        int index = bucket.mHeapIndex;
+        int lastIndex = mHeap.size() - 1;
+        Bucket<T> last = mHeap.remove(lastIndex);
+        bucket.mHeapIndex = -1;
+        if (index != lastIndex) {
+            mHeap.set(index, last);
+            last.mHeapIndex = index;
+            fixHeap(index);
+        }
+    }
+
+    private void fixHeap(int index) {
+        if (!siftUp(index)) {
+            siftDown(index);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the bucket at given index was moved
+     */
+    private boolean siftUp(int index) {
+        Bucket<T> bucket = mHeap.get(index);
+        int startIndex = index;
+        while (index > 0) {
+            int parentIndex = (index - 1) / 2;
+            Bucket<T> parent = mHeap.get(parentIndex);
+            if (mBucketComparator.compare(bucket, parent) >= 0) {
+                break;
+            }
+            mHeap.set(index, parent);
+            parent.mHeapIndex = index;
+            index = parentIndex;
+        }
+        mHeap.set(index, bucket);
+        bucket.mHeapIndex = index;
+        return index != startIndex;
+    }
+
+    private void siftDown(int index) {
+        Bucket<T> bucket = mHeap.get(index);
+        int size = mHeap.size();
+        while (true) {
+            int childIndex = 2 * index + 1;
+            if (childIndex >= size) {
+                break;
+            }
+            Bucket<T> child = mHeap.get(childIndex);
+            if (childIndex + 1 < size
+                    && mBucketComparator.compare(mHeap.get(childIndex + 1), child) < 0) {
+                childIndex++;
+                child = mHeap.get(childIndex);
+            }
+            if (mBucketComparator.compare(bucket, child) <= 0) {
+                break;
+            }
+            mHeap.set(index, child);
+            child.mHeapIndex = index;
+            index = childIndex;
+        }
+        mHeap.set(index, bucket);
+        bucket.mHeapIndex = index;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread-safe accumulator of operation latencies, that tracks the number of samples, and the
+ * total and maximum latency.
+ */
+public class LatencyStats {
+
+    private final String mName;
+    private long mCount = 0;
+    private long mTotalNs = 0;
+    private long mMaxNs = 0;
+
+    /**
+     * Creates a {@link LatencyStats}.
+     *
+     * @param name the name of the measured operation, used for display
+     */
+    public LatencyStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Record the latency of one operation.
+     *
+     * @param startTimeNs the start time of the operation, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(long startTimeNs) {
+        record(System.nanoTime() - startTimeNs);
+    }
+
+    /**
+     * Record the latency of one operation.
+     *
+     * @param latencyNs the latency in ns
+     */
+    public synchronized void record(long latencyNs) {
+        mCount++;
+        mTotalNs += latencyNs;
+        if (latencyNs > mMaxNs) {
+            mMaxNs = latencyNs;
+        }
+    }
+
+    /**
+     * @return the number of recorded operations
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the average latency in ns, or 0 if no operation was recorded
+     */
+    public synchronized long getMeanNs() {
+        return mCount == 0 ? 0 : mTotalNs / mCount;
+    }
+
+    /**
+     * @return the maximum latency in ns
+     */
+    public synchronized long getMaxNs() {
+        return mMaxNs;
+    }
+
+    /**
+     * Reset all recorded values.
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mTotalNs = 0;
+        mMaxNs = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: count=%d mean=%dus max=%dus", mName, mCount,
+                TimeUnit.NANOSECONDS.toMicros(getMeanNs()), TimeUnit.NANOSECONDS.toMicros(mMaxNs));
+    }
+}
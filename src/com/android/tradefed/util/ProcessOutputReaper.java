@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drains the stdout and stderr of running processes from a single background thread.
+ * <p/>
+ * A process whose output is not read blocks once its pipe buffers are full. Rather than
+ * dedicating threads to each process, the reaper thread polls the output streams of all
+ * registered processes, and only reads what is available without blocking. Once the process
+ * exits, the thread that waited for it collects the rest of the output with
+ * {@link ProcessOutput#finish()}.
+ */
+class ProcessOutputReaper {
+
+    /** time between polls of the output of registered processes */
+    private static final long POLL_INTERVAL_MS = 10;
+    /** time the reaper thread stays alive without processes to drain */
+    private static final long IDLE_TIMEOUT_MS = 60 * 1000;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    /** max bytes read from a stream per poll, so a very verbose process cannot starve others */
+    private static final int MAX_READ_PER_POLL = 256 * 1024;
+
+    private static final ProcessOutputReaper sInstance = new ProcessOutputReaper();
+
+    private final List<ProcessOutput> mOutputs = new ArrayList<ProcessOutput>();
+    private Thread mReaperThread = null;
+
+    /**
+     * The output collected for a process.
+     */
+    static class ProcessOutput {
+        private final InputStream mStdout;
+        private final InputStream mStderr;
+        private final ByteArrayOutputStream mStdoutData = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream mStderrData = new ByteArrayOutputStream();
+        private boolean mFinished = false;
+
+        ProcessOutput(Process process) {
+            mStdout = process.getInputStream();
+            mStderr = process.getErrorStream();
+        }
+
+        /**
+         * Read what is available from the process output without blocking.
+         */
+        synchronized void drainAvailable(byte[] buffer) throws IOException {
+            if (!mFinished) {
+                drainAvailable(mStdout, mStdoutData, buffer);
+                drainAvailable(mStderr, mStderrData, buffer);
+            }
+        }
+
+        private static void drainAvailable(InputStream stream, ByteArrayOutputStream data,
+                byte[] buffer) throws IOException {
+            int available;
+            int total = 0;
+            while (total < MAX_READ_PER_POLL && (available = stream.available()) > 0) {
+                int read = stream.read(buffer, 0, Math.min(available, buffer.length));
+                if (read <= 0) {
+                    return;
+                }
+                data.write(buffer, 0, read);
+                total += read;
+            }
+        }
+
+        /**
+         * Stop draining the output in the background, and read the rest of it. Should be called
+         * once the process has exited.
+         */
+        void finish() throws IOException {
+            sInstance.unregister(this);
+            synchronized (this) {
+                mFinished = true;
+            }
+            // read outside the lock: the output can stay open after the process exits, if it
+            // was inherited by a child process
+            StreamUtil.copyStreams(mStdout, mStdoutData);
+            StreamUtil.copyStreams(mStderr, mStderrData);
+        }
+
+        /**
+         * Stop draining the output in the background, if not already stopped. The output not
+         * read yet is discarded.
+         */
+        void stop() {
+            sInstance.unregister(this);
+            synchronized (this) {
+                mFinished = true;
+            }
+        }
+
+        /**
+         * @return the stdout collected so far
+         */
+        String getStdout() throws IOException {
+            return mStdoutData.toString("UTF-8");
+        }
+
+        /**
+         * @return the stderr collected so far
+         */
+        String getStderr() throws IOException {
+            return mStderrData.toString("UTF-8");
+        }
+    }
+
+    /**
+     * Start draining the output of a process in the background.
+     */
+    static ProcessOutput drain(Process process) {
+        ProcessOutput output = new ProcessOutput(process);
+        sInstance.register(output);
+        return output;
+    }
+
+    private synchronized void register(ProcessOutput output) {
+        mOutputs.add(output);
+        notifyAll();
+        if (mReaperThread == null) {
+            mReaperThread = new Thread("ProcessOutputReaper") {
+                @Override
+                public void run() {
+                    reap();
+                }
+            };
+            mReaperThread.setDaemon(true);
+            mReaperThread.start();
+        }
+    }
+
+    private synchronized void unregister(ProcessOutput output) {
+        mOutputs.remove(output);
+    }
+
+    /**
+     * Main loop of the reaper thread. Stops once there were no processes to drain for
+     * {@link #IDLE_TIMEOUT_MS}.
+     */
+    private void reap() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        List<ProcessOutput> outputs = new ArrayList<ProcessOutput>();
+        while (true) {
+            synchronized (this) {
+                if (mOutputs.isEmpty()) {
+                    try {
+                        wait(IDLE_TIMEOUT_MS);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                    if (mOutputs.isEmpty()) {
+                        mReaperThread = null;
+                        return;
+                    }
+                }
+                outputs.clear();
+                outputs.addAll(mOutputs);
+            }
+            for (ProcessOutput output : outputs) {
+                try {
+                    output.drainAvailable(buffer);
+                } catch (IOException e) {
+                    // the process is gone, or its output was closed. Let finish() handle it
+                    CLog.d("Failed to read process output: %s", e.getMessage());
+                    unregister(output);
+                }
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+}
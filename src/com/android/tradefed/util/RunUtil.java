@@ -17,6 +17,7 @@
 package com.android.tradefed.util;
 
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.ProcessOutputReaper.ProcessOutput;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -25,13 +26,41 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A collection of helper methods for executing operations.
+ * <p/>
+ * Timed operations of all {@link RunUtil} instances run on a shared pool of up to
+ * {@link #MAX_POOLED_THREADS} threads, which are reused across operations. If all pooled threads
+ * are busy, the operation runs on a new thread of its own, so operations never wait for each
+ * other. The output of commands is drained by a single {@link ProcessOutputReaper} thread.
  */
 public class RunUtil implements IRunUtil {
 
     private static final int POLL_TIME_INCREASE_FACTOR = 4;
+    /** max number of threads kept to run timed operations */
+    private static final int MAX_POOLED_THREADS = 64;
+    /** time an idle pooled thread is kept alive */
+    private static final long POOLED_THREAD_KEEP_ALIVE_SECS = 60;
+
+    private static final AtomicInteger sActiveThreadCount = new AtomicInteger(0);
+    private static final AtomicLong sOverflowThreadCount = new AtomicLong(0);
+    private static final AtomicLong sTimedRunCount = new AtomicLong(0);
+    private static final AtomicLong sTotalStartLatencyNs = new AtomicLong(0);
+    private static final AtomicLong sMaxStartLatencyNs = new AtomicLong(0);
+    private static final ThreadPoolExecutor sExecutor = createExecutor();
+
     private static IRunUtil sDefaultInstance = null;
     private File mWorkingDir = null;
     private Map<String, String> mEnvVariables = new HashMap<String, String>();
@@ -169,18 +198,104 @@ public class RunUtil implements IRunUtil {
     @Override
     public CommandStatus runTimed(long timeout, IRunUtil.IRunnableResult runnable,
             boolean logErrors) {
-        RunnableNotifier runThread = new RunnableNotifier(runnable, logErrors);
-        runThread.start();
+        Future<CommandStatus> future = sExecutor.submit(new RunnableNotifier(runnable,
+                logErrors));
+        CommandStatus status;
         try {
-            runThread.join(timeout);
+            // like Thread#join, a timeout of 0 means waiting forever
+            status = timeout == 0 ? future.get() : future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            status = CommandStatus.TIMED_OUT;
         } catch (InterruptedException e) {
             CLog.i("runnable interrupted");
+            status = CommandStatus.TIMED_OUT;
+        } catch (ExecutionException e) {
+            CLog.e("Error occurred when executing runnable");
+            CLog.e(e.getCause());
+            status = CommandStatus.EXCEPTION;
         }
-        if (runThread.getStatus() == CommandStatus.TIMED_OUT
-                || runThread.getStatus() == CommandStatus.EXCEPTION) {
-            runThread.interrupt();
+        if (status == CommandStatus.TIMED_OUT || status == CommandStatus.EXCEPTION) {
+            runnable.cancel();
+            future.cancel(true);
         }
-        return runThread.getStatus();
+        return status;
+    }
+
+    /**
+     * @return the number of threads currently running timed operations, including threads
+     *         started because all pooled threads were busy
+     */
+    public static int getActiveThreadCount() {
+        return sActiveThreadCount.get();
+    }
+
+    /**
+     * @return the number of threads in the pool of threads running timed operations, busy or
+     *         idle
+     */
+    public static int getPooledThreadCount() {
+        return sExecutor.getPoolSize();
+    }
+
+    /**
+     * @return the total number of threads started because all pooled threads were busy
+     */
+    public static long getOverflowThreadCount() {
+        return sOverflowThreadCount.get();
+    }
+
+    /**
+     * @return the total number of timed operations run
+     */
+    public static long getTimedRunCount() {
+        return sTimedRunCount.get();
+    }
+
+    /**
+     * @return the average time between the start of a timed operation being requested and it
+     *         actually starting on a thread, in microseconds
+     */
+    public static long getAverageStartLatencyUs() {
+        long count = sTimedRunCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sTotalStartLatencyNs.get() / count);
+    }
+
+    /**
+     * @return the max time between the start of a timed operation being requested and it
+     *         actually starting on a thread, in microseconds
+     */
+    public static long getMaxStartLatencyUs() {
+        return TimeUnit.NANOSECONDS.toMicros(sMaxStartLatencyNs.get());
+    }
+
+    /**
+     * Create the executor running timed operations.
+     */
+    private static ThreadPoolExecutor createExecutor() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mThreadNumber = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RunUtil-" + mThreadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        RejectedExecutionHandler overflowHandler = new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // all pooled threads are busy. Never make the operation wait, since its timeout
+                // is already running
+                sOverflowThreadCount.incrementAndGet();
+                Thread thread = new Thread(r, "RunUtil-overflow");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        };
+        return new ThreadPoolExecutor(0, MAX_POOLED_THREADS, POOLED_THREAD_KEEP_ALIVE_SECS,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory,
+                overflowHandler);
     }
 
     /**
@@ -259,12 +374,12 @@ public class RunUtil implements IRunUtil {
     }
 
     /**
-     * Helper thread that wraps a runnable, and notifies when done.
+     * Helper that wraps a runnable, and returns its {@link CommandStatus}.
      */
-    private static class RunnableNotifier extends Thread {
+    private static class RunnableNotifier implements Callable<CommandStatus> {
 
         private final IRunUtil.IRunnableResult mRunnable;
-        private CommandStatus mStatus = CommandStatus.TIMED_OUT;
+        private final long mSubmitTime = System.nanoTime();
         private boolean mLogErrors = true;
 
         RunnableNotifier(IRunUtil.IRunnableResult runnable, boolean logErrors) {
@@ -273,33 +388,34 @@ public class RunUtil implements IRunUtil {
         }
 
         @Override
-        public void run() {
-            CommandStatus status;
+        public CommandStatus call() {
+            recordStart(System.nanoTime() - mSubmitTime);
+            sActiveThreadCount.incrementAndGet();
             try {
-                status = mRunnable.run() ? CommandStatus.SUCCESS : CommandStatus.FAILED;
+                return mRunnable.run() ? CommandStatus.SUCCESS : CommandStatus.FAILED;
             } catch (InterruptedException e) {
                 CLog.i("runutil interrupted");
-                status = CommandStatus.EXCEPTION;
+                return CommandStatus.EXCEPTION;
             } catch (Exception e) {
                 if (mLogErrors) {
                     CLog.e("Exception occurred when executing runnable");
                     CLog.e(e);
                 }
-                status = CommandStatus.EXCEPTION;
-            }
-            synchronized (this) {
-                mStatus = status;
+                return CommandStatus.EXCEPTION;
+            } finally {
+                sActiveThreadCount.decrementAndGet();
             }
         }
 
-        @Override
-        public void interrupt() {
-            mRunnable.cancel();
-            super.interrupt();
-        }
-
-        synchronized CommandStatus getStatus() {
-            return mStatus;
+        private static void recordStart(long latencyNs) {
+            sTimedRunCount.incrementAndGet();
+            sTotalStartLatencyNs.addAndGet(latencyNs);
+            long max;
+            while (latencyNs > (max = sMaxStartLatencyNs.get())) {
+                if (sMaxStartLatencyNs.compareAndSet(max, latencyNs)) {
+                    break;
+                }
+            }
         }
     }
 
@@ -320,20 +436,25 @@ public class RunUtil implements IRunUtil {
         public boolean run() throws Exception {
             CLog.d("Running %s", mProcessBuilder.command());
             mProcess = mProcessBuilder.start();
-            if (mInput != null) {
-                BufferedOutputStream processStdin = new BufferedOutputStream(
-                        mProcess.getOutputStream());
-                processStdin.write(mInput.getBytes("UTF-8"));
-                processStdin.flush();
-                processStdin.close();
+            ProcessOutput output = ProcessOutputReaper.drain(mProcess);
+            int rc;
+            try {
+                if (mInput != null) {
+                    BufferedOutputStream processStdin = new BufferedOutputStream(
+                            mProcess.getOutputStream());
+                    processStdin.write(mInput.getBytes("UTF-8"));
+                    processStdin.flush();
+                    processStdin.close();
+                }
+                rc = mProcess.waitFor();
+                output.finish();
+            } finally {
+                output.stop();
             }
-            int rc = mProcess.waitFor();
             synchronized (this) {
                 if (mProcess != null) {
-                    mCommandResult.setStdout(StreamUtil.getStringFromStream(
-                            mProcess.getInputStream()));
-                    mCommandResult.setStderr(StreamUtil.getStringFromStream(
-                            mProcess.getErrorStream()));
+                    mCommandResult.setStdout(output.getStdout());
+                    mCommandResult.setStderr(output.getStderr());
                 }
             }
 
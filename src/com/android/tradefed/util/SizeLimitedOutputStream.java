@@ -18,7 +18,7 @@
 package com.android.tradefed.util;
 
 import com.android.tradefed.log.LogUtil.CLog;
-import com.google.common.io.CountingOutputStream;
+import com.android.tradefed.result.InputStreamSource;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
@@ -30,6 +30,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A thread safe file backed {@link OutputStream} that limits the maximum amount of data that can be
@@ -38,6 +42,12 @@ import java.io.SequenceInputStream;
  * This is implemented by keeping a circular list of Files of fixed size. Once a File has reached a
  * certain size, the class jumps to use the next File in the list. If the next File is non empty, it
  * is deleted, and a new file created.
+ * <p/>
+ * Data can optionally be written through a {@link FileChannel}, using direct buffers shared
+ * between all instances, rather than a {@link BufferedOutputStream} per instance.
+ * <p/>
+ * {@link #createSnapshot()} provides a view of the current data without copying it. Backing files
+ * referenced by a {@link Snapshot} are only deleted once all snapshots have been cancelled.
  */
 public class SizeLimitedOutputStream extends OutputStream {
 
@@ -46,13 +56,22 @@ public class SizeLimitedOutputStream extends OutputStream {
     /** The max number of bytes to store in the buffer */
     private static final int BUFF_SIZE = 32 * 1024;
 
+    /** The max number of released direct buffers to keep for reuse */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final ByteBufferPool sBufferPool = new ByteBufferPool(BUFF_SIZE,
+            MAX_POOLED_BUFFERS, true);
+
     // circular array of backing files
-    private final File[] mFiles;
+    private final BackingFile[] mFiles;
     private final long mMaxFileSize;
-    private CountingOutputStream mCurrentOutputStream;
+    private OutputStream mCurrentOutputStream;
+    /** the number of bytes written to the current file */
+    private long mCurrentFileSize = 0;
     private int mCurrentFilePos = 0;
     private final String mTempFilePrefix;
     private final String mTempFileSuffix;
+    private final boolean mUseFileChannel;
 
     /**
      * Creates a {@link SizeLimitedOutputStream}.
@@ -66,11 +85,29 @@ public class SizeLimitedOutputStream extends OutputStream {
      */
     public SizeLimitedOutputStream(long maxDataSize, int numFiles, String tempFilePrefix,
             String tempFileSuffix) {
+        this(maxDataSize, numFiles, tempFilePrefix, tempFileSuffix, false);
+    }
+
+    /**
+     * Creates a {@link SizeLimitedOutputStream}.
+     *
+     * @param maxDataSize the approximate max size in bytes to keep in the output stream
+     * @param numFiles the max number of backing files to use to store data. Higher values will mean
+     *            max data kept will be close to maxDataSize, but with a possible performance
+     *            penalty.
+     * @param tempFilePrefix prefix to use for temporary files
+     * @param tempFileSuffix suffix to use for temporary files
+     * @param useFileChannel if <code>true</code>, write data through a {@link FileChannel} using
+     *            pooled direct buffers
+     */
+    public SizeLimitedOutputStream(long maxDataSize, int numFiles, String tempFilePrefix,
+            String tempFileSuffix, boolean useFileChannel) {
         mMaxFileSize = maxDataSize / (long)numFiles;
-        mFiles = new File[numFiles];
+        mFiles = new BackingFile[numFiles];
         mCurrentFilePos = numFiles;
         mTempFilePrefix = tempFilePrefix;
         mTempFileSuffix = tempFileSuffix;
+        mUseFileChannel = useFileChannel;
     }
 
     /**
@@ -84,6 +121,20 @@ public class SizeLimitedOutputStream extends OutputStream {
         this(maxDataSize, DEFAULT_NUM_TMP_FILES, tempFilePrefix, tempFileSuffix);
     }
 
+    /**
+     * Creates a {@link SizeLimitedOutputStream} with default number of backing files.
+     *
+     * @param maxDataSize the approximate max size to keep in the output stream
+     * @param tempFilePrefix prefix to use for temporary files
+     * @param tempFileSuffix suffix to use for temporary files
+     * @param useFileChannel if <code>true</code>, write data through a {@link FileChannel} using
+     *            pooled direct buffers
+     */
+    public SizeLimitedOutputStream(long maxDataSize, String tempFilePrefix, String tempFileSuffix,
+            boolean useFileChannel) {
+        this(maxDataSize, DEFAULT_NUM_TMP_FILES, tempFilePrefix, tempFileSuffix, useFileChannel);
+    }
+
     /**
      * Gets the collected output as a {@link InputStream}.
      * <p/>
@@ -99,7 +150,7 @@ public class SizeLimitedOutputStream extends OutputStream {
             int currentPos = (mCurrentFilePos + i + 1) % mFiles.length;
             if (mFiles[currentPos] != null) {
                 @SuppressWarnings("resource")
-                FileInputStream fStream = new FileInputStream(mFiles[currentPos]);
+                FileInputStream fStream = new FileInputStream(mFiles[currentPos].mFile);
                 if (combinedStream == null) {
                     combinedStream = fStream;
                 } else {
@@ -114,6 +165,36 @@ public class SizeLimitedOutputStream extends OutputStream {
 
     }
 
+    /**
+     * Gets a {@link Snapshot} of the collected output.
+     * <p/>
+     * The data is not copied, so the cost of this method does not depend on the amount of data
+     * collected. Caller must call {@link Snapshot#cancel()} once the snapshot is no longer needed,
+     * otherwise backing files will be leaked.
+     *
+     * @return the {@link Snapshot}
+     */
+    public synchronized Snapshot createSnapshot() {
+        flush();
+        List<BackingFile> segments = new ArrayList<BackingFile>(mFiles.length);
+        List<Long> lengths = new ArrayList<Long>(mFiles.length);
+        for (int i = 0; i < mFiles.length; i++) {
+            // oldest/starting file is always the next one up from current
+            int currentPos = (mCurrentFilePos + i + 1) % mFiles.length;
+            BackingFile file = mFiles[currentPos];
+            if (file != null) {
+                // the current file is still being appended to, so capture its current length
+                long length = currentPos == mCurrentFilePos ? mCurrentFileSize : file.mLength;
+                if (length > 0) {
+                    file.acquire();
+                    segments.add(file);
+                    lengths.add(length);
+                }
+            }
+        }
+        return new Snapshot(segments, lengths);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -134,11 +215,13 @@ public class SizeLimitedOutputStream extends OutputStream {
     /**
      * Delete all accumulated data.
      */
-    public void delete() {
+    public synchronized void delete() {
         close();
         for (int i = 0; i < mFiles.length; i++) {
-            FileUtil.deleteFile(mFiles[i]);
-            mFiles[i] = null;
+            if (mFiles[i] != null) {
+                mFiles[i].release();
+                mFiles[i] = null;
+            }
         }
     }
 
@@ -146,7 +229,7 @@ public class SizeLimitedOutputStream extends OutputStream {
      * Closes the write stream
      */
     @Override
-    public void close() {
+    public synchronized void close() {
         try {
             if (mCurrentOutputStream != null) {
                 mCurrentOutputStream.flush();
@@ -171,13 +254,23 @@ public class SizeLimitedOutputStream extends OutputStream {
     synchronized void generateNextFile() throws IOException, FileNotFoundException {
         // close current stream
         close();
+        if (mCurrentFilePos < mFiles.length && mFiles[mCurrentFilePos] != null) {
+            mFiles[mCurrentFilePos].mLength = mCurrentFileSize;
+        }
         mCurrentFilePos = getNextIndex(mCurrentFilePos);
         if (mFiles[mCurrentFilePos] != null) {
-            mFiles[mCurrentFilePos].delete();
+            // file will only be deleted once no snapshot refers to it anymore
+            mFiles[mCurrentFilePos].release();
         }
-        mFiles[mCurrentFilePos] = FileUtil.createTempFile(mTempFilePrefix, mTempFileSuffix);
-        mCurrentOutputStream = new CountingOutputStream(new BufferedOutputStream(
-                new FileOutputStream(mFiles[mCurrentFilePos]), BUFF_SIZE));
+        mFiles[mCurrentFilePos] = new BackingFile(FileUtil.createTempFile(mTempFilePrefix,
+                mTempFileSuffix));
+        FileOutputStream fileStream = new FileOutputStream(mFiles[mCurrentFilePos].mFile);
+        if (mUseFileChannel) {
+            mCurrentOutputStream = new ChannelOutputStream(fileStream);
+        } else {
+            mCurrentOutputStream = new BufferedOutputStream(fileStream, BUFF_SIZE);
+        }
+        mCurrentFileSize = 0;
     }
 
     /**
@@ -189,14 +282,298 @@ public class SizeLimitedOutputStream extends OutputStream {
         return (i + 1) % mFiles.length;
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
     public synchronized void write(int data) throws IOException {
         if (mCurrentOutputStream == null) {
             generateNextFile();
         }
         mCurrentOutputStream.write(data);
-        if (mCurrentOutputStream.getCount() >= mMaxFileSize) {
+        mCurrentFileSize++;
+        if (mCurrentFileSize >= mMaxFileSize) {
             generateNextFile();
         }
     }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Writes the data in as few chunks as possible, splitting it only at file boundaries.
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            if (mCurrentOutputStream == null) {
+                generateNextFile();
+            }
+            // always write at least one byte, to match write(int) when max file size is 0
+            int chunkSize = (int)Math.max(1, Math.min(len, mMaxFileSize - mCurrentFileSize));
+            mCurrentOutputStream.write(b, off, chunkSize);
+            mCurrentFileSize += chunkSize;
+            off += chunkSize;
+            len -= chunkSize;
+            if (mCurrentFileSize >= mMaxFileSize) {
+                generateNextFile();
+            }
+        }
+    }
+
+    /**
+     * An {@link OutputStream} that writes to a {@link FileChannel} through a pooled direct buffer.
+     * <p/>
+     * Not thread safe. The buffer is returned to the pool when the stream is closed, after which
+     * writes and flushes throw {@link IOException}.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final FileOutputStream mFileStream;
+        private final FileChannel mChannel;
+        private ByteBuffer mBuffer;
+
+        ChannelOutputStream(FileOutputStream fileStream) {
+            mFileStream = fileStream;
+            mChannel = fileStream.getChannel();
+            mBuffer = sBufferPool.acquire();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            if (!mBuffer.hasRemaining()) {
+                drainBuffer();
+            }
+            mBuffer.put((byte)b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                if (!mBuffer.hasRemaining()) {
+                    drainBuffer();
+                }
+                int chunkSize = Math.min(len, mBuffer.remaining());
+                mBuffer.put(b, off, chunkSize);
+                off += chunkSize;
+                len -= chunkSize;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            drainBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mBuffer == null) {
+                return;
+            }
+            try {
+                drainBuffer();
+            } finally {
+                sBufferPool.release(mBuffer);
+                mBuffer = null;
+                mFileStream.close();
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (mBuffer == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        private void drainBuffer() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+    }
+
+    /**
+     * A reference counted backing file, deleted once released by the stream and all snapshots.
+     */
+    private static class BackingFile {
+        private final File mFile;
+        /** the final length of the file, only valid once the stream moved to the next file */
+        private long mLength = 0;
+        private int mRefCount = 1;
+
+        BackingFile(File file) {
+            mFile = file;
+        }
+
+        synchronized void acquire() {
+            mRefCount++;
+        }
+
+        synchronized void release() {
+            mRefCount--;
+            if (mRefCount == 0) {
+                FileUtil.deleteFile(mFile);
+            }
+        }
+    }
+
+    /**
+     * An immutable view of the data of a {@link SizeLimitedOutputStream} at a point in time.
+     * <p/>
+     * Holds a reference to each backing file, and the amount of data it contained when the
+     * snapshot was created. Data appended to the stream afterwards is not visible.
+     */
+    public static class Snapshot implements InputStreamSource {
+        private final List<BackingFile> mSegments;
+        private final List<Long> mLengths;
+        private final long mSize;
+        private boolean mIsCancelled = false;
+
+        Snapshot(List<BackingFile> segments, List<Long> lengths) {
+            mSegments = segments;
+            mLengths = lengths;
+            long size = 0;
+            for (Long length : lengths) {
+                size += length;
+            }
+            mSize = size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public InputStream createInputStream() {
+            return createInputStream(0);
+        }
+
+        /**
+         * Return an {@link InputStream} over the last <var>maxBytes</var> of the snapshot.
+         * <p/>
+         * Preceding data is skipped without being read.
+         *
+         * @param maxBytes the maximum number of bytes to read
+         * @return the {@link InputStream} or <code>null</code> if the snapshot has been cancelled
+         *         or could not be read
+         */
+        public InputStream createTailInputStream(long maxBytes) {
+            return createInputStream(Math.max(0, mSize - maxBytes));
+        }
+
+        private synchronized InputStream createInputStream(long offset) {
+            if (mIsCancelled) {
+                return null;
+            }
+            InputStream combinedStream = null;
+            try {
+                long segmentStart = 0;
+                for (int i = 0; i < mSegments.size(); i++) {
+                    long length = mLengths.get(i);
+                    if (segmentStart + length > offset) {
+                        long skip = Math.max(0, offset - segmentStart);
+                        InputStream segmentStream = new SegmentInputStream(
+                                mSegments.get(i).mFile, skip, length - skip);
+                        if (combinedStream == null) {
+                            combinedStream = segmentStream;
+                        } else {
+                            combinedStream = new SequenceInputStream(combinedStream,
+                                    segmentStream);
+                        }
+                    }
+                    segmentStart += length;
+                }
+            } catch (IOException e) {
+                CLog.e("Failed to read snapshot: %s", e);
+                StreamUtil.close(combinedStream);
+                return null;
+            }
+            if (combinedStream == null) {
+                combinedStream = new ByteArrayInputStream(new byte[0]);
+            }
+            return combinedStream;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * Releases the backing files of the snapshot.
+         */
+        @Override
+        public synchronized void cancel() {
+            if (mIsCancelled) {
+                return;
+            }
+            mIsCancelled = true;
+            for (BackingFile segment : mSegments) {
+                segment.release();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long size() {
+            return mSize;
+        }
+    }
+
+    /**
+     * An {@link InputStream} over a section of a file.
+     */
+    private static class SegmentInputStream extends InputStream {
+        private final FileInputStream mFileStream;
+        private long mRemaining;
+
+        SegmentInputStream(File file, long offset, long length) throws IOException {
+            mFileStream = new FileInputStream(file);
+            try {
+                mFileStream.getChannel().position(offset);
+            } catch (IOException e) {
+                mFileStream.close();
+                throw e;
+            }
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int data = mFileStream.read();
+            if (data != -1) {
+                mRemaining--;
+            }
+            return data;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return len == 0 ? 0 : -1;
+            }
+            int read = mFileStream.read(b, off, (int)Math.min(len, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int)Math.min(mFileStream.available(), mRemaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFileStream.close();
+        }
+    }
 }
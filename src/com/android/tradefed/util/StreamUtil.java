@@ -17,10 +17,10 @@ package com.android.tradefed.util;
 
 import com.android.tradefed.result.InputStreamSource;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -28,6 +28,10 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -36,6 +40,32 @@ import java.util.zip.ZipOutputStream;
  */
 public class StreamUtil {
 
+    /**
+     * A listener for the progress of a copy.
+     */
+    public static interface ICopyProgressListener {
+        /**
+         * Callback when a block of data has been copied.
+         *
+         * @param totalBytes the total number of bytes copied so far
+         */
+        public void bytesCopied(long totalBytes);
+    }
+
+    /** the size of the buffers used to copy data */
+    private static final int BUF_SIZE = 64 * 1024;
+
+    /** the max number of released copy buffers to keep for reuse */
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    /** the max amount of data to transfer between file channels at a time */
+    private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ByteBufferPool sBufferPool = new ByteBufferPool(BUF_SIZE,
+            MAX_POOLED_BUFFERS, false);
+
     private StreamUtil() {
     }
 
@@ -84,11 +114,12 @@ public class StreamUtil {
      * @throws IOException if failure occurred reading the stream
      */
     public static String getStringFromStream(InputStream stream) throws IOException {
-        Reader ir = new BufferedReader(new InputStreamReader(stream));
-        int irChar = -1;
+        Reader ir = new InputStreamReader(stream);
+        char[] buffer = new char[8 * 1024];
+        int charsRead = -1;
         StringBuilder builder = new StringBuilder();
-        while ((irChar = ir.read()) != -1) {
-            builder.append((char)irChar);
+        while ((charsRead = ir.read(buffer)) != -1) {
+            builder.append(buffer, 0, charsRead);
         }
         return builder.toString();
     }
@@ -101,11 +132,16 @@ public class StreamUtil {
      * @throws IOException if failure occurred reading the stream
      */
     public static ByteArrayList getByteArrayListFromStream(InputStream stream) throws IOException {
-        InputStream is = new BufferedInputStream(stream);
-        int inputByte = -1;
         ByteArrayList list = new ByteArrayList();
-        while ((inputByte = is.read()) != -1) {
-            list.add((byte)inputByte);
+        ByteBuffer buffer = sBufferPool.acquire();
+        try {
+            byte[] data = buffer.array();
+            int bytesRead = -1;
+            while ((bytesRead = stream.read(data)) != -1) {
+                list.addAll(data, 0, bytesRead);
+            }
+        } finally {
+            sBufferPool.release(buffer);
         }
         list.trimToSize();
         return list;
@@ -114,7 +150,9 @@ public class StreamUtil {
     /**
      * Copies contents of origStream to destStream.
      * <p/>
-     * Recommended to provide a buffered stream for input and output
+     * Data is copied in blocks, so there is no need to provide buffered streams. Copies between
+     * a {@link FileInputStream} and a {@link FileOutputStream} are done via
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
      *
      * @param inStream the {@link InputStream}
      * @param outStream the {@link OutputStream}
@@ -122,27 +160,157 @@ public class StreamUtil {
      */
     public static void copyStreams(InputStream inStream, OutputStream outStream)
             throws IOException {
+        copyStreams(inStream, outStream, null);
+    }
 
-        int data = -1;
-        while ((data = inStream.read()) != -1) {
-            outStream.write(data);
+    /**
+     * Copies contents of origStream to destStream, reporting progress to given listener.
+     *
+     * @param inStream the {@link InputStream}
+     * @param outStream the {@link OutputStream}
+     * @param listener the {@link ICopyProgressListener} to inform after each copied block. Can
+     *            be <code>null</code>.
+     * @return the number of bytes copied
+     * @throws IOException
+     * @see #copyStreams(InputStream, OutputStream)
+     */
+    public static long copyStreams(InputStream inStream, OutputStream outStream,
+            ICopyProgressListener listener) throws IOException {
+        long totalBytes = 0;
+        if (inStream instanceof FileInputStream && outStream instanceof FileOutputStream) {
+            totalBytes = transferFile(((FileInputStream)inStream).getChannel(),
+                    ((FileOutputStream)outStream).getChannel(), listener);
+            // fall through to copy any data that can't be transferred, such as from a pipe
+        }
+        ByteBuffer buffer = sBufferPool.acquire();
+        try {
+            byte[] data = buffer.array();
+            int bytesRead = -1;
+            while ((bytesRead = inStream.read(data)) != -1) {
+                outStream.write(data, 0, bytesRead);
+                totalBytes += bytesRead;
+                if (listener != null) {
+                    listener.bytesCopied(totalBytes);
+                }
+            }
+        } finally {
+            sBufferPool.release(buffer);
+        }
+        return totalBytes;
+    }
+
+    /**
+     * Copies the remaining contents of a file channel to another, without copying the data
+     * through the java heap.
+     *
+     * @return the number of bytes copied. Nothing is copied if the input channel is not seekable,
+     *         such as a pipe
+     */
+    private static long transferFile(FileChannel inChannel, FileChannel outChannel,
+            ICopyProgressListener listener) throws IOException {
+        long position;
+        final long size;
+        try {
+            position = inChannel.position();
+            size = inChannel.size();
+        } catch (IOException e) {
+            // Illegal seek: leave the data to the stream copy
+            return 0;
+        }
+        final long startPosition = position;
+        while (position < size) {
+            long transferred = inChannel.transferTo(position,
+                    Math.min(MAX_TRANSFER_SIZE, size - position), outChannel);
+            if (transferred <= 0) {
+                // file was truncated while copying
+                break;
+            }
+            position += transferred;
+            if (listener != null) {
+                listener.bytesCopied(position - startPosition);
+            }
         }
+        // leave the input stream at the end of the copied data, as a stream copy would
+        inChannel.position(position);
+        return position - startPosition;
     }
 
     /**
      * Copies contents of inStream to writer.
      * <p/>
-     * Recommended to provide a buffered stream for input and output
+     * Each byte is written as a single character. Data is copied in blocks, so there is no need
+     * to provide buffered streams.
      *
      * @param inStream the {@link InputStream}
      * @param writer the {@link Writer} destination
      * @throws IOException
      */
     public static void copyStreamToWriter(InputStream inStream, Writer writer) throws IOException {
-        int data = -1;
-        while ((data = inStream.read()) != -1) {
-            writer.write(data);
+        ByteBuffer buffer = sBufferPool.acquire();
+        try {
+            byte[] data = buffer.array();
+            char[] chars = new char[data.length];
+            int bytesRead = -1;
+            while ((bytesRead = inStream.read(data)) != -1) {
+                for (int i = 0; i < bytesRead; i++) {
+                    chars[i] = (char)(data[i] & 0xff);
+                }
+                writer.write(chars, 0, bytesRead);
+            }
+        } finally {
+            sBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Create a {@link MessageDigest} that computes MD5 checksums.
+     *
+     * @return the {@link MessageDigest}
+     */
+    public static MessageDigest createMd5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Calculate the MD5 checksum of the remaining contents of a stream.
+     *
+     * @param inStream the {@link InputStream} to read. Is not closed.
+     * @return the hex encoded checksum
+     * @throws IOException if the stream could not be read
+     */
+    public static String calculateMd5(InputStream inStream) throws IOException {
+        MessageDigest digest = createMd5Digest();
+        ByteBuffer buffer = sBufferPool.acquire();
+        try {
+            byte[] data = buffer.array();
+            int bytesRead = -1;
+            while ((bytesRead = inStream.read(data)) != -1) {
+                digest.update(data, 0, bytesRead);
+            }
+        } finally {
+            sBufferPool.release(buffer);
+        }
+        return bytesToHexString(digest.digest());
+    }
+
+    /**
+     * Encode bytes as a lower case hex {@link String}, two characters per byte.
+     *
+     * @param data the bytes to encode
+     * @return the hex encoded {@link String}
+     */
+    public static String bytesToHexString(byte[] data) {
+        char[] chars = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[data[i] & 0xf];
         }
+        return new String(chars);
     }
 
     /**
@@ -23,6 +23,7 @@ import com.android.tradefed.util.MultiMap;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.StreamUtil;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -139,6 +140,22 @@ public class HttpHelper implements IHttpHelper {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String doGetToFile(String url, File destFile) throws IOException {
+        CLog.d("Downloading %s to %s", url, destFile.getAbsolutePath());
+        return createRangeDownloader().download(new URL(url), destFile);
+    }
+
+    /**
+     * Factory method for creating a {@link HttpRangeDownloader}. Exposed for unit testing.
+     */
+    HttpRangeDownloader createRangeDownloader() {
+        return new HttpRangeDownloader();
+    }
+
     /**
      * {@inheritDoc}
      */
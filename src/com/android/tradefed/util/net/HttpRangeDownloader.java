@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a file over http, fetching several byte ranges of the file in parallel when the
+ * server supports it.
+ * <p/>
+ * Each range is written to its position in the destination file as it is received. A failed
+ * range is retried from the last byte received, rather than from the start of the file. The MD5
+ * checksum of the file is computed while it is downloaded.
+ */
+public class HttpRangeDownloader {
+
+    private static final int BUF_SIZE = 64 * 1024;
+
+    private int mNumConnections = 4;
+    private long mMinSegmentSize = 8 * 1024 * 1024;
+    private int mMaxAttempts = 3;
+    private int mTimeoutMs = 60 * 1000;
+
+    /**
+     * A byte range of the file being downloaded.
+     */
+    private static class Segment {
+        final long mStart;
+        /** the end of the segment, exclusive. -1 if the size of the file is unknown */
+        long mEnd;
+        /** the position of the next byte to download */
+        private long mPosition;
+
+        Segment(long start, long end) {
+            mStart = start;
+            mEnd = end;
+            mPosition = start;
+        }
+
+        synchronized long getPosition() {
+            return mPosition;
+        }
+
+        synchronized void setPosition(long position) {
+            mPosition = position;
+        }
+
+        synchronized boolean isComplete() {
+            return mEnd >= 0 && mPosition >= mEnd;
+        }
+    }
+
+    /**
+     * Computes the checksum of the contiguous downloaded data at the start of the file, as
+     * segments are downloaded.
+     */
+    private static class ChecksumTracker {
+        private final FileChannel mChannel;
+        private final List<Segment> mSegments;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUF_SIZE);
+        private MessageDigest mDigest;
+        private long mChecksummedSize = 0;
+
+        ChecksumTracker(FileChannel channel, List<Segment> segments) {
+            mChannel = channel;
+            mSegments = segments;
+            mDigest = StreamUtil.createMd5Digest();
+        }
+
+        /**
+         * Discard the computed checksum, if the start of the file is downloaded again.
+         */
+        synchronized void reset() {
+            mDigest = StreamUtil.createMd5Digest();
+            mChecksummedSize = 0;
+        }
+
+        /**
+         * Add the data downloaded since the last update to the checksum, up to the first gap in
+         * the downloaded data.
+         */
+        synchronized void update() throws IOException {
+            long contiguousEnd = 0;
+            for (Segment segment : mSegments) {
+                contiguousEnd = segment.getPosition();
+                if (!segment.isComplete()) {
+                    break;
+                }
+            }
+            // data is usually still in the page cache, so reading it back is cheap
+            while (mChecksummedSize < contiguousEnd) {
+                mBuffer.clear();
+                mBuffer.limit((int)Math.min(mBuffer.capacity(), contiguousEnd - mChecksummedSize));
+                int read = mChannel.read(mBuffer, mChecksummedSize);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of downloaded file");
+                }
+                mDigest.update(mBuffer.array(), 0, read);
+                mChecksummedSize += read;
+            }
+        }
+
+        synchronized String getChecksum() {
+            return StreamUtil.bytesToHexString(mDigest.digest());
+        }
+    }
+
+    /**
+     * Thrown when the server answers a range request with the whole file.
+     */
+    @SuppressWarnings("serial")
+    private static class RangesIgnoredException extends IOException {
+        RangesIgnoredException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Set the max number of parallel connections to use for one download.
+     */
+    public void setNumConnections(int numConnections) {
+        mNumConnections = numConnections;
+    }
+
+    /**
+     * Set the minimum size of the byte range fetched by each connection.
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+        mMinSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * Set the max number of attempts to download each byte range.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Set the connect and read timeout of each request.
+     */
+    public void setTimeout(int timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Download the contents of given url to a file.
+     *
+     * @param url the {@link URL} to download
+     * @param destFile the {@link File} to write the contents to. Will be overwritten.
+     * @return the hex encoded MD5 checksum of the downloaded contents
+     * @throws IOException if the file could not be downloaded
+     */
+    public String download(URL url, File destFile) throws IOException {
+        return download(url, destFile, null);
+    }
+
+    /**
+     * Download the contents of given url to a file, and verify its checksum.
+     *
+     * @param url the {@link URL} to download
+     * @param destFile the {@link File} to write the contents to. Will be overwritten.
+     * @param expectedMd5 the expected hex encoded MD5 checksum of the contents. Can be
+     *            <code>null</code>.
+     * @return the hex encoded MD5 checksum of the downloaded contents
+     * @throws IOException if the file could not be downloaded, or its checksum does not match
+     */
+    public String download(URL url, File destFile, String expectedMd5) throws IOException {
+        List<Segment> segments = createSegments(url);
+        RandomAccessFile file = new RandomAccessFile(destFile, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            ChecksumTracker checksum = new ChecksumTracker(channel, segments);
+            try {
+                downloadSegments(url, segments, channel, checksum);
+            } catch (RangesIgnoredException e) {
+                // the server advertised ranges but sent the whole file
+                CLog.d("%s, downloading it as a single stream", e.getMessage());
+                long size = segments.get(segments.size() - 1).mEnd;
+                segments = new ArrayList<Segment>(1);
+                segments.add(new Segment(0, size));
+                checksum = new ChecksumTracker(channel, segments);
+                downloadSegments(url, segments, channel, checksum);
+            }
+            checksum.update();
+            String md5 = checksum.getChecksum();
+            if (expectedMd5 != null && !expectedMd5.equalsIgnoreCase(md5)) {
+                throw new IOException(String.format(
+                        "Checksum mismatch for %s: expected %s, downloaded %s", url, expectedMd5,
+                        md5));
+            }
+            return md5;
+        } finally {
+            StreamUtil.close(file);
+        }
+    }
+
+    /**
+     * Split the file at given url into segments that can be downloaded in parallel.
+     */
+    private List<Segment> createSegments(URL url) throws IOException {
+        long size = -1;
+        boolean acceptsRanges = false;
+        HttpURLConnection connection = openConnection(url);
+        try {
+            connection.setRequestMethod("HEAD");
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                size = parseLong(connection.getHeaderField("Content-Length"));
+                acceptsRanges = "bytes".equals(connection.getHeaderField("Accept-Ranges"));
+            }
+        } finally {
+            connection.disconnect();
+        }
+        List<Segment> segments = new ArrayList<Segment>();
+        int numSegments = 1;
+        if (acceptsRanges && size > 0) {
+            numSegments = (int)Math.max(1, Math.min(mNumConnections, size / mMinSegmentSize));
+        } else {
+            CLog.d("%s does not support parallel download", url);
+        }
+        if (numSegments == 1) {
+            segments.add(new Segment(0, size));
+            return segments;
+        }
+        long segmentSize = size / numSegments;
+        for (int i = 0; i < numSegments; i++) {
+            long end = i == numSegments - 1 ? size : (i + 1) * segmentSize;
+            segments.add(new Segment(i * segmentSize, end));
+        }
+        return segments;
+    }
+
+    /**
+     * Download all segments, retrying incomplete segments from the last byte received.
+     */
+    private void downloadSegments(final URL url, List<Segment> segments,
+            final FileChannel channel, final ChecksumTracker checksum) throws IOException {
+        IOException lastException = null;
+        for (int attempt = 1; attempt <= mMaxAttempts; attempt++) {
+            List<Segment> incompleteSegments = new ArrayList<Segment>();
+            for (Segment segment : segments) {
+                if (!segment.isComplete()) {
+                    incompleteSegments.add(segment);
+                }
+            }
+            if (incompleteSegments.isEmpty()) {
+                return;
+            }
+            if (lastException != null) {
+                CLog.w("Resuming download of %s after failure: %s", url,
+                        lastException.getMessage());
+            }
+            final boolean singleSegment = segments.size() == 1;
+            ExecutorService executor = Executors.newFixedThreadPool(incompleteSegments.size());
+            try {
+                List<Future<Void>> results = new ArrayList<Future<Void>>();
+                for (final Segment segment : incompleteSegments) {
+                    results.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            downloadSegment(url, segment, singleSegment, channel, checksum);
+                            return null;
+                        }
+                    }));
+                }
+                lastException = null;
+                RangesIgnoredException rangesIgnored = null;
+                // wait for all segments, so none is still writing when this returns
+                for (Future<Void> result : results) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof RangesIgnoredException) {
+                            rangesIgnored = (RangesIgnoredException)e.getCause();
+                        } else if (e.getCause() instanceof IOException) {
+                            lastException = (IOException)e.getCause();
+                        } else if (e.getCause() instanceof RuntimeException) {
+                            throw (RuntimeException)e.getCause();
+                        } else {
+                            lastException = new IOException(e.getCause());
+                        }
+                    }
+                }
+                if (rangesIgnored != null) {
+                    throw rangesIgnored;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(String.format("Interrupted while downloading %s", url));
+            } finally {
+                executor.shutdownNow();
+            }
+            if (lastException == null) {
+                return;
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * Download the remaining data of given segment.
+     *
+     * @param singleSegment <code>true</code> if the whole file is downloaded as one segment, in
+     *            which case the download can be restarted from the beginning if the server does
+     *            not support ranges
+     */
+    private void downloadSegment(URL url, Segment segment, boolean singleSegment,
+            FileChannel channel, ChecksumTracker checksum) throws IOException {
+        long position = segment.getPosition();
+        HttpURLConnection connection = openConnection(url);
+        InputStream input = null;
+        try {
+            boolean rangeRequest = !singleSegment || position > 0;
+            if (rangeRequest) {
+                connection.setRequestProperty("Range", String.format("bytes=%d-%s", position,
+                        segment.mEnd >= 0 ? Long.toString(segment.mEnd - 1) : ""));
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK && rangeRequest && singleSegment) {
+                // range was ignored, so the whole file is being sent again
+                CLog.d("Server ignored range request for %s, restarting download", url);
+                position = 0;
+                segment.setPosition(0);
+                checksum.reset();
+            } else if (responseCode == HttpURLConnection.HTTP_OK && !singleSegment) {
+                // writing the whole file at the offset of this segment would corrupt it
+                throw new RangesIgnoredException(String.format(
+                        "Server ignored range request for %s", url));
+            } else if (responseCode != (rangeRequest ? HttpURLConnection.HTTP_PARTIAL :
+                    HttpURLConnection.HTTP_OK)) {
+                throw new IOException(String.format("Unexpected response %d for %s",
+                        responseCode, url));
+            }
+            input = connection.getInputStream();
+            byte[] buffer = new byte[BUF_SIZE];
+            int read;
+            while ((read = readChunk(input, buffer, segment, position)) > 0) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+                segment.setPosition(position);
+                checksum.update();
+            }
+            if (segment.mEnd < 0) {
+                // size was unknown, so the end of the stream is the end of the file
+                segment.mEnd = position;
+            } else if (position < segment.mEnd) {
+                throw new IOException(String.format(
+                        "Connection closed after %d bytes of range %d-%d of %s",
+                        position - segment.mStart, segment.mStart, segment.mEnd, url));
+            }
+        } finally {
+            StreamUtil.close(input);
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Read the next chunk of data of given segment, without going past its end.
+     */
+    private int readChunk(InputStream input, byte[] buffer, Segment segment, long position)
+            throws IOException {
+        int maxRead = buffer.length;
+        if (segment.mEnd >= 0) {
+            maxRead = (int)Math.min(maxRead, segment.mEnd - position);
+            if (maxRead == 0) {
+                return -1;
+            }
+        }
+        return input.read(buffer, 0, maxRead);
+    }
+
+    /**
+     * Factory method for opening a connection to a remote url. Exposed for unit testing.
+     */
+    HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setConnectTimeout(mTimeoutMs);
+        connection.setReadTimeout(mTimeoutMs);
+        return connection;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
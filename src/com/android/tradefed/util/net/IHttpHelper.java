@@ -19,6 +19,7 @@ package com.android.tradefed.util.net;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.MultiMap;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -115,6 +116,20 @@ public interface IHttpHelper {
      */
     public void doGetIgnoreWithRetry(String url) throws IOException;
 
+    /**
+     * Performs a GET for a given URL, and writes the remote contents to a file.
+     * <p>
+     * Unlike {@link #doGet(String)}, the contents are not loaded into memory, so this method can
+     * be used for large files. The file is fetched over several parallel connections when the
+     * server supports range requests, and interrupted transfers are resumed.
+     * </p>
+     * @param url the URL
+     * @param destFile the {@link File} to write the contents to. Will be overwritten.
+     * @return the hex encoded MD5 checksum of the downloaded contents
+     * @throws IOException if failed to retrieve data
+     */
+    public String doGetToFile(String url, File destFile) throws IOException;
+
     /**
      * Performs a POST HTTP request method for a given URL and returns it as a {@link String},
      * retrying upon failure.
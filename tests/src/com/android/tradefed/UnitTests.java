@@ -19,6 +19,7 @@ import com.android.tradefed.build.BuildInfoTest;
 import com.android.tradefed.build.DeviceBuildDescriptorTest;
 import com.android.tradefed.build.DeviceBuildInfoTest;
 import com.android.tradefed.build.FileDownloadCacheTest;
+import com.android.tradefed.build.HttpFileDownloaderTest;
 import com.android.tradefed.build.KernelBuildInfoTest;
 import com.android.tradefed.build.KernelDeviceBuildInfoTest;
 import com.android.tradefed.build.OtaZipfileBuildProviderTest;
@@ -36,17 +37,22 @@ import com.android.tradefed.config.OptionCopierTest;
 import com.android.tradefed.config.OptionSetterTest;
 import com.android.tradefed.config.OptionUpdateRuleTest;
 import com.android.tradefed.device.CpuStatsCollectorTest;
+import com.android.tradefed.device.DeviceAttributeCacheTest;
 import com.android.tradefed.device.DeviceManagerTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
 import com.android.tradefed.device.DumpsysPackageParserTest;
 import com.android.tradefed.device.ReconnectingRecoveryTest;
+import com.android.tradefed.device.RemoteFileTreeTest;
 import com.android.tradefed.device.TestDeviceTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
 import com.android.tradefed.device.WifiHelperTest;
+import com.android.tradefed.invoker.ShardEventMergerTest;
 import com.android.tradefed.invoker.TestInvocationTest;
+import com.android.tradefed.log.AsyncLogWriterTest;
 import com.android.tradefed.log.FileLoggerTest;
 import com.android.tradefed.log.LogRegistryTest;
+import com.android.tradefed.log.LogUtilTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
 import com.android.tradefed.result.EmailResultReporterTest;
 import com.android.tradefed.result.FailureEmailResultReporterTest;
@@ -56,6 +62,7 @@ import com.android.tradefed.result.JUnitToInvocationResultForwarderTest;
 import com.android.tradefed.result.LogFileSaverTest;
 import com.android.tradefed.result.SnapshotInputStreamSourceTest;
 import com.android.tradefed.result.TestFailureEmailResultReporterTest;
+import com.android.tradefed.result.TestResultStoreTest;
 import com.android.tradefed.result.TestSummaryTest;
 import com.android.tradefed.result.XmlResultReporterTest;
 import com.android.tradefed.targetprep.DefaultTestsZipInstallerTest;
@@ -64,6 +71,7 @@ import com.android.tradefed.targetprep.DeviceSetupTest;
 import com.android.tradefed.targetprep.FastbootDeviceFlasherTest;
 import com.android.tradefed.targetprep.FlashingResourcesParserTest;
 import com.android.tradefed.targetprep.KernelFlashPreparerTest;
+import com.android.tradefed.targetprep.PackageInstallerTest;
 import com.android.tradefed.targetprep.SdkAvdPreparerTest;
 import com.android.tradefed.targetprep.StopServicesSetupTest;
 import com.android.tradefed.targetprep.SystemUpdaterDeviceFlasherTest;
@@ -78,6 +86,9 @@ import com.android.tradefed.testtype.InstrumentationTestTest;
 import com.android.tradefed.testtype.NativeBenchmarkTestParserTest;
 import com.android.tradefed.testtype.NativeStressTestParserTest;
 import com.android.tradefed.testtype.NativeStressTestTest;
+import com.android.tradefed.testtype.ShardPlannerTest;
+import com.android.tradefed.testtype.TestListCacheTest;
+import com.android.tradefed.testtype.TestTimingHistoryTest;
 import com.android.tradefed.testtype.testdefs.XmlDefsParserTest;
 import com.android.tradefed.testtype.testdefs.XmlDefsTestTest;
 import com.android.tradefed.util.AaptParserTest;
@@ -86,6 +97,7 @@ import com.android.tradefed.util.ByteArrayListTest;
 import com.android.tradefed.util.ConditionPriorityBlockingQueueTest;
 import com.android.tradefed.util.EmailTest;
 import com.android.tradefed.util.FileUtilTest;
+import com.android.tradefed.util.IndexedConditionPriorityBlockingQueueTest;
 import com.android.tradefed.util.MultiMapTest;
 import com.android.tradefed.util.NullUtilTest;
 import com.android.tradefed.util.QuotationAwareTokenizerTest;
@@ -93,6 +105,7 @@ import com.android.tradefed.util.RegexTrieTest;
 import com.android.tradefed.util.RunUtilTest;
 import com.android.tradefed.util.SizeLimitedOutputStreamTest;
 import com.android.tradefed.util.net.HttpMultipartPostTest;
+import com.android.tradefed.util.net.HttpRangeDownloaderTest;
 import com.android.tradefed.util.xml.AndroidManifestWriterTest;
 
 import junit.framework.Test;
@@ -111,6 +124,7 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(DeviceBuildInfoTest.class);
         addTestSuite(DeviceBuildDescriptorTest.class);
         addTestSuite(FileDownloadCacheTest.class);
+        addTestSuite(HttpFileDownloaderTest.class);
         addTestSuite(KernelBuildInfoTest.class);
         addTestSuite(KernelDeviceBuildInfoTest.class);
         addTestSuite(OtaZipfileBuildProviderTest.class);
@@ -134,21 +148,26 @@ public class UnitTests extends DeviceTestSuite {
 
         // device
         addTestSuite(CpuStatsCollectorTest.class);
+        addTestSuite(DeviceAttributeCacheTest.class);
         addTestSuite(DeviceManagerTest.class);
         addTestSuite(DeviceSelectionOptionsTest.class);
         addTestSuite(DeviceStateMonitorTest.class);
         addTestSuite(DumpsysPackageParserTest.class);
         addTestSuite(ReconnectingRecoveryTest.class);
+        addTestSuite(RemoteFileTreeTest.class);
         addTestSuite(TestDeviceTest.class);
         addTestSuite(WaitDeviceRecoveryTest.class);
         addTestSuite(WifiHelperTest.class);
 
         // invoker
+        addTestSuite(ShardEventMergerTest.class);
         addTestSuite(TestInvocationTest.class);
 
         // log
+        addTestSuite(AsyncLogWriterTest.class);
         addTestSuite(FileLoggerTest.class);
         addTestSuite(LogRegistryTest.class);
+        addTestSuite(LogUtilTest.class);
 
         // result
         addTestSuite(CollectingTestListenerTest.class);
@@ -159,6 +178,7 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(JUnitToInvocationResultForwarderTest.class);
         addTestSuite(LogFileSaverTest.class);
         addTestSuite(SnapshotInputStreamSourceTest.class);
+        addTestSuite(TestResultStoreTest.class);
         addTestSuite(TestSummaryTest.class);
         addTestSuite(TestFailureEmailResultReporterTest.class);
         addTestSuite(XmlResultReporterTest.class);
@@ -170,6 +190,7 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(FastbootDeviceFlasherTest.class);
         addTestSuite(FlashingResourcesParserTest.class);
         addTestSuite(KernelFlashPreparerTest.class);
+        addTestSuite(PackageInstallerTest.class);
         addTestSuite(SdkAvdPreparerTest.class);
         addTestSuite(StopServicesSetupTest.class);
         addTestSuite(SystemUpdaterDeviceFlasherTest.class);
@@ -185,6 +206,9 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(NativeBenchmarkTestParserTest.class);
         addTestSuite(NativeStressTestParserTest.class);
         addTestSuite(NativeStressTestTest.class);
+        addTestSuite(ShardPlannerTest.class);
+        addTestSuite(TestListCacheTest.class);
+        addTestSuite(TestTimingHistoryTest.class);
 
         // testtype/testdefs
         addTestSuite(XmlDefsParserTest.class);
@@ -198,6 +222,8 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(EmailTest.class);
         addTestSuite(FileUtilTest.class);
         addTestSuite(HttpMultipartPostTest.class);
+        addTestSuite(HttpRangeDownloaderTest.class);
+        addTestSuite(IndexedConditionPriorityBlockingQueueTest.class);
         addTestSuite(MultiMapTest.class);
         addTestSuite(NullUtilTest.class);
         addTestSuite(QuotationAwareTokenizerTest.class);
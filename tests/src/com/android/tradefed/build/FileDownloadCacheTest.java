@@ -17,6 +17,7 @@ package com.android.tradefed.build;
 
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.net.IHttpHelper;
 
 import junit.framework.TestCase;
 
@@ -26,6 +27,9 @@ import org.easymock.IAnswer;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit tests for {@link FileDownloadCache}.
@@ -46,6 +50,7 @@ public class FileDownloadCacheTest extends TestCase {
         mMockDownloader = EasyMock.createMock(IFileDownloader.class);
         mCacheDir = FileUtil.createTempDir("unittest");
         mCache = new FileDownloadCache(mCacheDir);
+        mCache.setSynchronousMode(true);
     }
 
     @Override
@@ -116,6 +121,27 @@ public class FileDownloadCacheTest extends TestCase {
         EasyMock.verify(mMockDownloader);
     }
 
+    /**
+     * Test {@link FileDownloadCache#fetchRemoteFile(IFileDownloader, String)} when download
+     * throws a {@link RuntimeException}, and that the file is downloaded again on the next fetch.
+     */
+    public void testFetchRemoteFile_downloadRuntimeException() throws Exception {
+        mMockDownloader.downloadFile(EasyMock.eq(REMOTE_PATH),
+                (File)EasyMock.anyObject());
+        EasyMock.expectLastCall().andThrow(new IllegalStateException("download error"));
+        setDownloadExpections(REMOTE_PATH);
+        EasyMock.replay(mMockDownloader);
+        try {
+            mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH);
+            fail("IllegalStateException not thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertNull(mCache.getCachedFile(REMOTE_PATH));
+        assertFetchRemoteFile();
+        EasyMock.verify(mMockDownloader);
+    }
+
     /**
      * Test {@link FileDownloadCache#fetchRemoteFile(IFileDownloader, String)} when
      * copy of a cached file fails
@@ -141,6 +167,220 @@ public class FileDownloadCacheTest extends TestCase {
         EasyMock.verify(mMockDownloader);
     }
 
+    /**
+     * Test that concurrent {@link FileDownloadCache#fetchRemoteFile(IFileDownloader, String)}
+     * calls for the same file share a single download, and don't block requests for other files.
+     */
+    public void testFetchRemoteFile_concurrent() throws Exception {
+        final String otherPath = "other/path";
+        BlockingDownloader downloader = new BlockingDownloader(REMOTE_PATH);
+        FetchThread fetch1 = new FetchThread(downloader, REMOTE_PATH);
+        FetchThread fetch2 = new FetchThread(downloader, REMOTE_PATH);
+        fetch1.start();
+        assertTrue(downloader.mDownloadStarted.await(5, TimeUnit.SECONDS));
+        fetch2.start();
+        // other files can be retrieved while the download is in progress
+        File otherFile = mCache.fetchRemoteFile(downloader, otherPath);
+        otherFile.delete();
+        downloader.mReleaseDownload.countDown();
+        fetch1.join(5000);
+        fetch2.join(5000);
+        fetch1.assertFetched();
+        fetch2.assertFetched();
+        assertEquals(1, downloader.getDownloadCount());
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(2, mCache.getMissCount());
+        assertEquals(2 * DOWNLOADED_CONTENTS.length(), mCache.getDownloadedBytes());
+    }
+
+    /**
+     * Test that a failed download is reported to all requests waiting for it.
+     */
+    public void testFetchRemoteFile_concurrentFailure() throws Exception {
+        BlockingDownloader downloader = new BlockingDownloader(REMOTE_PATH);
+        downloader.mFail = true;
+        FetchThread fetch1 = new FetchThread(downloader, REMOTE_PATH);
+        FetchThread fetch2 = new FetchThread(downloader, REMOTE_PATH);
+        fetch1.start();
+        assertTrue(downloader.mDownloadStarted.await(5, TimeUnit.SECONDS));
+        fetch2.start();
+        // give second request time to start waiting on the download
+        Thread.sleep(100);
+        downloader.mReleaseDownload.countDown();
+        fetch1.join(5000);
+        fetch2.join(5000);
+        assertTrue(fetch1.mError instanceof BuildRetrievalError);
+        assertTrue(fetch2.mError instanceof BuildRetrievalError);
+        assertEquals(1, downloader.getDownloadCount());
+        assertNull(mCache.getCachedFile(REMOTE_PATH));
+    }
+
+    /**
+     * Test that the cache contents and LRU order are restored from the journal.
+     */
+    public void testCreateCache_journal() throws Exception {
+        final String remotePath2 = "anotherpath";
+        setDownloadExpections(REMOTE_PATH);
+        setDownloadExpections(remotePath2);
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile(REMOTE_PATH);
+        assertFetchRemoteFile(remotePath2);
+        // use first file again, so it becomes the most recently used
+        assertFetchRemoteFile(REMOTE_PATH);
+        // make file timestamps disagree with the journal, so a directory scan would be noticed
+        assertTrue(mCache.getCachedFile(REMOTE_PATH).setLastModified(1000));
+        FileDownloadCache restoredCache = new FileDownloadCache(mCacheDir);
+        assertEquals(remotePath2, restoredCache.getOldestEntry());
+        assertNotNull(restoredCache.getCachedFile(REMOTE_PATH));
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /**
+     * Test that evicted files are not restored from the journal.
+     */
+    public void testCreateCache_journalEvicted() throws Exception {
+        final String remotePath2 = "anotherpath";
+        mCache.setMaxCacheSize(DOWNLOADED_CONTENTS.length() + 1);
+        setDownloadExpections(remotePath2);
+        setDownloadExpections();
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile(remotePath2);
+        assertFetchRemoteFile();
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getEvictedBytes());
+        FileDownloadCache restoredCache = new FileDownloadCache(mCacheDir);
+        assertNotNull(restoredCache.getCachedFile(REMOTE_PATH));
+        assertNull(restoredCache.getCachedFile(remotePath2));
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /**
+     * Test that a file left incomplete by a download that never finished, as when the process
+     * dies, is deleted when the cache is restored from the journal.
+     */
+    public void testCreateCache_journalIncompleteDownload() throws Exception {
+        final String remotePath2 = "anotherpath";
+        setDownloadExpections(remotePath2);
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile(remotePath2);
+        final CountDownLatch downloadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseDownload = new CountDownLatch(1);
+        IFileDownloader partialDownloader = new IFileDownloader() {
+            @Override
+            public File downloadFile(String remoteFilePath) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void downloadFile(String remotePath, File destFile)
+                    throws BuildRetrievalError {
+                try {
+                    FileUtil.writeToFile("partial", destFile);
+                    downloadStarted.countDown();
+                    releaseDownload.await(5, TimeUnit.SECONDS);
+                } catch (IOException e) {
+                    throw new BuildRetrievalError("write error", e);
+                } catch (InterruptedException e) {
+                    throw new BuildRetrievalError("interrupted", e);
+                }
+                throw new BuildRetrievalError("download error");
+            }
+        };
+        FetchThread fetch = new FetchThread(partialDownloader, REMOTE_PATH);
+        fetch.start();
+        try {
+            assertTrue(downloadStarted.await(5, TimeUnit.SECONDS));
+            File partialFile = new File(mCacheDir, REMOTE_PATH);
+            assertTrue(partialFile.exists());
+            FileDownloadCache restoredCache = new FileDownloadCache(mCacheDir);
+            assertFalse(partialFile.exists());
+            assertNull(restoredCache.getCachedFile(REMOTE_PATH));
+            assertNotNull(restoredCache.getCachedFile(remotePath2));
+        } finally {
+            releaseDownload.countDown();
+            fetch.join(5000);
+        }
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /**
+     * An {@link IFileDownloader} that blocks the download of a given file until released.
+     */
+    private static class BlockingDownloader implements IFileDownloader {
+        final CountDownLatch mDownloadStarted = new CountDownLatch(1);
+        final CountDownLatch mReleaseDownload = new CountDownLatch(1);
+        private final String mBlockedPath;
+        private final AtomicInteger mBlockedDownloads = new AtomicInteger(0);
+        boolean mFail = false;
+
+        BlockingDownloader(String blockedPath) {
+            mBlockedPath = blockedPath;
+        }
+
+        int getDownloadCount() {
+            return mBlockedDownloads.get();
+        }
+
+        @Override
+        public File downloadFile(String remoteFilePath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void downloadFile(String remotePath, File destFile) throws BuildRetrievalError {
+            if (mBlockedPath.equals(remotePath)) {
+                mBlockedDownloads.incrementAndGet();
+                mDownloadStarted.countDown();
+                try {
+                    mReleaseDownload.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new BuildRetrievalError("interrupted", e);
+                }
+                if (mFail) {
+                    throw new BuildRetrievalError("download error");
+                }
+            }
+            try {
+                FileUtil.writeToFile(DOWNLOADED_CONTENTS, destFile);
+            } catch (IOException e) {
+                throw new BuildRetrievalError("write error", e);
+            }
+        }
+    }
+
+    /**
+     * A thread that fetches a file from the cache.
+     */
+    private class FetchThread extends Thread {
+        private final IFileDownloader mDownloader;
+        private final String mRemotePath;
+        private File mFetchedFile = null;
+        private Exception mError = null;
+
+        FetchThread(IFileDownloader downloader, String remotePath) {
+            mDownloader = downloader;
+            mRemotePath = remotePath;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mFetchedFile = mCache.fetchRemoteFile(mDownloader, mRemotePath);
+            } catch (BuildRetrievalError e) {
+                mError = e;
+            }
+        }
+
+        void assertFetched() throws IOException {
+            assertNull(mError);
+            assertNotNull(mFetchedFile);
+            try {
+                assertEquals(DOWNLOADED_CONTENTS, FileUtil.readStringFromFile(mFetchedFile));
+            } finally {
+                mFetchedFile.delete();
+            }
+        }
+    }
+
     /**
      * Perform one fetchRemoteFile call and verify contents for default remote path
      */
@@ -148,6 +388,31 @@ public class FileDownloadCacheTest extends TestCase {
         assertFetchRemoteFile(REMOTE_PATH);
     }
 
+    /**
+     * Test {@link FileDownloadCache#fetchRemoteFile(IFileDownloader, String)} with a
+     * {@link HttpFileDownloader}, which downloads straight into the cached file with
+     * {@link IHttpHelper#doGetToFile(String, File)}.
+     */
+    public void testFetchRemoteFile_http() throws Exception {
+        IHttpHelper mockHttpHelper = EasyMock.createMock(IHttpHelper.class);
+        EasyMock.expect(mockHttpHelper.doGetToFile(EasyMock.eq("http://foo/builds/" + REMOTE_PATH),
+                EasyMock.eq(new File(mCacheDir, REMOTE_PATH)))).andAnswer(
+                new IAnswer<String>() {
+                    @Override
+                    public String answer() throws Throwable {
+                        File destFile = (File)EasyMock.getCurrentArguments()[1];
+                        FileUtil.writeToFile(DOWNLOADED_CONTENTS, destFile);
+                        return FileUtil.calculateMd5(destFile);
+                    }
+                });
+        EasyMock.replay(mockHttpHelper);
+        mMockDownloader = new HttpFileDownloader("http://foo/builds", mockHttpHelper);
+        assertFetchRemoteFile();
+        // the second fetch is served from the cache
+        assertFetchRemoteFile();
+        EasyMock.verify(mockHttpHelper);
+    }
+
     /**
      * Perform one fetchRemoteFile call and verify contents
      */
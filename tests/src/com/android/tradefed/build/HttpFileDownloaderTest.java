@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.net.IHttpHelper;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link HttpFileDownloader}.
+ */
+public class HttpFileDownloaderTest extends TestCase {
+
+    private IHttpHelper mMockHttpHelper;
+    private HttpFileDownloader mDownloader;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockHttpHelper = EasyMock.createMock(IHttpHelper.class);
+        mDownloader = new HttpFileDownloader("http://foo/builds", mMockHttpHelper);
+    }
+
+    /**
+     * Test {@link HttpFileDownloader#downloadFile(String)} resolves the remote path against the
+     * base url.
+     */
+    public void testDownloadFile() throws Exception {
+        EasyMock.expect(mMockHttpHelper.doGetToFile(EasyMock.eq("http://foo/builds/1/img.zip"),
+                (File)EasyMock.anyObject())).andReturn("md5");
+        EasyMock.replay(mMockHttpHelper);
+        File file = mDownloader.downloadFile("/1/img.zip");
+        try {
+            assertTrue(file.exists());
+            assertTrue(file.getName().endsWith(".zip"));
+        } finally {
+            FileUtil.deleteFile(file);
+        }
+        EasyMock.verify(mMockHttpHelper);
+    }
+
+    /**
+     * Test {@link HttpFileDownloader#downloadFile(String)} when the download fails.
+     */
+    public void testDownloadFile_failed() throws Exception {
+        EasyMock.expect(mMockHttpHelper.doGetToFile(EasyMock.eq("http://foo/builds/img.zip"),
+                (File)EasyMock.anyObject())).andThrow(new IOException());
+        EasyMock.replay(mMockHttpHelper);
+        try {
+            mDownloader.downloadFile("img.zip");
+            fail("BuildRetrievalError not thrown");
+        } catch (BuildRetrievalError e) {
+            // expected
+        }
+        EasyMock.verify(mMockHttpHelper);
+    }
+}
@@ -25,7 +25,9 @@ import com.android.tradefed.device.IDeviceManager.FreeDeviceState;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.MockDeviceManager;
 import com.android.tradefed.invoker.IRescheduler;
+import com.android.tradefed.invoker.IScheduledInvocationListener;
 import com.android.tradefed.invoker.ITestInvocation;
+import com.android.tradefed.result.ITestInvocationListener;
 
 import junit.framework.TestCase;
 
@@ -33,6 +35,9 @@ import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link CommandScheduler}.
@@ -46,6 +51,7 @@ public class CommandSchedulerTest extends TestCase {
     private IConfiguration mMockConfiguration;
     private CommandOptions mCommandOptions;
     private DeviceSelectionOptions mDeviceOptions;
+    private long mPollTimeMs = 20;
 
     /**
      * {@inheritDoc}
@@ -79,7 +85,7 @@ public class CommandSchedulerTest extends TestCase {
 
             @Override
             long getCommandPollTimeMs() {
-                return 20;
+                return mPollTimeMs;
             }
 
             @Override
@@ -200,7 +206,10 @@ public class CommandSchedulerTest extends TestCase {
 
     /**
      * Sets up a object that will notify when the expected number of
-     * {@link ITestInvocation#invoke(ITestDevice, IConfiguration, IRescheduler)} calls occurs
+     * {@link ITestInvocation#invoke(ITestDevice, IConfiguration, IRescheduler)} calls occurs.
+     * <p/>
+     * The last expected call will then block until the object is notified again, so the scheduler
+     * cannot start another invocation before the test has a chance to shut it down.
      *
      * @param times
      */
@@ -213,6 +222,7 @@ public class CommandSchedulerTest extends TestCase {
                     mCalls++;
                     if (times == mCalls) {
                         notifyAll();
+                        wait(1 * 1000);
                     }
                 }
                 return null;
@@ -249,6 +259,9 @@ public class CommandSchedulerTest extends TestCase {
                 notifier.wait(1 * 1000);
             }
             mScheduler.shutdown();
+            synchronized (notifier) {
+                notifier.notifyAll();
+            }
             mScheduler.join();
             verifyMocks();
             assertNull("exception occurred on background thread!", tracker.mThrowable);
@@ -384,6 +397,82 @@ public class CommandSchedulerTest extends TestCase {
         EasyMock.verify(mMockConfigFactory, mMockConfiguration, mMockInvocation);
     }
 
+    /**
+     * Test that the listener of a rescheduled config is told when the config is discarded
+     * without being run.
+     */
+    @SuppressWarnings("unchecked")
+    public void testRemoveAllCommands_rescheduledDiscarded() throws Throwable {
+        String[] args = new String[] {};
+        mMockManager.setNumDevices(1);
+        setCreateConfigExpectations(args, 1);
+        mMockConfiguration.validateOptions();
+        final IConfiguration rescheduledConfig = EasyMock.createMock(IConfiguration.class);
+        EasyMock.expect(rescheduledConfig.getCommandOptions()).andStubReturn(mCommandOptions);
+        EasyMock.expect(rescheduledConfig.getDeviceRequirements()).andStubReturn(
+                mDeviceOptions);
+        IScheduledInvocationListener listener =
+                EasyMock.createMock(IScheduledInvocationListener.class);
+        EasyMock.expect(rescheduledConfig.getTestInvocationListeners()).andReturn(
+                Arrays.<ITestInvocationListener>asList(listener));
+        listener.invocationDiscarded();
+
+        // the only device is in use, so the rescheduled config is still waiting when removed
+        mMockInvocation.invoke((ITestDevice)EasyMock.anyObject(),
+                (IConfiguration)EasyMock.anyObject(), (IRescheduler)EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer() {
+            @Override
+            public Object answer() throws Throwable {
+                IRescheduler rescheduler =  (IRescheduler) EasyMock.getCurrentArguments()[2];
+                assertTrue(rescheduler.scheduleConfig(rescheduledConfig));
+                mScheduler.removeAllCommands();
+                return null;
+            }
+        });
+
+        replayMocks(rescheduledConfig, listener);
+        mScheduler.addCommand(args);
+        mScheduler.start();
+        mScheduler.shutdownOnEmpty();
+        mScheduler.join();
+
+        verifyMocks();
+        EasyMock.verify(rescheduledConfig, listener);
+    }
+
+    /**
+     * Test {@link CommandScheduler#run()} dispatches a waiting command as soon as a device becomes
+     * available, rather than waiting for the poll time to elapse.
+     */
+    public void testRun_deviceAvailable() throws Throwable {
+        mPollTimeMs = 60 * 1000;
+        String[] args = new String[] {};
+        mMockManager.setNumDevices(1);
+        ITestDevice dev = mMockManager.allocateDevice();
+        setCreateConfigExpectations(args, 1);
+        mMockConfiguration.validateOptions();
+        final CountDownLatch invokeLatch = new CountDownLatch(1);
+        mMockInvocation.invoke((ITestDevice)EasyMock.anyObject(),
+                (IConfiguration)EasyMock.anyObject(), (IRescheduler)EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                invokeLatch.countDown();
+                return null;
+            }
+        });
+        replayMocks();
+        mScheduler.addCommand(args);
+        mScheduler.start();
+        mScheduler.await();
+        mMockManager.freeDevice(dev, FreeDeviceState.AVAILABLE);
+        assertTrue("command was not dispatched when device became available",
+                invokeLatch.await(5, TimeUnit.SECONDS));
+        mScheduler.shutdownOnEmpty();
+        mScheduler.join();
+        verifyMocks();
+    }
+
     /**
      * Test {@link CommandScheduler#shutdown()} when no devices are available.
      */
@@ -23,6 +23,8 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.Arrays;
+
 /**
  * Unit tests for {@link RemoteManager}.
  */
@@ -70,4 +72,76 @@ public class RemoteManagerTest extends TestCase {
         assertTrue(mRemoteClient.sendUnfilterDevice("serial"));
         EasyMock.verify(mMockDeviceManager);
     }
+
+    /**
+     * Test batches of filter and add command commands sent with the framed protocol.
+     */
+    public void testFramedBatch() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial1")).andReturn(device);
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial2")).andReturn(null);
+        EasyMock.expect(mMockScheduler.addCommand(EasyMock.aryEq(new String[] {"foo"}),
+                EasyMock.eq(1L))).andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockScheduler.addCommand(EasyMock.aryEq(new String[] {"bar", "--baz"}),
+                EasyMock.eq(2L))).andReturn(Boolean.FALSE);
+        EasyMock.replay(mMockDeviceManager, mMockScheduler, device);
+        mRemoteMgr.start();
+        mRemoteClient = RemoteClient.connect(mRemoteMgr.getPort());
+        assertTrue(mRemoteClient.enableFramedProtocol());
+        boolean[] filterResults = mRemoteClient.sendFilterDevices(Arrays.asList("serial1",
+                "serial2"));
+        assertTrue(Arrays.equals(new boolean[] {true, false}, filterResults));
+        boolean[] addResults = mRemoteClient.sendAddCommands(Arrays.asList(
+                new RemoteClient.Command(1, "foo"), new RemoteClient.Command(2, "bar", "--baz")));
+        assertTrue(Arrays.equals(new boolean[] {true, false}, addResults));
+        EasyMock.verify(mMockDeviceManager, mMockScheduler);
+    }
+
+    /**
+     * Test that a batch of commands is also sent with the text protocol.
+     */
+    public void testTextBatch() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial1")).andReturn(device);
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial2")).andReturn(device);
+        EasyMock.replay(mMockDeviceManager, device);
+        mRemoteMgr.start();
+        mRemoteClient = RemoteClient.connect(mRemoteMgr.getPort());
+        boolean[] filterResults = mRemoteClient.sendFilterDevices(Arrays.asList("serial1",
+                "serial2"));
+        assertTrue(Arrays.equals(new boolean[] {true, true}, filterResults));
+        EasyMock.verify(mMockDeviceManager);
+    }
+
+    /**
+     * Test that a client can send commands while another client is connected.
+     */
+    public void testMultipleClients() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial")).andReturn(device);
+        EasyMock.replay(mMockDeviceManager, device);
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        mRemoteClient = RemoteClient.connect(port);
+        RemoteClient otherClient = RemoteClient.connect(port);
+        try {
+            assertTrue(otherClient.sendFilterDevice("serial"));
+        } finally {
+            otherClient.close();
+        }
+        EasyMock.verify(mMockDeviceManager);
+    }
+
+    /**
+     * Test that the close command stops the remote manager.
+     */
+    public void testClose() throws Exception {
+        mRemoteMgr.start();
+        mRemoteClient = RemoteClient.connect(mRemoteMgr.getPort());
+        assertTrue(mRemoteClient.enableFramedProtocol());
+        assertTrue(mRemoteClient.sendClose());
+        mRemoteMgr.join(10 * 1000);
+        assertFalse(mRemoteMgr.isAlive());
+        assertTrue(mRemoteMgr.isCanceled());
+    }
 }
@@ -20,6 +20,7 @@ import com.android.tradefed.config.Option.Importance;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -463,6 +464,48 @@ public class ArgsOptionParserTest extends TestCase {
         assertTrue(leftOver.contains(posArg));
     }
 
+    /**
+     * Test that parsing the same arguments for new objects of the same classes sets the same
+     * values.
+     */
+    public void testParse_bindingPlan() throws ConfigurationException {
+        final String big = OptionUpdateRuleSource.BIGGER_VALUE;
+        final List<String> args = Arrays.asList("-bo", "set", "--first", big, "--last", big,
+                "--", "pos");
+        BooleanOptionSource boolObject = new BooleanOptionSource();
+        OptionUpdateRuleSource ruleObject = new OptionUpdateRuleSource();
+        ArgsOptionParser parser = new ArgsOptionParser(boolObject, ruleObject);
+        List<String> leftOver = parser.parse(args);
+        assertNotNull(parser.getBindingPlan(args));
+        // changing the left over arguments should not change the plan
+        leftOver.clear();
+
+        boolObject = new BooleanOptionSource();
+        ruleObject = new OptionUpdateRuleSource();
+        parser = new ArgsOptionParser(boolObject, ruleObject);
+        leftOver = parser.parse(new ArrayList<String>(args));
+        assertTrue(boolObject.mMyBool);
+        assertEquals("set", boolObject.mMyOption);
+        assertEquals(OptionUpdateRuleSource.DEFAULT_VALUE, ruleObject.mFirstOption);
+        assertEquals(big, ruleObject.mLastOption);
+        assertEquals(Arrays.asList("pos"), leftOver);
+    }
+
+    /**
+     * Test that arguments that failed to parse are not cached.
+     */
+    public void testParse_bindingPlanError() throws ConfigurationException {
+        final List<String> args = Arrays.asList("--my_option", "set", "--my_boolean=maybe");
+        ArgsOptionParser parser = new ArgsOptionParser(new BooleanOptionSource());
+        try {
+            parser.parse(args);
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+        assertNull(parser.getBindingPlan(args));
+    }
+
     /**
      * Test passing a single boolean argument.
      */
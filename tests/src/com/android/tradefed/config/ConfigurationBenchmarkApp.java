@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.config;
+
+import java.util.Arrays;
+
+/**
+ * Java app that measures the number of configurations created per second from the same
+ * arguments, like {@link com.android.tradefed.command.CommandScheduler} does each time it
+ * reschedules a looping command.
+ * <p/>
+ * Usage: ConfigurationBenchmarkApp [number of configurations] [config name and args...]
+ * <p/>
+ * Creates 20000 'instrument' configurations with a few options set by default. Requires the
+ * config xml files on the classpath.
+ */
+public class ConfigurationBenchmarkApp {
+
+    private static final int DEFAULT_CONFIGS = 20000;
+    private static final String[] DEFAULT_ARGS = new String[] {"instrument", "--package",
+            "com.android.foo", "--class", "com.android.foo.FooTest", "--timeout", "60000",
+            "--min-loop-time", "1000", "--loop", "--serial", "12345"};
+
+    /**
+     * Create the given number of configurations from the given args, and print the results.
+     */
+    private void runBenchmark(String name, int configs, String[] args)
+            throws ConfigurationException {
+        IConfigurationFactory factory = ConfigurationFactory.getInstance();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < configs; i++) {
+            factory.createConfigurationFromArgs(args);
+        }
+        long elapsedNs = System.nanoTime() - startTime;
+        System.out.printf("%s: %d configurations in %.2f s, %.1f configurations/s, "
+                + "%.1f us each\n", name, configs, elapsedNs / 1e9, configs / (elapsedNs / 1e9),
+                elapsedNs / 1e3 / configs);
+    }
+
+    public static void main(String[] args) throws ConfigurationException {
+        int configs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONFIGS;
+        String[] configArgs = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) :
+                DEFAULT_ARGS;
+        ConfigurationBenchmarkApp app = new ConfigurationBenchmarkApp();
+        app.runBenchmark("first", 1, configArgs);
+        app.runBenchmark("warmup", Math.min(configs, 2000), configArgs);
+        app.runBenchmark("benchmark", configs, configArgs);
+    }
+}
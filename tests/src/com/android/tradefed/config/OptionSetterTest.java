@@ -242,6 +242,21 @@ public class OptionSetterTest extends TestCase {
         }
     }
 
+    /**
+     * Test creating an {@link OptionSetter} with the same source twice, after an
+     * {@link OptionSetter} for distinct sources of the same class was created.
+     */
+    public void testOptionSetter_sameSource() throws ConfigurationException {
+        new OptionSetter(new SharedOptionSource(), new SharedOptionSource());
+        SharedOptionSource object = new SharedOptionSource();
+        try {
+            new OptionSetter(object, object);
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+    }
+
     /**
      * Test option with same name can be used in multiple option sources.
      */
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link DeviceAttributeCache}.
+ */
+public class DeviceAttributeCacheTest extends TestCase {
+
+    private static final String SERIAL = "serial";
+
+    private IDevice mMockDevice;
+    private DeviceAttributeCache mCache;
+    private int mNumFetches = 0;
+    private long mFetchTime;
+    private Collection<String> mFetchedProperties;
+    private List<IDevice> mRefreshedDevices;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.replay(mMockDevice);
+        mFetchTime = System.currentTimeMillis();
+        mRefreshedDevices = new ArrayList<IDevice>();
+        mCache = new DeviceAttributeCache(new DeviceAttributeCache.IRefreshListener() {
+            @Override
+            public void attributesRefreshed(IDevice device) {
+                mRefreshedDevices.add(device);
+            }
+        }) {
+            @Override
+            DeviceAttributeSnapshot fetchSnapshot(IDevice device,
+                    Collection<String> propertyNames) {
+                mNumFetches++;
+                mFetchedProperties = propertyNames;
+                Map<String, String> properties = new HashMap<String, String>();
+                for (String name : propertyNames) {
+                    properties.put(name, "value");
+                }
+                return new DeviceAttributeSnapshot("product", "variant", 50, properties,
+                        mFetchTime);
+            }
+        };
+        mCache.setSynchronousMode(true);
+    }
+
+    /**
+     * Test {@link DeviceAttributeCache#getSnapshot(IDevice)} triggers a refresh when no snapshot
+     * exists, and returns the cached snapshot afterwards.
+     */
+    public void testGetSnapshot() {
+        assertNull(mCache.getSnapshot(mMockDevice));
+        assertEquals(1, mNumFetches);
+        assertEquals(Arrays.asList(mMockDevice), mRefreshedDevices);
+        DeviceAttributeSnapshot snapshot = mCache.getSnapshot(mMockDevice);
+        assertEquals("product", snapshot.getProductType());
+        assertEquals("variant", snapshot.getProductVariant());
+        assertEquals(Integer.valueOf(50), snapshot.getBatteryLevel());
+        assertEquals(1, mNumFetches);
+    }
+
+    /**
+     * Test {@link DeviceAttributeCache#getSnapshot(IDevice)} triggers a refresh when the snapshot
+     * is older than the maximum age.
+     */
+    public void testGetSnapshot_stale() {
+        mCache.setMaxAge(1000);
+        mFetchTime = System.currentTimeMillis() - 2000;
+        mCache.refresh(mMockDevice);
+        assertNotNull(mCache.getSnapshot(mMockDevice));
+        assertEquals(2, mNumFetches);
+    }
+
+    /**
+     * Test {@link DeviceAttributeCache#getSnapshot(IDevice)} triggers a refresh when a new
+     * property is tracked.
+     */
+    public void testGetSnapshot_trackProperty() {
+        mCache.refresh(mMockDevice);
+        mCache.trackProperties(Arrays.asList("foo"));
+        assertFalse(mCache.getSnapshot(mMockDevice).hasProperty("foo"));
+        assertEquals(2, mNumFetches);
+        assertTrue(mFetchedProperties.contains("foo"));
+        assertEquals("value", mCache.getSnapshot(mMockDevice).getProperty("foo"));
+        assertEquals(2, mNumFetches);
+    }
+
+    /**
+     * Test that placeholder devices are never queried.
+     */
+    public void testRefresh_stubDevice() {
+        assertNull(mCache.getSnapshot(new StubDevice("emulator-5554", true)));
+        assertEquals(0, mNumFetches);
+    }
+
+    /**
+     * Test {@link DeviceAttributeCache#remove(String)}.
+     */
+    public void testRemove() {
+        mCache.refresh(mMockDevice);
+        mCache.remove(SERIAL);
+        assertNull(mCache.getSnapshot(mMockDevice));
+        assertEquals(2, mNumFetches);
+    }
+}
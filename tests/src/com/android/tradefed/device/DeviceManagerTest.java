@@ -32,6 +32,8 @@ import org.easymock.EasyMock;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Unit tests for {@link DeviceManager}.
@@ -62,6 +64,9 @@ public class DeviceManagerTest extends TestCase {
     private IRunUtil mMockRunUtil;
     private ITestDeviceFactory mMockDeviceFactory;
     private IGlobalConfiguration mMockGlobalConfig;
+    private DeviceAttributeSnapshot mMockAttributes;
+    /** if set, attributes are retrieved in the background, once the latch is released */
+    private CountDownLatch mFetchAttributesLatch = null;
 
     /** a reference to the DeviceManager's IDeviceChangeListener. Used for triggering device
      * connection events */
@@ -161,6 +166,8 @@ public class DeviceManagerTest extends TestCase {
         mMockRunUtil = EasyMock.createMock(IRunUtil.class);
         mMockDeviceFactory = EasyMock.createMock(ITestDeviceFactory.class);
         mMockGlobalConfig = EasyMock.createNiceMock(IGlobalConfiguration.class);
+        mMockAttributes = new DeviceAttributeSnapshot(null, null, null,
+                new HashMap<String, String>(), System.currentTimeMillis());
 
         EasyMock.expect(mMockIDevice.getSerialNumber()).andStubReturn(DEVICE_SERIAL);
         EasyMock.expect(mMockIDevice.isEmulator()).andStubReturn(Boolean.FALSE);
@@ -218,6 +225,30 @@ public class DeviceManagerTest extends TestCase {
             IRunUtil getRunUtil() {
                 return mMockRunUtil;
             }
+
+            @Override
+            DeviceAttributeCache createAttributeCache(
+                    DeviceAttributeCache.IRefreshListener listener) {
+                return new DeviceAttributeCache(listener) {
+                    @Override
+                    DeviceAttributeSnapshot fetchSnapshot(IDevice device,
+                            Collection<String> propertyNames) {
+                        if (mFetchAttributesLatch != null) {
+                            try {
+                                mFetchAttributesLatch.await();
+                            } catch (InterruptedException e) {
+                                // ignore
+                            }
+                        }
+                        return mMockAttributes;
+                    }
+
+                    @Override
+                    void setSynchronousMode(boolean syncMode) {
+                        super.setSynchronousMode(syncMode && mFetchAttributesLatch == null);
+                    }
+                };
+            }
         };
         mgr.setEnableLogcat(false);
         mgr.setSynchronousMode(true);
@@ -290,6 +321,86 @@ public class DeviceManagerTest extends TestCase {
         EasyMock.verify(mMockMonitor);
     }
 
+    /**
+     * Test {@link DeviceManager#allocateDevice(long, DeviceSelectionOptions))} matches the device
+     * product type using its cached attributes.
+     */
+    public void testAllocateDevice_matchAttributes() throws DeviceNotAvailableException {
+        mMockAttributes = new DeviceAttributeSnapshot("product", null, null,
+                new HashMap<String, String>(), System.currentTimeMillis());
+        DeviceSelectionOptions otherOptions = new DeviceSelectionOptions();
+        otherOptions.addProductType("otherProduct");
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType("product");
+        setCheckAvailableDeviceExpectations();
+        replayMocks();
+        DeviceManager manager = createDeviceManager(mMockIDevice);
+        assertNull(manager.allocateDevice(MIN_ALLOCATE_WAIT_TIME, otherOptions));
+        assertEquals(mMockTestDevice, manager.allocateDevice(MIN_ALLOCATE_WAIT_TIME, options));
+        assertTrue(manager.getMatchStats().getCount() > 0);
+    }
+
+    /**
+     * Test that a pending {@link DeviceManager#allocateDevice(long, DeviceSelectionOptions))} is
+     * re-evaluated when the attributes of an available device are refreshed.
+     */
+    public void testAllocateDevice_attributesRefreshed() throws Exception {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType("product");
+        setCheckAvailableDeviceExpectations();
+        replayMocks();
+        DeviceManager manager = createDeviceManager(mMockIDevice);
+        Thread buildChange = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(100);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                mMockAttributes = new DeviceAttributeSnapshot("product", null, null,
+                        new HashMap<String, String>(), System.currentTimeMillis());
+                mDeviceListener.deviceChanged(mMockIDevice, IDevice.CHANGE_BUILD_INFO);
+            }
+        };
+        buildChange.start();
+        assertEquals(mMockTestDevice, manager.allocateDevice(10 * 1000, options));
+        buildChange.join();
+    }
+
+    /**
+     * Test that a device whose attributes have not been retrieved yet is not allocated, and that
+     * a pending allocation gets it once they are.
+     */
+    public void testAllocateDevice_noAttributesYet() throws Exception {
+        mFetchAttributesLatch = new CountDownLatch(1);
+        mMockAttributes = new DeviceAttributeSnapshot(null, null, 10,
+                new HashMap<String, String>(), System.currentTimeMillis());
+        DeviceSelectionOptions lowBatteryOptions = new DeviceSelectionOptions();
+        lowBatteryOptions.setMinBatteryLevel(5);
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.setMinBatteryLevel(50);
+        setCheckAvailableDeviceExpectations();
+        replayMocks();
+        DeviceManager manager = createDeviceManager(mMockIDevice);
+        // the battery level is unknown, so the device must not be allocated
+        assertNull(manager.allocateDevice(MIN_ALLOCATE_WAIT_TIME, options));
+        Thread refresh = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(100);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                mFetchAttributesLatch.countDown();
+            }
+        };
+        refresh.start();
+        assertEquals(mMockTestDevice, manager.allocateDevice(10 * 1000, lowBatteryOptions));
+        refresh.join();
+    }
+
     /**
      * Test {@link DeviceManager#allocateDevice(long, DeviceSelectionOptions))} when timeout is
      * reached.
@@ -21,6 +21,9 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Unit tests for {@link DeviceSelectionOptions}
  */
@@ -348,4 +351,70 @@ public class DeviceSelectionOptionsTest extends TestCase {
         options.setMinBatteryLevel(25);
         assertTrue(options.matches(mMockDevice));
     }
+
+    /**
+     * Test {@link DeviceSelectionOptions#matches(IDevice, DeviceAttributeSnapshot)} reads the
+     * product type and variant from the snapshot, without querying the device.
+     */
+    public void testMatches_snapshotProductType() {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType(DEVICE_TYPE + ":variant");
+        EasyMock.replay(mMockDevice);
+        assertTrue(options.matches(mMockDevice, createSnapshot(DEVICE_TYPE, "variant", null)));
+        assertFalse(options.matches(mMockDevice, createSnapshot(DEVICE_TYPE, "other", null)));
+        assertFalse(options.matches(mMockDevice,
+                createSnapshot(OTHER_DEVICE_TYPE, "variant", null)));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test {@link DeviceSelectionOptions#matches(IDevice, DeviceAttributeSnapshot)} when device
+     * attributes have not been retrieved yet.
+     */
+    public void testMatches_noSnapshot() {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        EasyMock.replay(mMockDevice);
+        assertTrue(options.matches(mMockDevice, null));
+        options.addProductType(DEVICE_TYPE);
+        assertFalse(options.matches(mMockDevice, null));
+    }
+
+    /**
+     * Test {@link DeviceSelectionOptions#matches(IDevice, DeviceAttributeSnapshot)} reads the
+     * battery level from the snapshot, without querying the device.
+     */
+    public void testMatches_snapshotBattery() {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.setMinBatteryLevel(25);
+        options.setRequireBatteryCheck(true);
+        EasyMock.replay(mMockDevice);
+        assertTrue(options.matches(mMockDevice, createSnapshot(null, null, 50)));
+        assertFalse(options.matches(mMockDevice, createSnapshot(null, null, 10)));
+        assertFalse(options.matches(mMockDevice, createSnapshot(null, null, null)));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test {@link DeviceSelectionOptions#matches(IDevice, DeviceAttributeSnapshot)} reads
+     * properties from the snapshot, and falls back to the device property cache for properties
+     * not included in the snapshot.
+     */
+    public void testMatches_snapshotProperty() {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProperty("prop1=foo");
+        options.addProperty("prop2=bar");
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("prop1", "foo");
+        EasyMock.expect(mMockDevice.getProperty("prop2")).andReturn("bar");
+        EasyMock.replay(mMockDevice);
+        assertTrue(options.matches(mMockDevice, new DeviceAttributeSnapshot(null, null, null,
+                properties, 0)));
+        EasyMock.verify(mMockDevice);
+    }
+
+    private DeviceAttributeSnapshot createSnapshot(String productType, String variant,
+            Integer batteryLevel) {
+        return new DeviceAttributeSnapshot(productType, variant, batteryLevel,
+                new HashMap<String, String>(), 0);
+    }
 }
@@ -17,11 +17,17 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.util.RunUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Unit tests for {@link DeviceStateMonitorTest}.
@@ -82,11 +88,131 @@ public class DeviceStateMonitorTest extends TestCase {
     }
 
     /**
-     * Normal case test for {@link DeviceStateMonitor#waitForDeviceOnline()}
+     * Normal case test for {@link DeviceStateMonitor#waitForDeviceAvailable()}, where the watcher
+     * shell reports the device stages as they complete.
+     */
+    public void testWaitForDeviceAvailable() throws Exception {
+        IDevice mockDevice = createAvailableMockDevice(new ShellAnswer() {
+            @Override
+            void answer(String cmd, IShellOutputReceiver receiver) {
+                assertTrue(cmd.contains("/sdcard/.tf_available"));
+                addOutput(receiver, "TF_AVAILABLE boot=0 pm=0 store=0\r\n"
+                        + "TF_AVAILABLE boot=1 pm=0 store=1\r\n"
+                        + "TF_AVAILABLE boot=1 pm=1 store=1\r\n");
+                assertTrue(receiver.isCancelled());
+            }
+        });
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mMockMgr, mockDevice, true);
+        assertEquals(mockDevice, monitor.waitForDeviceAvailable(10 * 1000));
+        assertEquals(DeviceStateMonitor.AvailableStage.values().length,
+                monitor.getLastStageTimes().size());
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable()} when the watcher shell does not
+     * complete before the timeout.
+     */
+    public void testWaitForDeviceAvailable_timeout() throws Exception {
+        IDevice mockDevice = createAvailableMockDevice(new ShellAnswer() {
+            @Override
+            void answer(String cmd, IShellOutputReceiver receiver) {
+                while (!receiver.isCancelled()) {
+                    addOutput(receiver, "TF_AVAILABLE boot=1 pm=0 store=1\r\n");
+                    RunUtil.getDefault().sleep(10);
+                }
+            }
+        });
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mMockMgr, mockDevice, true);
+        assertNull(monitor.waitForDeviceAvailable(100));
+        Map<DeviceStateMonitor.AvailableStage, Long> stageTimes = monitor.getLastStageTimes();
+        assertTrue(stageTimes.containsKey(DeviceStateMonitor.AvailableStage.BOOT_COMPLETE));
+        assertFalse(stageTimes.containsKey(DeviceStateMonitor.AvailableStage.PM_RESPONSIVE));
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable()} falls back to polling when the
+     * watcher shell cannot run on the device.
+     */
+    public void testWaitForDeviceAvailable_poll() throws Exception {
+        final List<String> commands = new ArrayList<String>();
+        IDevice mockDevice = createAvailableMockDevice(new ShellAnswer() {
+            @Override
+            void answer(String cmd, IShellOutputReceiver receiver) {
+                commands.add(cmd);
+                if (cmd.startsWith("b=0")) {
+                    addOutput(receiver, "/system/bin/sh: syntax error: 'case' unexpected\r\n");
+                } else if (cmd.equals("pm path android")) {
+                    addOutput(receiver, "package:/system/framework/framework-res.apk\r\n");
+                } else if (cmd.startsWith("cat ")) {
+                    // the file contains the number in its name
+                    String number = cmd.replaceAll("[^0-9]", "");
+                    addOutput(receiver, String.format("number %s one\r\n", number));
+                }
+            }
+        });
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mMockMgr, mockDevice, true);
+        assertEquals(mockDevice, monitor.waitForDeviceAvailable(10 * 1000));
+        assertEquals(5, commands.size());
+        assertEquals("pm path android", commands.get(1));
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable()} only polls when the watcher shell
+     * is disabled.
+     */
+    public void testWaitForDeviceAvailable_watcherDisabled() throws Exception {
+        final List<String> commands = new ArrayList<String>();
+        IDevice mockDevice = createAvailableMockDevice(new ShellAnswer() {
+            @Override
+            void answer(String cmd, IShellOutputReceiver receiver) {
+                commands.add(cmd);
+            }
+        });
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mMockMgr, mockDevice, true);
+        monitor.setUseAvailableWatcher(false);
+        assertNull(monitor.waitForDeviceAvailable(50));
+        assertFalse(commands.isEmpty());
+        for (String cmd : commands) {
+            assertFalse(cmd.contains("TF_AVAILABLE"));
+        }
+    }
+
+    /**
+     * Answers shell commands run on a mock {@link IDevice}.
      */
-    public void testWaitForDeviceAvailable() {
-        // TODO: implement this when IDevice.executeShellCommand can be mocked more easily
-        //assertEquals(mMockDevice, mMonitor.waitForDeviceAvailable());
+    private static abstract class ShellAnswer implements IAnswer<Object> {
+        abstract void answer(String cmd, IShellOutputReceiver receiver);
+
+        @Override
+        public Object answer() {
+            Object[] args = EasyMock.getCurrentArguments();
+            answer((String)args[0], (IShellOutputReceiver)args[1]);
+            return null;
+        }
+
+        void addOutput(IShellOutputReceiver receiver, String output) {
+            byte[] data = output.getBytes();
+            receiver.addOutput(data, 0, data.length);
+            receiver.flush();
+        }
+    }
+
+    /**
+     * Create a mock {@link IDevice} that is online and booted, and whose shell commands are
+     * answered by <var>shellAnswer</var>.
+     */
+    private IDevice createAvailableMockDevice(ShellAnswer shellAnswer) throws Exception {
+        IDevice mockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mockDevice.getState()).andReturn(DeviceState.ONLINE);
+        EasyMock.expect(mockDevice.getSerialNumber()).andStubReturn(SERIAL_NUMBER);
+        EasyMock.expect(mockDevice.getMountPoint(IDevice.MNT_EXTERNAL_STORAGE))
+                .andStubReturn("/sdcard");
+        EasyMock.expect(mockDevice.getPropertySync("dev.bootcomplete")).andStubReturn("1");
+        mockDevice.executeShellCommand((String)EasyMock.anyObject(),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(shellAnswer).anyTimes();
+        EasyMock.replay(mockDevice);
+        return mockDevice;
     }
 
     /**
@@ -28,6 +28,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -41,6 +42,9 @@ public class MockDeviceManager implements IDeviceManager {
 
     private int mTotalDevices;
 
+    private Collection<IDeviceAvailableListener> mAvailableListeners =
+            new CopyOnWriteArrayList<IDeviceAvailableListener>();
+
     public MockDeviceManager(int numDevices) {
         setNumDevices(numDevices);
     }
@@ -114,6 +118,9 @@ public class MockDeviceManager implements IDeviceManager {
     public void freeDevice(ITestDevice device, FreeDeviceState state) {
         if (!state.equals(FreeDeviceState.UNAVAILABLE)) {
             mDeviceQueue.add(device);
+            for (IDeviceAvailableListener listener : mAvailableListeners) {
+                listener.deviceAvailable(device.getSerialNumber());
+            }
         }
     }
 
@@ -134,6 +141,22 @@ public class MockDeviceManager implements IDeviceManager {
         // ignore
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addDeviceAvailableListener(IDeviceAvailableListener listener) {
+        mAvailableListeners.add(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeDeviceAvailableListener(IDeviceAvailableListener listener) {
+        mAvailableListeners.remove(listener);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link RemoteFileTree}.
+ */
+public class RemoteFileTreeTest extends TestCase {
+
+    private static final String REMOTE_DIR = "/data/foo";
+
+    private File mLocalDir;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocalDir = FileUtil.createTempDir("foo");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mLocalDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test parsing a listing with files and checksums.
+     */
+    public void testParse() {
+        String output = "directory|4096|1360000000|/data/foo\r\n"
+                + "regular file|5|1360000001|/data/foo/a.txt\r\n"
+                + "regular empty file|0|1360000002|/data/foo/b c.txt\r\n"
+                + "TF_LISTING_MD5\r\n"
+                + "5D41402ABC4B2A76B9719D911017C592  /data/foo/a.txt\r\n"
+                + "TF_LISTING_END\r\n";
+        RemoteFileTree tree = RemoteFileTree.parse(REMOTE_DIR, output);
+        assertTrue(tree.get(REMOTE_DIR).mIsDirectory);
+        RemoteFileTree.RemoteFile file = tree.get("/data/foo/a.txt");
+        assertFalse(file.mIsDirectory);
+        assertEquals(5, file.mSize);
+        assertEquals(1360000001, file.mModifiedTime);
+        assertEquals("5d41402abc4b2a76b9719d911017c592", file.mMd5);
+        assertEquals(0, tree.get("/data/foo/b c.txt").mSize);
+        assertNull(tree.get("/data/foo/b c.txt").mMd5);
+    }
+
+    /**
+     * Test parsing a listing of a remote directory that does not exist.
+     */
+    public void testParse_missingDir() {
+        String output = "find: /data/foo: No such file or directory\n"
+                + "TF_LISTING_MD5\nTF_LISTING_END\n";
+        RemoteFileTree tree = RemoteFileTree.parse(REMOTE_DIR, output);
+        assertNotNull(tree);
+        assertNull(tree.get(REMOTE_DIR));
+    }
+
+    /**
+     * Test that parsing fails when the device does not support the listing command.
+     */
+    public void testParse_unsupported() {
+        assertNull(RemoteFileTree.parse(REMOTE_DIR, "find: not found\nTF_LISTING_MD5\n"
+                + "TF_LISTING_END\n"));
+        assertNull(RemoteFileTree.parse(REMOTE_DIR, "/system/bin/sh: syntax error"));
+    }
+
+    /**
+     * Test {@link RemoteFileTree#findChanges} detects new, resized, and modified files.
+     */
+    public void testFindChanges() throws Exception {
+        File unchanged = createLocalFile(mLocalDir, "unchanged.txt", "hello", 1360000000000L);
+        File modified = createLocalFile(mLocalDir, "modified.txt", "hello", 1360000100000L);
+        File resized = createLocalFile(mLocalDir, "resized.txt", "hello!", 1360000000000L);
+        File subDir = new File(mLocalDir, "sub");
+        subDir.mkdir();
+        File added = createLocalFile(subDir, "added.txt", "hello", 1360000000000L);
+        createLocalFile(mLocalDir, ".hidden", "hello", 1360000000000L);
+        String output = "directory|4096|1360000000|/data/foo\n"
+                + "regular file|5|1360000000|/data/foo/unchanged.txt\n"
+                + "regular file|5|1360000000|/data/foo/modified.txt\n"
+                + "regular file|5|1360000000|/data/foo/resized.txt\n"
+                + "TF_LISTING_MD5\nTF_LISTING_END\n";
+        RemoteFileTree tree = RemoteFileTree.parse(REMOTE_DIR, output);
+        List<String> dirsToCreate = new ArrayList<String>();
+        Map<File, String> filesToPush = new LinkedHashMap<File, String>();
+        tree.findChanges(mLocalDir, REMOTE_DIR, new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return !name.startsWith(".");
+            }
+        }, false, dirsToCreate, filesToPush);
+        assertEquals(Arrays.asList("/data/foo/sub"), dirsToCreate);
+        assertEquals(3, filesToPush.size());
+        assertFalse(filesToPush.containsKey(unchanged));
+        assertEquals("/data/foo/modified.txt", filesToPush.get(modified));
+        assertEquals("/data/foo/resized.txt", filesToPush.get(resized));
+        assertEquals("/data/foo/sub/added.txt", filesToPush.get(added));
+    }
+
+    /**
+     * Test {@link RemoteFileTree#findChanges} compares files by checksum when requested.
+     */
+    public void testFindChanges_checksum() throws Exception {
+        File same = createLocalFile(mLocalDir, "same.txt", "hello", 1360000100000L);
+        File changed = createLocalFile(mLocalDir, "changed.txt", "hellp", 1360000000000L);
+        String output = "directory|4096|1360000000|/data/foo\n"
+                + "regular file|5|1360000000|/data/foo/same.txt\n"
+                + "regular file|5|1360000000|/data/foo/changed.txt\n"
+                + "TF_LISTING_MD5\n"
+                + "5d41402abc4b2a76b9719d911017c592  /data/foo/same.txt\n"
+                + "5d41402abc4b2a76b9719d911017c592  /data/foo/changed.txt\n"
+                + "TF_LISTING_END\n";
+        RemoteFileTree tree = RemoteFileTree.parse(REMOTE_DIR, output);
+        List<String> dirsToCreate = new ArrayList<String>();
+        Map<File, String> filesToPush = new LinkedHashMap<File, String>();
+        tree.findChanges(mLocalDir, REMOTE_DIR, null, true, dirsToCreate, filesToPush);
+        assertTrue(dirsToCreate.isEmpty());
+        assertEquals(1, filesToPush.size());
+        assertFalse(filesToPush.containsKey(same));
+        assertTrue(filesToPush.containsKey(changed));
+    }
+
+    private File createLocalFile(File dir, String name, String contents, long modifiedTime)
+            throws Exception {
+        File file = new File(dir, name);
+        FileUtil.writeToFile(contents, file);
+        file.setLastModified(modifiedTime);
+        return file;
+    }
+}
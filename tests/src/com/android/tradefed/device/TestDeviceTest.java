@@ -28,6 +28,7 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.StreamUtil;
 
@@ -39,9 +40,12 @@ import org.easymock.IAnswer;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -572,6 +576,49 @@ public class TestDeviceTest extends TestCase {
         assertFalse(mTestDevice.syncFiles(new File("idontexist"), "/sdcard"));
     }
 
+    /**
+     * Test {@link TestDevice#syncFiles(File, String)} lists the remote tree in a single command,
+     * creates missing directories in one command, and pushes only the changed files.
+     */
+    public void testSyncFiles_singleListing() throws Exception {
+        File localDir = FileUtil.createTempDir("sync");
+        try {
+            File unchanged = new File(localDir, "unchanged.txt");
+            FileUtil.writeToFile("hello", unchanged);
+            unchanged.setLastModified(1360000000000L);
+            File subDir = new File(localDir, "sub");
+            subDir.mkdir();
+            File added = new File(subDir, "added.txt");
+            FileUtil.writeToFile("hello", added);
+            final String remoteDir = "/data/" + localDir.getName();
+            final Map<File, String> pushedFiles = new HashMap<File, String>();
+            final List<String> commands = new ArrayList<String>();
+            final String listing = String.format("directory|4096|1360000000|%s\n"
+                    + "regular file|5|1360000000|%s/unchanged.txt\n"
+                    + "TF_LISTING_MD5\nTF_LISTING_END\n", remoteDir, remoteDir);
+            TestDevice testDevice = new TestableTestDevice() {
+                @Override
+                public String executeShellCommand(String command) {
+                    commands.add(command);
+                    return command.startsWith("find") ? listing : "";
+                }
+
+                @Override
+                boolean pushFiles(Map<File, String> filesToPush) {
+                    pushedFiles.putAll(filesToPush);
+                    return true;
+                }
+            };
+            assertTrue(testDevice.syncFiles(localDir, "/data"));
+            assertEquals(1, pushedFiles.size());
+            assertEquals(remoteDir + "/sub/added.txt", pushedFiles.get(added));
+            assertEquals(Arrays.asList(RemoteFileTree.buildListCommand(remoteDir, false),
+                    String.format("mkdir -p '%s/sub'", remoteDir)), commands);
+        } finally {
+            FileUtil.recursiveDelete(localDir);
+        }
+    }
+
     /**
      * Test {@link TestDevice#runInstrumentationTests(IRemoteAndroidTestRunner, Collection)}
      * success case.
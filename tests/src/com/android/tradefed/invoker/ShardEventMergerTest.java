@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.StubTestInvocationListener;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ShardEventMerger}.
+ */
+public class ShardEventMergerTest extends TestCase {
+
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    /**
+     * A listener that records the events it receives.
+     */
+    private static class RecordingListener extends StubTestInvocationListener {
+        final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void invocationStarted(IBuildInfo buildInfo) {
+            mEvents.add("invocationStarted");
+        }
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            mEvents.add("testRunStarted " + runName);
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mEvents.add("testStarted " + test.getTestName());
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            mEvents.add("testEnded " + test.getTestName());
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mEvents.add("testRunEnded");
+        }
+
+        @Override
+        public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+            try {
+                mEvents.add("testLog " + StreamUtil.getStringFromStream(
+                        dataStream.createInputStream()));
+            } catch (IOException e) {
+                mEvents.add("testLog failed");
+            }
+        }
+
+        @Override
+        public void invocationEnded(long elapsedTime) {
+            mEvents.add("invocationEnded");
+        }
+    }
+
+    /**
+     * Test that a run from one shard is forwarded as a whole, even when another shard reports a
+     * run at the same time.
+     */
+    public void testRunsNotInterleaved() throws Exception {
+        RecordingListener master = new RecordingListener();
+        ShardEventMerger merger = new ShardEventMerger(master, 2);
+        ITestInvocationListener shard1 = merger.createShardListener();
+        ITestInvocationListener shard2 = merger.createShardListener();
+        IBuildInfo build = new BuildInfo();
+        shard1.invocationStarted(build);
+        shard2.invocationStarted(build);
+        shard1.testRunStarted("run1", 2);
+        shard1.testStarted(new TestIdentifier("Foo", "test1"));
+        shard2.testRunStarted("run2", 1);
+        shard2.testStarted(new TestIdentifier("Foo", "test2"));
+        shard2.testEnded(new TestIdentifier("Foo", "test2"), EMPTY_MAP);
+        shard2.testRunEnded(0, EMPTY_MAP);
+        shard2.invocationEnded(0);
+        shard1.testEnded(new TestIdentifier("Foo", "test1"), EMPTY_MAP);
+        shard1.testStarted(new TestIdentifier("Foo", "test3"));
+        shard1.testEnded(new TestIdentifier("Foo", "test3"), EMPTY_MAP);
+        shard1.testRunEnded(0, EMPTY_MAP);
+        shard1.invocationEnded(0);
+        assertTrue(merger.awaitStopped(10 * 1000));
+
+        List<String> events = master.mEvents;
+        assertEquals(14, events.size());
+        int run1Start = events.indexOf("testRunStarted run1");
+        assertEquals(events.subList(run1Start, run1Start + 6), Arrays.asList(
+                "testRunStarted run1", "testStarted test1", "testEnded test1",
+                "testStarted test3", "testEnded test3", "testRunEnded"));
+        int run2Start = events.indexOf("testRunStarted run2");
+        assertEquals(events.subList(run2Start, run2Start + 4), Arrays.asList(
+                "testRunStarted run2", "testStarted test2", "testEnded test2",
+                "testRunEnded"));
+    }
+
+    /**
+     * Test that events are forwarded before the shard ends.
+     */
+    public void testForwardedWhileRunning() throws Exception {
+        RecordingListener master = new RecordingListener();
+        ShardEventMerger merger = new ShardEventMerger(master, 1);
+        ITestInvocationListener shard = merger.createShardListener();
+        shard.invocationStarted(new BuildInfo());
+        shard.testRunStarted("run", 1);
+        waitForEvents(master, 2);
+        assertEquals("testRunStarted run", master.mEvents.get(1));
+        assertFalse(merger.awaitStopped(10));
+        shard.testRunEnded(0, EMPTY_MAP);
+        shard.invocationEnded(0);
+        assertTrue(merger.awaitStopped(10 * 1000));
+        assertEquals(4, master.mEvents.size());
+    }
+
+    /**
+     * Test that the merge thread stops once the shards that ran have ended, when the others were
+     * discarded.
+     */
+    public void testInvocationDiscarded() throws Exception {
+        RecordingListener master = new RecordingListener();
+        ShardEventMerger merger = new ShardEventMerger(master, 2);
+        ITestInvocationListener shard = merger.createShardListener();
+        IScheduledInvocationListener discardedShard = merger.createShardListener();
+        discardedShard.invocationDiscarded();
+        shard.invocationStarted(new BuildInfo());
+        shard.invocationEnded(0);
+        assertTrue(merger.awaitStopped(10 * 1000));
+        assertEquals(Arrays.asList("invocationStarted", "invocationEnded"), master.mEvents);
+    }
+
+    /**
+     * Test that a shard waits for its events to be forwarded once its channel is full, while
+     * another shard's run is being forwarded.
+     */
+    public void testPost_channelFull() throws Exception {
+        RecordingListener master = new RecordingListener();
+        ShardEventMerger merger = new ShardEventMerger(master, 2, 2);
+        ITestInvocationListener shard1 = merger.createShardListener();
+        final ITestInvocationListener shard2 = merger.createShardListener();
+        shard1.testRunStarted("run1", 1);
+        waitForEvents(master, 1);
+        Thread shard2Thread = new Thread() {
+            @Override
+            public void run() {
+                shard2.testRunStarted("run2", 1);
+                shard2.testStarted(new TestIdentifier("Foo", "test2"));
+                shard2.testEnded(new TestIdentifier("Foo", "test2"), EMPTY_MAP);
+                shard2.testRunEnded(0, EMPTY_MAP);
+                shard2.invocationEnded(0);
+            }
+        };
+        shard2Thread.start();
+        shard2Thread.join(100);
+        assertTrue("shard did not wait for room in its channel", shard2Thread.isAlive());
+        shard1.testRunEnded(0, EMPTY_MAP);
+        shard1.invocationEnded(0);
+        shard2Thread.join(10 * 1000);
+        assertFalse(shard2Thread.isAlive());
+        assertTrue(merger.awaitStopped(10 * 1000));
+        assertEquals(Arrays.asList("testRunStarted run1", "testRunEnded",
+                "testRunStarted run2", "testStarted test2", "testEnded test2", "testRunEnded",
+                "invocationEnded", "invocationEnded"), master.mEvents);
+    }
+
+    /**
+     * Test that logs are forwarded even if the shard cancels them right after reporting them.
+     */
+    public void testLog_cancelled() throws Exception {
+        RecordingListener master = new RecordingListener();
+        ShardEventMerger merger = new ShardEventMerger(master, 1);
+        ITestInvocationListener shard = merger.createShardListener();
+        InputStreamSource source = new ByteArrayInputStreamSource("log data".getBytes());
+        shard.testLog("log", LogDataType.TEXT, source);
+        source.cancel();
+        shard.invocationEnded(0);
+        assertTrue(merger.awaitStopped(10 * 1000));
+        assertEquals("testLog log data", master.mEvents.get(0));
+    }
+
+    private void waitForEvents(RecordingListener listener, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (listener.mEvents.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.AsyncLogWriter.OverflowPolicy;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link AsyncLogWriter}.
+ */
+public class AsyncLogWriterTest extends TestCase {
+
+    private static final String TAG = "AsyncLogWriterTest";
+    private static final long TIME = 1360000000000L;
+
+    /**
+     * An output stream that blocks writes until released.
+     */
+    private static class BlockingOutputStream extends ByteArrayOutputStream {
+        final CountDownLatch mWriteStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            mWriteStarted.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            super.write(b);
+        }
+    }
+
+    private AsyncLogWriter mWriter = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        if (mWriter != null) {
+            mWriter.close();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Test that messages are written in order, and are all written once flushed.
+     */
+    public void testWrite_flush() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mWriter = new AsyncLogWriter(output, 100, OverflowPolicy.BLOCK, 1);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(mWriter.write(LogLevel.DEBUG, TAG, "message " + i, TIME));
+            expected.append(LogUtil.getLogFormatString(LogLevel.DEBUG, TAG, "message " + i,
+                    TIME));
+        }
+        mWriter.flush();
+        assertEquals(expected.toString(), output.toString());
+        assertEquals(1000, mWriter.getQueuedCount());
+        assertEquals(0, mWriter.getDroppedCount());
+        assertEquals(0, mWriter.getPendingCount());
+    }
+
+    /**
+     * Test that a message logged by the writer thread while the queue is full is written
+     * directly, rather than waiting for room in the queue.
+     */
+    public void testWrite_fromWriterThread() throws Exception {
+        final CountDownLatch queueFull = new CountDownLatch(1);
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            private boolean mLogged = false;
+
+            @Override
+            public synchronized void write(byte[] b) throws IOException {
+                super.write(b);
+                if (!mLogged) {
+                    mLogged = true;
+                    try {
+                        queueFull.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    mWriter.write(LogLevel.WARN, TAG, "stream message", TIME);
+                }
+            }
+        };
+        mWriter = new AsyncLogWriter(output, 1, OverflowPolicy.BLOCK, 1);
+        assertTrue(mWriter.write(LogLevel.DEBUG, TAG, "message 0", TIME));
+        while (mWriter.getPendingCount() > 0) {
+            Thread.sleep(1);
+        }
+        assertTrue(mWriter.write(LogLevel.DEBUG, TAG, "message 1", TIME));
+        queueFull.countDown();
+        mWriter.flush();
+        assertEquals(LogUtil.getLogFormatString(LogLevel.DEBUG, TAG, "message 0", TIME)
+                + LogUtil.getLogFormatString(LogLevel.WARN, TAG, "stream message", TIME)
+                + LogUtil.getLogFormatString(LogLevel.DEBUG, TAG, "message 1", TIME),
+                output.toString());
+        assertEquals(3, mWriter.getQueuedCount());
+    }
+
+    /**
+     * Test that {@link AsyncLogWriter#close()} writes pending messages, and that later messages
+     * are dropped.
+     */
+    public void testClose() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mWriter = new AsyncLogWriter(output, 100, OverflowPolicy.BLOCK, 1);
+        mWriter.write(LogLevel.INFO, TAG, "before", TIME);
+        mWriter.close();
+        assertFalse(mWriter.write(LogLevel.INFO, TAG, "after", TIME));
+        assertEquals(LogUtil.getLogFormatString(LogLevel.INFO, TAG, "before", TIME),
+                output.toString());
+    }
+
+    /**
+     * Test {@link OverflowPolicy#DROP_DEBUG} drops only debug messages while the queue is full.
+     */
+    public void testWrite_dropDebug() throws Exception {
+        final BlockingOutputStream output = new BlockingOutputStream();
+        mWriter = new AsyncLogWriter(output, 2, OverflowPolicy.DROP_DEBUG, 1);
+        fillQueue(output);
+        assertFalse(mWriter.write(LogLevel.DEBUG, TAG, "dropped", TIME));
+        assertFalse(mWriter.write(LogLevel.VERBOSE, TAG, "dropped", TIME));
+        assertEquals(2, mWriter.getDroppedCount());
+        // an info message waits for room in the queue
+        Thread releaseThread = releaseLater(output);
+        assertTrue(mWriter.write(LogLevel.INFO, TAG, "kept", TIME));
+        releaseThread.join();
+        mWriter.flush();
+        assertTrue(output.toString().contains("kept"));
+        assertFalse(output.toString().contains("dropped"));
+        assertEquals(4, mWriter.getQueuedCount());
+    }
+
+    /**
+     * Test {@link OverflowPolicy#SAMPLE} drops messages between samples while the queue is full.
+     */
+    public void testWrite_sample() throws Exception {
+        final BlockingOutputStream output = new BlockingOutputStream();
+        mWriter = new AsyncLogWriter(output, 2, OverflowPolicy.SAMPLE, 3);
+        fillQueue(output);
+        assertFalse(mWriter.write(LogLevel.DEBUG, TAG, "dropped", TIME));
+        assertFalse(mWriter.write(LogLevel.INFO, TAG, "dropped", TIME));
+        assertEquals(2, mWriter.getDroppedCount());
+        // the third message is kept, and waits for room in the queue
+        Thread releaseThread = releaseLater(output);
+        assertTrue(mWriter.write(LogLevel.DEBUG, TAG, "sampled", TIME));
+        releaseThread.join();
+        mWriter.flush();
+        assertTrue(output.toString().contains("sampled"));
+        assertEquals(2, mWriter.getDroppedCount());
+    }
+
+    /**
+     * Block the writer thread on a first message, then fill the queue.
+     */
+    private void fillQueue(BlockingOutputStream output) throws InterruptedException {
+        assertTrue(mWriter.write(LogLevel.INFO, TAG, "first", TIME));
+        assertTrue(output.mWriteStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(mWriter.write(LogLevel.INFO, TAG, "second", TIME));
+        assertTrue(mWriter.write(LogLevel.INFO, TAG, "third", TIME));
+        assertEquals(2, mWriter.getPendingCount());
+    }
+
+    private Thread releaseLater(final BlockingOutputStream output) {
+        Thread releaseThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                output.mRelease.countDown();
+            }
+        };
+        releaseThread.start();
+        return releaseThread;
+    }
+}
@@ -17,6 +17,7 @@ package com.android.tradefed.log;
 
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.result.InputStreamSource;
 
 import junit.framework.TestCase;
@@ -86,6 +87,61 @@ public class FileLoggerTest extends TestCase {
         }
     }
 
+    /**
+     * Test that messages are written synchronously when async-log is disabled, and that the
+     * queue counters are only updated when it is enabled.
+     */
+    public void testLogToLogger_sync() throws Exception {
+        final StringBuilder written = new StringBuilder();
+        FileLogger logger = new FileLogger() {
+            @Override
+            void writeToLog(String outMessage) {
+                written.append(outMessage);
+            }
+        };
+        new OptionSetter(logger).setOptionValue("async-log", "false");
+        try {
+            logger.init();
+            logger.printLog(LogLevel.INFO, LOG_TAG, "sync message");
+            assertTrue(written.toString().contains("sync message"));
+            assertEquals(0, logger.getQueuedCount());
+        } finally {
+            logger.closeLog();
+        }
+        logger = new FileLogger();
+        try {
+            logger.init();
+            logger.printLog(LogLevel.INFO, LOG_TAG, "async message");
+            assertEquals(1, logger.getQueuedCount());
+            assertEquals(0, logger.getDroppedCount());
+        } finally {
+            logger.closeLog();
+        }
+    }
+
+    /**
+     * Test that a message logged while the log is being closed, after the background writer
+     * stopped accepting messages, is written directly instead of being lost.
+     */
+    public void testLogToLogger_closing() throws Exception {
+        final StringBuilder written = new StringBuilder();
+        FileLogger logger = new FileLogger() {
+            @Override
+            void writeToLog(String outMessage) {
+                written.append(outMessage);
+            }
+        };
+        try {
+            logger.init();
+            // the writer is closed, but the logger is not done closing yet
+            logger.getAsyncWriter().close();
+            logger.printLog(LogLevel.INFO, LOG_TAG, "late message");
+            assertTrue(written.toString().contains("late message"));
+        } finally {
+            logger.closeLog();
+        }
+    }
+
     /**
      * Test behavior when  {@link FileLogger#getLog()} is called after
      * {@link FileLogger#closeLog()}.
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+
+/**
+ * Java app that measures the time and memory allocated per {@link CLog} call, for messages that
+ * are filtered out by the log level and for messages that are logged, and per
+ * {@link LogUtil#getLogFormatString(LogLevel, String, String)} call.
+ */
+public class LogUtilBenchmarkApp {
+
+    private static final int WARMUP_CALLS = 200000;
+    private static final int MEASURED_CALLS = 1000000;
+
+    /**
+     * A {@link ILogRegistry} that accepts messages at or above a given level, and drops them.
+     */
+    private static class LevelOnlyRegistry implements ILogRegistry {
+        private final LogLevel mLogLevel;
+
+        LevelOnlyRegistry(LogLevel logLevel) {
+            mLogLevel = logLevel;
+        }
+
+        @Override
+        public boolean isLoggable(LogLevel logLevel) {
+            return logLevel.getPriority() >= mLogLevel.getPriority();
+        }
+
+        @Override
+        public void printLog(LogLevel logLevel, String tag, String message) {
+        }
+
+        @Override
+        public void printAndPromptLog(LogLevel logLevel, String tag, String message) {
+        }
+
+        @Override
+        public void setGlobalLogDisplayLevel(LogLevel logLevel) {
+        }
+
+        @Override
+        public void setGlobalLogTagDisplay(Collection<String> logTagsDisplay) {
+        }
+
+        @Override
+        public LogLevel getGlobalLogDisplayLevel() {
+            return mLogLevel;
+        }
+
+        @Override
+        public void registerLogger(ILeveledLogOutput log) {
+        }
+
+        @Override
+        public void unregisterLogger() {
+        }
+
+        @Override
+        public void dumpToGlobalLog(ILeveledLogOutput log) {
+        }
+
+        @Override
+        public void closeAndRemoveAllLogs() {
+        }
+
+        @Override
+        public void saveGlobalLog() {
+        }
+
+        @Override
+        public void dumpLogs() {
+        }
+    }
+
+    private static abstract class Scenario {
+        private final String mName;
+
+        Scenario(String name) {
+            mName = name;
+        }
+
+        abstract void run(int i);
+    }
+
+    private static final Scenario FILTERED_CLOG = new Scenario("CLog.d, filtered") {
+        @Override
+        void run(int i) {
+            CLog.d("iteration %d of %s", i, "benchmark");
+        }
+    };
+
+    private static final Scenario LOGGED_CLOG = new Scenario("CLog.i, logged") {
+        @Override
+        void run(int i) {
+            CLog.i("iteration %d of %s", i, "benchmark");
+        }
+    };
+
+    private static final Scenario FORMAT_LINE = new Scenario("getLogFormatString") {
+        @Override
+        void run(int i) {
+            LogUtil.getLogFormatString(LogLevel.DEBUG, "LogUtilBenchmarkApp", "a log message");
+        }
+    };
+
+    private void runScenario(Scenario scenario) {
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            scenario.run(i);
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long startBytes = getAllocatedBytes(threadBean);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < MEASURED_CALLS; i++) {
+            scenario.run(i);
+        }
+        long elapsedNs = System.nanoTime() - startTime;
+        long allocatedBytes = getAllocatedBytes(threadBean) - startBytes;
+        System.out.printf("%-22s %8.1f ns/call  %8.1f bytes/call\n", scenario.mName,
+                (double)elapsedNs / MEASURED_CALLS,
+                startBytes < 0 ? Double.NaN : (double)allocatedBytes / MEASURED_CALLS);
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread, or -1 if not supported by the VM.
+     */
+    private static long getAllocatedBytes(ThreadMXBean threadBean) {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        LogUtilBenchmarkApp app = new LogUtilBenchmarkApp();
+        // drop messages below INFO, like a logger configured with --log-level info. Logged
+        // messages are discarded after formatting
+        ILogRegistry logRegistry = new LevelOnlyRegistry(LogLevel.INFO);
+        Log.setLogOutput(logRegistry);
+        CLog.setLogRegistry(logRegistry);
+        System.out.printf("Logging benchmark, %d calls per scenario\n", MEASURED_CALLS);
+        for (Scenario scenario : new Scenario[] {FILTERED_CLOG, LOGGED_CLOG, FORMAT_LINE}) {
+            app.runScenario(scenario);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Unit tests for {@link LogUtil}.
+ */
+public class LogUtilTest extends TestCase {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        CLog.setLogRegistry(null);
+        super.tearDown();
+    }
+
+    /**
+     * Test {@link LogUtil#getLogFormatString(LogLevel, String, String)} output format.
+     */
+    public void testGetLogFormatString() {
+        String line = LogUtil.getLogFormatString(LogLevel.DEBUG, "Tag", "message");
+        assertTrue(line, line.matches("\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d D/Tag: message\n"));
+    }
+
+    /**
+     * Test {@link LogUtil#getTimestamp(long)} formats each second correctly, when the cached
+     * timestamp is reused and when it is replaced.
+     */
+    public void testGetTimestamp() {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss");
+        long time = 1360000000000L;
+        assertEquals(format.format(new Date(time)), LogUtil.getTimestamp(time));
+        assertEquals(format.format(new Date(time + 999)), LogUtil.getTimestamp(time + 999));
+        assertEquals(format.format(new Date(time + 1000)), LogUtil.getTimestamp(time + 1000));
+        assertEquals(format.format(new Date(time)), LogUtil.getTimestamp(time));
+    }
+
+    /**
+     * Test that {@link CLog} does not expand the format string of messages that would not be
+     * logged.
+     */
+    public void testCLog_filtered() {
+        ILogRegistry mockRegistry = EasyMock.createMock(ILogRegistry.class);
+        EasyMock.expect(mockRegistry.isLoggable(LogLevel.DEBUG)).andReturn(Boolean.FALSE);
+        EasyMock.expect(mockRegistry.isLoggable(LogLevel.INFO)).andReturn(Boolean.TRUE);
+        EasyMock.replay(mockRegistry);
+        CLog.setLogRegistry(mockRegistry);
+        final int[] formatCount = new int[1];
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                formatCount[0]++;
+                return "arg";
+            }
+        };
+        CLog.d("filtered %s", arg);
+        assertEquals(0, formatCount[0]);
+        CLog.i("logged %s", arg);
+        assertEquals(1, formatCount[0]);
+        EasyMock.verify(mockRegistry);
+    }
+}
@@ -208,6 +208,92 @@ public class CollectingTestListenerTest extends TestCase {
                 RUN_KEY));
     }
 
+    /**
+     * Test that results of a run with many tests are kept in the order tests were first reported,
+     * including when a test is rerun, and that the completed tests are tracked.
+     */
+    public void testManyTests() {
+        mCollectingTestListener.testRunStarted("run", 1000);
+        Map<String, String> emptyMap = Collections.emptyMap();
+        for (int i = 0; i < 1000; i++) {
+            TestIdentifier test = new TestIdentifier("FooTest", "test" + i);
+            mCollectingTestListener.testStarted(test);
+            if (i % 2 == 0) {
+                mCollectingTestListener.testEnded(test, emptyMap);
+            }
+        }
+        // rerun the first test, and fail it
+        TestIdentifier firstTest = new TestIdentifier("FooTest", "test0");
+        mCollectingTestListener.testStarted(firstTest);
+        mCollectingTestListener.testFailed(TestFailure.FAILURE, firstTest, "trace");
+        mCollectingTestListener.testEnded(firstTest, emptyMap);
+        mCollectingTestListener.testRunEnded(0, emptyMap);
+
+        TestRunResult runResult = mCollectingTestListener.getCurrentRunResults();
+        assertEquals(1000, runResult.getNumTests());
+        assertEquals(499, runResult.getNumPassedTests());
+        assertEquals(1, runResult.getNumFailedTests());
+        assertEquals(500, runResult.getCompletedTests().size());
+        assertTrue(runResult.getCompletedTests().contains(firstTest));
+        assertFalse(runResult.getCompletedTests().contains(new TestIdentifier("FooTest",
+                "test1")));
+        int completed = 0;
+        for (TestIdentifier test : runResult.getCompletedTests()) {
+            assertEquals("test" + completed * 2, test.getTestName());
+            completed++;
+        }
+        assertEquals(500, completed);
+        try {
+            runResult.getCompletedTests().remove(firstTest);
+            fail("UnsupportedOperationException not thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(TestStatus.FAILURE, runResult.getTestResults().get(firstTest).getStatus());
+        assertEquals("trace", runResult.getTestResults().get(firstTest).getStackTrace());
+        assertEquals(TestStatus.INCOMPLETE, runResult.getTestResults().get(
+                new TestIdentifier("FooTest", "test999")).getStatus());
+        int i = 0;
+        for (Map.Entry<TestIdentifier, TestResult> entry :
+                runResult.getTestResults().entrySet()) {
+            assertEquals("test" + i, entry.getKey().getTestName());
+            i++;
+        }
+        assertEquals(1000, i);
+    }
+
+    /**
+     * Test that stack traces are stored and retrieved when spilled to a temporary file, including
+     * duplicated traces, until the results are released.
+     */
+    public void testSpillStackTraces() {
+        mCollectingTestListener.setSpillStackTraces(true);
+        mCollectingTestListener.testRunStarted("run", 3);
+        Map<String, String> emptyMap = Collections.emptyMap();
+        String[] traces = new String[] {"trace1", "trace2 \u00e9", "trace1"};
+        for (int i = 0; i < traces.length; i++) {
+            TestIdentifier test = new TestIdentifier("FooTest", "test" + i);
+            mCollectingTestListener.testStarted(test);
+            mCollectingTestListener.testFailed(TestFailure.ERROR, test, traces[i]);
+            mCollectingTestListener.testEnded(test, emptyMap);
+        }
+        mCollectingTestListener.testRunEnded(0, emptyMap);
+
+        TestRunResult runResult = mCollectingTestListener.getCurrentRunResults();
+        assertEquals(3, runResult.getNumErrorTests());
+        for (int i = 0; i < traces.length; i++) {
+            TestResult result = runResult.getTestResults().get(
+                    new TestIdentifier("FooTest", "test" + i));
+            assertEquals(TestStatus.ERROR, result.getStatus());
+            assertEquals(traces[i], result.getStackTrace());
+        }
+        // spilled traces are gone once released, the other results are kept
+        runResult.release();
+        TestResult result = runResult.getTestResults().get(new TestIdentifier("FooTest", "test0"));
+        assertEquals(TestStatus.ERROR, result.getStatus());
+        assertNull(result.getStackTrace());
+    }
+
     /**
      * Injects a single test run with 1 passed test into the {@link CollectingTestListener} under
      * test
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Unit tests for {@link TestResultStore}.
+ */
+public class TestResultStoreTest extends TestCase {
+
+    private File mTmpDir;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("result_store_test");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that {@link TestResultStore#sweepStaleSpillDirs(File)} only deletes old spill
+     * directories that are not locked.
+     */
+    public void testSweepStaleSpillDirs() throws IOException {
+        File stale = createSpillDir("stale", true);
+        File noLock = createSpillDir("nolock", false);
+        File locked = createSpillDir("locked", true);
+        File recent = createSpillDir("recent", true);
+        recent.setLastModified(System.currentTimeMillis());
+        File other = new File(mTmpDir, "other");
+        assertTrue(other.mkdir());
+        other.setLastModified(0);
+
+        RandomAccessFile lockFile = new RandomAccessFile(
+                new File(locked, TestResultStore.SPILL_LOCK_FILE), "rw");
+        try {
+            lockFile.getChannel().lock();
+            TestResultStore.sweepStaleSpillDirs(mTmpDir);
+        } finally {
+            StreamUtil.close(lockFile);
+        }
+        assertFalse(stale.exists());
+        assertFalse(noLock.exists());
+        assertTrue(locked.exists());
+        assertTrue(recent.exists());
+        assertTrue(other.exists());
+    }
+
+    /**
+     * Create a spill directory containing a trace file, last modified long ago.
+     */
+    private File createSpillDir(String name, boolean withLock) throws IOException {
+        File dir = new File(mTmpDir, TestResultStore.SPILL_DIR_PREFIX + name);
+        assertTrue(dir.mkdir());
+        FileUtil.writeToFile("trace", new File(dir, "stack_traces.txt"));
+        if (withLock) {
+            FileUtil.writeToFile("", new File(dir, TestResultStore.SPILL_LOCK_FILE));
+        }
+        dir.setLastModified(0);
+        return dir;
+    }
+}
@@ -26,7 +26,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -128,6 +130,73 @@ public class XmlResultReporterTest extends TestCase {
         assertTrue(output.contains(failureTag));
     }
 
+    /**
+     * Test that streamed results are included in the report, after the summary header.
+     */
+    public void testStreamResults() throws IOException {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final TestIdentifier passedTest = new TestIdentifier("FooTest", "testPass");
+        final TestIdentifier failedTest = new TestIdentifier("FooTest", "testFail");
+        mResultReporter.setStreamResults(true);
+        mResultReporter.invocationStarted(new BuildInfo());
+        mResultReporter.testRunStarted("run", 2);
+        mResultReporter.testStarted(passedTest);
+        mResultReporter.testEnded(passedTest, emptyMap);
+        mResultReporter.testStarted(failedTest);
+        mResultReporter.testFailed(TestFailure.FAILURE, failedTest, "this is a trace");
+        mResultReporter.testEnded(failedTest, emptyMap);
+        mResultReporter.testRunEnded(3, emptyMap);
+        // results are not kept in memory
+        assertTrue(mResultReporter.getCurrentRunResults().getTestResults().isEmpty());
+        assertEquals(1, findPartialResultFiles(mReportDir).size());
+        mResultReporter.invocationEnded(1);
+        String output = getOutput();
+        assertTrue(output.contains("tests=\"2\" failures=\"1\" errors=\"0\""));
+        int propertiesIndex = output.indexOf("<properties />");
+        int passedIndex = output.indexOf("<testcase name=\"testPass\" classname=\"FooTest\"");
+        int failedIndex = output.indexOf("<testcase name=\"testFail\" classname=\"FooTest\"");
+        assertTrue(propertiesIndex >= 0);
+        assertTrue(passedIndex > propertiesIndex);
+        assertTrue(failedIndex > passedIndex);
+        assertTrue(output.contains("<failure>this is a trace</failure>"));
+        assertTrue(output.endsWith("</testsuite>"));
+        // the partial results are deleted once copied to the report
+        assertTrue(findPartialResultFiles(mReportDir).isEmpty());
+    }
+
+    /**
+     * Test that streamed results are left on disk if the invocation does not end.
+     */
+    public void testStreamResults_notEnded() throws IOException {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final TestIdentifier testId = new TestIdentifier("FooTest", "testFoo");
+        mResultReporter.setStreamResults(true);
+        mResultReporter.invocationStarted(new BuildInfo());
+        mResultReporter.testRunStarted("run", 1);
+        mResultReporter.testStarted(testId);
+        mResultReporter.testEnded(testId, emptyMap);
+        mResultReporter.testRunEnded(3, emptyMap);
+        List<File> partialFiles = findPartialResultFiles(mReportDir);
+        assertEquals(1, partialFiles.size());
+        String partialResults = FileUtil.readStringFromFile(partialFiles.get(0));
+        assertTrue(partialResults.contains("<testcase name=\"testFoo\" classname=\"FooTest\""));
+    }
+
+    /**
+     * Recursively find the partial result files in a directory.
+     */
+    private List<File> findPartialResultFiles(File dir) {
+        List<File> files = new ArrayList<File>();
+        for (File child : dir.listFiles()) {
+            if (child.isDirectory()) {
+                files.addAll(findPartialResultFiles(child));
+            } else if (child.getName().endsWith(".xml.partial")) {
+                files.add(child);
+            }
+        }
+        return files;
+    }
+
     /**
      * Gets the output produced, stripping it of extraneous whitespace characters.
      */
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link PackageInstaller}.
+ */
+public class PackageInstallerTest extends TestCase {
+
+    private static final String SERIAL = "serial";
+    private static final String CODE_PATHS =
+            "package:/system/app/Settings.apk=com.android.settings\r\n"
+            + "package:/data/app/com.foo-1.apk=com.foo\r\n"
+            + "package:/data/app/com.bar-1.apk=com.bar\r\n";
+
+    private ITestDevice mMockDevice;
+    private PackageInstaller.InstallLedger mLedger;
+    private PackageInstaller mInstaller;
+    private File mTmpDir;
+    private File mFooApk;
+    private File mBarApk;
+    /** the remote paths pushed to by the background push thread */
+    private Set<String> mPushedPaths;
+    /** the remote paths the background push thread fails to push to */
+    private Set<String> mFailedPushPaths;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.expect(mMockDevice.getIDevice()).andStubReturn(
+                EasyMock.createMock(IDevice.class));
+        mLedger = new PackageInstaller.InstallLedger();
+        mPushedPaths = Collections.synchronizedSet(new HashSet<String>());
+        mFailedPushPaths = Collections.synchronizedSet(new HashSet<String>());
+        mInstaller = new PackageInstaller(mMockDevice, mLedger) {
+            @Override
+            String getPackageName(File apkFile, String md5) {
+                return apkFile.getName().replace(".apk", "");
+            }
+
+            @Override
+            boolean pushInBackground(IDevice iDevice, File apkFile, String remotePath) {
+                if (mFailedPushPaths.contains(remotePath)) {
+                    return false;
+                }
+                mPushedPaths.add(remotePath);
+                return true;
+            }
+        };
+        mTmpDir = FileUtil.createTempDir("package_installer");
+        mFooApk = new File(mTmpDir, "com.foo.apk");
+        FileUtil.writeToFile("foo", mFooApk);
+        mBarApk = new File(mTmpDir, "com.bar.apk");
+        FileUtil.writeToFile("bar", mBarApk);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test installing apks, pushing each one before installing it.
+     */
+    public void testInstall() throws Exception {
+        setInstallExpectations(0, "Success");
+        setInstallExpectations(1, "Success");
+        setListPackagesExpectations();
+        EasyMock.replay(mMockDevice);
+        Map<File, String> packageNames = mInstaller.install(Arrays.asList(mFooApk, mBarApk));
+        assertEquals("com.foo", packageNames.get(mFooApk));
+        assertEquals("com.bar", packageNames.get(mBarApk));
+        EasyMock.verify(mMockDevice);
+        assertEquals(new HashSet<String>(Arrays.asList(getRemotePath(0), getRemotePath(1))),
+                mPushedPaths);
+    }
+
+    /**
+     * Test that a push that failed on the background thread is retried with the device.
+     */
+    public void testInstall_pushRetried() throws Exception {
+        mFailedPushPaths.add(getRemotePath(0));
+        EasyMock.expect(mMockDevice.pushFile(mFooApk, getRemotePath(0))).andReturn(true);
+        setInstallExpectations(0, "Success");
+        setListPackagesExpectations();
+        EasyMock.replay(mMockDevice);
+        mInstaller.install(Arrays.asList(mFooApk));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that apks installed before with the same content are skipped.
+     */
+    public void testInstall_skipInstalled() throws Exception {
+        String fooMd5 = FileUtil.calculateMd5(mFooApk);
+        mLedger.put(SERIAL, "com.foo", fooMd5, "/data/app/com.foo-1.apk");
+        // content changed since last install
+        mLedger.put(SERIAL, "com.bar", fooMd5, "/data/app/com.bar-1.apk");
+        setListPackagesExpectations();
+        setRemoteMd5Expectations(String.format("%s  /data/app/com.foo-1.apk\r\n", fooMd5),
+                "/data/app/com.foo-1.apk");
+        setInstallExpectations(0, "Success");
+        setListPackagesExpectations();
+        EasyMock.replay(mMockDevice);
+        mInstaller.install(Arrays.asList(mFooApk, mBarApk));
+        EasyMock.verify(mMockDevice);
+        assertTrue(mLedger.contains(SERIAL, "com.bar", FileUtil.calculateMd5(mBarApk),
+                "/data/app/com.bar-1.apk"));
+    }
+
+    /**
+     * Test that apks are installed again if their package was reinstalled since.
+     */
+    public void testInstall_reinstalled() throws Exception {
+        mLedger.put(SERIAL, "com.foo", FileUtil.calculateMd5(mFooApk), "/data/app/com.foo-2.apk");
+        setListPackagesExpectations();
+        setInstallExpectations(0, "Success");
+        setListPackagesExpectations();
+        EasyMock.replay(mMockDevice);
+        mInstaller.install(Arrays.asList(mFooApk));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that apks are installed again if another build of their package was installed since at
+     * the recorded path.
+     */
+    public void testInstall_replacedAtSamePath() throws Exception {
+        mLedger.put(SERIAL, "com.foo", FileUtil.calculateMd5(mFooApk), "/data/app/com.foo-1.apk");
+        setListPackagesExpectations();
+        setRemoteMd5Expectations(String.format("%s  /data/app/com.foo-1.apk\r\n",
+                FileUtil.calculateMd5(mBarApk)), "/data/app/com.foo-1.apk");
+        setInstallExpectations(0, "Success");
+        setListPackagesExpectations();
+        EasyMock.replay(mMockDevice);
+        mInstaller.install(Arrays.asList(mFooApk));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that a failed install throws {@link TargetSetupError}, and that the apks pushed but not
+     * installed are deleted.
+     */
+    public void testInstall_failed() throws Exception {
+        setInstallExpectations(0, "Failure [INSTALL_FAILED_OLDER_SDK]");
+        // the apk that failed to install is deleted by the install command
+        EasyMock.expect(mMockDevice.executeShellCommand(String.format("rm -f \"%s\"",
+                getRemotePath(1)))).andReturn("");
+        EasyMock.replay(mMockDevice);
+        try {
+            mInstaller.install(Arrays.asList(mFooApk, mBarApk));
+            fail("TargetSetupError not thrown");
+        } catch (TargetSetupError e) {
+            assertTrue(e.getMessage().contains("INSTALL_FAILED_OLDER_SDK"));
+        }
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test uninstalling packages in a single command.
+     */
+    public void testUninstall() throws Exception {
+        mMockDevice.executeShellCommand(
+                EasyMock.eq("for p in 'com.foo' 'com.bar' 'com.baz'; do "
+                        + "echo \"$p $(pm uninstall $p)\"; done"),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt(),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new ShellAnswer(
+                "com.foo Success\r\ncom.bar Failure [DELETE_FAILED_INTERNAL_ERROR]\r\n"));
+        EasyMock.replay(mMockDevice);
+        Map<String, String> failures = mInstaller.uninstall(Arrays.asList("com.foo", "com.bar",
+                "com.baz"));
+        assertEquals(2, failures.size());
+        assertEquals("DELETE_FAILED_INTERNAL_ERROR", failures.get("com.bar"));
+        assertNotNull(failures.get("com.baz"));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that uninstalling many packages is split in several commands, that each fit in the max
+     * shell command length.
+     */
+    public void testUninstall_split() throws Exception {
+        final List<String> packageNames = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            packageNames.add(String.format("com.android.foo%d", i));
+        }
+        final List<String> commands = new ArrayList<String>();
+        mMockDevice.executeShellCommand((String)EasyMock.anyObject(),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyInt(),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                String command = (String)EasyMock.getCurrentArguments()[0];
+                commands.add(command);
+                // answer for the packages of this command
+                StringBuilder output = new StringBuilder();
+                for (String packageName : packageNames) {
+                    if (command.contains(String.format("'%s'", packageName))) {
+                        output.append(packageName).append(" Success\r\n");
+                    }
+                }
+                return new ShellAnswer(output.toString()).answer();
+            }
+        }).atLeastOnce();
+        EasyMock.replay(mMockDevice);
+        assertTrue(mInstaller.uninstall(packageNames).isEmpty());
+        EasyMock.verify(mMockDevice);
+        assertTrue(commands.size() > 1);
+        for (String command : commands) {
+            assertTrue(command.length() <= PackageInstaller.MAX_SHELL_CMD_LENGTH);
+        }
+    }
+
+    /**
+     * Test that {@link PackageInstaller#buildCommands(String, java.util.Collection, String)}
+     * passes all the arguments in order.
+     */
+    public void testBuildCommands() {
+        List<String> args = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            args.add(String.format("\"/data/local/tmp/tf_install_%d.apk\"", i));
+        }
+        List<String> commands = PackageInstaller.buildCommands("rm -f", args, "");
+        assertTrue(commands.size() > 1);
+        StringBuilder joinedArgs = new StringBuilder();
+        for (String command : commands) {
+            assertTrue(command.length() <= PackageInstaller.MAX_SHELL_CMD_LENGTH);
+            assertTrue(command.startsWith("rm -f "));
+            joinedArgs.append(command.substring("rm -f".length()));
+        }
+        StringBuilder expectedArgs = new StringBuilder();
+        for (String arg : args) {
+            expectedArgs.append(' ').append(arg);
+        }
+        assertEquals(expectedArgs.toString(), joinedArgs.toString());
+        assertTrue(PackageInstaller.buildCommands("rm -f", new ArrayList<String>(), "")
+                .isEmpty());
+    }
+
+    private static String getRemotePath(int index) {
+        return String.format("%s/tf_install_%d.apk", PackageInstaller.REMOTE_DIR, index);
+    }
+
+    private void setInstallExpectations(int index, String output) throws Exception {
+        String remotePath = getRemotePath(index);
+        mMockDevice.executeShellCommand(
+                EasyMock.eq(String.format("pm install -r \"%s\"; rm -f \"%s\"", remotePath,
+                        remotePath)), (IShellOutputReceiver)EasyMock.anyObject(),
+                EasyMock.anyInt(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new ShellAnswer(output));
+    }
+
+    private void setRemoteMd5Expectations(String output, String... remotePaths)
+            throws Exception {
+        StringBuilder command = new StringBuilder("for f in");
+        for (String remotePath : remotePaths) {
+            command.append(String.format(" '%s'", remotePath));
+        }
+        command.append("; do md5sum \"$f\" 2>/dev/null || md5 \"$f\"; done");
+        EasyMock.expect(mMockDevice.executeShellCommand(command.toString())).andReturn(output);
+    }
+
+    private void setListPackagesExpectations() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand("pm list packages -f")).andReturn(
+                CODE_PATHS);
+    }
+
+    /**
+     * Answers a shell command with the given output.
+     */
+    private static class ShellAnswer implements IAnswer<Object> {
+        private final String mOutput;
+
+        ShellAnswer(String output) {
+            mOutput = output;
+        }
+
+        @Override
+        public Object answer() {
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+            byte[] data = mOutput.getBytes();
+            receiver.addOutput(data, 0, data.length);
+            receiver.flush();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.Log;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogRegistry;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.StubTestRunListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+
+/**
+ * Java app that measures the throughput and memory allocated by {@link GTestResultParser} when
+ * parsing gtest output.
+ * <p/>
+ * Usage: GTestResultParserBenchmarkApp [path to recorded gtest output | size in MB]
+ * <p/>
+ * When no recorded output is given, parses generated output of the given size (256 MB by
+ * default), made of passing tests, failing tests with a few lines of output each, and
+ * informational lines.
+ */
+public class GTestResultParserBenchmarkApp {
+
+    /** size of the chunks of output passed to the parser, similar to the adb shell chunks */
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int DEFAULT_SIZE_MB = 256;
+    private static final int TESTS_PER_BLOCK = 100;
+
+    /**
+     * A listener that counts reported tests.
+     */
+    private static class CountingListener extends StubTestRunListener {
+        long mTests = 0;
+        long mFailures = 0;
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            mTests++;
+        }
+
+        @Override
+        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+            mFailures++;
+        }
+    }
+
+    /**
+     * Generates gtest output of a given size.
+     */
+    private static class GeneratedOutput extends InputStream {
+        private final byte[] mBlock;
+        private final byte[] mEnd;
+        private final long mNumBlocks;
+        private final byte[] mStart;
+        private byte[] mCurrent;
+        private int mPosition = 0;
+        private long mBlocksRead = 0;
+
+        GeneratedOutput(long size) throws IOException {
+            StringBuilder block = new StringBuilder();
+            for (int i = 0; i < TESTS_PER_BLOCK; i++) {
+                block.append("[ RUN      ] BenchmarkTest.Test").append(i).append("\r\n");
+                if (i % 10 == 0) {
+                    for (int j = 0; j < 5; j++) {
+                        block.append("external/foo/foo_test.cpp:").append(j * 10 + 20);
+                        block.append(": Failure\r\nValue of: bar\r\n  Actual: 1\r\nExpected: 2\r\n");
+                    }
+                    block.append("[  FAILED  ] BenchmarkTest.Test").append(i);
+                    block.append(" (3 ms)\r\n");
+                } else {
+                    block.append("[       OK ] BenchmarkTest.Test").append(i).append(" (1 ms)\r\n");
+                }
+            }
+            block.append("[----------] ").append(TESTS_PER_BLOCK);
+            block.append(" tests from BenchmarkTest (30 ms total)\r\n\r\n");
+            mBlock = block.toString().getBytes("ISO-8859-1");
+            mNumBlocks = Math.max(1, size / mBlock.length);
+            mStart = String.format("[==========] Running %d tests from 1 test case.\r\n"
+                    + "[----------] Global test environment set-up.\r\n",
+                    mNumBlocks * TESTS_PER_BLOCK).getBytes("ISO-8859-1");
+            mEnd = ("[----------] Global test environment tear-down\r\n"
+                    + "[==========] tests ran. (1000 ms total)\r\n").getBytes("ISO-8859-1");
+            mCurrent = mStart;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0];
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int read = 0;
+            while (read < length && mCurrent != null) {
+                int count = Math.min(length - read, mCurrent.length - mPosition);
+                System.arraycopy(mCurrent, mPosition, buffer, offset + read, count);
+                read += count;
+                mPosition += count;
+                if (mPosition == mCurrent.length) {
+                    mPosition = 0;
+                    if (mCurrent == mEnd) {
+                        mCurrent = null;
+                    } else if (mBlocksRead < mNumBlocks) {
+                        mBlocksRead++;
+                        mCurrent = mBlock;
+                    } else {
+                        mCurrent = mEnd;
+                    }
+                }
+            }
+            return read == 0 && length > 0 ? -1 : read;
+        }
+    }
+
+    /**
+     * Parse all the given output in chunks, and print the results.
+     */
+    private void runBenchmark(String name, InputStream output) throws IOException {
+        CountingListener listener = new CountingListener();
+        GTestResultParser parser = new GTestResultParser("benchmark", listener);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long startBytes = getAllocatedBytes(threadBean);
+        long startTime = System.nanoTime();
+        long totalBytes = 0;
+        int read;
+        while ((read = output.read(chunk, 0, chunk.length)) > 0) {
+            parser.addOutput(chunk, 0, read);
+            totalBytes += read;
+        }
+        parser.flush();
+        long elapsedNs = System.nanoTime() - startTime;
+        long allocatedBytes = getAllocatedBytes(threadBean) - startBytes;
+        double totalMb = totalBytes / (1024.0 * 1024.0);
+        System.out.printf("%s: parsed %.1f MB, %d tests, %d failures\n", name, totalMb,
+                listener.mTests, listener.mFailures);
+        System.out.printf("  %8.1f MB/s  %10.1f bytes allocated per MB of output\n",
+                totalMb / (elapsedNs / 1e9),
+                startBytes < 0 ? Double.NaN : allocatedBytes / totalMb);
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread, or -1 if not supported by the VM.
+     */
+    private static long getAllocatedBytes(ThreadMXBean threadBean) {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        GTestResultParserBenchmarkApp app = new GTestResultParserBenchmarkApp();
+        // log like a default invocation, where verbose messages are filtered
+        Log.setLogOutput(LogRegistry.getLogRegistry());
+        CLog.setLogRegistry(LogRegistry.getLogRegistry());
+        if (args.length > 0 && new File(args[0]).isFile()) {
+            // warm up on generated output, then parse the recorded output
+            app.runBenchmark("warmup", new GeneratedOutput(32 * 1024 * 1024));
+            InputStream output = new FileInputStream(args[0]);
+            try {
+                app.runBenchmark(args[0], output);
+            } finally {
+                output.close();
+            }
+            return;
+        }
+        long sizeMb = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_SIZE_MB;
+        app.runBenchmark("warmup", new GeneratedOutput(32 * 1024 * 1024));
+        app.runBenchmark("generated", new GeneratedOutput(sizeMb * 1024 * 1024));
+    }
+}
@@ -21,6 +21,7 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 
 import junit.framework.TestCase;
 
+import org.easymock.Capture;
 import org.easymock.EasyMock;
 
 import java.io.BufferedReader;
@@ -244,4 +245,74 @@ public class GTestResultParserTest extends TestCase {
         EasyMock.verify(mockRunListener);
     }
 
+    /**
+     * Tests the parser for a simple test run output, received as raw shell output split at
+     * arbitrary points.
+     */
+    @SuppressWarnings("unchecked")
+    public void testParseSimpleFile_addOutput() throws Exception {
+        StringBuilder output = new StringBuilder();
+        for (String line : readInFile(GTEST_OUTPUT_FILE_1)) {
+            output.append(line);
+            output.append("\r\n");
+        }
+        byte[] data = output.toString().getBytes("ISO-8859-1");
+        ITestRunListener mockRunListener = EasyMock.createMock(ITestRunListener.class);
+        mockRunListener.testRunStarted(TEST_MODULE_NAME, 11);
+        // 11 passing test cases in this run
+        for (int i=0; i<11; ++i) {
+            mockRunListener.testStarted((TestIdentifier)EasyMock.anyObject());
+            mockRunListener.testEnded((TestIdentifier)EasyMock.anyObject(),
+                    (Map<String, String>)EasyMock.anyObject());
+        }
+        mockRunListener.testRunEnded(3, EMPTY_MAP);  // time
+        EasyMock.replay(mockRunListener);
+        GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME, mockRunListener);
+        for (int i = 0; i < data.length; i += 17) {
+            resultParser.addOutput(data, i, Math.min(17, data.length - i));
+        }
+        resultParser.flush();
+        EasyMock.verify(mockRunListener);
+    }
+
+    /**
+     * Tests that the output kept for a failed test is bounded, keeping its start and its end.
+     */
+    @SuppressWarnings("unchecked")
+    public void testParse_longTestOutput() throws Exception {
+        StringBuilder output = new StringBuilder();
+        output.append("[==========] Running 1 test from 1 test case.\n");
+        output.append("[ RUN      ] FooTest.Bar\n");
+        for (int i = 0; i < 1000; i++) {
+            output.append("output line ");
+            output.append(i);
+            output.append('\n');
+        }
+        output.append("[  FAILED  ] FooTest.Bar (5 ms)\n");
+        output.append("[==========] 1 test from 1 test case ran. (6 ms total)\n");
+        byte[] data = output.toString().getBytes("ISO-8859-1");
+
+        TestIdentifier testId = new TestIdentifier("FooTest", "Bar");
+        Capture<String> trace = new Capture<String>();
+        ITestRunListener mockRunListener = EasyMock.createMock(ITestRunListener.class);
+        mockRunListener.testRunStarted(TEST_MODULE_NAME, 1);
+        mockRunListener.testStarted(testId);
+        mockRunListener.testFailed(EasyMock.eq(ITestRunListener.TestFailure.FAILURE),
+                EasyMock.eq(testId), EasyMock.capture(trace));
+        mockRunListener.testEnded(EasyMock.eq(testId),
+                (Map<String, String>)EasyMock.anyObject());
+        mockRunListener.testRunEnded(6, EMPTY_MAP);
+        EasyMock.replay(mockRunListener);
+        GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME, mockRunListener);
+        resultParser.setMaxTestOutputSize(400);
+        resultParser.addOutput(data, 0, data.length);
+        resultParser.flush();
+        EasyMock.verify(mockRunListener);
+
+        String testOutput = trace.getValue();
+        assertTrue(testOutput, testOutput.startsWith("output line 0\r\noutput line 1\r\n"));
+        assertTrue(testOutput, testOutput.endsWith("output line 998\r\noutput line 999"));
+        assertTrue(testOutput, testOutput.contains("lines truncated"));
+        assertTrue(testOutput, testOutput.length() < 450);
+    }
 }
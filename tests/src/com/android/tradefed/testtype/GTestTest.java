@@ -22,11 +22,18 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.MockFileUtil;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.StubTestInvocationListener;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Unit tests for {@link GTestTest}.
@@ -79,9 +86,10 @@ public class GTestTest extends TestCase {
         final String test2 = "test2";
 
         MockFileUtil.setMockDirContents(mMockITestDevice, nativeTestPath, test1, test2);
-        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
-                .andReturn("")
-                .times(2);
+        // expect a single chmod for both binaries
+        EasyMock.expect(mMockITestDevice.executeShellCommand(String.format(
+                "chmod 755 %s/%s %s/%s", nativeTestPath, test1, nativeTestPath, test2)))
+                .andReturn("");
         mMockITestDevice.executeShellCommand(EasyMock.contains(test1),
                 EasyMock.same(mMockReceiver), EasyMock.anyInt(), EasyMock.anyInt());
         mMockITestDevice.executeShellCommand(EasyMock.contains(test2),
@@ -192,4 +200,132 @@ public class GTestTest extends TestCase {
         String filter = String.format("%s-*.%s", posFilter, negFilter);
         doTestFilter(filter);
     }
+
+    /**
+     * Test that {@link GTest#split()} does not shard the test by default.
+     */
+    public void testSplit_notSharded() {
+        assertNull(mGTest.split());
+        mGTest.setNumShards(1);
+        assertNull(mGTest.split());
+    }
+
+    /**
+     * Test that when sharded, gtest binaries are distributed among shards.
+     */
+    public void testSplit_binaries() throws DeviceNotAvailableException {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        mGTest.setNumShards(2);
+        Collection<IRemoteTest> shards = mGTest.split();
+        assertEquals(2, shards.size());
+        Iterator<IRemoteTest> shardIterator = shards.iterator();
+        GTest shard1 = (GTest)shardIterator.next();
+        GTest shard2 = (GTest)shardIterator.next();
+        assertEquals(0, shard1.getShardIndex());
+        assertEquals(1, shard2.getShardIndex());
+
+        // the first shard runs the first and third binaries
+        MockFileUtil.setMockDirContents(mMockITestDevice, nativeTestPath, "test3", "test2",
+                "test1");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(String.format(
+                "chmod 755 %s/test1 %s/test3", nativeTestPath, nativeTestPath))).andReturn("");
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test1"),
+                EasyMock.isA(IShellOutputReceiver.class), EasyMock.anyInt(), EasyMock.anyInt());
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test3"),
+                EasyMock.isA(IShellOutputReceiver.class), EasyMock.anyInt(), EasyMock.anyInt());
+        replayMocks();
+        shard1.setDevice(mMockITestDevice);
+        shard1.run(mMockInvocationListener);
+        verifyMocks();
+
+        // the second shard runs the second binary
+        EasyMock.reset(mMockInvocationListener, mMockITestDevice, mMockReceiver);
+        EasyMock.expect(mMockITestDevice.getSerialNumber()).andStubReturn("serial");
+        MockFileUtil.setMockDirContents(mMockITestDevice, nativeTestPath, "test3", "test2",
+                "test1");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(String.format(
+                "chmod 755 %s/test2", nativeTestPath))).andReturn("");
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test2"),
+                EasyMock.isA(IShellOutputReceiver.class), EasyMock.anyInt(), EasyMock.anyInt());
+        replayMocks();
+        shard2.setDevice(mMockITestDevice);
+        shard2.run(mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /**
+     * Test that when sharding test cases, every shard runs every binary using the gtest sharding
+     * environment variables.
+     */
+    public void testSplit_testCases() throws DeviceNotAvailableException {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        mGTest.setNumShards(3);
+        mGTest.setShardTestCases(true);
+        List<IRemoteTest> shards = new ArrayList<IRemoteTest>(mGTest.split());
+        assertEquals(3, shards.size());
+        GTest shard = (GTest)shards.get(1);
+
+        MockFileUtil.setMockDirContents(mMockITestDevice, nativeTestPath, "test1", "test2");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("");
+        mMockITestDevice.executeShellCommand(
+                EasyMock.startsWith("GTEST_TOTAL_SHARDS=3 GTEST_SHARD_INDEX=1 "
+                        + nativeTestPath + "/test1 "),
+                EasyMock.isA(IShellOutputReceiver.class), EasyMock.anyInt(), EasyMock.anyInt());
+        mMockITestDevice.executeShellCommand(
+                EasyMock.startsWith("GTEST_TOTAL_SHARDS=3 GTEST_SHARD_INDEX=1 "
+                        + nativeTestPath + "/test2 "),
+                EasyMock.isA(IShellOutputReceiver.class), EasyMock.anyInt(), EasyMock.anyInt());
+        replayMocks();
+        shard.setDevice(mMockITestDevice);
+        shard.run(mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /**
+     * Test running gtest binaries in parallel, and that the results of each binary are reported
+     * to the listener as a whole.
+     */
+    public void testRun_parallel() throws DeviceNotAvailableException {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        GTest gtest = new GTest() {
+            @Override
+            IShellOutputReceiver createResultParser(String runName, ITestRunListener listener) {
+                // simulate parsed output, reported to the listener while other binaries run
+                listener.testRunStarted(runName, 0);
+                Thread.yield();
+                listener.testRunEnded(0, Collections.<String, String>emptyMap());
+                return mMockReceiver;
+            }
+        };
+        gtest.setDevice(mMockITestDevice);
+        gtest.setMaxParallelBinaries(3);
+        MockFileUtil.setMockDirContents(mMockITestDevice, nativeTestPath, "test1", "test2",
+                "test3", "test4");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("");
+        for (int i = 1; i <= 4; i++) {
+            mMockITestDevice.executeShellCommand(EasyMock.contains("test" + i),
+                    EasyMock.same(mMockReceiver), EasyMock.anyInt(), EasyMock.anyInt());
+        }
+        replayMocks();
+        gtest.run(new StubTestInvocationListener() {
+            @Override
+            public void testRunStarted(String runName, int testCount) {
+                events.add("started " + runName);
+            }
+
+            @Override
+            public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+                events.add("ended");
+            }
+        });
+        verifyMocks();
+        assertEquals(8, events.size());
+        for (int i = 0; i < events.size(); i += 2) {
+            assertTrue(events.get(i).startsWith("started test"));
+            assertEquals("ended", events.get(i + 1));
+        }
+    }
 }
@@ -20,6 +20,7 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.StubTestInvocationListener;
 
 import junit.framework.TestCase;
 
@@ -29,12 +30,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Unit tests for {@link InstrumentationListTest}.
  */
 public class InstrumentationListTestTest extends TestCase {
 
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
     /** The {@link InstrumentationListTest} under test, with all dependencies mocked out */
     private InstrumentationListTest mInstrumentationListTest;
 
@@ -139,6 +143,121 @@ public class InstrumentationListTestTest extends TestCase {
         EasyMock.verify(mMockListener, mMockTestDevice);
     }
 
+    /**
+     * Test batch mode runs the tests of each class with a single instrumentation.
+     */
+    public void testRun_batch() throws DeviceNotAvailableException {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        for (int i = 0; i < 3; i++) {
+            tests.add(new TestIdentifier("FooTest", "test" + i));
+        }
+        tests.add(new TestIdentifier("BarTest", "test0"));
+        RecordingListener listener = new RecordingListener();
+        InstrumentationListTest listTest = createBatchListTest(tests, null);
+        listTest.run(listener);
+        assertEquals(tests, listener.mEndedTests);
+        assertEquals(2, listTest.getLaunchCount());
+    }
+
+    /**
+     * Test batch mode when a test crashes the instrumentation. Expect the tests that did not run
+     * to be split until the crashing test is run alone.
+     */
+    public void testRun_batchCrash() throws DeviceNotAvailableException {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        for (int i = 0; i < 4; i++) {
+            tests.add(new TestIdentifier("FooTest", "test" + i));
+        }
+        RecordingListener listener = new RecordingListener();
+        InstrumentationListTest listTest = createBatchListTest(tests, tests.get(1));
+        listTest.run(listener);
+        // the crashing test is reported once, as failed
+        assertEquals(tests.get(0), listener.mEndedTests.get(0));
+        assertEquals(tests.get(1), listener.mEndedTests.get(1));
+        assertEquals(tests.subList(2, 4), listener.mEndedTests.subList(2, 4));
+        assertEquals(1, listener.mFailedTests.size());
+        // one batch of 4, the crashing test twice alone, then the batch of the last 2
+        assertEquals(2 + InstrumentationListTest.FAILED_RUN_TEST_ATTEMPTS,
+                listTest.getLaunchCount());
+    }
+
+    /**
+     * Test batch mode splits the tests of a class whose names are too long to be given to a single
+     * instrumentation.
+     */
+    public void testRun_batchLongNames() throws DeviceNotAvailableException {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        for (int i = 0; i < 100; i++) {
+            tests.add(new TestIdentifier("com.android.foo.FooTest", "testSomething" + i));
+        }
+        RecordingListener listener = new RecordingListener();
+        InstrumentationListTest listTest = createBatchListTest(tests, null);
+        listTest.run(listener);
+        assertEquals(tests, listener.mEndedTests);
+        int expectedBatches = InstrumentationTest.splitClassNames(
+                InstrumentationTest.getMethodArgNames(tests)).size();
+        assertTrue(expectedBatches > 1);
+        assertEquals(expectedBatches, listTest.getLaunchCount());
+    }
+
+    /**
+     * Create a {@link InstrumentationListTest} in batch mode, that runs tests until
+     * <var>crashingTest</var> is started.
+     */
+    private InstrumentationListTest createBatchListTest(Collection<TestIdentifier> tests,
+            final TestIdentifier crashingTest) {
+        InstrumentationListTest listTest = new InstrumentationListTest("com.foo", "foo", tests) {
+            @Override
+            InstrumentationTest createInstrumentationTest() {
+                return new InstrumentationTest() {
+                    @Override
+                    public void run(ITestInvocationListener listener) {
+                        Collection<TestIdentifier> testsToRun = getTestMethods();
+                        if (testsToRun == null) {
+                            testsToRun = Collections.singletonList(
+                                    new TestIdentifier(getClassName(), getMethodName()));
+                        } else {
+                            // the batch fits in the arguments of one instrumentation
+                            assertEquals(1, InstrumentationTest.splitClassNames(
+                                    InstrumentationTest.getMethodArgNames(testsToRun)).size());
+                        }
+                        listener.testRunStarted("com.foo", testsToRun.size());
+                        for (TestIdentifier test : testsToRun) {
+                            listener.testStarted(test);
+                            if (test.equals(crashingTest)) {
+                                listener.testRunFailed("crash");
+                                break;
+                            }
+                            listener.testEnded(test, EMPTY_MAP);
+                        }
+                        listener.testRunEnded(0, EMPTY_MAP);
+                    }
+                };
+            }
+        };
+        listTest.setDevice(mMockTestDevice);
+        listTest.setBatchMode(true);
+        return listTest;
+    }
+
+    /**
+     * A listener that records the tests that ended and failed.
+     */
+    private static class RecordingListener extends StubTestInvocationListener {
+        final List<TestIdentifier> mEndedTests = new ArrayList<TestIdentifier>();
+        final List<TestIdentifier> mFailedTests = new ArrayList<TestIdentifier>();
+
+        @Override
+        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+            mFailedTests.add(test);
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            mEndedTests.add(test);
+        }
+    }
+
     /**
      * Test that IllegalArgumentException is thrown when attempting run without setting device.
      */
@@ -21,16 +21,25 @@ import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Unit tests for {@link InstrumentationTest}
@@ -45,6 +54,7 @@ public class InstrumentationTestTest extends TestCase {
     private static final String RUN_ERROR_MSG = "error";
     private static final Map<String, String> EMPTY_STRING_MAP = Collections.emptyMap();
     private static final int COLLECT_TESTS_SHELL_TIMEOUT = 1;
+    private static final String APK_MD5 = "0123456789abcdef0123456789abcdef";
 
     /** The {@link InstrumentationTest} under test, with all dependencies mocked out */
     private InstrumentationTest mInstrumentationTest;
@@ -374,6 +384,357 @@ public class InstrumentationTestTest extends TestCase {
         mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
     }
 
+    /**
+     * Test that the collection of tests is skipped when the list of tests is cached.
+     */
+    public void testRun_testListCache() throws Exception {
+        File cacheDir = FileUtil.createTempDir("test_list_cache");
+        try {
+            TestListCache cache = setTestListCacheExpectations(cacheDir);
+            RunTestAnswer runAnswer = new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                    listener.testStarted(TEST1);
+                    listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                    listener.testStarted(TEST2);
+                    listener.testEnded(TEST2, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            };
+            // expect a single run, and no log only run
+            setRunTestExpectations(runAnswer);
+            mMockListener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+            mMockListener.testStarted(TEST1);
+            mMockListener.testEnded(TEST1, EMPTY_STRING_MAP);
+            mMockListener.testStarted(TEST2);
+            mMockListener.testEnded(TEST2, EMPTY_STRING_MAP);
+            mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
+
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            mInstrumentationTest.run(mMockListener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            assertEquals(2, cache.get(getTestListCacheKey()).size());
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    /**
+     * Test that a cached list of tests that does not match the tests of a complete run is
+     * updated, and that the cached tests that do not exist are not rerun.
+     */
+    public void testRun_testListCacheStale() throws Exception {
+        File cacheDir = FileUtil.createTempDir("test_list_cache");
+        try {
+            TestListCache cache = setTestListCacheExpectations(cacheDir);
+            RunTestAnswer runAnswer = new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+                    listener.testStarted(TEST1);
+                    listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            };
+            setRunTestExpectations(runAnswer);
+            mMockListener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+            mMockListener.testStarted(TEST1);
+            mMockListener.testEnded(TEST1, EMPTY_STRING_MAP);
+            mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
+
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            mInstrumentationTest.run(mMockListener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            assertEquals(Collections.singleton(TEST1),
+                    new HashSet<TestIdentifier>(cache.get(getTestListCacheKey())));
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    /**
+     * Test that an empty list of tests is neither used from the cache nor cached.
+     */
+    public void testRun_testListCacheEmpty() throws Exception {
+        File cacheDir = FileUtil.createTempDir("test_list_cache");
+        try {
+            TestListCache cache = setTestListCacheExpectations(cacheDir);
+            cache.put(getTestListCacheKey(), Collections.<TestIdentifier>emptyList());
+            // expect the tests to be collected
+            mMockRemoteRunner.setLogOnly(true);
+            mMockRemoteRunner.addInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG,
+                    Long.toString(mInstrumentationTest.getTestDelay()));
+            mMockRemoteRunner.setMaxtimeToOutputResponse(COLLECT_TESTS_SHELL_TIMEOUT);
+            setCollectTestsExpectations(new CollectTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 0);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            mMockRemoteRunner.setLogOnly(false);
+            mMockRemoteRunner.removeInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG);
+            mMockRemoteRunner.setMaxtimeToOutputResponse(0);
+
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            mInstrumentationTest.run(mMockListener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            assertTrue(cache.get(getTestListCacheKey()).isEmpty());
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    /**
+     * Set EasyMock expectations for a run in rerun mode, with TEST1 and TEST2 in the cached list
+     * of tests.
+     *
+     * @return the {@link TestListCache}
+     */
+    private TestListCache setTestListCacheExpectations(File cacheDir)
+            throws DeviceNotAvailableException {
+        mInstrumentationTest.setRerunMode(true);
+        mInstrumentationTest.setTestListCacheDir(cacheDir);
+        EasyMock.expect(mMockTestDevice.executeShellCommand("pm path " + TEST_PACKAGE_VALUE))
+                .andStubReturn("package:/data/app/com.foo-1.apk\r\n");
+        EasyMock.expect(mMockTestDevice.executeShellCommand(
+                "md5sum /data/app/com.foo-1.apk 2>/dev/null || md5 /data/app/com.foo-1.apk"))
+                .andStubReturn(APK_MD5 + "  /data/app/com.foo-1.apk\r\n");
+        TestListCache cache = new TestListCache(cacheDir);
+        cache.put(getTestListCacheKey(), Arrays.asList(TEST1, TEST2));
+        return cache;
+    }
+
+    private String getTestListCacheKey() {
+        return TestListCache.createKey(APK_MD5, TEST_PACKAGE_VALUE, TEST_RUNNER_VALUE, null, null,
+                null, null, "{}");
+    }
+
+    /**
+     * Test that {@link InstrumentationTest#split()} distributes test classes by their recorded
+     * time.
+     */
+    public void testSplit() throws Exception {
+        File tmpDir = FileUtil.createTempDir("timing_history");
+        try {
+            List<InstrumentationTest> shards = splitWithHistory(tmpDir);
+            assertEquals(2, shards.size());
+            assertEquals(Collections.singleton("FooTest"), shards.get(0).getShardClasses());
+            assertEquals(new HashSet<String>(Arrays.asList("BarTest", "BazTest")),
+                    shards.get(1).getShardClasses());
+            // classes without history run in the shortest shard
+            assertTrue(shards.get(0).isRunUnplannedClasses());
+            assertFalse(shards.get(1).isRunUnplannedClasses());
+            assertEquals(TEST_RUNNER_VALUE, shards.get(1).getRunnerName());
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /**
+     * Test that {@link InstrumentationTest#split()} does not shard without timing history.
+     */
+    public void testSplit_noHistory() throws Exception {
+        File tmpDir = FileUtil.createTempDir("timing_history");
+        try {
+            mInstrumentationTest.setRerunMode(true);
+            mInstrumentationTest.setNumShards(2);
+            assertNull(mInstrumentationTest.split());
+            mInstrumentationTest.setTimingHistoryFile(new File(tmpDir, "history.txt"));
+            assertNull(mInstrumentationTest.split());
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /**
+     * Test that a shard only runs the tests of its classes.
+     */
+    public void testRun_shard() throws Exception {
+        File tmpDir = FileUtil.createTempDir("timing_history");
+        try {
+            InstrumentationTest shard = splitWithHistory(tmpDir).get(1);
+            final TestIdentifier barTest = new TestIdentifier("BarTest", "test1");
+            final TestIdentifier fooTest = new TestIdentifier("FooTest", "test1");
+            final TestIdentifier newTest = new TestIdentifier("NewTest", "test1");
+            mMockRemoteRunner.setLogOnly(true);
+            mMockRemoteRunner.addInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG,
+                    Long.toString(shard.getTestDelay()));
+            mMockRemoteRunner.setMaxtimeToOutputResponse(COLLECT_TESTS_SHELL_TIMEOUT);
+            setCollectTestsExpectations(new CollectTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 3);
+                    for (TestIdentifier test : new TestIdentifier[] {fooTest, barTest, newTest}) {
+                        listener.testStarted(test);
+                        listener.testEnded(test, EMPTY_STRING_MAP);
+                    }
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            mMockRemoteRunner.setLogOnly(false);
+            mMockRemoteRunner.removeInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG);
+            mMockRemoteRunner.setMaxtimeToOutputResponse(TEST_TIMEOUT);
+            // expect only the test of the shard's classes to run
+            mMockRemoteRunner.setClassNames(EasyMock.aryEq(new String[] {"BarTest"}));
+            setRunTestExpectations(new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+                    listener.testStarted(barTest);
+                    listener.testEnded(barTest, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            mMockListener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+            mMockListener.testStarted(barTest);
+            mMockListener.testEnded(barTest, EMPTY_STRING_MAP);
+            mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
+
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, mMockListener);
+            shard.setDevice(mMockTestDevice);
+            shard.run(mMockListener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice, mMockListener);
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /**
+     * Test that a shard whose class names do not fit in the arguments of one instrumentation runs
+     * them with several instrumentations.
+     */
+    public void testRun_shardLongClassNames() throws Exception {
+        File tmpDir = FileUtil.createTempDir("timing_history");
+        try {
+            Map<String, Long> durations = new HashMap<String, Long>();
+            final List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+            for (int i = 0; i < 80; i++) {
+                String className = String.format("com.android.foo.SomeFeatureTest%d", i);
+                durations.put(className, 10L);
+                tests.add(new TestIdentifier(className, "test1"));
+            }
+            InstrumentationTest shard = splitWithHistory(tmpDir, durations).get(0);
+            mMockRemoteRunner.setLogOnly(true);
+            mMockRemoteRunner.addInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG,
+                    Long.toString(shard.getTestDelay()));
+            mMockRemoteRunner.setMaxtimeToOutputResponse(COLLECT_TESTS_SHELL_TIMEOUT);
+            setCollectTestsExpectations(new CollectTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, tests.size());
+                    for (TestIdentifier test : tests) {
+                        listener.testStarted(test);
+                        listener.testEnded(test, EMPTY_STRING_MAP);
+                    }
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            mMockRemoteRunner.setLogOnly(false);
+            mMockRemoteRunner.removeInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG);
+            mMockRemoteRunner.setMaxtimeToOutputResponse(TEST_TIMEOUT);
+            // record the classes given to each instrumentation, and run their tests
+            final List<String[]> classGroups = new ArrayList<String[]>();
+            mMockRemoteRunner.setClassNames((String[])EasyMock.anyObject());
+            EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+                @Override
+                public Object answer() {
+                    classGroups.add((String[])EasyMock.getCurrentArguments()[0]);
+                    return null;
+                }
+            }).atLeastOnce();
+            setRunTestExpectations(new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    String[] classes = classGroups.get(classGroups.size() - 1);
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, classes.length);
+                    for (String className : classes) {
+                        TestIdentifier test = new TestIdentifier(className, "test1");
+                        listener.testStarted(test);
+                        listener.testEnded(test, EMPTY_STRING_MAP);
+                    }
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            EasyMock.expectLastCall().atLeastOnce();
+            CollectingTestListener listener = new CollectingTestListener();
+
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice);
+            shard.setDevice(mMockTestDevice);
+            shard.run(listener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice);
+            assertTrue(classGroups.size() > 1);
+            Set<String> ranClasses = new HashSet<String>();
+            for (String[] classes : classGroups) {
+                assertEquals(1, InstrumentationTest.splitClassNames(
+                        Arrays.asList(classes)).size());
+                ranClasses.addAll(Arrays.asList(classes));
+            }
+            assertEquals(shard.getShardClasses(), ranClasses);
+            assertEquals(ranClasses.size(), listener.getNumTotalTests());
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /**
+     * Record times for FooTest, BarTest and BazTest, and split the test under test in 2 shards.
+     */
+    private List<InstrumentationTest> splitWithHistory(File tmpDir) {
+        Map<String, Long> durations = new HashMap<String, Long>();
+        durations.put("FooTest", 100L);
+        durations.put("BarTest", 60L);
+        durations.put("BazTest", 50L);
+        return splitWithHistory(tmpDir, durations);
+    }
+
+    /**
+     * Record the given class durations, and split the test under test in 2 shards.
+     */
+    private List<InstrumentationTest> splitWithHistory(File tmpDir,
+            Map<String, Long> durations) {
+        File historyFile = new File(tmpDir, "history.txt");
+        new TestTimingHistory(historyFile).update(TEST_PACKAGE_VALUE, durations);
+        InstrumentationTest test = new InstrumentationTest() {
+            @Override
+            InstrumentationTest createShard() {
+                return new InstrumentationTest() {
+                    @Override
+                    IRemoteAndroidTestRunner createRemoteAndroidTestRunner(String packageName,
+                            String runnerName, IDevice device) {
+                        return mMockRemoteRunner;
+                    }
+                };
+            }
+        };
+        test.setPackageName(TEST_PACKAGE_VALUE);
+        test.setRunnerName(TEST_RUNNER_VALUE);
+        test.setTestTimeout(TEST_TIMEOUT);
+        test.setCollectsTestsShellTimeout(COLLECT_TESTS_SHELL_TIMEOUT);
+        test.setTimingHistoryFile(historyFile);
+        test.setNumShards(2);
+        List<InstrumentationTest> shards = new ArrayList<InstrumentationTest>();
+        for (IRemoteTest shard : test.split()) {
+            shards.add((InstrumentationTest)shard);
+        }
+        return shards;
+    }
+
     /**
      * Test that IllegalArgumentException is thrown if an invalid test size is provided.
      */
@@ -388,6 +749,33 @@ public class InstrumentationTestTest extends TestCase {
         }
     }
 
+    /**
+     * Test {@link InstrumentationTest#splitClassNames(Collection)} keeps the names in order and
+     * the comma separated names of each group within the max length.
+     */
+    public void testSplitClassNames() {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            names.add(String.format("com.android.foo.FooTest%d", i));
+        }
+        List<String[]> groups = InstrumentationTest.splitClassNames(names);
+        assertTrue(groups.size() > 1);
+        List<String> joinedNames = new ArrayList<String>();
+        for (String[] group : groups) {
+            String arg = Arrays.toString(group).replace(", ", ",");
+            // ignore the enclosing brackets
+            assertTrue(arg.length() - 2 <= InstrumentationTest.MAX_CLASS_ARG_LENGTH);
+            joinedNames.addAll(Arrays.asList(group));
+        }
+        assertEquals(names, joinedNames);
+        // a name that is too long gets its own group
+        char[] longName = new char[InstrumentationTest.MAX_CLASS_ARG_LENGTH + 1];
+        Arrays.fill(longName, 'a');
+        groups = InstrumentationTest.splitClassNames(Arrays.asList("Foo", new String(longName),
+                "Bar"));
+        assertEquals(3, groups.size());
+    }
+
     private void setCollectTestsExpectations(CollectTestAnswer collectTestAnswer)
             throws DeviceNotAvailableException {
         EasyMock.expect(
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ShardPlanner}.
+ */
+public class ShardPlannerTest extends TestCase {
+
+    /**
+     * Test that the longest items are assigned first, each to the shortest shard.
+     */
+    public void testPlan() {
+        Map<String, Long> durations = new LinkedHashMap<String, Long>();
+        durations.put("c", 4L);
+        durations.put("a", 7L);
+        durations.put("f", 2L);
+        durations.put("b", 5L);
+        durations.put("d", 3L);
+        durations.put("e", 3L);
+        ShardPlanner.Plan<String> plan = ShardPlanner.plan("test", durations, 2);
+        assertEquals(2, plan.getNumShards());
+        assertEquals(Arrays.asList("a", "d", "f"), plan.getShard(0));
+        assertEquals(Arrays.asList("b", "c", "e"), plan.getShard(1));
+        assertEquals(12, plan.getPredictedDuration(0));
+        assertEquals(12, plan.getPredictedDuration(1));
+        assertEquals(12, plan.getPredictedMakespan());
+    }
+
+    /**
+     * Test that items with the same time are distributed in turn, in iteration order.
+     */
+    public void testPlan_sameDuration() {
+        Map<String, Long> durations = new LinkedHashMap<String, Long>();
+        for (String item : new String[] {"a", "b", "c", "d", "e"}) {
+            durations.put(item, 1L);
+        }
+        ShardPlanner.Plan<String> plan = ShardPlanner.plan("test", durations, 3);
+        assertEquals(Arrays.asList("a", "d"), plan.getShard(0));
+        assertEquals(Arrays.asList("b", "e"), plan.getShard(1));
+        assertEquals(Arrays.asList("c"), plan.getShard(2));
+    }
+
+    /**
+     * Test that no more shards than items are created.
+     */
+    public void testPlan_fewItems() {
+        Map<String, Long> durations = new LinkedHashMap<String, Long>();
+        durations.put("a", 1L);
+        durations.put("b", 2L);
+        ShardPlanner.Plan<String> plan = ShardPlanner.plan("test", durations, 5);
+        assertEquals(2, plan.getNumShards());
+    }
+
+    /**
+     * Test that the actual makespan is the time of the longest shard.
+     */
+    public void testReportShardDuration() {
+        Map<String, Long> durations = new LinkedHashMap<String, Long>();
+        durations.put("a", 10L);
+        durations.put("b", 10L);
+        ShardPlanner.Plan<String> plan = ShardPlanner.plan("test", durations, 2);
+        plan.reportShardDuration(1, 15);
+        plan.reportShardDuration(0, 8);
+        assertEquals(10, plan.getPredictedMakespan());
+        assertEquals(15, plan.getActualMakespan());
+    }
+}
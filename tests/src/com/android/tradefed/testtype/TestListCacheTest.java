@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link TestListCache}.
+ */
+public class TestListCacheTest extends TestCase {
+
+    private static final String KEY = TestListCache.createKey("apkhash", "com.foo");
+
+    private File mCacheDir;
+    private TestListCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = FileUtil.createTempDir("test_list_cache");
+        // use a directory that does not exist yet
+        mCache = new TestListCache(new File(mCacheDir, "cache"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a stored list can be read back, in the same order.
+     */
+    public void testPutGet() {
+        List<TestIdentifier> tests = Arrays.asList(new TestIdentifier("FooTest", "testB"),
+                new TestIdentifier("FooTest", "testA"), new TestIdentifier("BarTest", "testC"));
+        assertNull(mCache.get(KEY));
+        mCache.put(KEY, tests);
+        assertEquals(tests, new ArrayList<TestIdentifier>(mCache.get(KEY)));
+        // a new cache using the same directory sees the list
+        assertEquals(tests, new ArrayList<TestIdentifier>(
+                new TestListCache(new File(mCacheDir, "cache")).get(KEY)));
+        mCache.remove(KEY);
+        assertNull(mCache.get(KEY));
+    }
+
+    /**
+     * Test that an empty list is cached.
+     */
+    public void testPutGet_empty() {
+        mCache.put(KEY, new ArrayList<TestIdentifier>());
+        assertTrue(mCache.get(KEY).isEmpty());
+    }
+
+    /**
+     * Test that a file that is not a test list is ignored.
+     */
+    public void testGet_invalid() throws Exception {
+        mCache.put(KEY, new ArrayList<TestIdentifier>());
+        FileUtil.writeToFile("garbage", new File(new File(mCacheDir, "cache"), KEY + ".tests"));
+        assertNull(mCache.get(KEY));
+    }
+
+    /**
+     * Test that keys depend on the apk and on all arguments.
+     */
+    public void testCreateKey() {
+        assertEquals(KEY, TestListCache.createKey("apkhash", "com.foo"));
+        assertFalse(KEY.equals(TestListCache.createKey("apkhash2", "com.foo")));
+        assertFalse(KEY.equals(TestListCache.createKey("apkhash", "com.foo", null)));
+        assertFalse(TestListCache.createKey("apkhash", "a", "b").equals(
+                TestListCache.createKey("apkhash", "ab")));
+        assertFalse(TestListCache.createKey("apkhash", (String)null).equals(
+                TestListCache.createKey("apkhash", "null")));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.StubTestInvocationListener;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.RunUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TestTimingHistory}.
+ */
+public class TestTimingHistoryTest extends TestCase {
+
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    private File mTmpDir;
+    private File mHistoryFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("timing_history");
+        mHistoryFile = new File(mTmpDir, "history.txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that recorded times are read back, averaged with previous ones, and kept per package.
+     */
+    public void testUpdate() {
+        TestTimingHistory history = new TestTimingHistory(mHistoryFile);
+        assertTrue(history.getClassDurations("com.foo").isEmpty());
+        assertNull(history.getPackageDuration("com.foo"));
+        Map<String, Long> durations = new HashMap<String, Long>();
+        durations.put("FooTest", 100L);
+        durations.put("BarTest", 50L);
+        history.update("com.foo", durations);
+        history.update("com.bar", Collections.singletonMap("FooTest", 10L));
+        // another history using the same file sees the times
+        history = new TestTimingHistory(mHistoryFile);
+        assertEquals(durations, history.getClassDurations("com.foo"));
+        assertEquals(Long.valueOf(150), history.getPackageDuration("com.foo"));
+        history.update("com.foo", Collections.singletonMap("FooTest", 200L));
+        assertEquals(Long.valueOf(150), history.getClassDurations("com.foo").get("FooTest"));
+        assertEquals(Long.valueOf(50), history.getClassDurations("com.foo").get("BarTest"));
+        assertEquals(Long.valueOf(10), history.getPackageDuration("com.bar"));
+    }
+
+    /**
+     * Test that an invalid history file is ignored, and replaced on update.
+     */
+    public void testUpdate_invalidFile() throws Exception {
+        FileUtil.writeToFile("garbage", mHistoryFile);
+        TestTimingHistory history = new TestTimingHistory(mHistoryFile);
+        assertTrue(history.getClassDurations("com.foo").isEmpty());
+        history.update("com.foo", Collections.singletonMap("FooTest", 10L));
+        assertEquals(Long.valueOf(10), history.getPackageDuration("com.foo"));
+    }
+
+    /**
+     * Test that the {@link TestTimingHistory.Recorder} records the time of each class once
+     * committed.
+     */
+    public void testRecorder() {
+        TestTimingHistory history = new TestTimingHistory(mHistoryFile);
+        TestTimingHistory.Recorder recorder = history.createRecorder(
+                new StubTestInvocationListener(), "com.foo");
+        TestIdentifier test1 = new TestIdentifier("FooTest", "test1");
+        TestIdentifier test2 = new TestIdentifier("FooTest", "test2");
+        recorder.testRunStarted("com.foo", 2);
+        recorder.testStarted(test1);
+        RunUtil.getDefault().sleep(20);
+        recorder.testEnded(test1, EMPTY_MAP);
+        recorder.testStarted(test2);
+        RunUtil.getDefault().sleep(20);
+        recorder.testEnded(test2, EMPTY_MAP);
+        recorder.testRunEnded(0, EMPTY_MAP);
+        assertTrue(history.getClassDurations("com.foo").isEmpty());
+        recorder.commit();
+        assertTrue(history.getClassDurations("com.foo").get("FooTest") >= 40);
+    }
+}
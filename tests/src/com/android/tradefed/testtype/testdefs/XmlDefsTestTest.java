@@ -19,8 +19,11 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.StubTestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.InstrumentationTest;
 import com.android.tradefed.testtype.MockInstrumentationTest;
+import com.android.tradefed.testtype.TestTimingHistory;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
@@ -30,6 +33,10 @@ import org.easymock.EasyMock;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -165,4 +172,46 @@ public class XmlDefsTestTest extends TestCase {
         }
         assertNull(mMockInstrumentationTest.getPackageName());
     }
+
+    /**
+     * Test that {@link XmlDefsTest#split()} distributes tests by their recorded time.
+     */
+    public void testSplit() throws Exception {
+        File tmpDir = FileUtil.createTempDir("xmldefs");
+        try {
+            File defsFile = new File(tmpDir, "test_defs.xml");
+            FileUtil.writeToFile("<test-defs>" + createTestDef("a") + createTestDef("b")
+                    + createTestDef("c") + "</test-defs>", defsFile);
+            File historyFile = new File(tmpDir, "history.txt");
+            TestTimingHistory history = new TestTimingHistory(historyFile);
+            history.update("a", Collections.singletonMap("ATest", 100L));
+            history.update("b", Collections.singletonMap("BTest", 60L));
+            history.update("c", Collections.singletonMap("CTest", 50L));
+
+            XmlDefsTest xmlTest = new XmlDefsTest();
+            xmlTest.addLocalFilePath(defsFile);
+            xmlTest.setTimingHistoryFile(historyFile);
+            xmlTest.setNumShards(2);
+            List<IRemoteTest> shards = new ArrayList<IRemoteTest>(xmlTest.split());
+            assertEquals(2, shards.size());
+            // a takes as long as b and c together
+            assertEquals(Arrays.asList("a"), getPackageNames((XmlDefsTest)shards.get(0)));
+            assertEquals(Arrays.asList("b", "c"), getPackageNames((XmlDefsTest)shards.get(1)));
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    private static String createTestDef(String packageName) {
+        return String.format("<test name=\"%s\" package=\"%s\" continuous=\"true\" />",
+                packageName, packageName);
+    }
+
+    private static List<String> getPackageNames(XmlDefsTest xmlTest) {
+        List<String> packageNames = new ArrayList<String>();
+        for (InstrumentationTest test : xmlTest.getTests()) {
+            packageNames.add(test.getPackageName());
+        }
+        return packageNames;
+    }
 }
@@ -17,6 +17,8 @@ package com.android.tradefed.util;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+
 /**
  *
  */
@@ -29,4 +31,20 @@ public class AaptParserTest extends TestCase {
             "uses-permission:'android.permission.INTERNET'");
         assertEquals("com.android.foo", p.getPackageName());
     }
+
+    /**
+     * Test that the info of an apk with cached content is not parsed again.
+     */
+    public void testParse_cached() throws Exception {
+        File apkFile = FileUtil.createTempFile("cached", ".apk");
+        try {
+            FileUtil.writeToFile("cached apk content", apkFile);
+            AaptParser cached = new AaptParser();
+            cached.parse("package: name='com.android.cached' versionCode='1'");
+            AaptParser.cache(FileUtil.calculateMd5(apkFile), cached);
+            assertSame(cached, AaptParser.parse(apkFile));
+        } finally {
+            FileUtil.deleteFile(apkFile);
+        }
+    }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
+
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Java app that compares {@link ConditionPriorityBlockingQueue} and
+ * {@link IndexedConditionPriorityBlockingQueue} with a large number of queued elements.
+ * <p/>
+ * Each scenario is run for a number of warm up rounds before being measured, and the average
+ * time per operation is reported.
+ */
+public class ConditionQueueBenchmarkApp {
+
+    private static final int NUM_ENTRIES = 10000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    /**
+     * Common operations of the queues under test.
+     */
+    private static interface QueueAdapter {
+        void add(Integer element);
+        Integer poll();
+        Integer poll(IMatcher<Integer> matcher);
+    }
+
+    private static class LegacyQueue implements QueueAdapter {
+        private final ConditionPriorityBlockingQueue<Integer> mQueue =
+                new ConditionPriorityBlockingQueue<Integer>(new IntCompare());
+
+        @Override
+        public void add(Integer element) {
+            mQueue.add(element);
+        }
+
+        @Override
+        public Integer poll() {
+            return mQueue.poll();
+        }
+
+        @Override
+        public Integer poll(IMatcher<Integer> matcher) {
+            return mQueue.poll(matcher);
+        }
+    }
+
+    private static class IndexedQueue implements QueueAdapter {
+        private final IndexedConditionPriorityBlockingQueue<Integer> mQueue =
+                new IndexedConditionPriorityBlockingQueue<Integer>(new IntCompare());
+
+        @Override
+        public void add(Integer element) {
+            mQueue.add(element);
+        }
+
+        @Override
+        public Integer poll() {
+            return mQueue.poll();
+        }
+
+        @Override
+        public Integer poll(IMatcher<Integer> matcher) {
+            return mQueue.poll(matcher);
+        }
+    }
+
+    private static class IntCompare implements Comparator<Integer> {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+            return o1.compareTo(o2);
+        }
+    }
+
+    /**
+     * Matches one element in <var>period</var>, similar to a command that requires a specific
+     * device type.
+     */
+    private static class ModuloMatcher implements IMatcher<Integer> {
+        private final int mPeriod;
+
+        ModuloMatcher(int period) {
+            mPeriod = period;
+        }
+
+        @Override
+        public boolean matches(Integer element) {
+            return element % mPeriod == 0;
+        }
+    }
+
+    private static abstract class Scenario {
+        private final String mName;
+
+        Scenario(String name) {
+            mName = name;
+        }
+
+        /**
+         * Fill given queue before the measurement starts.
+         */
+        void fill(QueueAdapter queue, int[] values) {
+            for (int i = 0; i < NUM_ENTRIES; i++) {
+                queue.add(values[i]);
+            }
+        }
+
+        /**
+         * Run the scenario against given queue.
+         *
+         * @return the number of operations performed
+         */
+        abstract int run(QueueAdapter queue);
+    }
+
+    /**
+     * Repeatedly retrieve the head of a full queue and add it back, like the command scheduler
+     * does for looping commands.
+     */
+    private static final Scenario POLL_HEAD = new Scenario("poll() + add()") {
+        @Override
+        int run(QueueAdapter queue) {
+            for (int i = 0; i < NUM_ENTRIES; i++) {
+                queue.add(queue.poll() + NUM_ENTRIES);
+            }
+            return NUM_ENTRIES;
+        }
+    };
+
+    /**
+     * Repeatedly retrieve an element matching a {@link ModuloMatcher} from a full queue and add it
+     * back with a lower priority, like the device manager does when allocating a specific device.
+     */
+    private static class PollMatcherScenario extends Scenario {
+        private final int mPeriod;
+
+        PollMatcherScenario(int period) {
+            super(String.format("poll(1 in %d) + add()", period));
+            mPeriod = period;
+        }
+
+        @Override
+        void fill(QueueAdapter queue, int[] values) {
+            super.fill(queue, values);
+            // make sure at least one element matches
+            queue.add(0);
+        }
+
+        @Override
+        int run(QueueAdapter queue) {
+            IMatcher<Integer> matcher = new ModuloMatcher(mPeriod);
+            int numOps = NUM_ENTRIES / 10;
+            for (int i = 0; i < numOps; i++) {
+                Integer polled = queue.poll(matcher);
+                queue.add(polled + mPeriod * NUM_ENTRIES);
+            }
+            return numOps;
+        }
+    }
+
+    /**
+     * Run given scenario on both queue implementations, and print the results.
+     */
+    private void runScenario(Scenario scenario, int[] values) {
+        long legacyNs = measure(scenario, values, false);
+        long indexedNs = measure(scenario, values, true);
+        System.out.printf("%-25s legacy: %8d ns/op  indexed: %8d ns/op  speedup: %.1fx\n",
+                scenario.mName, legacyNs, indexedNs, (double)legacyNs / indexedNs);
+    }
+
+    private long measure(Scenario scenario, int[] values, boolean indexed) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            QueueAdapter queue = createQueue(indexed);
+            scenario.fill(queue, values);
+            scenario.run(queue);
+        }
+        long totalNs = 0;
+        long totalOps = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            QueueAdapter queue = createQueue(indexed);
+            scenario.fill(queue, values);
+            long startTime = System.nanoTime();
+            totalOps += scenario.run(queue);
+            totalNs += System.nanoTime() - startTime;
+        }
+        return totalNs / totalOps;
+    }
+
+    private QueueAdapter createQueue(boolean indexed) {
+        return indexed ? new IndexedQueue() : new LegacyQueue();
+    }
+
+    public static void main(String[] args) {
+        int[] values = new int[NUM_ENTRIES];
+        Random random = new Random(0);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            values[i] = random.nextInt(NUM_ENTRIES);
+        }
+        ConditionQueueBenchmarkApp app = new ConditionQueueBenchmarkApp();
+        System.out.printf("Queue benchmark with %d entries\n", NUM_ENTRIES);
+        app.runScenario(POLL_HEAD, values);
+        app.runScenario(new PollMatcherScenario(10), values);
+        app.runScenario(new PollMatcherScenario(100), values);
+    }
+}
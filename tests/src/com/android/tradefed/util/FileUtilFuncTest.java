@@ -253,6 +253,29 @@ public class FileUtilFuncTest extends TestCase {
         assertTrue(FileUtil.compareFileContents(subFile, subFileCopy));
     }
 
+    /**
+     * Make sure that {@link FileUtil#recursiveHardlink} links all files of a directory tree,
+     * including directories with more files than a single hardlink command handles.
+     */
+    public void testRecursiveHardlink() throws IOException {
+        File tmpParentDir = createTempDir("foo");
+        File childDir = createTempDir("foochild", tmpParentDir);
+        createTempDir("fooempty", tmpParentDir);
+        File subFile = createTempFile("foo", ".txt", childDir);
+        FileUtil.writeToFile("foo", subFile);
+        for (int i = 0; i < 300; i++) {
+            FileUtil.writeToFile(Integer.toString(i), new File(tmpParentDir, "file" + i));
+        }
+        File destDir = createTempDir("dest");
+        FileUtil.recursiveHardlink(tmpParentDir, destDir);
+        File subFileCopy = new File(destDir, String.format("%s%s%s", childDir.getName(),
+                    File.separator, subFile.getName()));
+        assertTrue(subFileCopy.exists());
+        assertTrue(FileUtil.compareFileContents(subFile, subFileCopy));
+        assertEquals(302, destDir.list().length);
+        assertEquals("299", FileUtil.readStringFromFile(new File(destDir, "file299")));
+    }
+
     public void testFindDirsUnder() throws IOException {
         File absRootDir = createTempDir("rootDir");
         File relRootDir = new File(absRootDir.getName());
@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
+import com.android.tradefed.util.IndexedConditionPriorityBlockingQueue.IBucketKey;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Unit tests for {@link IndexedConditionPriorityBlockingQueue}.
+ */
+public class IndexedConditionPriorityBlockingQueueTest extends TestCase {
+
+    private IndexedConditionPriorityBlockingQueue<Integer> mQueue;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new IndexedConditionPriorityBlockingQueue<Integer>(new IntCompare());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#poll()} when queue is empty.
+     */
+    public void testPoll_empty() {
+        assertNull(mQueue.poll());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#take()} when multiple objects are in
+     * queue, and verify objects are returned in expected order.
+     */
+    public void testTake_priority() throws InterruptedException {
+        for (int i : new int[] {5, 3, 9, 1, 7, 2, 8}) {
+            mQueue.add(i);
+        }
+        for (int i : new int[] {1, 2, 3, 5, 7, 8, 9}) {
+            assertEquals(i, mQueue.take().intValue());
+        }
+        assertNull(mQueue.poll());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#poll()} when using FIFO ordering.
+     */
+    public void testTake_fifo() throws InterruptedException {
+        IndexedConditionPriorityBlockingQueue<Integer> fifoQueue =
+                new IndexedConditionPriorityBlockingQueue<Integer>();
+        fifoQueue.add(2);
+        fifoQueue.add(1);
+        assertEquals(2, fifoQueue.take().intValue());
+        assertEquals(1, fifoQueue.take().intValue());
+        assertNull(fifoQueue.poll());
+    }
+
+    /**
+     * Test that elements with equal priority are returned in insertion order.
+     */
+    public void testPoll_equalPriority() {
+        Integer first = new Integer(1);
+        Integer second = new Integer(1);
+        mQueue.add(2);
+        mQueue.add(first);
+        mQueue.add(second);
+        assertSame(first, mQueue.poll());
+        assertSame(second, mQueue.poll());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#take(IMatcher)} when object that matches is
+     * not initially present.
+     */
+    public void testTake_matcher_delayedAdd() throws InterruptedException {
+        final Integer one = new Integer(1);
+        mQueue.add(2);
+        Thread delayedAdd = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(200);
+                } catch (InterruptedException e) {
+                }
+                mQueue.add(one);
+            }
+        };
+        delayedAdd.start();
+        assertEquals(one, mQueue.take(new OneMatcher()));
+        assertNull(mQueue.poll(new OneMatcher()));
+        assertEquals(2, mQueue.poll().intValue());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#take(IMatcher)} when multiple threads are
+     * waiting with equivalent matchers, and elements are added in quick succession.
+     */
+    public void testTake_multiple_matchers() throws InterruptedException {
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mQueue.take(new OneMatcher());
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        waiter.start();
+        Thread waiter2 = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mQueue.take(new OneMatcher());
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        waiter2.start();
+        Thread.sleep(100);
+        // add both without a pause, so second add happens before first waiter has woken up
+        mQueue.add(new Integer(1));
+        mQueue.add(new Integer(1));
+
+        // wait for blocked threads to die. This test will deadlock if failed
+        waiter.join();
+        waiter2.join();
+
+        assertNull(mQueue.poll());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#poll(long, TimeUnit, IMatcher)} when queue
+     * is empty.
+     */
+    public void testPoll_time_empty() throws InterruptedException {
+        assertNull(mQueue.poll(100, TimeUnit.MILLISECONDS, new OneMatcher()));
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#poll(IMatcher)} returns the minimum
+     * matching element, not the first one found.
+     */
+    public void testPoll_condition() {
+        for (int i = 20; i > 0; i--) {
+            mQueue.add(i);
+        }
+        assertEquals(2, mQueue.poll(new EvenMatcher()).intValue());
+        assertEquals(4, mQueue.poll(new EvenMatcher()).intValue());
+        assertEquals(1, mQueue.poll().intValue());
+        assertEquals(17, mQueue.size());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#poll(IMatcher)} when nothing matches.
+     */
+    public void testPoll_condition_noMatch() {
+        mQueue.add(2);
+        mQueue.add(3);
+        assertNull(mQueue.poll(new OneMatcher()));
+        assertEquals(2, mQueue.size());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#addUnique(IMatcher, Object)}.
+     */
+    public void testAddUnique() {
+        Integer one = new Integer(1);
+        Integer replacementOne = new Integer(1);
+        mQueue.add(2);
+        assertNull(mQueue.addUnique(new OneMatcher(), one));
+        assertEquals(2, mQueue.size());
+        assertSame(one, mQueue.addUnique(new OneMatcher(), replacementOne));
+        assertEquals(2, mQueue.size());
+        assertSame(replacementOne, mQueue.poll());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#remove(Object)} of an element in the middle
+     * of the heap, and verify ordering is maintained.
+     */
+    public void testRemove() {
+        for (int i = 1; i <= 10; i++) {
+            mQueue.add(i);
+        }
+        assertTrue(mQueue.remove(5));
+        assertFalse(mQueue.remove(5));
+        assertFalse(mQueue.contains(5));
+        assertTrue(mQueue.contains(6));
+        for (int i : new int[] {1, 2, 3, 4, 6, 7, 8, 9, 10}) {
+            assertEquals(i, mQueue.poll().intValue());
+        }
+    }
+
+    /**
+     * Test that {@link IndexedConditionPriorityBlockingQueue#getCopy()} returns elements in
+     * insertion order.
+     */
+    public void testGetCopy() {
+        mQueue.add(3);
+        mQueue.add(1);
+        mQueue.add(2);
+        assertEquals(Arrays.asList(3, 1, 2), mQueue.getCopy());
+    }
+
+    /**
+     * Test {@link IndexedConditionPriorityBlockingQueue#reprioritize(Object)} after the priority
+     * of a queued element changes.
+     */
+    public void testReprioritize() {
+        IndexedConditionPriorityBlockingQueue<MutableInt> queue =
+                new IndexedConditionPriorityBlockingQueue<MutableInt>(new MutableIntCompare());
+        MutableInt one = new MutableInt(1);
+        MutableInt two = new MutableInt(2);
+        queue.add(one);
+        queue.add(two);
+        one.mValue = 3;
+        queue.reprioritize(one);
+        assertSame(two, queue.poll());
+        assertSame(one, queue.poll());
+    }
+
+    /**
+     * Test that {@link IndexedConditionPriorityBlockingQueue#reprioritize(Object)} wakes up a
+     * waiter whose matcher now accepts the changed element.
+     */
+    public void testReprioritize_wakesWaiter() throws InterruptedException {
+        final IndexedConditionPriorityBlockingQueue<MutableInt> queue =
+                new IndexedConditionPriorityBlockingQueue<MutableInt>(new MutableIntCompare());
+        final MutableInt element = new MutableInt(2);
+        queue.add(element);
+        Thread changer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(100);
+                } catch (InterruptedException e) {
+                }
+                element.mValue = 1;
+                queue.reprioritize(element);
+            }
+        };
+        changer.start();
+        assertSame(element, queue.poll(10, TimeUnit.SECONDS, new IMatcher<MutableInt>() {
+            @Override
+            public boolean matches(MutableInt e) {
+                return e.mValue == 1;
+            }
+        }));
+        changer.join();
+    }
+
+    /**
+     * Test that when a waiter is interrupted after being signaled for an element, the element is
+     * handed to the next matching waiter instead of staying queued.
+     */
+    public void testTake_interruptedAfterSignal() throws InterruptedException {
+        final Thread adder = Thread.currentThread();
+        final Thread[] interruptedWaiter = new Thread[1];
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        // interrupts the first waiter while the adding thread signals it
+        final IMatcher<Integer> interruptingMatcher = new IMatcher<Integer>() {
+            @Override
+            public boolean matches(Integer element) {
+                if (Thread.currentThread() == adder && interrupted.compareAndSet(false, true)) {
+                    interruptedWaiter[0].interrupt();
+                    // give the interrupt time to cancel the wait before the waiter is signaled
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        fail("adding thread interrupted");
+                    }
+                }
+                return true;
+            }
+        };
+        final AtomicBoolean gotInterrupted = new AtomicBoolean(false);
+        final Integer[] interruptedResult = new Integer[1];
+        interruptedWaiter[0] = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    interruptedResult[0] = mQueue.take(interruptingMatcher);
+                } catch (InterruptedException e) {
+                    gotInterrupted.set(true);
+                }
+            }
+        };
+        interruptedWaiter[0].start();
+        final Integer[] result = new Integer[1];
+        Thread otherWaiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(100);
+                    result[0] = mQueue.take(new IMatcher<Integer>() {
+                        @Override
+                        public boolean matches(Integer element) {
+                            return true;
+                        }
+                    });
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        otherWaiter.start();
+        Thread.sleep(300);
+        mQueue.add(1);
+        interruptedWaiter[0].join();
+        if (interruptedResult[0] != null) {
+            // the signal still won the race with the interrupt, so the first waiter took the
+            // element and the wakeup was not lost
+            otherWaiter.interrupt();
+            otherWaiter.join();
+            assertNull(result[0]);
+            assertEquals(0, mQueue.size());
+            return;
+        }
+        otherWaiter.join(5000);
+        if (otherWaiter.isAlive()) {
+            otherWaiter.interrupt();
+            fail("element was not handed to the other waiter");
+        }
+        assertTrue(gotInterrupted.get());
+        assertEquals(Integer.valueOf(1), result[0]);
+        assertEquals(0, mQueue.size());
+    }
+
+    /**
+     * Test that elements sharing a bucket key are retrieved in insertion order, and that only the
+     * bucket head is presented to matchers.
+     */
+    public void testBuckets() {
+        IndexedConditionPriorityBlockingQueue<String> queue =
+                new IndexedConditionPriorityBlockingQueue<String>(new StringLengthCompare(),
+                        new IBucketKey<String>() {
+                            @Override
+                            public Object getKey(String element) {
+                                return element.charAt(0);
+                            }
+                        });
+        queue.add("bb");
+        queue.add("aa");
+        queue.add("ab");
+        queue.add("c");
+        final int[] matchCount = new int[1];
+        IMatcher<String> aMatcher = new IMatcher<String>() {
+            @Override
+            public boolean matches(String element) {
+                matchCount[0]++;
+                return element.startsWith("a");
+            }
+        };
+        assertEquals("aa", queue.poll(aMatcher));
+        assertEquals("ab", queue.poll(aMatcher));
+        assertNull(queue.poll(aMatcher));
+        // each poll sees at most one element per bucket
+        assertTrue(matchCount[0] <= 9);
+        assertTrue(queue.contains("bb"));
+        assertFalse(queue.contains("aa"));
+        assertEquals("c", queue.poll());
+        assertEquals("bb", queue.poll());
+    }
+
+    /**
+     * Test behavior when queue is modified during iteration
+     */
+    public void testModificationOnIterating() throws Throwable {
+        for (int i = 0; i < 10; i++) {
+            mQueue.add(i);
+        }
+        final Throwable[] throwables = new Throwable[1];
+        Thread iterator = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (@SuppressWarnings("unused") Integer i : mQueue) {
+                        Thread.sleep(10);
+                    }
+                } catch (Throwable t) {
+                    throwables[0] = t;
+                }
+            }
+        };
+        iterator.start();
+        for (int i = 0; i < 10 && throwables[0] == null; i++) {
+            mQueue.add(i);
+            Thread.sleep(10);
+        }
+        iterator.join();
+        if (throwables[0] != null) {
+            throw throwables[0];
+        }
+    }
+
+    /**
+     * A {@link Comparator} for {@link Integer}
+     */
+    private static class IntCompare implements Comparator<Integer> {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+            return o1.compareTo(o2);
+        }
+    }
+
+    private static class StringLengthCompare implements Comparator<String> {
+        @Override
+        public int compare(String o1, String o2) {
+            return o1.length() - o2.length();
+        }
+    }
+
+    private static class MutableInt {
+        private int mValue;
+
+        MutableInt(int value) {
+            mValue = value;
+        }
+    }
+
+    private static class MutableIntCompare implements Comparator<MutableInt> {
+        @Override
+        public int compare(MutableInt o1, MutableInt o2) {
+            return o1.mValue - o2.mValue;
+        }
+    }
+
+    private static class OneMatcher implements IMatcher<Integer> {
+        @Override
+        public boolean matches(Integer element) {
+            return element == 1;
+        }
+    }
+
+    private static class EvenMatcher implements IMatcher<Integer> {
+        @Override
+        public boolean matches(Integer element) {
+            return element % 2 == 0;
+        }
+    }
+}
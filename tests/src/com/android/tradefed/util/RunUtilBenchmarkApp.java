@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Java app that measures the latency of {@link RunUtil#runTimedCmd(long, String...)}, and the
+ * number of threads it starts.
+ * <p/>
+ * Usage: RunUtilBenchmarkApp [number of calls] [number of calling threads]
+ * <p/>
+ * Runs 10000 <code>runTimedCmd("true")</code> calls from 8 threads by default, similar to many
+ * devices running short adb and fastboot commands at the same time.
+ */
+public class RunUtilBenchmarkApp {
+
+    private static final int DEFAULT_CALLS = 10000;
+    private static final int DEFAULT_CALLERS = 8;
+    private static final long CMD_TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * Run the given number of commands from the given number of threads, and print the results.
+     */
+    private void runBenchmark(String name, final int calls, int callers)
+            throws InterruptedException {
+        final IRunUtil runUtil = new RunUtil();
+        final long[] latenciesNs = new long[calls];
+        final AtomicInteger nextCall = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        long startedThreads = threadBean.getTotalStartedThreadCount();
+        long overflowThreads = RunUtil.getOverflowThreadCount();
+        long startTime = System.nanoTime();
+        List<Thread> callerThreads = new ArrayList<Thread>(callers);
+        for (int i = 0; i < callers; i++) {
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    int call;
+                    while ((call = nextCall.getAndIncrement()) < calls) {
+                        long callStart = System.nanoTime();
+                        CommandResult result = runUtil.runTimedCmd(CMD_TIMEOUT_MS, "true");
+                        latenciesNs[call] = System.nanoTime() - callStart;
+                        if (result.getStatus() != CommandStatus.SUCCESS) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            caller.start();
+            callerThreads.add(caller);
+        }
+        for (Thread caller : callerThreads) {
+            caller.join();
+        }
+        long elapsedNs = System.nanoTime() - startTime;
+        // do not count the caller threads
+        startedThreads = threadBean.getTotalStartedThreadCount() - startedThreads - callers;
+        Arrays.sort(latenciesNs);
+        System.out.printf("%s: %d calls from %d threads in %.2f s, %d failed\n", name, calls,
+                callers, elapsedNs / 1e9, failures.get());
+        System.out.printf("  %8.1f calls/s  latency: median %.2f ms, p99 %.2f ms, max %.2f ms\n",
+                calls / (elapsedNs / 1e9), latenciesNs[calls / 2] / 1e6,
+                latenciesNs[calls * 99 / 100] / 1e6, latenciesNs[calls - 1] / 1e6);
+        System.out.printf("  threads started: %d (%d overflow), peak live threads: %d, "
+                + "pooled threads: %d\n", startedThreads,
+                RunUtil.getOverflowThreadCount() - overflowThreads,
+                threadBean.getPeakThreadCount(), RunUtil.getPooledThreadCount());
+        System.out.printf("  start latency: average %d us, max %d us\n",
+                RunUtil.getAverageStartLatencyUs(), RunUtil.getMaxStartLatencyUs());
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CALLS;
+        int callers = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CALLERS;
+        RunUtilBenchmarkApp app = new RunUtilBenchmarkApp();
+        app.runBenchmark("warmup", Math.min(calls, 500), callers);
+        app.runBenchmark("benchmark", calls, callers);
+    }
+}
@@ -88,4 +88,44 @@ public class RunUtilTest extends TestCase {
         assertNull(result.getStdout());
         assertNull(result.getStderr());
     }
+
+    /**
+     * Test that {@link RunUtil#runTimedCmd(long, String)} collects stdout and stderr.
+     */
+    public void testRunTimedCmd_output() {
+        CommandResult result = mRunUtil.runTimedCmd(10 * 1000, "sh", "-c",
+                "echo out; echo err >&2");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals("out\n", result.getStdout());
+        assertEquals("err\n", result.getStderr());
+    }
+
+    /**
+     * Test that {@link RunUtil#runTimedCmd(long, String)} does not block commands with more
+     * output than fits in a pipe.
+     */
+    public void testRunTimedCmd_largeOutput() {
+        CommandResult result = mRunUtil.runTimedCmd(10 * 1000, "head", "-c", "1000000",
+                "/dev/zero");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals(1000000, result.getStdout().length());
+    }
+
+    /**
+     * Test that sequential timed operations reuse the pooled threads.
+     */
+    public void testRunTimed_threadsReused() throws Exception {
+        long overflowCount = RunUtil.getOverflowThreadCount();
+        long runCount = RunUtil.getTimedRunCount();
+        for (int i = 0; i < 20; i++) {
+            IRunUtil.IRunnableResult mockRunnable = EasyMock.createStrictMock(
+                    IRunUtil.IRunnableResult.class);
+            EasyMock.expect(mockRunnable.run()).andReturn(Boolean.TRUE);
+            EasyMock.replay(mockRunnable);
+            assertEquals(CommandStatus.SUCCESS, mRunUtil.runTimed(1000, mockRunnable, true));
+        }
+        assertEquals(overflowCount, RunUtil.getOverflowThreadCount());
+        assertTrue(RunUtil.getTimedRunCount() >= runCount + 20);
+        assertTrue(RunUtil.getPooledThreadCount() < 20);
+    }
 }
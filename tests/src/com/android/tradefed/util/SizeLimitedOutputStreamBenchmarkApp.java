@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Java app that measures the write throughput of {@link SizeLimitedOutputStream}, using chunks
+ * of similar size to the ones received when capturing logcat.
+ * <p/>
+ * Compares writing one byte at a time (the behavior before bulk writes were supported), bulk
+ * writes through a buffered stream, and bulk writes through a file channel.
+ */
+public class SizeLimitedOutputStreamBenchmarkApp {
+
+    private static final long MAX_DATA_SIZE = 20 * 1024 * 1024;
+    private static final int NUM_FILES = 4;
+    /** total amount of data written per round. Larger than max size to exercise rotation */
+    private static final int DATA_SIZE = 64 * 1024 * 1024;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 5;
+
+    private static abstract class Scenario {
+        private final String mName;
+        private final boolean mUseFileChannel;
+
+        Scenario(String name, boolean useFileChannel) {
+            mName = name;
+            mUseFileChannel = useFileChannel;
+        }
+
+        /**
+         * Write all of <var>data</var> to given stream, in chunks of <var>chunkSize</var>.
+         */
+        abstract void write(OutputStream stream, byte[] data, int chunkSize) throws IOException;
+    }
+
+    /**
+     * Writes each chunk one byte at a time.
+     */
+    private static final Scenario PER_BYTE = new Scenario("per byte", false) {
+        @Override
+        void write(OutputStream stream, byte[] data, int chunkSize) throws IOException {
+            for (int pos = 0; pos < DATA_SIZE; pos += chunkSize) {
+                int end = pos + Math.min(chunkSize, DATA_SIZE - pos);
+                for (int i = pos; i < end; i++) {
+                    stream.write(data[i % data.length]);
+                }
+            }
+        }
+    };
+
+    private static class BulkScenario extends Scenario {
+        BulkScenario(String name, boolean useFileChannel) {
+            super(name, useFileChannel);
+        }
+
+        @Override
+        void write(OutputStream stream, byte[] data, int chunkSize) throws IOException {
+            for (int pos = 0; pos < DATA_SIZE; pos += chunkSize) {
+                int len = Math.min(chunkSize, DATA_SIZE - pos);
+                stream.write(data, pos % (data.length - chunkSize), len);
+            }
+        }
+    }
+
+    /**
+     * Run given scenario for given chunk size, and print the results.
+     */
+    private void runScenario(Scenario scenario, byte[] data, int chunkSize) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            measure(scenario, data, chunkSize);
+        }
+        long totalNs = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            totalNs += measure(scenario, data, chunkSize);
+        }
+        double seconds = totalNs / 1e9;
+        double megabytes = (double)DATA_SIZE * MEASURED_ROUNDS / (1024 * 1024);
+        System.out.printf("%-20s chunk: %6d bytes  throughput: %8.1f MB/s\n", scenario.mName,
+                chunkSize, megabytes / seconds);
+    }
+
+    private long measure(Scenario scenario, byte[] data, int chunkSize) throws IOException {
+        SizeLimitedOutputStream stream = new SizeLimitedOutputStream(MAX_DATA_SIZE, NUM_FILES,
+                "benchmark", ".txt", scenario.mUseFileChannel);
+        try {
+            long startTime = System.nanoTime();
+            scenario.write(stream, data, chunkSize);
+            stream.flush();
+            return System.nanoTime() - startTime;
+        } finally {
+            stream.delete();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        byte[] data = new byte[1024 * 1024];
+        new Random(0).nextBytes(data);
+        SizeLimitedOutputStreamBenchmarkApp app = new SizeLimitedOutputStreamBenchmarkApp();
+        Scenario[] scenarios = new Scenario[] {
+                PER_BYTE,
+                new BulkScenario("bulk stream", false),
+                new BulkScenario("bulk channel", true),
+        };
+        System.out.printf("SizeLimitedOutputStream benchmark writing %d MB per round\n",
+                DATA_SIZE / (1024 * 1024));
+        // typical sizes of the chunks passed to LargeOutputReceiver#addOutput
+        for (int chunkSize : new int[] {128, 4 * 1024, 16 * 1024}) {
+            for (Scenario scenario : scenarios) {
+                app.runScenario(scenario, data, chunkSize);
+            }
+        }
+    }
+}
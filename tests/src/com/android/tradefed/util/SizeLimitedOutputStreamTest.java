@@ -59,4 +59,140 @@ public class SizeLimitedOutputStreamTest extends TestCase {
             outStream.delete();
         }
     }
+
+    /**
+     * Test bulk writes that span multiple backing files are split at file boundaries.
+     */
+    public void testWrite_bulkAcrossFiles() throws IOException {
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar");
+        try {
+            writeInChunks(outStream, 29, 7);
+            outStream.close();
+            assertData(outStream.getData(), 10, 19);
+        } finally {
+            outStream.delete();
+        }
+    }
+
+    /**
+     * Test writing through a file channel, with data larger than the pooled buffer size.
+     */
+    public void testWrite_fileChannel() throws IOException {
+        final int fileSize = 100 * 1024;
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(fileSize * 2, 2, "foo",
+                "bar", true);
+        try {
+            writeInChunks(outStream, fileSize * 3, 1000);
+            // single byte writes should land in the same buffer
+            outStream.write(fileSize * 3);
+            assertData(outStream.getData(), fileSize * 2, fileSize + 1);
+            outStream.close();
+            assertData(outStream.getData(), fileSize * 2, fileSize + 1);
+        } finally {
+            outStream.delete();
+        }
+    }
+
+    /**
+     * Test that a snapshot is unaffected by data written after it was created, even when the
+     * backing files it refers to are rotated out or the stream is deleted.
+     */
+    public void testCreateSnapshot() throws IOException {
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar");
+        SizeLimitedOutputStream.Snapshot snapshot = null;
+        try {
+            writeInChunks(outStream, 17, 7);
+            snapshot = outStream.createSnapshot();
+            assertEquals(17, snapshot.size());
+            writeInChunks(outStream, 40, 3);
+            outStream.delete();
+            assertData(snapshot.createInputStream(), 0, 17);
+            // each input stream should return the same data
+            assertData(snapshot.createInputStream(), 0, 17);
+        } finally {
+            outStream.delete();
+            if (snapshot != null) {
+                snapshot.cancel();
+            }
+        }
+        assertNull(snapshot.createInputStream());
+    }
+
+    /**
+     * Test {@link SizeLimitedOutputStream.Snapshot#createTailInputStream(long)} for tails
+     * starting in the middle of a backing file, and larger than the snapshot.
+     */
+    public void testCreateSnapshot_tail() throws IOException {
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar",
+                true);
+        SizeLimitedOutputStream.Snapshot snapshot = null;
+        try {
+            writeInChunks(outStream, 29, 29);
+            snapshot = outStream.createSnapshot();
+            assertEquals(19, snapshot.size());
+            assertData(snapshot.createTailInputStream(7), 22, 7);
+            assertData(snapshot.createTailInputStream(4), 25, 4);
+            assertData(snapshot.createTailInputStream(100), 10, 19);
+            assertData(snapshot.createTailInputStream(0), 0, 0);
+        } finally {
+            outStream.delete();
+            if (snapshot != null) {
+                snapshot.cancel();
+            }
+        }
+    }
+
+    /**
+     * Test creating a snapshot of an empty stream.
+     */
+    public void testCreateSnapshot_empty() throws IOException {
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar");
+        SizeLimitedOutputStream.Snapshot snapshot = outStream.createSnapshot();
+        try {
+            assertEquals(0, snapshot.size());
+            assertData(snapshot.createInputStream(), 0, 0);
+        } finally {
+            snapshot.cancel();
+            outStream.delete();
+        }
+    }
+
+    /**
+     * Write <var>size</var> bytes with incrementing values, <var>chunkSize</var> bytes at a time.
+     */
+    private void writeInChunks(SizeLimitedOutputStream outStream, int size, int chunkSize)
+            throws IOException {
+        byte[] chunk = new byte[chunkSize];
+        for (int pos = 0; pos < size; pos += chunkSize) {
+            int len = Math.min(chunkSize, size - pos);
+            for (int i = 0; i < len; i++) {
+                chunk[i] = (byte)(pos + i);
+            }
+            outStream.write(chunk, 0, len);
+        }
+    }
+
+    /**
+     * Verify the given stream contains <var>length</var> incrementing values, starting from
+     * <var>firstValue</var>.
+     */
+    private void assertData(InputStream readStream, int firstValue, int length)
+            throws IOException {
+        try {
+            byte[] readData = new byte[length];
+            int readDataPos = 0;
+            int read;
+            while ((read = readStream.read()) != -1) {
+                assertTrue("read more data than expected", readDataPos < length);
+                readData[readDataPos] = (byte)read;
+                readDataPos++;
+            }
+            assertEquals(length, readDataPos);
+            for (int i = 0; i < length; i++) {
+                assertEquals((byte)(firstValue + i), readData[i]);
+            }
+        } finally {
+            readStream.close();
+        }
+    }
 }
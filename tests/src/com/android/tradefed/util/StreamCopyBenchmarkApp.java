@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Java app that compares the {@link StreamUtil#copyStreams(InputStream, OutputStream)} block
+ * copy with the previous byte at a time copy, for a large input file.
+ * <p/>
+ * Usage: StreamCopyBenchmarkApp [size in MB]. Defaults to 1024 MB.
+ */
+public class StreamCopyBenchmarkApp {
+
+    private static final int DEFAULT_SIZE_MB = 1024;
+
+    private static abstract class Scenario {
+        private final String mName;
+
+        Scenario(String name) {
+            mName = name;
+        }
+
+        /**
+         * Copy <var>inFile</var> to <var>outFile</var>.
+         */
+        abstract void copy(File inFile, File outFile) throws IOException;
+    }
+
+    /**
+     * Copies a single byte at a time through buffered streams, like
+     * {@link StreamUtil#copyStreams(InputStream, OutputStream)} used to.
+     */
+    private static void copyBytes(InputStream inStream, OutputStream outStream)
+            throws IOException {
+        int data = -1;
+        while ((data = inStream.read()) != -1) {
+            outStream.write(data);
+        }
+    }
+
+    private static final Scenario LEGACY_FILE = new Scenario("file, per byte") {
+        @Override
+        void copy(File inFile, File outFile) throws IOException {
+            InputStream inStream = new BufferedInputStream(new FileInputStream(inFile));
+            OutputStream outStream = new BufferedOutputStream(new FileOutputStream(outFile));
+            try {
+                copyBytes(inStream, outStream);
+            } finally {
+                StreamUtil.close(inStream);
+                StreamUtil.close(outStream);
+            }
+        }
+    };
+
+    private static final Scenario BLOCK_FILE = new Scenario("file, copyFile") {
+        @Override
+        void copy(File inFile, File outFile) throws IOException {
+            FileUtil.copyFile(inFile, outFile);
+        }
+    };
+
+    private static final Scenario LEGACY_ZIP = new Scenario("zip, per byte") {
+        @Override
+        void copy(File inFile, File outFile) throws IOException {
+            InputStream inStream = new BufferedInputStream(new FileInputStream(inFile));
+            ZipOutputStream outStream = createZipStream(outFile);
+            try {
+                copyBytes(inStream, outStream);
+            } finally {
+                StreamUtil.close(inStream);
+                StreamUtil.closeZipStream(outStream);
+            }
+        }
+    };
+
+    private static final Scenario BLOCK_ZIP = new Scenario("zip, copyStreams") {
+        @Override
+        void copy(File inFile, File outFile) throws IOException {
+            InputStream inStream = new FileInputStream(inFile);
+            ZipOutputStream outStream = createZipStream(outFile);
+            try {
+                StreamUtil.copyStreams(inStream, outStream);
+            } finally {
+                StreamUtil.close(inStream);
+                StreamUtil.closeZipStream(outStream);
+            }
+        }
+    };
+
+    /**
+     * Create a zip stream similar to the one used by
+     * {@link com.android.tradefed.result.LogFileSaver#saveAndZipLogData}.
+     */
+    private static ZipOutputStream createZipStream(File outFile) throws IOException {
+        ZipOutputStream outStream = new ZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(outFile), 64 * 1024));
+        outStream.putNextEntry(new ZipEntry("data.bin"));
+        return outStream;
+    }
+
+    private void runScenario(Scenario scenario, File inFile, long size) throws IOException {
+        File outFile = FileUtil.createTempFile("benchmark_out", ".bin");
+        try {
+            long startTime = System.nanoTime();
+            scenario.copy(inFile, outFile);
+            long elapsedNs = System.nanoTime() - startTime;
+            double megabytes = (double)size / (1024 * 1024);
+            System.out.printf("%-20s %8d ms  %8.1f MB/s\n", scenario.mName, elapsedNs / 1000000,
+                    megabytes / (elapsedNs / 1e9));
+        } finally {
+            FileUtil.deleteFile(outFile);
+        }
+    }
+
+    private static File createInputFile(long size) throws IOException {
+        File inFile = FileUtil.createTempFile("benchmark_in", ".bin");
+        // semi random data, so that zip compression has some work to do
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(0);
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte)('a' + random.nextInt(16));
+        }
+        OutputStream outStream = new FileOutputStream(inFile);
+        try {
+            for (long written = 0; written < size; written += block.length) {
+                outStream.write(block, 0, (int)Math.min(block.length, size - written));
+            }
+        } finally {
+            StreamUtil.close(outStream);
+        }
+        return inFile;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE_MB;
+        long size = sizeMb * 1024L * 1024L;
+        StreamCopyBenchmarkApp app = new StreamCopyBenchmarkApp();
+        File inFile = createInputFile(size);
+        try {
+            System.out.printf("Stream copy benchmark with a %d MB input\n", sizeMb);
+            Scenario[] scenarios = new Scenario[] {LEGACY_FILE, BLOCK_FILE, LEGACY_ZIP, BLOCK_ZIP};
+            for (Scenario scenario : scenarios) {
+                app.runScenario(scenario, inFile, size);
+            }
+        } finally {
+            FileUtil.deleteFile(inFile);
+        }
+    }
+}
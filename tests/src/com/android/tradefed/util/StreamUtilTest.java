@@ -21,7 +21,16 @@ import com.android.tradefed.result.InputStreamSource;
 import junit.framework.TestCase;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Unit tests for the {@link StreamUtil} utility class
@@ -82,5 +91,142 @@ public class StreamUtilTest extends TestCase {
                 new ByteArrayInputStream(contents.getBytes()));
         assertEquals(contents, output);
     }
-}
 
+    /**
+     * Verify that {@link StreamUtil#copyStreams(InputStream, java.io.OutputStream,
+     * StreamUtil.ICopyProgressListener)} copies data larger than its buffer, and reports
+     * progress.
+     */
+    public void testCopyStreams() throws Exception {
+        final byte[] contents = createData(150 * 1024);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        final List<Long> progress = new ArrayList<Long>();
+        long copied = StreamUtil.copyStreams(new ByteArrayInputStream(contents), outStream,
+                new StreamUtil.ICopyProgressListener() {
+                    @Override
+                    public void bytesCopied(long totalBytes) {
+                        progress.add(totalBytes);
+                    }
+                });
+        assertEquals(contents.length, copied);
+        assertTrue(Arrays.equals(contents, outStream.toByteArray()));
+        assertTrue(progress.size() > 1);
+        assertEquals(Long.valueOf(contents.length), progress.get(progress.size() - 1));
+    }
+
+    /**
+     * Verify that {@link StreamUtil#copyStreams(InputStream, java.io.OutputStream)} between
+     * files copies the remaining data of the input, and leaves the input at its end.
+     */
+    public void testCopyStreams_files() throws Exception {
+        final byte[] contents = createData(100 * 1024);
+        File inFile = FileUtil.createTempFile("copy_in", ".txt");
+        File outFile = FileUtil.createTempFile("copy_out", ".txt");
+        FileInputStream inStream = null;
+        FileOutputStream outStream = null;
+        try {
+            FileUtil.writeToFile(new ByteArrayInputStream(contents), inFile);
+            inStream = new FileInputStream(inFile);
+            assertEquals(10, inStream.skip(10));
+            outStream = new FileOutputStream(outFile);
+            outStream.write(contents, 0, 10);
+            StreamUtil.copyStreams(inStream, outStream);
+            assertEquals(-1, inStream.read());
+            outStream.close();
+            assertTrue(FileUtil.compareFileContents(inFile, outFile));
+        } finally {
+            StreamUtil.close(inStream);
+            StreamUtil.close(outStream);
+            FileUtil.deleteFile(inFile);
+            FileUtil.deleteFile(outFile);
+        }
+    }
+
+    /**
+     * Verify that {@link StreamUtil#copyStreams(InputStream, java.io.OutputStream)} copies data
+     * from a pipe to a file, although a pipe cannot be transferred from.
+     */
+    public void testCopyStreams_pipe() throws Exception {
+        final byte[] contents = createData(100 * 1024);
+        File tmpDir = FileUtil.createTempDir("copy_pipe");
+        final File pipe = new File(tmpDir, "pipe");
+        File outFile = new File(tmpDir, "copy_out.txt");
+        FileInputStream inStream = null;
+        FileOutputStream outStream = null;
+        try {
+            CommandResult result = RunUtil.getDefault().runTimedCmd(10 * 1000, "mkfifo",
+                    pipe.getAbsolutePath());
+            if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+                // no fifo support on this host
+                return;
+            }
+            Thread writerThread = new Thread() {
+                @Override
+                public void run() {
+                    FileOutputStream pipeStream = null;
+                    try {
+                        pipeStream = new FileOutputStream(pipe);
+                        pipeStream.write(contents);
+                    } catch (IOException e) {
+                        // reported by the contents check
+                    } finally {
+                        StreamUtil.close(pipeStream);
+                    }
+                }
+            };
+            writerThread.start();
+            inStream = new FileInputStream(pipe);
+            outStream = new FileOutputStream(outFile);
+            StreamUtil.copyStreams(inStream, outStream);
+            outStream.close();
+            writerThread.join();
+            inStream.close();
+            inStream = new FileInputStream(outFile);
+            assertTrue(Arrays.equals(contents,
+                    StreamUtil.getByteArrayListFromStream(inStream).getContents()));
+        } finally {
+            StreamUtil.close(inStream);
+            StreamUtil.close(outStream);
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /**
+     * Verify that {@link StreamUtil#calculateMd5(InputStream)} returns the hex encoded checksum.
+     */
+    public void testCalculateMd5() throws Exception {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e",
+                StreamUtil.calculateMd5(new ByteArrayInputStream(new byte[0])));
+        assertEquals("9e107d9d372bb6826bd81d3542a419d6", StreamUtil.calculateMd5(
+                new ByteArrayInputStream("The quick brown fox jumps over the lazy dog".getBytes())));
+    }
+
+    /**
+     * Verify that {@link StreamUtil#bytesToHexString(byte[])} encodes each byte as two lower case
+     * hex digits.
+     */
+    public void testBytesToHexString() {
+        assertEquals("", StreamUtil.bytesToHexString(new byte[0]));
+        assertEquals("00017f80ff", StreamUtil.bytesToHexString(
+                new byte[] {0x00, 0x01, 0x7f, (byte)0x80, (byte)0xff}));
+    }
+
+    /**
+     * Verify that {@link StreamUtil#copyStreamToWriter(InputStream, java.io.Writer)} writes
+     * each byte as a character.
+     */
+    public void testCopyStreamToWriter() throws Exception {
+        final String contents = "this is a string";
+        StringWriter writer = new StringWriter();
+        StreamUtil.copyStreamToWriter(new ByteArrayInputStream(contents.getBytes()), writer);
+        assertEquals(contents, writer.toString());
+    }
+
+    private byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte)i;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Unit tests for {@link HttpRangeDownloader}.
+ */
+public class HttpRangeDownloaderTest extends TestCase {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private byte[] mData;
+    private boolean mSupportsRanges = true;
+    /** whether the server advertises ranges, but answers range requests with the whole file */
+    private boolean mIgnoresRanges = false;
+    /** number of bytes to send before failing the next request. -1 to never fail */
+    private int mFailAfterBytes = -1;
+    private List<String> mRequestedRanges;
+    private HttpRangeDownloader mDownloader;
+    private File mDestFile;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mData = new byte[100 * 1024];
+        new Random(0).nextBytes(mData);
+        mRequestedRanges = Collections.synchronizedList(new ArrayList<String>());
+        mDownloader = new HttpRangeDownloader() {
+            @Override
+            HttpURLConnection openConnection(URL url) {
+                return new FakeConnection(url);
+            }
+        };
+        mDownloader.setNumConnections(4);
+        mDownloader.setMinSegmentSize(16 * 1024);
+        mDestFile = FileUtil.createTempFile("range_download", ".bin");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.deleteFile(mDestFile);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a file is downloaded as several ranges in parallel.
+     */
+    public void testDownload_parallel() throws Exception {
+        String md5 = mDownloader.download(new URL("http://foo/file"), mDestFile);
+        assertTrue(Arrays.equals(mData, readDestFile()));
+        assertEquals(getMd5(mData), md5);
+        assertEquals(4, mRequestedRanges.size());
+        assertTrue(mRequestedRanges.contains("bytes=0-25599"));
+        assertTrue(mRequestedRanges.contains("bytes=76800-102399"));
+    }
+
+    /**
+     * Test that a file is downloaded in one request when the server does not support ranges.
+     */
+    public void testDownload_noRanges() throws Exception {
+        mSupportsRanges = false;
+        String md5 = mDownloader.download(new URL("http://foo/file"), mDestFile);
+        assertTrue(Arrays.equals(mData, readDestFile()));
+        assertEquals(getMd5(mData), md5);
+        assertEquals(Arrays.asList((String)null), mRequestedRanges);
+    }
+
+    /**
+     * Test that a file is downloaded in one request when the server answers range requests with
+     * the whole file.
+     */
+    public void testDownload_rangesIgnored() throws Exception {
+        mIgnoresRanges = true;
+        String md5 = mDownloader.download(new URL("http://foo/file"), mDestFile);
+        assertTrue(Arrays.equals(mData, readDestFile()));
+        assertEquals(mData.length, mDestFile.length());
+        assertEquals(getMd5(mData), md5);
+        assertEquals(5, mRequestedRanges.size());
+        assertNull(mRequestedRanges.get(4));
+    }
+
+    /**
+     * Test that an interrupted range is resumed from the last byte received.
+     */
+    public void testDownload_resume() throws Exception {
+        mDownloader.setNumConnections(1);
+        mFailAfterBytes = 1000;
+        String md5 = mDownloader.download(new URL("http://foo/file"), mDestFile);
+        assertTrue(Arrays.equals(mData, readDestFile()));
+        assertEquals(getMd5(mData), md5);
+        assertEquals(Arrays.asList(null, "bytes=1000-102399"), mRequestedRanges);
+    }
+
+    /**
+     * Test that an interrupted download from a server that does not support ranges is restarted.
+     */
+    public void testDownload_restart() throws Exception {
+        mSupportsRanges = false;
+        mFailAfterBytes = 1000;
+        String md5 = mDownloader.download(new URL("http://foo/file"), mDestFile);
+        assertTrue(Arrays.equals(mData, readDestFile()));
+        assertEquals(getMd5(mData), md5);
+    }
+
+    /**
+     * Test that the download fails once the max number of attempts is reached.
+     */
+    public void testDownload_failure() throws Exception {
+        mDownloader.setMaxAttempts(1);
+        mFailAfterBytes = 1000;
+        try {
+            mDownloader.download(new URL("http://foo/file"), mDestFile);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a checksum mismatch is reported.
+     */
+    public void testDownload_checksumMismatch() throws Exception {
+        try {
+            mDownloader.download(new URL("http://foo/file"), mDestFile, "0123");
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNotNull(mDownloader.download(new URL("http://foo/file"), mDestFile,
+                getMd5(mData).toUpperCase()));
+    }
+
+    private byte[] readDestFile() throws IOException {
+        InputStream input = new FileInputStream(mDestFile);
+        try {
+            return StreamUtil.getByteArrayListFromStream(input).getContents();
+        } finally {
+            StreamUtil.close(input);
+        }
+    }
+
+    private static String getMd5(byte[] data) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Fails the next request after sending <var>mFailAfterBytes</var> bytes, if set.
+     */
+    private synchronized int consumeFailure() {
+        int failAfterBytes = mFailAfterBytes;
+        mFailAfterBytes = -1;
+        return failAfterBytes;
+    }
+
+    /**
+     * A {@link HttpURLConnection} that serves <var>mData</var> without using the network.
+     */
+    private class FakeConnection extends HttpURLConnection {
+        private int mStart = 0;
+        private int mEnd;
+        private boolean mPartial = false;
+
+        FakeConnection(URL url) {
+            super(url);
+            mEnd = mData.length;
+        }
+
+        @Override
+        public void connect() {
+            if (connected) {
+                return;
+            }
+            String range = getRequestProperty("Range");
+            connected = true;
+            if ("HEAD".equals(getRequestMethod())) {
+                return;
+            }
+            mRequestedRanges.add(range);
+            if (range != null && mSupportsRanges && !mIgnoresRanges) {
+                Matcher matcher = RANGE_PATTERN.matcher(range);
+                assertTrue(matcher.matches());
+                mStart = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    mEnd = Integer.parseInt(matcher.group(2)) + 1;
+                }
+                mPartial = true;
+            }
+        }
+
+        @Override
+        public int getResponseCode() {
+            connect();
+            return mPartial ? HTTP_PARTIAL : HTTP_OK;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            if ("Content-Length".equals(name)) {
+                return Integer.toString(mEnd - mStart);
+            } else if ("Accept-Ranges".equals(name)) {
+                return mSupportsRanges ? "bytes" : "none";
+            }
+            return null;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            connect();
+            final int failAfterBytes = consumeFailure();
+            return new FilterInputStream(new ByteArrayInputStream(mData, mStart, mEnd - mStart)) {
+                private int mSent = 0;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (failAfterBytes >= 0) {
+                        if (mSent >= failAfterBytes) {
+                            throw new IOException("connection reset");
+                        }
+                        len = Math.min(len, failAfterBytes - mSent);
+                    }
+                    int read = super.read(b, off, len);
+                    if (read > 0) {
+                        mSent += read;
+                    }
+                    return read;
+                }
+            };
+        }
+
+        @Override
+        public void disconnect() {
+            // ignore
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}